@@ -0,0 +1,25 @@
+package com.cloud.agent.api;
+
+/**
+ * The result is false when the host could not tell whether the disks are in use.
+ */
+public class CheckVmDiskActivityAnswer extends Answer {
+
+  private boolean active;
+
+  protected CheckVmDiskActivityAnswer() {
+  }
+
+  public CheckVmDiskActivityAnswer(CheckVmDiskActivityCommand cmd, boolean active, String details) {
+    super(cmd, true, details);
+    this.active = active;
+  }
+
+  public CheckVmDiskActivityAnswer(CheckVmDiskActivityCommand cmd, String details) {
+    super(cmd, false, details);
+  }
+
+  public boolean isActive() {
+    return active;
+  }
+}
@@ -0,0 +1,64 @@
+package com.cloud.agent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.storage.Storage.StoragePoolType;
+
+/**
+ * Asks a KVM host whether the disks of a VM are in use, which tells whether the VM still runs on a host that cannot
+ * be reached. Any host with access to the storage pools of the disks can answer it.
+ */
+public class CheckVmDiskActivityCommand extends Command {
+
+  public static class Disk {
+    private StoragePoolType poolType;
+    private String poolUuid;
+    private String path;
+
+    protected Disk() {
+    }
+
+    public Disk(StoragePoolType poolType, String poolUuid, String path) {
+      this.poolType = poolType;
+      this.poolUuid = poolUuid;
+      this.path = path;
+    }
+
+    public StoragePoolType getPoolType() {
+      return poolType;
+    }
+
+    public String getPoolUuid() {
+      return poolUuid;
+    }
+
+    public String getPath() {
+      return path;
+    }
+  }
+
+  private String vmName;
+  private List<Disk> disks = new ArrayList<Disk>();
+
+  protected CheckVmDiskActivityCommand() {
+  }
+
+  public CheckVmDiskActivityCommand(String vmName, List<Disk> disks) {
+    this.vmName = vmName;
+    this.disks = disks;
+  }
+
+  public String getVmName() {
+    return vmName;
+  }
+
+  public List<Disk> getDisks() {
+    return disks;
+  }
+
+  @Override
+  public boolean executeInSequence() {
+    return false;
+  }
+}
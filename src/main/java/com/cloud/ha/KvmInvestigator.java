@@ -1,5 +1,6 @@
 package com.cloud.ha;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -7,14 +8,20 @@ import javax.inject.Inject;
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.CheckOnHostCommand;
+import com.cloud.agent.api.CheckVmDiskActivityAnswer;
+import com.cloud.agent.api.CheckVmDiskActivityCommand;
 import com.cloud.host.Host;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
 import com.cloud.hypervisor.Hypervisor;
 import com.cloud.resource.ResourceManager;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VolumeDao;
 import com.cloud.utils.component.AdapterBase;
 
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +35,10 @@ public class KvmInvestigator extends AdapterBase implements Investigator {
   AgentManager agentMgr;
   @Inject
   ResourceManager resourceMgr;
+  @Inject
+  VolumeDao volumeDao;
+  @Inject
+  PrimaryDataStoreDao primaryDataStoreDao;
 
   @Override
   public boolean isVmAlive(com.cloud.vm.VirtualMachine vm, Host host) throws UnknownVM {
@@ -37,9 +48,54 @@ public class KvmInvestigator extends AdapterBase implements Investigator {
     }
     if (status == Status.Up) {
       return true;
-    } else {
+    }
+    final Boolean diskActivity = checkDiskActivity(vm, host);
+    if (diskActivity == null) {
       throw new UnknownVM();
     }
+    return diskActivity;
+  }
+
+  /**
+   * Asks a neighbour of the host whether the disks of the vm are in use, which they are as long as the vm runs. Only
+   * RBD images without watchers are reported idle, the disks on file based pools can only be found in use.
+   *
+   * @return whether the disks are in use, or null when no neighbour could tell
+   */
+  private Boolean checkDiskActivity(com.cloud.vm.VirtualMachine vm, Host host) {
+    final List<CheckVmDiskActivityCommand.Disk> disks = new ArrayList<CheckVmDiskActivityCommand.Disk>();
+    for (final VolumeVO volume : volumeDao.findByInstance(vm.getId())) {
+      if (volume.getPoolId() == null || volume.getPath() == null) {
+        continue;
+      }
+      final StoragePoolVO pool = primaryDataStoreDao.findById(volume.getPoolId());
+      if (pool != null) {
+        disks.add(new CheckVmDiskActivityCommand.Disk(pool.getPoolType(), pool.getUuid(), volume.getPath()));
+      }
+    }
+    if (disks.isEmpty()) {
+      return null;
+    }
+
+    final CheckVmDiskActivityCommand cmd = new CheckVmDiskActivityCommand(vm.getInstanceName(), disks);
+    final List<HostVO> neighbors = resourceMgr.listHostsInClusterByStatus(host.getClusterId(), Status.Up);
+    for (final HostVO neighbor : neighbors) {
+      if (neighbor.getId() == host.getId() || neighbor.getHypervisorType() != Hypervisor.HypervisorType.KVM) {
+        continue;
+      }
+      try {
+        final Answer answer = agentMgr.easySend(neighbor.getId(), cmd);
+        if (answer instanceof CheckVmDiskActivityAnswer && answer.getResult()) {
+          final boolean active = ((CheckVmDiskActivityAnswer) answer).isActive();
+          logger.debug("Neighbouring host:" + neighbor.getId() + " found the disks of " + vm.getInstanceName()
+              + (active ? " in use" : " idle"));
+          return active;
+        }
+      } catch (final Exception e) {
+        logger.debug("Failed to send command to host: " + neighbor.getId());
+      }
+    }
+    return null;
   }
 
   @Override
@@ -0,0 +1,103 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.cloud.exception.InternalErrorException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells which network devices exist on the host, the br&lt;pif&gt;-&lt;vlan&gt; and brvx-&lt;vni&gt; bridges and the
+ * devices attached to them. Presence checks are a stat of /sys/class/net, never a fork.
+ *
+ * Devices are created and removed under a lock per bridge, so NICs plugged into different bridges do not wait on each
+ * other, and a bridge is only created when it is actually missing. Concurrent plugs into the same missing bridge run
+ * the creator once.
+ */
+public class BridgeDeviceRegistry {
+
+  private static final Logger logger = LoggerFactory.getLogger(BridgeDeviceRegistry.class);
+
+  public interface DeviceCreator {
+    void create() throws InternalErrorException;
+  }
+
+  private final File sysClassNet;
+  private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+  public BridgeDeviceRegistry() {
+    this(new File("/sys/class/net"));
+  }
+
+  BridgeDeviceRegistry(File sysClassNet) {
+    this.sysClassNet = sysClassNet;
+  }
+
+  public boolean exists(String device) {
+    return new File(sysClassNet, device).exists();
+  }
+
+  /**
+   * @return whether the device exists and is a bridge, not a physical or vlan interface
+   */
+  public boolean isBridge(String device) {
+    return new File(sysClassNet, device + "/bridge").isDirectory();
+  }
+
+  /**
+   * @return whether the bridge exists and has the port attached
+   */
+  public boolean isAttached(String bridge, String port) {
+    return exists(bridge) && new File(sysClassNet, bridge + "/brif/" + port).exists();
+  }
+
+  /**
+   * @return the ports attached to the bridge, empty when it does not exist
+   */
+  public Set<String> getPorts(String bridge) {
+    final String[] ports = new File(sysClassNet, bridge + "/brif").list();
+    return ports != null ? new HashSet<String>(Arrays.asList(ports)) : Collections.<String>emptySet();
+  }
+
+  /**
+   * Runs the creator under the lock of the bridge, unless the bridge exists with the port attached. The check takes
+   * the lock as well, so it never sees a bridge that is being removed.
+   *
+   * @param port the device the bridge is built on, the vlan or vxlan device, or null when any bridge will do
+   */
+  public void ensure(String bridge, String port, DeviceCreator creator) throws InternalErrorException {
+    synchronized (lock(bridge)) {
+      if (isReady(bridge, port)) {
+        return;
+      }
+      creator.create();
+      logger.debug("Created bridge " + bridge + (port != null ? " on " + port : ""));
+    }
+  }
+
+  /**
+   * @return the lock devices of the bridge are created and removed under
+   */
+  public Object lock(String bridge) {
+    Object lock = locks.get(bridge);
+    if (lock == null) {
+      final Object created = new Object();
+      lock = locks.putIfAbsent(bridge, created);
+      if (lock == null) {
+        lock = created;
+      }
+    }
+    return lock;
+  }
+
+  private boolean isReady(String bridge, String port) {
+    return port != null ? isAttached(bridge, port) : exists(bridge);
+  }
+}
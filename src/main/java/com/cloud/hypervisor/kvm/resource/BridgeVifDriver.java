@@ -8,23 +8,31 @@ import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
 import com.google.common.base.Strings;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.naming.ConfigurationException;
 import java.io.File;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class BridgeVifDriver extends VifDriverBase {
 
+    private static final Pattern OLD_STYLE_BR_NAME_REGEX = Pattern.compile("^cloudVirBr(\\d+)$");
+    private static final Pattern BR_NAME_REGEX = Pattern.compile("^br(\\S+)-(\\d+)$");
+
     private final Logger logger = LoggerFactory.getLogger(BridgeVifDriver.class);
 
     private int timeout;
 
-    private final Object vnetBridgeMonitor = new Object();
+    private final BridgeDeviceRegistry bridgeRegistry = new BridgeDeviceRegistry();
+    private VnetBridgeCollector bridgeCollector;
     private String modifyVlanPath;
     private String modifyVxlanPath;
     private String bridgeNameSchema;
@@ -62,6 +70,20 @@ public class BridgeVifDriver extends VifDriverBase {
             libvirtVersion = 0L;
         }
 
+        final int bridgeGcDelay = NumbersUtil.parseInt((String) params.get("network.bridge.gc.delay"), 300);
+        bridgeCollector = new VnetBridgeCollector(new VnetBridgeCollector.Topology() {
+            @Override
+            public Map<String, Integer> getBridgesInUse() throws LibvirtException {
+                return getBridgesOfRunningDomains();
+            }
+        }, new VnetBridgeCollector.BridgeRemover() {
+            @Override
+            public boolean remove(final String bridge) {
+                return removeIdleVnetBr(bridge);
+            }
+        }, bridgeGcDelay * 1000L);
+        bridgeCollector.start();
+
         try {
             createControlNetwork();
         } catch (final LibvirtException e) {
@@ -69,6 +91,13 @@ public class BridgeVifDriver extends VifDriverBase {
         }
     }
 
+    @Override
+    public void stop() {
+        if (bridgeCollector != null) {
+            bridgeCollector.stop();
+        }
+    }
+
     @Override
     public LibvirtVmDef.InterfaceDef plug(final NicTO nic, final String guestOsType, final String nicAdapter)
             throws InternalErrorException, LibvirtException {
@@ -150,7 +179,14 @@ public class BridgeVifDriver extends VifDriverBase {
 
     @Override
     public void unplug(final LibvirtVmDef.InterfaceDef iface) {
-        deleteVnetBr(iface.getBrName());
+        final String brName = iface.getBrName();
+        if (brName == null || bridgeCollector == null || bridges != null && bridges.containsValue(brName)) {
+            return;
+        }
+        if (OLD_STYLE_BR_NAME_REGEX.matcher(brName).find() || BR_NAME_REGEX.matcher(brName).find()) {
+            // removed by the collector once it stayed idle
+            bridgeCollector.release(brName);
+        }
     }
 
     private String setVnetBrName(final String pifName, final String vnetId) {
@@ -176,46 +212,100 @@ public class BridgeVifDriver extends VifDriverBase {
         } else {
             brName = setVnetBrName(nic, netId);
         }
-        createVnet(netId, nic, brName, protocol);
+        // under the lock removeIdleVnetBr holds, so the collector either sees the reference or removed the bridge before
+        synchronized (bridgeRegistry.lock(brName)) {
+            bridgeCollector.acquire(brName);
+            try {
+                createVnet(netId, nic, brName, protocol);
+            } catch (final InternalErrorException e) {
+                bridgeCollector.release(brName);
+                throw e;
+            }
+        }
         return brName;
     }
 
     private void createVnet(final String vnetId, final String pif, final String brName, final String protocol) throws InternalErrorException {
-        synchronized (vnetBridgeMonitor) {
-            String script = modifyVlanPath;
-            if (protocol.equals(Networks.BroadcastDomainType.Vxlan.scheme())) {
-                script = modifyVxlanPath;
+        final boolean vxlan = protocol.equals(Networks.BroadcastDomainType.Vxlan.scheme());
+        // the device modifyvlan.sh or modifyvxlan.sh attaches to the bridge
+        final String port = vxlan ? "vxlan" + vnetId : pif + "." + vnetId;
+        bridgeRegistry.ensure(brName, port, new BridgeDeviceRegistry.DeviceCreator() {
+            @Override
+            public void create() throws InternalErrorException {
+                final Script command = new Script(vxlan ? modifyVxlanPath : modifyVlanPath, timeout, logger);
+                command.add("-v", vnetId);
+                command.add("-p", pif);
+                command.add("-b", brName);
+                command.add("-o", "add");
+
+                final String result = command.execute();
+                if (result != null) {
+                    throw new InternalErrorException("Failed to create vnet " + vnetId + ": " + result);
+                }
             }
-            final Script command = new Script(script, timeout, logger);
-            command.add("-v", vnetId);
-            command.add("-p", pif);
-            command.add("-b", brName);
-            command.add("-o", "add");
+        });
+    }
 
-            final String result = command.execute();
-            if (result != null) {
-                throw new InternalErrorException("Failed to create vnet " + vnetId + ": " + result);
+    private boolean removeIdleVnetBr(final String brName) {
+        synchronized (bridgeRegistry.lock(brName)) {
+            // a NIC may have been plugged since the collector picked the bridge
+            if (!bridgeCollector.isIdle(brName)) {
+                return false;
+            }
+            deleteVnetBr(brName);
+            return !bridgeRegistry.exists(brName);
+        }
+    }
+
+    private Map<String, Integer> getBridgesOfRunningDomains() throws LibvirtException {
+        final Connect conn = LibvirtConnection.getConnection();
+        final Map<String, Integer> inUse = new HashMap<String, Integer>();
+        for (final int id : conn.listDomains()) {
+            Domain dm = null;
+            try {
+                dm = conn.domainLookupByID(id);
+                final LibvirtDomainXmlParser parser = new LibvirtDomainXmlParser();
+                parser.parseDomainXml(dm.getXMLDesc(0));
+                for (final LibvirtVmDef.InterfaceDef nic : parser.getInterfaces()) {
+                    final Integer count = inUse.get(nic.getBrName());
+                    inUse.put(nic.getBrName(), count != null ? count + 1 : 1);
+                }
+            } catch (final LibvirtException e) {
+                // the domain stopped in the meantime
+                logger.trace("Ignoring libvirt error.", e);
+            } finally {
+                if (dm != null) {
+                    try {
+                        dm.free();
+                    } catch (final LibvirtException e) {
+                        logger.trace("Ignoring libvirt error.", e);
+                    }
+                }
             }
         }
+        return inUse;
     }
 
     private void deleteVnetBr(final String brName) {
-        synchronized (vnetBridgeMonitor) {
-            String cmdout = Script.runSimpleBashScript("ls /sys/class/net/" + brName);
-            if (cmdout == null) {
+        synchronized (bridgeRegistry.lock(brName)) {
+            if (!bridgeRegistry.exists(brName)) {
                 // Bridge does not exist
                 return;
             }
-            cmdout = Script.runSimpleBashScript("ls /sys/class/net/" + brName + "/brif | tr '\n' ' '");
-            if (cmdout != null && cmdout.contains("vnet")) {
-                // Active VM remains on that bridge
-                return;
+            final Set<String> ports = bridgeRegistry.getPorts(brName);
+            String vxlanPort = null;
+            for (final String port : ports) {
+                if (port.contains("vnet")) {
+                    // Active VM remains on that bridge
+                    return;
+                }
+                if (port.contains("vxlan")) {
+                    vxlanPort = port;
+                }
             }
 
-            final Pattern oldStyleBrNameRegex = Pattern.compile("^cloudVirBr(\\d+)$");
-            final Pattern brNameRegex = Pattern.compile("^br(\\S+)-(\\d+)$");
-            final Matcher oldStyleBrNameMatcher = oldStyleBrNameRegex.matcher(brName);
-            final Matcher brNameMatcher = brNameRegex.matcher(brName);
+            final Matcher oldStyleBrNameMatcher = OLD_STYLE_BR_NAME_REGEX.matcher(brName);
+            final Matcher brNameMatcher = BR_NAME_REGEX.matcher(brName);
 
             String name = null;
             String netId = null;
@@ -238,7 +328,7 @@ public class BridgeVifDriver extends VifDriverBase {
             }
 
             String scriptPath = null;
-            if (cmdout != null && cmdout.contains("vxlan")) {
+            if (vxlanPort != null) {
                 scriptPath = modifyVxlanPath;
             } else {
                 scriptPath = modifyVlanPath;
@@ -300,11 +390,6 @@ public class BridgeVifDriver extends VifDriverBase {
     }
 
     private boolean isBridgeExists(final String bridgeName) {
-        final File f = new File("/sys/devices/virtual/net/" + bridgeName);
-        if (f.exists()) {
-            return true;
-        } else {
-            return false;
-        }
+        return bridgeRegistry.isBridge(bridgeName);
     }
 }
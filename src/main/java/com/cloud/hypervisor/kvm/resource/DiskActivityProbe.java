@@ -0,0 +1,344 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.hypervisor.kvm.storage.KvmPhysicalDisk;
+import com.cloud.hypervisor.kvm.storage.KvmStoragePool;
+import com.cloud.storage.Storage.StoragePoolType;
+
+import com.ceph.rados.IoCTX;
+import com.ceph.rados.Rados;
+import com.ceph.rados.exceptions.RadosException;
+import com.ceph.rbd.Rbd;
+import com.ceph.rbd.RbdException;
+import com.ceph.rbd.RbdImage;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.LongByReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells whether the disks of a VM are in use, to find out whether the VM still runs somewhere.
+ *
+ * An RBD image is in use while a client watches its header, which every librbd client that opened the image for
+ * writing does, and idle without watchers. A file is in use when it was modified within the inactive threshold, or when
+ * its mtime or size changes while it is sampled. A file that does not change is unknown rather than idle: a guest that
+ * does not write, or a shared filesystem that caches the attributes, looks the same. All disks are probed in parallel
+ * and the probe returns as soon as one of them is in use.
+ */
+public class DiskActivityProbe {
+
+  private static final Logger logger = LoggerFactory.getLogger(DiskActivityProbe.class);
+
+  public enum Activity {
+    ACTIVE, IDLE, UNKNOWN
+  }
+
+  /**
+   * Counts the clients watching an RBD image.
+   */
+  interface WatcherCounter {
+    int countWatchers(KvmStoragePool pool, String image) throws IOException;
+  }
+
+  interface RbdLibrary extends Library {
+    int rbd_watchers_list(Pointer image, ImageWatcher watchers, LongByReference maxWatchers);
+
+    void rbd_watchers_list_cleanup(ImageWatcher watchers, long numWatchers);
+  }
+
+  /**
+   * rbd_image_watcher_t
+   */
+  public static class ImageWatcher extends Structure {
+    public String addr;
+    public long id;
+    public long cookie;
+
+    @Override
+    protected List<String> getFieldOrder() {
+      return Arrays.asList("addr", "id", "cookie");
+    }
+  }
+
+  private static final int ERANGE = 34;
+  private static final int MAX_WATCHERS = 16;
+
+  private final ExecutorService executor;
+  private final WatcherCounter watcherCounter;
+  private final long sampleMilliseconds;
+  private final long inactiveThresholdMilliseconds;
+  private final long fileSizeMin;
+  private final long timeoutMilliseconds;
+
+  /**
+   * @param sampleMilliseconds how long the mtime and size of a file are watched for a change
+   * @param inactiveThresholdMilliseconds a file modified more recently than this counts as in use
+   * @param fileSizeMin files smaller than this are not sampled, a freshly created volume is never in use
+   * @param timeoutMilliseconds the time after which disks that were not probed yet count as unknown
+   */
+  public DiskActivityProbe(ExecutorService executor, long sampleMilliseconds, long inactiveThresholdMilliseconds,
+      long fileSizeMin, long timeoutMilliseconds) {
+    this(executor, new RbdWatcherCounter(), sampleMilliseconds, inactiveThresholdMilliseconds, fileSizeMin,
+        timeoutMilliseconds);
+  }
+
+  DiskActivityProbe(ExecutorService executor, WatcherCounter watcherCounter, long sampleMilliseconds,
+      long inactiveThresholdMilliseconds, long fileSizeMin, long timeoutMilliseconds) {
+    this.executor = executor;
+    this.watcherCounter = watcherCounter;
+    this.sampleMilliseconds = sampleMilliseconds;
+    this.inactiveThresholdMilliseconds = inactiveThresholdMilliseconds;
+    this.fileSizeMin = fileSizeMin;
+    this.timeoutMilliseconds = timeoutMilliseconds;
+  }
+
+  /**
+   * Probes the disks until none of them is in use any more, like a VM that was just stopped elsewhere.
+   *
+   * @return the last result, ACTIVE when the disks were still in use after waitMilliseconds
+   */
+  public Activity probeUntilIdle(List<KvmPhysicalDisk> disks, long waitMilliseconds) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + waitMilliseconds;
+    Activity activity = probe(disks);
+    while (activity == Activity.ACTIVE && System.currentTimeMillis() < deadline) {
+      Thread.sleep(Math.min(inactiveThresholdMilliseconds, Math.max(0, deadline - System.currentTimeMillis())));
+      activity = probe(disks);
+    }
+    return activity;
+  }
+
+  /**
+   * @return ACTIVE when any of the disks is in use, IDLE when none of them is, UNKNOWN when that cannot be told
+   */
+  public Activity probe(List<KvmPhysicalDisk> disks) throws InterruptedException {
+    if (disks.isEmpty()) {
+      return Activity.UNKNOWN;
+    }
+    final CompletionService<Activity> completion = new ExecutorCompletionService<Activity>(executor);
+    final List<Future<Activity>> probes = new ArrayList<Future<Activity>>();
+    for (final KvmPhysicalDisk disk : disks) {
+      probes.add(completion.submit(new DiskProbe(disk)));
+    }
+
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMilliseconds);
+    Activity result = Activity.IDLE;
+    try {
+      for (int i = 0; i < probes.size(); i++) {
+        final Future<Activity> probe = completion.poll(Math.max(0, deadline - System.nanoTime()),
+            TimeUnit.NANOSECONDS);
+        if (probe == null) {
+          logger.warn("Timed out probing " + disks.size() + " disks for activity");
+          return Activity.UNKNOWN;
+        }
+        Activity activity;
+        try {
+          activity = probe.get();
+        } catch (final ExecutionException e) {
+          logger.debug("probing disk for activity failed: " + e.getCause());
+          activity = Activity.UNKNOWN;
+        }
+        if (activity == Activity.ACTIVE) {
+          return Activity.ACTIVE;
+        } else if (activity == Activity.UNKNOWN) {
+          result = Activity.UNKNOWN;
+        }
+      }
+      return result;
+    } finally {
+      for (final Future<Activity> probe : probes) {
+        probe.cancel(true);
+      }
+    }
+  }
+
+  Activity probe(KvmPhysicalDisk disk) throws IOException, InterruptedException {
+    final StoragePoolType type = disk.getPool().getType();
+    if (type == StoragePoolType.RBD) {
+      final int watchers = watcherCounter.countWatchers(disk.getPool(), disk.getName());
+      logger.debug("RBD image " + disk.getPath() + " has " + watchers + " watchers");
+      return watchers > 0 ? Activity.ACTIVE : Activity.IDLE;
+    } else if (type == StoragePoolType.NetworkFilesystem || type == StoragePoolType.Filesystem
+        || type == StoragePoolType.SharedMountPoint) {
+      return probeFile(disk.getPath());
+    }
+    return Activity.UNKNOWN;
+  }
+
+  private Activity probeFile(String path) throws IOException, InterruptedException {
+    final BasicFileAttributes before = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+    if (before.size() < fileSizeMin) {
+      return Activity.UNKNOWN;
+    }
+    final long age = System.currentTimeMillis() - before.lastModifiedTime().toMillis();
+    if (age < inactiveThresholdMilliseconds) {
+      logger.debug("file " + path + " was modified " + age + "ms ago");
+      return Activity.ACTIVE;
+    }
+    Thread.sleep(sampleMilliseconds);
+    final BasicFileAttributes after = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+    if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+      logger.debug("file " + path + " changed within " + sampleMilliseconds + "ms");
+      return Activity.ACTIVE;
+    }
+    // an unchanged file does not prove that no one uses it
+    return Activity.UNKNOWN;
+  }
+
+  private class DiskProbe implements Callable<Activity> {
+    private final KvmPhysicalDisk disk;
+
+    DiskProbe(KvmPhysicalDisk disk) {
+      this.disk = disk;
+    }
+
+    @Override
+    public Activity call() throws Exception {
+      return probe(disk);
+    }
+  }
+
+  /**
+   * Lists the watchers of an image with rbd_watchers_list, which rados-java does not expose. The image is opened
+   * read only, so the probe does not add a watcher of its own.
+   *
+   * The disks of a pool probed at the same time share a connection to its cluster, which is closed once the last of
+   * them is done.
+   */
+  private static class RbdWatcherCounter implements WatcherCounter {
+    private static RbdLibrary library;
+
+    private final Map<String, PoolConnection> connections = new HashMap<String, PoolConnection>();
+
+    private static synchronized RbdLibrary library() {
+      if (library == null) {
+        try {
+          library = (RbdLibrary) Native.loadLibrary("rbd", RbdLibrary.class);
+        } catch (final UnsatisfiedLinkError e) {
+          logger.debug("Unable to bind to librbd for watcher lists: " + e.getMessage());
+        }
+      }
+      return library;
+    }
+
+    @Override
+    public int countWatchers(KvmStoragePool pool, String image) throws IOException {
+      final PoolConnection connection = acquire(pool);
+      try {
+        final Rbd rbd = new Rbd(connection.io);
+        final RbdImage rbdImage = rbd.openReadOnly(image);
+        try {
+          return countWatchers(rbdImage.getPointer());
+        } finally {
+          rbd.close(rbdImage);
+        }
+      } catch (final RbdException e) {
+        throw new IOException("Unable to open RBD image " + image + ": " + e.getMessage(), e);
+      } finally {
+        release(pool.getUuid(), connection);
+      }
+    }
+
+    private PoolConnection acquire(KvmStoragePool pool) throws IOException {
+      synchronized (connections) {
+        final PoolConnection connection = connections.get(pool.getUuid());
+        if (connection != null) {
+          connection.users++;
+          return connection;
+        }
+      }
+
+      final PoolConnection connection = new PoolConnection(pool);
+      synchronized (connections) {
+        final PoolConnection other = connections.get(pool.getUuid());
+        if (other != null) {
+          // another disk of the pool connected meanwhile
+          connection.close();
+          other.users++;
+          return other;
+        }
+        connection.users++;
+        connections.put(pool.getUuid(), connection);
+        return connection;
+      }
+    }
+
+    private void release(String uuid, PoolConnection connection) {
+      synchronized (connections) {
+        if (--connection.users > 0) {
+          return;
+        }
+        connections.remove(uuid);
+      }
+      connection.close();
+    }
+
+    private int countWatchers(Pointer image) throws IOException {
+      final RbdLibrary library = library();
+      if (library == null) {
+        throw new IOException("librbd is not available");
+      }
+      final ImageWatcher[] watchers = (ImageWatcher[]) new ImageWatcher().toArray(MAX_WATCHERS);
+      final LongByReference count = new LongByReference(MAX_WATCHERS);
+      final int rc = library.rbd_watchers_list(image, watchers[0], count);
+      if (rc == -ERANGE) {
+        // more watchers than room for them, which is in use all the same
+        return (int) count.getValue();
+      } else if (rc < 0) {
+        throw new IOException("rbd_watchers_list failed with " + rc);
+      }
+      library.rbd_watchers_list_cleanup(watchers[0], count.getValue());
+      return (int) count.getValue();
+    }
+  }
+
+  private static class PoolConnection {
+    private final Rados rados;
+    private final IoCTX io;
+    private int users;
+
+    PoolConnection(KvmStoragePool pool) throws IOException {
+      try {
+        rados = new Rados(pool.getAuthUserName());
+        rados.confSet("mon_host", pool.getSourceHost() + ":" + pool.getSourcePort());
+        rados.confSet("key", pool.getAuthSecret());
+        rados.confSet("client_mount_timeout", "30");
+        rados.connect();
+      } catch (final RadosException e) {
+        throw new IOException("Unable to connect to Ceph cluster of pool " + pool.getUuid() + ": " + e.getMessage(), e);
+      }
+      try {
+        io = rados.ioCtxCreate(pool.getSourceDir());
+      } catch (final RadosException e) {
+        rados.shutDown();
+        throw new IOException("Unable to open pool " + pool.getSourceDir() + ": " + e.getMessage(), e);
+      }
+    }
+
+    void close() {
+      try {
+        rados.ioCtxDestroy(io);
+      } finally {
+        rados.shutDown();
+      }
+    }
+  }
+}
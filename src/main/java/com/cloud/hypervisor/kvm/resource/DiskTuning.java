@@ -0,0 +1,149 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.IoThreadsDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.ScsiControllerDef;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.utils.NumbersUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the disks of a VM: the AIO mode and discard of each disk, chosen by the type of its pool, and a pool of
+ * IOThreads the virtio disks and the virtio-scsi controller are spread over round-robin, so the I/O of the disks runs
+ * on several host cores instead of the main loop of qemu.
+ *
+ * The defaults come from the agent properties. The details of a disk can override its diskIoMode (native, io_uring or
+ * threads) and diskDiscard (true or false), the details of the VirtualMachineTO the number of diskIoThreads.
+ */
+public class DiskTuning {
+
+  private static final Logger logger = LoggerFactory.getLogger(DiskTuning.class);
+
+  public static final String IO_MODE = "diskIoMode";
+  public static final String DISCARD = "diskDiscard";
+  public static final String IO_THREADS = "diskIoThreads";
+
+  /* the most queues a virtio-scsi controller supports */
+  private static final int MAX_SCSI_QUEUES = 1024;
+
+  private final int ioThreads;
+  private final DiskDef.DiskIoMode ioMode;
+  private final boolean discard;
+  private final int maxScsiQueues;
+
+  /**
+   * @param ioThreads the most IOThreads of a VM, 0 runs the I/O of the disks in the main loop
+   * @param ioMode native, io_uring, threads, or null for the qemu default
+   * @param discard whether the disks on thin provisioned pools pass the discards of the guest down to the storage
+   * @param maxScsiQueues the most request queues of the virtio-scsi controller, however many vCPUs the VM has, 0 leaves
+   *     the controller to libvirt
+   */
+  public DiskTuning(int ioThreads, String ioMode, boolean discard, int maxScsiQueues) {
+    this.ioThreads = Math.max(0, ioThreads);
+    this.ioMode = validIoMode(ioMode);
+    this.discard = discard;
+    this.maxScsiQueues = Math.max(0, Math.min(maxScsiQueues, MAX_SCSI_QUEUES));
+  }
+
+  /**
+   * Sets the AIO mode and discard of a disk of a volume.
+   *
+   * @param details the details of the DiskTO, or null
+   */
+  public void apply(DiskDef disk, StoragePoolType poolType, Map<String, String> details) {
+    if (disk.getDeviceType() != DiskDef.DeviceType.DISK || poolType == null) {
+      return;
+    }
+
+    // rbd and gluster disks are served by the libraries of qemu, which do their own I/O
+    if (poolType != StoragePoolType.RBD && poolType != StoragePoolType.Gluster) {
+      final String mode = details != null ? details.get(IO_MODE) : null;
+      final DiskDef.DiskIoMode diskIoMode = mode != null ? validIoMode(mode) : ioMode;
+      if (diskIoMode == DiskDef.DiskIoMode.NATIVE && disk.getCacheMode() != DiskDef.DiskCacheMode.NONE) {
+        logger.debug("Not using native AIO for " + disk.getDiskPath() + ", it needs cache mode none instead of "
+            + disk.getCacheMode());
+      } else {
+        disk.setIoMode(diskIoMode);
+      }
+    }
+
+    final String enabled = details != null ? details.get(DISCARD) : null;
+    if (enabled != null) {
+      disk.setDiscard(Boolean.parseBoolean(enabled));
+    } else {
+      // discards on thick provisioned logical volumes free nothing, they only cost I/O
+      disk.setDiscard(discard && poolType != StoragePoolType.CLVM && poolType != StoragePoolType.Iscsi);
+    }
+  }
+
+  /**
+   * Adds the IOThreads to a VM whose disks are all defined and assigns them round-robin to its virtio disks and its
+   * virtio-scsi controller. The controller is only defined when a disk is on the scsi bus and it gets an IOThread or
+   * request queues, one per vCPU up to maxScsiQueues; otherwise libvirt adds its default controller.
+   *
+   * @param details the details of the VirtualMachineTO, or null
+   */
+  public void assignIoThreads(LibvirtVmDef vm, int vcpus, Map<String, String> details) {
+    final List<DiskDef> disks = vm.getDevices().getDisks();
+    if (disks == null) {
+      return;
+    }
+
+    int consumers = 0;
+    boolean scsi = false;
+    for (final DiskDef disk : disks) {
+      if (disk.getDeviceType() == DiskDef.DeviceType.CDROM) {
+        continue;
+      }
+      if (disk.getBusType() == DiskDef.DiskBus.VIRTIO) {
+        consumers++;
+      } else if (disk.getBusType() == DiskDef.DiskBus.SCSI && !scsi) {
+        scsi = true;
+        consumers++;
+      }
+    }
+
+    final int threads = Math.min(getIoThreads(details), consumers);
+    if (threads > 0) {
+      vm.addComp(new IoThreadsDef(threads));
+    }
+
+    int next = 0;
+    for (final DiskDef disk : disks) {
+      if (threads > 0 && disk.getDeviceType() != DiskDef.DeviceType.CDROM
+          && disk.getBusType() == DiskDef.DiskBus.VIRTIO) {
+        disk.setIoThread(next++ % threads + 1);
+      }
+    }
+    if (scsi && (maxScsiQueues > 0 || threads > 0)) {
+      final int queues = maxScsiQueues > 0 ? Math.max(1, Math.min(vcpus, maxScsiQueues)) : 0;
+      vm.getDevices().addDevice(new ScsiControllerDef(0, queues, threads > 0 ? next % threads + 1 : 0));
+    }
+  }
+
+  int getIoThreads(Map<String, String> details) {
+    final String threads = details != null ? details.get(IO_THREADS) : null;
+    if (threads != null) {
+      return Math.max(0, NumbersUtil.parseInt(threads, ioThreads));
+    }
+    return ioThreads;
+  }
+
+  private static DiskDef.DiskIoMode validIoMode(String ioMode) {
+    if (ioMode == null || ioMode.isEmpty()) {
+      return null;
+    }
+    for (final DiskDef.DiskIoMode mode : DiskDef.DiskIoMode.values()) {
+      if (mode.toString().equalsIgnoreCase(ioMode)) {
+        return mode;
+      }
+    }
+    logger.warn("Ignoring disk io mode " + ioMode + ", it is neither native, io_uring nor threads");
+    return null;
+  }
+}
@@ -0,0 +1,26 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.IOException;
+
+/**
+ * Shared storage that hosts write their heartbeat to, so other hosts can tell whether they are still alive before
+ * starting their VMs elsewhere. KvmHaMonitor writes the heartbeat of this host to every backend, KvmHaChecker reads the
+ * heartbeat of other hosts from them.
+ */
+public interface HeartbeatBackend {
+
+  /**
+   * @return the uuid of the storage pool the heartbeats are kept on
+   */
+  String getPoolUuid();
+
+  /**
+   * @param timestamp seconds since the epoch
+   */
+  void write(String hostIp, long timestamp) throws IOException;
+
+  /**
+   * @return the time of the last heartbeat of the host in seconds since the epoch
+   */
+  long read(String hostIp) throws IOException;
+}
@@ -0,0 +1,242 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.cloud.exception.InternalErrorException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accounts for the hugepages of the host, per page size and per NUMA node, from /sys/kernel/mm/hugepages and
+ * /sys/devices/system/node/node&lt;N&gt;/hugepages.
+ *
+ * The kernel only counts the pages of a VM once qemu maps its memory, so the pages of the VMs being started are
+ * reserved here until their start is over, and concurrent starts cannot both count on the same free pages.
+ */
+public class HugePages {
+
+  private static final Logger logger = LoggerFactory.getLogger(HugePages.class);
+
+  /**
+   * The detail of the service offering asking for hugepages: the page size, like 2M or 1G, or true for the default.
+   */
+  public static final String DETAIL = "hugepages";
+
+  /* a reservation that is not bound to a node */
+  public static final int ANY_NODE = -1;
+
+  private static final Pattern PAGES_DIR = Pattern.compile("hugepages-(\\d+)kB");
+  private static final Pattern NODE_DIR = Pattern.compile("node(\\d+)");
+  private static final Pattern PAGE_SIZE = Pattern.compile("(\\d+)\\s*([kmg]?)i?b?", Pattern.CASE_INSENSITIVE);
+
+  private final File hugePagesDir;
+  private final File nodesDir;
+  private final long defaultPageSize;
+  private final Map<String, Map<Integer, Long>> reservations = new HashMap<String, Map<Integer, Long>>();
+  private final Map<String, Long> reservationPageSizes = new HashMap<String, Long>();
+
+  /**
+   * @param defaultPageSize the page size in KiB of VMs asking for hugepages without a size
+   */
+  public HugePages(long defaultPageSize) {
+    this(new File("/sys/kernel/mm/hugepages"), new File("/sys/devices/system/node"), defaultPageSize);
+  }
+
+  HugePages(File hugePagesDir, File nodesDir, long defaultPageSize) {
+    this.hugePagesDir = hugePagesDir;
+    this.nodesDir = nodesDir;
+    this.defaultPageSize = defaultPageSize;
+  }
+
+  /**
+   * @return the page sizes of the host in KiB, smallest first
+   */
+  public List<Long> getPageSizes() {
+    return listPageSizes(hugePagesDir);
+  }
+
+  public long getTotalPages(long pageSize) {
+    return read(new File(hugePagesDir, pagesDir(pageSize)), "nr_hugepages");
+  }
+
+  /**
+   * @return the pages neither in use nor reserved by a mapping
+   */
+  public long getFreePages(long pageSize) {
+    final File dir = new File(hugePagesDir, pagesDir(pageSize));
+    return Math.max(0, read(dir, "free_hugepages") - read(dir, "resv_hugepages"));
+  }
+
+  public List<Integer> getNodes() {
+    final List<Integer> nodes = new ArrayList<Integer>();
+    final String[] names = nodesDir.list();
+    if (names != null) {
+      for (final String name : names) {
+        final Matcher matcher = NODE_DIR.matcher(name);
+        if (matcher.matches()) {
+          nodes.add(Integer.parseInt(matcher.group(1)));
+        }
+      }
+    }
+    Collections.sort(nodes);
+    return nodes;
+  }
+
+  public long getTotalPages(int node, long pageSize) {
+    return read(nodePagesDir(node, pageSize), "nr_hugepages");
+  }
+
+  public long getFreePages(int node, long pageSize) {
+    return read(nodePagesDir(node, pageSize), "free_hugepages");
+  }
+
+  /**
+   * @return the hugepages of the host for the details of the StartupRoutingCommand, like hugepages.2048kB.total,
+   *     hugepages.2048kB.free and hugepages.2048kB.node0.free
+   */
+  public Map<String, String> getHostDetails() {
+    final Map<String, String> details = new TreeMap<String, String>();
+    final List<Integer> nodes = getNodes();
+    for (final long pageSize : getPageSizes()) {
+      final String prefix = "hugepages." + pageSize + "kB.";
+      details.put(prefix + "total", String.valueOf(getTotalPages(pageSize)));
+      details.put(prefix + "free", String.valueOf(getFreePages(pageSize)));
+      for (final int node : nodes) {
+        details.put(prefix + "node" + node + ".total", String.valueOf(getTotalPages(node, pageSize)));
+        details.put(prefix + "node" + node + ".free", String.valueOf(getFreePages(node, pageSize)));
+      }
+    }
+    return details;
+  }
+
+  /**
+   * @param value the hugepages detail of a VM, like 2M, 1G, 2048 in KiB or true, or null
+   * @return the page size in KiB, or 0 if the VM does not ask for hugepages
+   */
+  public long getPageSize(String value) throws InternalErrorException {
+    if (value == null || value.isEmpty() || "false".equalsIgnoreCase(value)) {
+      return 0;
+    }
+    if ("true".equalsIgnoreCase(value)) {
+      return defaultPageSize;
+    }
+    final Matcher matcher = PAGE_SIZE.matcher(value.trim());
+    if (!matcher.matches()) {
+      throw new InternalErrorException("Invalid hugepage size " + value);
+    }
+    long pageSize = Long.parseLong(matcher.group(1));
+    final String unit = matcher.group(2).toLowerCase();
+    if ("m".equals(unit)) {
+      pageSize *= 1024;
+    } else if ("g".equals(unit)) {
+      pageSize *= 1024 * 1024;
+    }
+    return pageSize;
+  }
+
+  /**
+   * Reserves the pages of a VM about to start, or fails if the host does not have them.
+   *
+   * @param pages the pages the VM needs on each node, or on ANY_NODE when its memory is not bound to nodes
+   */
+  public synchronized void reserve(String vmName, long pageSize, Map<Integer, Long> pages)
+      throws InternalErrorException {
+    release(vmName);
+    if (!getPageSizes().contains(pageSize)) {
+      throw new InternalErrorException("The host has no hugepages of " + pageSize + " KiB for " + vmName);
+    }
+
+    long total = 0;
+    for (final Map.Entry<Integer, Long> entry : pages.entrySet()) {
+      total += entry.getValue();
+      if (entry.getKey() != ANY_NODE) {
+        final long free = getFreePages(entry.getKey(), pageSize) - getReserved(entry.getKey(), pageSize);
+        if (free < entry.getValue()) {
+          throw new InternalErrorException("Not enough hugepages of " + pageSize + " KiB on node " + entry.getKey()
+              + " for " + vmName + ": it needs " + entry.getValue() + ", " + free + " are free");
+        }
+      }
+    }
+    final long free = getFreePages(pageSize) - getReserved(null, pageSize);
+    if (free < total) {
+      throw new InternalErrorException("Not enough hugepages of " + pageSize + " KiB for " + vmName + ": it needs "
+          + total + ", " + free + " are free");
+    }
+
+    reservations.put(vmName, new HashMap<Integer, Long>(pages));
+    reservationPageSizes.put(vmName, pageSize);
+    logger.debug("Reserved " + total + " hugepages of " + pageSize + " KiB for " + vmName);
+  }
+
+  /**
+   * Releases the pages reserved for a VM once its start is over, the kernel counts them from then on.
+   */
+  public synchronized void release(String vmName) {
+    reservations.remove(vmName);
+    reservationPageSizes.remove(vmName);
+  }
+
+  /* the pages reserved on a node, or on all nodes together when node is null */
+  private long getReserved(Integer node, long pageSize) {
+    long reserved = 0;
+    for (final Map.Entry<String, Map<Integer, Long>> reservation : reservations.entrySet()) {
+      if (reservationPageSizes.get(reservation.getKey()) != pageSize) {
+        continue;
+      }
+      for (final Map.Entry<Integer, Long> entry : reservation.getValue().entrySet()) {
+        if (node == null || node.equals(entry.getKey())) {
+          reserved += entry.getValue();
+        }
+      }
+    }
+    return reserved;
+  }
+
+  private File nodePagesDir(int node, long pageSize) {
+    return new File(nodesDir, "node" + node + "/hugepages/" + pagesDir(pageSize));
+  }
+
+  private static String pagesDir(long pageSize) {
+    return "hugepages-" + pageSize + "kB";
+  }
+
+  private static List<Long> listPageSizes(File dir) {
+    final List<Long> pageSizes = new ArrayList<Long>();
+    final String[] names = dir.list();
+    if (names != null) {
+      for (final String name : names) {
+        final Matcher matcher = PAGES_DIR.matcher(name);
+        if (matcher.matches()) {
+          pageSizes.add(Long.parseLong(matcher.group(1)));
+        }
+      }
+    }
+    Collections.sort(pageSizes);
+    return pageSizes;
+  }
+
+  private static long read(File dir, String name) {
+    final File file = new File(dir, name);
+    if (!file.exists()) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim());
+    } catch (final IOException | NumberFormatException e) {
+      logger.warn("Unable to read " + file + ": " + e.getMessage());
+      return 0;
+    }
+  }
+}
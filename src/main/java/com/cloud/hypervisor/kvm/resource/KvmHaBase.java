@@ -1,6 +1,14 @@
 package com.cloud.hypervisor.kvm.resource;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.OutputInterpreter.AllLinesParser;
@@ -145,6 +153,53 @@ public class KvmHaBase {
     return mountPoint + File.separator + "KVMHA" + File.separator;
   }
 
+  /**
+   * Writes the timestamp to the heartbeat file of the host, the way kvmheartbeat.sh does. The file is opened with
+   * O_DSYNC, so the write only returns once the NFS server has the timestamp.
+   *
+   * @param timestamp seconds since the epoch
+   */
+  protected void writeHeartbeat(String mountPoint, String hostIp, long timestamp) throws IOException {
+    final Path folder = Paths.get(getHbFolder(mountPoint));
+    Files.createDirectories(folder);
+    final ByteBuffer content = ByteBuffer.wrap((timestamp + "\n").getBytes(StandardCharsets.US_ASCII));
+    try (FileChannel channel = FileChannel.open(folder.resolve("hb-" + hostIp), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.DSYNC)) {
+      // overwrite in place rather than truncating first, so a reader never sees an empty file
+      while (content.hasRemaining()) {
+        channel.write(content, content.position());
+      }
+      channel.truncate(content.limit());
+    }
+  }
+
+  /**
+   * @return the timestamp in the heartbeat file of the host, in seconds since the epoch
+   */
+  protected long readHeartbeat(String mountPoint, String hostIp) throws IOException {
+    final String content = new String(Files.readAllBytes(Paths.get(getHbFile(mountPoint, hostIp))),
+        StandardCharsets.US_ASCII).trim();
+    try {
+      return Long.parseLong(content);
+    } catch (final NumberFormatException e) {
+      throw new IOException("Invalid heartbeat '" + content + "' of " + hostIp + " in " + mountPoint);
+    }
+  }
+
+  /**
+   * @return whether an NFS file system is mounted on the mount point
+   */
+  protected boolean isMounted(String mountPoint) throws IOException {
+    final String path = Paths.get(mountPoint).normalize().toString();
+    for (final String mount : Files.readAllLines(Paths.get("/proc/mounts"), StandardCharsets.US_ASCII)) {
+      final String[] fields = mount.split(" ");
+      if (fields.length > 2 && fields[1].equals(path) && fields[2].startsWith("nfs")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   protected String runScriptRetry(String cmdString, OutputInterpreter interpreter) {
     String result = null;
     for (int i = 0; i < 3; i++) {
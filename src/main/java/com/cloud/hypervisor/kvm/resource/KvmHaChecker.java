@@ -3,60 +3,114 @@ package com.cloud.hypervisor.kvm.resource;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
-
-import com.cloud.utils.script.OutputInterpreter;
-import com.cloud.utils.script.Script;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Tells whether a host still writes its heartbeat to any of the heartbeat backends. The heartbeats on all backends are
+ * read concurrently, and the check returns as soon as one of them is fresh.
+ *
+ * A pool whose heartbeat cannot be read in time counts as alive: the host can only be declared dead when every pool
+ * shows a stale heartbeat. The same goes for reads that cannot be started because the agent is shutting down.
+ */
 public class KvmHaChecker extends KvmHaBase implements Callable<Boolean> {
 
   private static final Logger logger = LoggerFactory.getLogger(KvmHaChecker.class);
-  private final List<NfsStoragePool> pools;
+  private final List<HeartbeatBackend> backends;
   private final String hostIp;
+  private final ExecutorService executor;
   private final long heartbeatTimeoutSeconds = 360;
 
-  public KvmHaChecker(List<NfsStoragePool> pools, String hostIp) {
-    this.pools = pools;
+  /**
+   * @param executor runs the reads of the pools, typically KvmHaMonitor.getCheckerExecutor()
+   */
+  public KvmHaChecker(List<HeartbeatBackend> backends, String hostIp, ExecutorService executor) {
+    this.backends = backends;
     this.hostIp = hostIp;
+    this.executor = executor;
   }
 
-  private Boolean checkingHb() {
-    final List<Boolean> results = new ArrayList<Boolean>();
-    for (final NfsStoragePool pool : pools) {
-
-      final Script cmd = new Script(heartBeatPath, heartbeatTimeoutSeconds, logger);
-      cmd.add("-i", pool.innetPoolIp);
-      cmd.add("-p", pool.innerPoolMountSourcePath);
-      cmd.add("-m", pool.innerMountDestPath);
-      cmd.add("-h", hostIp);
-      cmd.add("-r");
-      cmd.add("-t", String.valueOf(heartBeatUpdateFreq));
-      final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-      final String result = cmd.execute(parser);
-      logger.debug("pool: " + pool.innetPoolIp);
-      logger.debug("reture: " + result);
-      logger.debug("parser: " + parser.getLine());
-      if (result == null && parser.getLine().contains("> DEAD <")) {
-        logger.debug("read heartbeat failed: " + result);
-        results.add(false);
-      } else {
-        results.add(true);
+  private Boolean checkingHb() throws InterruptedException {
+    if (backends.isEmpty()) {
+      return false;
+    }
+    final CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(
+        executor != null ? executor : new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            // without an executor the backends are read one after the other
+            command.run();
+          }
+        });
+    final List<Future<Boolean>> reads = new ArrayList<Future<Boolean>>();
+    try {
+      for (final HeartbeatBackend backend : backends) {
+        reads.add(completion.submit(new HeartbeatRead(backend)));
+      }
+    } catch (final RejectedExecutionException e) {
+      logger.warn("Unable to read the heartbeat of " + hostIp + ", assuming it is alive: " + e.getMessage());
+      for (final Future<Boolean> read : reads) {
+        read.cancel(true);
       }
+      return true;
     }
 
-    for (final Boolean r : results) {
-      if (r) {
-        return true;
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(heartbeatTimeoutSeconds);
+    try {
+      for (int i = 0; i < reads.size(); i++) {
+        final Future<Boolean> read = completion.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        if (read == null) {
+          logger.warn("Timed out reading the heartbeat of " + hostIp + ", assuming it is alive");
+          return true;
+        }
+        try {
+          if (read.get()) {
+            return true;
+          }
+        } catch (final ExecutionException e) {
+          logger.debug("read heartbeat of " + hostIp + " failed, assuming it is alive: " + e.getCause());
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      for (final Future<Boolean> read : reads) {
+        read.cancel(true);
       }
     }
-
-    return false;
   }
 
   @Override
-  public Boolean call() throws Exception {
+  public Boolean call() throws InterruptedException {
     return checkingHb();
   }
-}
\ No newline at end of file
+
+  private class HeartbeatRead implements Callable<Boolean> {
+    private final HeartbeatBackend backend;
+
+    HeartbeatRead(HeartbeatBackend backend) {
+      this.backend = backend;
+    }
+
+    /**
+     * @return whether the heartbeat on the backend is fresh
+     */
+    @Override
+    public Boolean call() throws Exception {
+      // a live monitor rewrites the heartbeat at least once per round, a round lasts at most freq + timeout
+      final long maxAge = TimeUnit.MILLISECONDS.toSeconds(heartBeatUpdateFreq + heartBeatUpdateTimeout);
+      final long age = System.currentTimeMillis() / 1000 - backend.read(hostIp);
+      logger.debug("heartbeat of " + hostIp + " on pool " + backend.getPoolUuid() + " is " + age + "s old");
+      return age <= maxAge;
+    }
+  }
+}
@@ -1,15 +1,28 @@
 package com.cloud.hypervisor.kvm.resource;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.script.Script;
 
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.cloudstack.utils.linux.MetricRingBuffer;
 import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
 import org.libvirt.StoragePool;
@@ -17,11 +30,35 @@ import org.libvirt.StoragePoolInfo.StoragePoolState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class KvmHaMonitor extends KvmHaBase implements Runnable {
+/**
+ * Writes the heartbeat of this host to every NFS primary storage pool and every other HeartbeatBackend, once every
+ * heartBeatUpdateFreq.
+ *
+ * The heartbeats of all pools are written in parallel, each write has heartBeatUpdateTimeout to complete and is
+ * retried up to HEARTBEAT_ATTEMPTS times. A retry of a write that still hangs waits for that write again instead of
+ * starting another one. When an NFS pool still could not be written, the host is rebooted by kvmheartbeat.sh, so
+ * the VMs on it can safely be started elsewhere. Other backends only reboot the host when no heartbeat could be
+ * written at all: KvmHaChecker takes a host for alive as long as any of its heartbeats is fresh. The latency of the
+ * writes is kept per pool and reported to the management server in the host details.
+ */
+public class KvmHaMonitor extends KvmHaBase {
+  private static final int HEARTBEAT_ATTEMPTS = 5;
+  private static final int LATENCY_HISTORY = 60;
+  private static final int HEARTBEAT_READERS = 8;
+  /* what kvmheartbeat.sh -c does, without the NFS pool it is about */
+  private static final String REBOOT_COMMAND = "sync & sleep 5; echo b > /proc/sysrq-trigger";
+
   private final Logger logger = LoggerFactory.getLogger(KvmHaMonitor.class);
   private final Map<String, NfsStoragePool> storagePool = new ConcurrentHashMap<String, NfsStoragePool>();
+  private final Map<String, HeartbeatBackend> backends = new ConcurrentHashMap<String, HeartbeatBackend>();
+  private final Map<String, MetricRingBuffer> latencies = new ConcurrentHashMap<String, MetricRingBuffer>();
+  /* writes that did not finish yet, a pool stuck on NFS must not pile up more of them */
+  private final Map<String, Future<Long>> pendingWrites = new ConcurrentHashMap<String, Future<Long>>();
 
   private final String hostPrivateIp;
+  private ThreadPoolExecutor readers;
+  private ScheduledExecutorService scheduler;
+  private ExecutorService writers;
 
   public KvmHaMonitor(NfsStoragePool pool, String host, String scriptPath) {
     if (pool != null) {
@@ -29,6 +66,14 @@ public class KvmHaMonitor extends KvmHaBase implements Runnable {
     }
     hostPrivateIp = host;
     configureHeartBeatPath(scriptPath);
+    readers = createReaders();
+  }
+
+  private static ThreadPoolExecutor createReaders() {
+    final ThreadPoolExecutor readers = new ThreadPoolExecutor(HEARTBEAT_READERS, HEARTBEAT_READERS, 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("KvmHaChecker"));
+    readers.allowCoreThreadTimeOut(true);
+    return readers;
   }
 
   private static synchronized void configureHeartBeatPath(String scriptPath) {
@@ -36,24 +81,99 @@ public class KvmHaMonitor extends KvmHaBase implements Runnable {
   }
 
   public void addStoragePool(NfsStoragePool pool) {
-    synchronized (storagePool) {
-      storagePool.put(pool.innerPoolUuid, pool);
+    storagePool.put(pool.innerPoolUuid, pool);
+  }
+
+  /**
+   * Adds storage other than NFS to write the heartbeat to, unless the pool already has a backend.
+   */
+  public synchronized void addHeartbeatBackend(HeartbeatBackend backend) {
+    if (!backends.containsKey(backend.getPoolUuid())) {
+      backends.put(backend.getPoolUuid(), backend);
     }
   }
 
   public void removeStoragePool(String uuid) {
-    synchronized (storagePool) {
-      final NfsStoragePool pool = storagePool.get(uuid);
-      if (pool != null) {
-        Script.runSimpleBashScript("umount " + pool.innerMountDestPath);
-        storagePool.remove(uuid);
-      }
+    final NfsStoragePool pool = storagePool.remove(uuid);
+    if (pool != null) {
+      Script.runSimpleBashScript("umount " + pool.innerMountDestPath);
+    }
+    final HeartbeatBackend backend = backends.remove(uuid);
+    if (backend instanceof RbdHeartbeatBackend) {
+      ((RbdHeartbeatBackend) backend).close();
     }
+    latencies.remove(uuid);
   }
 
   public List<NfsStoragePool> getStoragePools() {
-    synchronized (storagePool) {
-      return new ArrayList<NfsStoragePool>(storagePool.values());
+    return new ArrayList<NfsStoragePool>(storagePool.values());
+  }
+
+  /**
+   * @return the NFS pools and the other backends the heartbeats are kept on
+   */
+  public List<HeartbeatBackend> getHeartbeatBackends() {
+    final List<HeartbeatBackend> all = new ArrayList<HeartbeatBackend>(backends.values());
+    for (final NfsStoragePool pool : storagePool.values()) {
+      all.add(new NfsHeartbeatBackend(pool));
+    }
+    return all;
+  }
+
+  /**
+   * @return the median and 99th percentile latency in milliseconds of the last heartbeat writes per pool for the
+   *     details of the StartupRoutingCommand, like heartbeat.&lt;pool uuid&gt;.latency.p50 and
+   *     heartbeat.&lt;pool uuid&gt;.latency.p99
+   */
+  public Map<String, String> getHostDetails() {
+    final Map<String, String> details = new TreeMap<String, String>();
+    for (final Map.Entry<String, MetricRingBuffer> latency : latencies.entrySet()) {
+      final String prefix = "heartbeat." + latency.getKey() + ".latency.";
+      details.put(prefix + "p50", String.valueOf(Math.round(latency.getValue().percentile(50))));
+      details.put(prefix + "p99", String.valueOf(Math.round(latency.getValue().percentile(99))));
+    }
+    return details;
+  }
+
+  void recordLatency(String uuid, long latency) {
+    MetricRingBuffer history = latencies.get(uuid);
+    if (history == null) {
+      history = new MetricRingBuffer(LATENCY_HISTORY);
+      latencies.put(uuid, history);
+    }
+    history.add(System.currentTimeMillis(), latency);
+    if (latency > heartBeatUpdateTimeout / 2) {
+      logger.warn("write heartbeat to " + uuid + " took " + latency + "ms");
+    }
+  }
+
+  /**
+   * @return the executor shared by the KvmHaCheckers that read the heartbeats of other hosts, it rejects the reads
+   *     after stop() until the monitor is started again
+   */
+  public synchronized ExecutorService getCheckerExecutor() {
+    return readers;
+  }
+
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    if (readers.isShutdown()) {
+      readers = createReaders();
+    }
+    writers = Executors.newCachedThreadPool(new NamedThreadFactory("KvmHaMonitor-write"));
+    scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("KvmHaMonitor"));
+    scheduler.scheduleWithFixedDelay(new Monitor(), 0, heartBeatUpdateFreq, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    readers.shutdownNow();
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      writers.shutdownNow();
+      scheduler = null;
+      writers = null;
     }
   }
 
@@ -61,95 +181,145 @@ public class KvmHaMonitor extends KvmHaBase implements Runnable {
 
     @Override
     protected void runInContext() {
-      synchronized (storagePool) {
-        final Set<String> removedPools = new HashSet<String>();
-        for (final String uuid : storagePool.keySet()) {
-          final NfsStoragePool primaryStoragePool = storagePool.get(uuid);
-
-          // check for any that have been deregistered with libvirt and
-          // skip,remove them
-
-          StoragePool storage = null;
-          try {
-            final Connect conn = LibvirtConnection.getConnection();
-            storage = conn.storagePoolLookupByUUIDString(uuid);
-            if (storage == null) {
-              logger.debug("Libvirt storage pool " + uuid + " not found, removing from HA list");
-              removedPools.add(uuid);
-              continue;
-
-            } else if (storage.getInfo().state != StoragePoolState.VIR_STORAGE_POOL_RUNNING) {
-              logger.debug("Libvirt storage pool " + uuid + " found, but not running, removing from HA list");
-
-              removedPools.add(uuid);
-              continue;
-            }
-            logger.debug("Found NFS storage pool " + uuid + " in libvirt, continuing");
-
-          } catch (final LibvirtException e) {
-            logger.debug("Failed to lookup libvirt storage pool " + uuid + " due to: " + e);
-
-            // we only want to remove pool if it's not found, not if libvirt
-            // connection fails
-            if (e.toString().contains("pool not found")) {
-              logger.debug("removing pool from HA monitor since it was deleted");
-              removedPools.add(uuid);
-              continue;
-            }
-          }
+      List<HeartbeatBackend> failed = new ArrayList<HeartbeatBackend>();
+      for (final HeartbeatBackend backend : getHeartbeatBackends()) {
+        if (isRegistered(backend.getPoolUuid())) {
+          failed.add(backend);
+        }
+      }
+      final int registered = failed.size();
 
-          String result = null;
-          for (int i = 0; i < 5; i++) {
-            final Script cmd = new Script(heartBeatPath, heartBeatUpdateTimeout, logger);
-            cmd.add("-i", primaryStoragePool.innetPoolIp);
-            cmd.add("-p", primaryStoragePool.innerPoolMountSourcePath);
-            cmd.add("-m", primaryStoragePool.innerMountDestPath);
-            cmd.add("-h", hostPrivateIp);
-            result = cmd.execute();
-            if (result != null) {
-              logger.warn("write heartbeat failed: " + result + ", retry: " + i);
-            } else {
-              break;
-            }
-          }
+      for (int attempt = 0; attempt < HEARTBEAT_ATTEMPTS && !failed.isEmpty(); attempt++) {
+        failed = writeHeartbeats(failed, attempt);
+      }
 
-          if (result != null) {
-            logger.warn("write heartbeat failed: " + result + "; reboot the host");
-            final Script cmd = new Script(heartBeatPath, heartBeatUpdateTimeout, logger);
-            cmd.add("-i", primaryStoragePool.innetPoolIp);
-            cmd.add("-p", primaryStoragePool.innerPoolMountSourcePath);
-            cmd.add("-m", primaryStoragePool.innerMountDestPath);
-            cmd.add("-c");
-            result = cmd.execute();
-          }
+      boolean reboot = false;
+      for (final HeartbeatBackend backend : failed) {
+        if (backend instanceof NfsHeartbeatBackend) {
+          logger.warn("write heartbeat to " + backend.getPoolUuid() + " failed " + HEARTBEAT_ATTEMPTS
+              + " times; reboot the host");
+          final Script cmd = ((NfsHeartbeatBackend) backend).createScript(heartBeatUpdateTimeout, null);
+          cmd.add("-c");
+          cmd.execute();
+        } else if (failed.size() < registered) {
+          logger.warn("write heartbeat to " + backend.getPoolUuid() + " failed " + HEARTBEAT_ATTEMPTS
+              + " times; the heartbeat on the other pools is still fresh");
+        } else {
+          reboot = true;
         }
+      }
+      if (reboot) {
+        logger.warn("write heartbeat to all " + registered + " pools failed " + HEARTBEAT_ATTEMPTS
+            + " times; reboot the host");
+        final Script cmd = new Script("/bin/bash", heartBeatUpdateTimeout, logger);
+        cmd.add("-c");
+        cmd.add(REBOOT_COMMAND);
+        cmd.execute();
+      }
+    }
 
-        if (!removedPools.isEmpty()) {
-          for (final String uuid : removedPools) {
-            removeStoragePool(uuid);
-          }
+    /**
+     * Writes the heartbeats to the backends in parallel.
+     *
+     * @return the backends whose heartbeat could not be written within heartBeatUpdateTimeout
+     */
+    private List<HeartbeatBackend> writeHeartbeats(List<HeartbeatBackend> backends, int attempt) {
+      final long timestamp = System.currentTimeMillis() / 1000;
+      final Map<HeartbeatBackend, Future<Long>> writes = new HashMap<HeartbeatBackend, Future<Long>>();
+      final List<HeartbeatBackend> failed = new ArrayList<HeartbeatBackend>();
+      for (final HeartbeatBackend backend : backends) {
+        final Future<Long> pending = pendingWrites.get(backend.getPoolUuid());
+        if (pending != null && !pending.isDone()) {
+          // give the hanging write another heartBeatUpdateTimeout rather than failing the attempt right away
+          logger.warn("write heartbeat to " + backend.getPoolUuid() + " is still hanging, waiting for it, retry: "
+              + attempt);
+          writes.put(backend, pending);
+          continue;
         }
+        final Future<Long> write = writers.submit(new HeartbeatWrite(backend, timestamp));
+        pendingWrites.put(backend.getPoolUuid(), write);
+        writes.put(backend, write);
       }
 
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(heartBeatUpdateTimeout);
+      for (final Map.Entry<HeartbeatBackend, Future<Long>> write : writes.entrySet()) {
+        final HeartbeatBackend backend = write.getKey();
+        try {
+          final long latency = write.getValue().get(Math.max(0, deadline - System.nanoTime()),
+              TimeUnit.NANOSECONDS);
+          recordLatency(backend.getPoolUuid(), latency);
+        } catch (final TimeoutException e) {
+          logger.warn("write heartbeat to " + backend.getPoolUuid() + " timed out after " + heartBeatUpdateTimeout
+              + "ms, retry: " + attempt);
+          recordLatency(backend.getPoolUuid(), heartBeatUpdateTimeout);
+          failed.add(backend);
+        } catch (final ExecutionException e) {
+          logger.warn("write heartbeat to " + backend.getPoolUuid() + " failed: " + e.getCause() + ", retry: " + attempt);
+          failed.add(backend);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failed.add(backend);
+        }
+      }
+      return failed;
     }
-  }
 
-  @Override
-  public void run() {
-    while (true) {
-      final Thread monitorThread = new Thread(new Monitor());
-      monitorThread.start();
+    /* check for any that have been deregistered with libvirt and skip, remove them */
+    private boolean isRegistered(String uuid) {
+      StoragePool storage = null;
       try {
-        monitorThread.join();
-      } catch (final InterruptedException e) {
-        logger.debug("[ignored] interupted joining monitor.");
-      }
+        final Connect conn = LibvirtConnection.getConnection();
+        storage = conn.storagePoolLookupByUUIDString(uuid);
+        if (storage == null) {
+          logger.debug("Libvirt storage pool " + uuid + " not found, removing from HA list");
+          removeStoragePool(uuid);
+          return false;
+        } else if (storage.getInfo().state != StoragePoolState.VIR_STORAGE_POOL_RUNNING) {
+          logger.debug("Libvirt storage pool " + uuid + " found, but not running, removing from HA list");
+          removeStoragePool(uuid);
+          return false;
+        }
+        logger.debug("Found NFS storage pool " + uuid + " in libvirt, continuing");
+      } catch (final LibvirtException e) {
+        logger.debug("Failed to lookup libvirt storage pool " + uuid + " due to: " + e);
 
-      try {
-        Thread.sleep(heartBeatUpdateFreq);
-      } catch (final InterruptedException e) {
-        logger.debug("[ignored] interupted between heartbeats.");
+        // we only want to remove pool if it's not found, not if libvirt
+        // connection fails
+        if (e.toString().contains("pool not found")) {
+          logger.debug("removing pool from HA monitor since it was deleted");
+          removeStoragePool(uuid);
+          return false;
+        }
+      } finally {
+        try {
+          if (storage != null) {
+            storage.free();
+          }
+        } catch (final LibvirtException e) {
+          logger.trace("Ignoring libvirt error.", e);
+        }
       }
+      return true;
+    }
+  }
+
+  private class HeartbeatWrite implements Callable<Long> {
+    private final HeartbeatBackend backend;
+    private final long timestamp;
+
+    HeartbeatWrite(HeartbeatBackend backend, long timestamp) {
+      this.backend = backend;
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the time the write took in milliseconds
+     */
+    @Override
+    public Long call() throws IOException {
+      final long start = System.nanoTime();
+      backend.write(hostPrivateIp, timestamp);
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
     }
   }
-}
\ No newline at end of file
+}
@@ -25,6 +25,11 @@ public class LibvirtCapXmlParser extends LibvirtXmlParser {
   private final StringBuffer capXml = new StringBuffer();
   private final ArrayList<String> guestOsTypes = new ArrayList<String>();
 
+  private final NumaTopology numaTopology = new NumaTopology();
+  private boolean cells;
+  private NumaTopology.Cell cell;
+  private StringBuilder cellMemory;
+
   @Override
   public void endElement(String uri, String localName, String name) throws SAXException {
     if (name.equalsIgnoreCase("host")) {
@@ -40,13 +45,33 @@ public class LibvirtCapXmlParser extends LibvirtXmlParser {
     } else if (name.equalsIgnoreCase("arch")) {
       archTypex8664 = false;
     } else if (host) {
+      endHostElement(name);
       capXml.append("<").append("/").append(name).append(">");
     }
   }
 
+  private void endHostElement(String name) {
+    if (name.equalsIgnoreCase("cells")) {
+      cells = false;
+    } else if (name.equalsIgnoreCase("cell") && cell != null) {
+      numaTopology.addCell(cell);
+      cell = null;
+    } else if (name.equalsIgnoreCase("memory") && cellMemory != null) {
+      try {
+        cell.setMemory(Long.parseLong(cellMemory.toString().trim()));
+      } catch (final NumberFormatException e) {
+        logger.warn("Ignoring the memory of NUMA cell " + cell.getId() + ": " + cellMemory);
+      }
+      cellMemory = null;
+    }
+  }
+
   @Override
   public void characters(char[] ch, int start, int length) throws SAXException {
     if (host) {
+      if (cellMemory != null) {
+        cellMemory.append(ch, start, length);
+      }
       capXml.append(ch, start, length);
     } else if (osType) {
       guestOsTypes.add(new String(ch, start, length));
@@ -82,6 +107,7 @@ public class LibvirtCapXmlParser extends LibvirtXmlParser {
       emulatorFlag = true;
       emulator.delete(0, emulator.length());
     } else if (host) {
+      startHostElement(name, attributes);
       capXml.append("<").append(name);
       for (int i = 0; i < attributes.getLength(); i++) {
         capXml.append(" ").append(attributes.getQName(i)).append("=").append(attributes.getValue(i));
@@ -91,6 +117,20 @@ public class LibvirtCapXmlParser extends LibvirtXmlParser {
 
   }
 
+  private void startHostElement(String name, Attributes attributes) {
+    if (name.equalsIgnoreCase("cells")) {
+      cells = true;
+    } else if (cells && name.equalsIgnoreCase("cell")) {
+      cell = new NumaTopology.Cell(Integer.parseInt(attributes.getValue("id")));
+    } else if (cell != null && name.equalsIgnoreCase("memory")) {
+      cellMemory = new StringBuilder();
+    } else if (cell != null && name.equalsIgnoreCase("cpu")) {
+      final String siblings = attributes.getValue("siblings");
+      cell.addCpu(Integer.parseInt(attributes.getValue("id")),
+          siblings != null ? NumaTopology.parseCpuSet(siblings) : null);
+    }
+  }
+
   public String parseCapabilitiesXml(String capXml) {
     if (!isInitialised) {
       return null;
@@ -113,4 +153,11 @@ public class LibvirtCapXmlParser extends LibvirtXmlParser {
   public String getEmulator() {
     return emulator.toString();
   }
+
+  /**
+   * @return the NUMA cells of the host, empty when libvirt reports no topology
+   */
+  public NumaTopology getNumaTopology() {
+    return numaTopology;
+  }
 }
\ No newline at end of file
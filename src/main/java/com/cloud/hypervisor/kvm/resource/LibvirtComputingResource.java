@@ -16,12 +16,17 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -73,6 +78,7 @@ import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.GuestResourceDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InputDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef.GuestNetType;
+import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.NumaTuneDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.QemuGuestAgentDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.RngDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.RngDef.RngBackendModel;
@@ -105,6 +111,7 @@ import com.cloud.utils.ExecutionResult;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.PropertiesUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
@@ -117,8 +124,8 @@ import com.google.common.base.Strings;
 
 import org.apache.cloudstack.storage.to.PrimaryDataStoreTO;
 import org.apache.cloudstack.storage.to.VolumeObjectTO;
-import org.apache.cloudstack.utils.hypervisor.HypervisorUtils;
 import org.apache.cloudstack.utils.linux.CpuStat;
+import org.apache.cloudstack.utils.linux.HostMetricsSampler;
 import org.apache.cloudstack.utils.linux.MemStat;
 import org.apache.cloudstack.utils.qemu.QemuImg.PhysicalDiskFormat;
 import org.apache.commons.io.FileUtils;
@@ -162,6 +169,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
   private static final Logger LOGGER = LoggerFactory.getLogger(LibvirtComputingResource.class);
 
+  /* how long a VM may take from its placement until it shows up as running */
+  private static final long NUMA_PLACEMENT_GRACE_MS = 10 * 60 * 1000L;
+
   protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
 
   static {
@@ -230,6 +240,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
   protected String pool;
   protected String localGateway;
   private boolean canBridgeFirewall;
+  private SecurityGroupFirewall securityGroupFirewall;
+  private SecurityGroupRuleStateStore securityGroupRuleStateStore;
+  private SecurityGroupRuleLogCache securityGroupRuleLogCache;
+  private OvsdbClient ovsdbClient;
+  private NicTuning nicTuning;
+  private DiskTuning diskTuning;
+  private NumaPlacementAllocator numaPlacementAllocator;
+  // placed VMs whose vCPUs are still to pin, like the ones migrating in
+  private final Set<String> unpinnedNumaPlacements = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+  private String numaMemoryMode;
+  private HugePages hugePages;
+  private final ConcurrentMap<String, Object> tunnelNetworkLocks = new ConcurrentHashMap<String, Object>();
   protected String localStoragePath;
   protected String localStorageUuid;
   protected boolean noMemBalloon = false;
@@ -242,10 +265,27 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
   protected int migrateSpeed;
   protected int migrateDowntime;
   protected int migratePauseAfter;
+  protected int migrateDowntimeMax;
+  protected int migrateDowntimeStep;
+  protected int migrateSpeedMax;
+  protected int migrateMonitorInterval;
+  protected boolean migrateAutoConverge;
+  protected MigrationPostCopyPolicy migratePostCopyPolicy = MigrationPostCopyPolicy.DISABLED;
+  protected MigrationTuning migrateTuning = MigrationTuning.DEFAULT;
+  protected MigrationTuning migrateTuningLarge = MigrationTuning.DEFAULT;
+  protected long migrateTuningLargeMemory;
+  protected MigrationScheduler migrationScheduler;
+  protected long migrateQueueTimeout;
+  protected LibvirtMigrationApi libvirtMigrationApi;
+  protected boolean migrateNonSharedDisks;
+  protected LiveStorageMigration liveStorageMigration;
   protected boolean diskActivityCheckEnabled;
   protected long diskActivityCheckFileSizeMin = 10485760; // 10MB
   protected int diskActivityCheckTimeoutSeconds = 120; // 120s
   protected long diskActivityInactiveThresholdMilliseconds = 30000; // 30s
+  protected long diskActivitySampleMilliseconds = 500;
+  protected ExecutorService diskActivityExecutor;
+  protected DiskActivityProbe diskActivityProbe;
   protected boolean rngEnable = false;
   protected RngBackendModel rngBackendModel = RngBackendModel.RANDOM;
   protected String rngPath = "/dev/random";
@@ -260,6 +300,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
   protected int stopTimeout;
   protected CpuStat cpuStat = new CpuStat();
   protected MemStat memStat = new MemStat();
+  protected HostMetricsSampler hostMetricsSampler;
 
   protected StorageSubsystemCommandHandler storageHandler;
 
@@ -342,6 +383,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     return memStat;
   }
 
+  public HostMetricsSampler getHostMetricsSampler() {
+    return hostMetricsSampler;
+  }
+
   public VirtualRoutingResource getVirtRouterResource() {
     return virtRouterResource;
   }
@@ -370,6 +415,119 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     return migrateSpeed;
   }
 
+  public int getMigrateDowntimeMax() {
+    return migrateDowntimeMax;
+  }
+
+  public int getMigrateDowntimeStep() {
+    return migrateDowntimeStep;
+  }
+
+  public int getMigrateSpeedMax() {
+    return migrateSpeedMax;
+  }
+
+  public int getMigrateMonitorInterval() {
+    return migrateMonitorInterval;
+  }
+
+  public boolean isMigrateAutoConverge() {
+    return migrateAutoConverge;
+  }
+
+  public MigrationPostCopyPolicy getMigratePostCopyPolicy() {
+    return migratePostCopyPolicy;
+  }
+
+  /**
+   * @param memory the memory of the VM in bytes
+   */
+  public MigrationTuning getMigrationTuning(final long memory) {
+    if (migrateTuningLargeMemory > 0 && memory >= migrateTuningLargeMemory * 1024 * 1024) {
+      return migrateTuningLarge;
+    }
+    return migrateTuning;
+  }
+
+  public MigrationScheduler getMigrationScheduler() {
+    return migrationScheduler;
+  }
+
+  public long getMigrateQueueTimeout() {
+    return migrateQueueTimeout;
+  }
+
+  public LibvirtMigrationApi getLibvirtMigrationApi() {
+    return libvirtMigrationApi;
+  }
+
+  public boolean isMigrateNonSharedDisks() {
+    return migrateNonSharedDisks;
+  }
+
+  public LiveStorageMigration getLiveStorageMigration() {
+    return liveStorageMigration;
+  }
+
+  public DiskActivityProbe getDiskActivityProbe() {
+    return diskActivityProbe;
+  }
+
+  /**
+   * @return the in-process security group rule engine, or null when security_group.py programs the rules
+   */
+  public SecurityGroupFirewall getSecurityGroupFirewall() {
+    return securityGroupFirewall;
+  }
+
+  /**
+   * @return the rules programmed per vm, or null when every SecurityGroupRulesCmd is applied
+   */
+  public SecurityGroupRuleStateStore getSecurityGroupRuleStateStore() {
+    return securityGroupRuleStateStore;
+  }
+
+  /**
+   * @return the rule logs reported by pings, or null when they are read from security_group.py on every ping
+   */
+  public SecurityGroupRuleLogCache getSecurityGroupRuleLogCache() {
+    return securityGroupRuleLogCache;
+  }
+
+  /**
+   * @return the client of the local ovsdb-server, or null when openvswitch is managed with ovs-vsctl
+   */
+  public OvsdbClient getOvsdbClient() {
+    return ovsdbClient;
+  }
+
+  public NicTuning getNicTuning() {
+    return nicTuning;
+  }
+
+  public DiskTuning getDiskTuning() {
+    return diskTuning;
+  }
+
+  /**
+   * @return the allocator of the NUMA placement of VMs, or null when VMs are not placed
+   */
+  public NumaPlacementAllocator getNumaPlacementAllocator() {
+    return numaPlacementAllocator;
+  }
+
+  public long getHypervisorLibvirtVersion() {
+    return hypervisorLibvirtVersion;
+  }
+
+  public HugePages getHugePages() {
+    return hugePages;
+  }
+
+  public String getLocalStoragePath() {
+    return localStoragePath;
+  }
+
   public String getPingTestPath() {
     return pingTestPath;
   }
@@ -781,6 +939,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       watchDogAction = WatchDogAction.valueOf(value.toUpperCase());
     }
 
+    nicTuning = new NicTuning(Boolean.parseBoolean((String) params.get("vm.nic.multiqueue")),
+        NumbersUtil.parseInt((String) params.get("vm.nic.queues.max"), 8), (String) params.get("vm.nic.driver"),
+        NumbersUtil.parseInt((String) params.get("vm.nic.rx_queue_size"), 0),
+        NumbersUtil.parseInt((String) params.get("vm.nic.tx_queue_size"), 0));
+
+    diskTuning = new DiskTuning(NumbersUtil.parseInt((String) params.get("vm.disk.iothreads"), 0),
+        (String) params.get("vm.disk.io"), Boolean.parseBoolean((String) params.get("vm.disk.discard")),
+        NumbersUtil.parseInt((String) params.get("vm.disk.scsi.queues.max"), 0));
+
+    hugePages = new HugePages(NumbersUtil.parseInt((String) params.get("vm.hugepages.size"), 2048));
+
     LibvirtConnection.initialize(hypervisorUri);
     Connect conn = null;
     try {
@@ -815,6 +984,15 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       LOGGER.trace("Ignoring libvirt error.", e);
     }
 
+    if (Boolean.parseBoolean((String) params.get("vm.numa.placement"))) {
+      numaMemoryMode = (String) params.get("vm.numa.memory.mode");
+      if (Strings.isNullOrEmpty(numaMemoryMode)) {
+        // strict makes the kernel kill the VM when its cells run out of memory
+        numaMemoryMode = "preferred";
+      }
+      numaPlacementAllocator = createNumaPlacementAllocator(conn);
+    }
+
     guestCpuMode = (String) params.get("guest.cpu.mode");
     if (guestCpuMode != null) {
       guestCpuModel = (String) params.get("guest.cpu.model");
@@ -843,10 +1021,21 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     final String[] info = NetUtils.getNetworkParams(_privateNic);
 
     monitor = new KvmHaMonitor(null, info[0], heartBeatPath);
-    final Thread ha = new Thread(monitor);
-    ha.start();
+    monitor.start();
 
     storagePoolMgr = new KvmStoragePoolManager(storage, monitor);
+    storagePoolMgr.configure(params);
+
+    value = (String) params.get("host.stats.sampler");
+    if (Boolean.parseBoolean(value)) {
+      value = (String) params.get("host.stats.sampler.interval");
+      final int samplerInterval = NumbersUtil.parseInt(value, 10);
+      value = (String) params.get("host.stats.sampler.cpus");
+      final int samplerCpus = NumbersUtil.parseInt(value, Runtime.getRuntime().availableProcessors());
+      value = (String) params.get("host.stats.sampler.history");
+      hostMetricsSampler = new HostMetricsSampler(samplerCpus, NumbersUtil.parseInt(value, 360));
+      hostMetricsSampler.start(samplerInterval);
+    }
 
     sysvmIsoPath = (String) params.get("systemvm.iso.path");
     if (sysvmIsoPath == null) {
@@ -862,6 +1051,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       }
     }
 
+    final String ovsdbConnection = (String) params.get("network.ovsdb.connection");
+    if (bridgeType == BridgeType.OPENVSWITCH && ovsdbConnection != null && !ovsdbConnection.isEmpty()) {
+      ovsdbClient = new OvsdbClient(ovsdbConnection, timeout);
+    }
+
     switch (bridgeType) {
       case OPENVSWITCH:
         getOvsPifs();
@@ -885,6 +1079,27 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         + publicBridgeName);
 
     canBridgeFirewall = canBridgeFirewall(pifs.get("public"));
+    if (canBridgeFirewall && "iptables".equalsIgnoreCase((String) params.get("network.securitygroup.engine"))) {
+      final boolean dryRun = Boolean.parseBoolean((String) params.get("network.securitygroup.dryrun"));
+      securityGroupFirewall = new SecurityGroupFirewall(dryRun, timeout, "/var/run/cloud");
+    }
+    if (canBridgeFirewall && Boolean.parseBoolean((String) params.get("network.securitygroup.skip.unchanged"))) {
+      String stateDir = (String) params.get("network.securitygroup.state.dir");
+      if (stateDir == null) {
+        stateDir = "/var/cache/cosmic/agent/security-groups";
+      }
+      securityGroupRuleStateStore = new SecurityGroupRuleStateStore(new File(stateDir));
+    }
+    if (canBridgeFirewall && Boolean.parseBoolean((String) params.get("network.securitygroup.rulelog.cache"))) {
+      final int resync = NumbersUtil.parseInt((String) params.get("network.securitygroup.rulelog.resync"), 3600);
+      securityGroupRuleLogCache = new SecurityGroupRuleLogCache(new Callable<String>() {
+        @Override
+        public String call() {
+          return getRuleLogsForVms();
+        }
+      }, resync);
+      securityGroupRuleLogCache.start();
+    }
 
     localGateway = Script.runSimpleBashScript("ip route |grep default|awk '{print $3}'");
     if (localGateway == null) {
@@ -923,6 +1138,63 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       params.put("vm.migrate.speed", String.valueOf(migrateSpeed));
     }
 
+    value = (String) params.get("vm.migrate.downtime.max");
+    migrateDowntimeMax = NumbersUtil.parseInt(value, migrateDowntime);
+
+    value = (String) params.get("vm.migrate.downtime.step");
+    migrateDowntimeStep = NumbersUtil.parseInt(value, 0);
+
+    value = (String) params.get("vm.migrate.speed.max");
+    migrateSpeedMax = NumbersUtil.parseInt(value, migrateSpeed);
+
+    value = (String) params.get("vm.migrate.monitor.interval");
+    migrateMonitorInterval = NumbersUtil.parseInt(value, 1000);
+
+    value = (String) params.get("vm.migrate.autoconverge");
+    migrateAutoConverge = Boolean.parseBoolean(value);
+
+    value = (String) params.get("vm.migrate.postcopy");
+    final boolean migratePostCopy = Boolean.parseBoolean(value);
+    value = (String) params.get("vm.migrate.postcopy.iterations");
+    final int migratePostCopyIterations = NumbersUtil.parseInt(value, 3);
+    value = (String) params.get("vm.migrate.postcopy.seconds");
+    final int migratePostCopySeconds = NumbersUtil.parseInt(value, 0);
+    migratePostCopyPolicy = new MigrationPostCopyPolicy(migratePostCopy, migratePostCopyIterations,
+        migratePostCopySeconds);
+
+    migrateTuning = MigrationTuning.fromParams(params, "", MigrationTuning.DEFAULT);
+    migrateTuningLarge = MigrationTuning.fromParams(params, ".large", migrateTuning);
+    migrateTuning.validate("");
+    migrateTuningLarge.validate(".large");
+    value = (String) params.get("vm.migrate.tuning.large.memory");
+    migrateTuningLargeMemory = NumbersUtil.parseLong(value, 0);
+
+    libvirtMigrationApi = new LibvirtMigrationApi(hypervisorUri);
+
+    value = (String) params.get("vm.migrate.bandwidth.budget");
+    final MigrationBandwidthBudget migrationBandwidthBudget = new MigrationBandwidthBudget(
+        NumbersUtil.parseInt(value, 0));
+    value = (String) params.get("vm.migrate.concurrent.max");
+    final int migrateConcurrentMax = NumbersUtil.parseInt(value, 0);
+    value = (String) params.get("vm.migrate.concurrent.destination.max");
+    final int migrateConcurrentDestinationMax = NumbersUtil.parseInt(value, 0);
+    value = (String) params.get("vm.migrate.queue.timeout");
+    migrateQueueTimeout = NumbersUtil.parseLong(value, 0) * 1000;
+    migrationScheduler = new MigrationScheduler(migrateConcurrentMax, migrateConcurrentDestinationMax,
+        migrationBandwidthBudget, libvirtMigrationApi);
+
+    value = (String) params.get("vm.migrate.nonshared.disks");
+    migrateNonSharedDisks = Boolean.parseBoolean(value);
+
+    value = (String) params.get("storage.migrate.concurrent");
+    final int storageMigrateConcurrent = NumbersUtil.parseInt(value, 0);
+    value = (String) params.get("storage.migrate.bandwidth");
+    final MigrationBandwidthBudget storageMigrateBandwidth = new MigrationBandwidthBudget(
+        NumbersUtil.parseInt(value, 0));
+    value = (String) params.get("storage.migrate.poll.interval");
+    liveStorageMigration = new LiveStorageMigration(libvirtMigrationApi, storageMigrateConcurrent,
+        storageMigrateBandwidth, NumbersUtil.parseLong(value, 1000));
+
     final Map<String, String> bridges = new HashMap<String, String>();
     bridges.put("linklocal", linkLocalBridgeName);
     bridges.put("public", publicBridgeName);
@@ -965,6 +1237,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         diskActivityInactiveThresholdMilliseconds = inactiveTime;
       }
     }
+    diskActivitySampleMilliseconds = NumbersUtil.parseLong((String) params.get("vm.diskactivity.sample_ms"),
+        diskActivitySampleMilliseconds);
+    // also answers CheckVmDiskActivityCommand, so it exists whether or not the check on start is enabled
+    diskActivityExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("DiskActivityProbe"));
+    diskActivityProbe = new DiskActivityProbe(diskActivityExecutor, diskActivitySampleMilliseconds,
+        diskActivityInactiveThresholdMilliseconds, diskActivityCheckFileSizeMin,
+        diskActivityCheckTimeoutSeconds * 1000L);
   }
 
   protected void configureVifDrivers(final Map<String, Object> params) throws ConfigurationException {
@@ -1102,9 +1381,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
   }
 
   private void getOvsPifs() {
-    final String cmdout = Script.runSimpleBashScript("ovs-vsctl list-br | sed '{:q;N;s/\\n/%/g;t q}'");
-    LOGGER.debug("cmdout was " + cmdout);
-    final List<String> bridges = Arrays.asList(cmdout.split("%"));
+    final List<String> bridges = listOvsBridges();
     for (final String bridge : bridges) {
       LOGGER.debug("looking for pif for bridge " + bridge);
       // String pif = getOvsPif(bridge);
@@ -1122,6 +1399,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     LOGGER.debug("done looking for pifs, no more bridges");
   }
 
+  private List<String> listOvsBridges() {
+    if (ovsdbClient != null) {
+      try {
+        return new ArrayList<String>(ovsdbClient.getBridgeNames());
+      } catch (final IOException e) {
+        LOGGER.warn("Unable to list the openvswitch bridges through ovsdb-server, using ovs-vsctl: " + e.getMessage());
+      }
+    }
+    final String cmdout = Script.runSimpleBashScript("ovs-vsctl list-br | sed '{:q;N;s/\\n/%/g;t q}'");
+    LOGGER.debug("cmdout was " + cmdout);
+    return Arrays.asList(cmdout.split("%"));
+  }
+
   private String getPif(final String bridge) {
     String pif = matchPifFileInDirectory(bridge);
     final File vlanfile = new File("/proc/net/vlan/" + pif);
@@ -1220,6 +1510,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       return true;
     }
 
+    if (ovsdbClient != null) {
+      try {
+        return ovsdbClient.bridgeExists(networkName);
+      } catch (final IOException e) {
+        LOGGER.warn("Unable to look up bridge " + networkName + " through ovsdb-server, using ovs-vsctl: "
+            + e.getMessage());
+      }
+    }
     final Script command = new Script("/bin/sh", timeout);
     command.add("-c");
     command.add("ovs-vsctl br-exists " + networkName);
@@ -1288,6 +1586,32 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
   @Override
   public boolean stop() {
+    if (monitor != null) {
+      monitor.stop();
+    }
+    if (hostMetricsSampler != null) {
+      hostMetricsSampler.stop();
+    }
+    if (storagePoolMgr != null) {
+      storagePoolMgr.stop();
+    }
+    if (libvirtMigrationApi != null) {
+      libvirtMigrationApi.close();
+    }
+    if (diskActivityExecutor != null) {
+      diskActivityExecutor.shutdownNow();
+    }
+    if (securityGroupRuleLogCache != null) {
+      securityGroupRuleLogCache.stop();
+    }
+    if (ovsdbClient != null) {
+      ovsdbClient.close();
+    }
+    if (defaultVifDriver != null) {
+      for (final VifDriver vifDriver : getAllVifDrivers()) {
+        vifDriver.stop();
+      }
+    }
     try {
       final Connect conn = LibvirtConnection.getConnection();
       conn.close();
@@ -1309,43 +1633,62 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
   }
 
-  public synchronized boolean destroyTunnelNetwork(final String bridge) {
-    findOrCreateTunnelNetwork(bridge);
+  /* tunnel networks are set up under a lock per bridge, rather than the resource */
+  private Object tunnelNetworkLock(final String bridge) {
+    final Object lock = new Object();
+    final Object existing = tunnelNetworkLocks.putIfAbsent(bridge, lock);
+    return existing != null ? existing : lock;
+  }
 
-    final Script cmd = new Script(ovsTunnelPath, timeout, LOGGER);
-    cmd.add("destroy_ovs_bridge");
-    cmd.add("--bridge", bridge);
+  public boolean destroyTunnelNetwork(final String bridge) {
+    synchronized (tunnelNetworkLock(bridge)) {
+      findOrCreateTunnelNetwork(bridge);
 
-    final String result = cmd.execute();
+      final Script cmd = new Script(ovsTunnelPath, timeout, LOGGER);
+      cmd.add("destroy_ovs_bridge");
+      cmd.add("--bridge", bridge);
 
-    if (result != null) {
-      LOGGER.debug("OVS Bridge could not be destroyed due to error ==> " + result);
-      return false;
+      final String result = cmd.execute();
+
+      if (result != null) {
+        LOGGER.debug("OVS Bridge could not be destroyed due to error ==> " + result);
+        return false;
+      }
+      return true;
     }
-    return true;
   }
 
-  public synchronized boolean findOrCreateTunnelNetwork(final String nwName) {
-    try {
-      if (checkNetwork(nwName)) {
-        return true;
+  public boolean findOrCreateTunnelNetwork(final String nwName) {
+    synchronized (tunnelNetworkLock(nwName)) {
+      try {
+        if (checkNetwork(nwName)) {
+          return true;
+        }
+        // if not found, create a new one
+        if (ovsdbClient != null) {
+          ovsdbClient.transaction().addBridge(nwName, Collections.singletonMap("ovs-host-setup", "-1")).commit();
+        } else {
+          Script.runSimpleBashScript("ovs-vsctl -- --may-exist add-br "
+              + nwName + " -- set bridge " + nwName
+              + " other_config:ovs-host-setup='-1'");
+        }
+        LOGGER.debug("### KVM network for tunnels created:" + nwName);
+      } catch (final Exception e) {
+        LOGGER.warn("createTunnelNetwork failed", e);
+        return false;
       }
-      // if not found, create a new one
-      final Map<String, String> otherConfig = new HashMap<String, String>();
-      otherConfig.put("ovs-host-setup", "");
-      Script.runSimpleBashScript("ovs-vsctl -- --may-exist add-br "
-          + nwName + " -- set bridge " + nwName
-          + " other_config:ovs-host-setup='-1'");
-      LOGGER.debug("### KVM network for tunnels created:" + nwName);
-    } catch (final Exception e) {
-      LOGGER.warn("createTunnelNetwork failed", e);
-      return false;
+      return true;
     }
-    return true;
   }
 
-  public synchronized boolean configureTunnelNetwork(final long networkId,
+  public boolean configureTunnelNetwork(final long networkId,
       final long hostId, final String nwName) {
+    synchronized (tunnelNetworkLock(nwName)) {
+      return configureTunnelNetworkLocked(networkId, hostId, nwName);
+    }
+  }
+
+  private boolean configureTunnelNetworkLocked(final long networkId, final long hostId, final String nwName) {
     try {
       final boolean findResult = findOrCreateTunnelNetwork(nwName);
       if (!findResult) {
@@ -1353,8 +1696,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             "LibvirtComputingResource.findOrCreateTunnelNetwork() failed! Cannot proceed creating the tunnel.");
         return false;
       }
-      final String configuredHosts = Script.runSimpleBashScript("ovs-vsctl get bridge " + nwName
-          + " other_config:ovs-host-setup");
+      final String configuredHosts;
+      if (ovsdbClient != null) {
+        final Map<String, String> otherConfig = ovsdbClient.getBridgeOtherConfig(nwName);
+        configuredHosts = otherConfig != null ? otherConfig.get("ovs-host-setup") : null;
+      } else {
+        configuredHosts = Script.runSimpleBashScript("ovs-vsctl get bridge " + nwName
+            + " other_config:ovs-host-setup");
+      }
       boolean configured = false;
       if (configuredHosts != null) {
         final String[] hostIdsStr = configuredHosts.split(",");
@@ -1493,7 +1842,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     final Domain vm = getDomain(conn, vmName);
-    vm.attachDevice(getVifDriver(nicTo.getType()).plug(nicTo, "Other PV", "").toString());
+    final InterfaceDef intf = getVifDriver(nicTo.getType()).plug(nicTo, "Other PV", "");
+    if (nicTuning != null) {
+      nicTuning.apply(intf, vm.getInfo().nrVirtCpu, null);
+    }
+    vm.attachDevice(intf.toString());
   }
 
   private void vifHotUnPlug(final Connect conn, final String vmName, final String macAddr)
@@ -1858,6 +2211,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     if (vm != null && vm.getDevices() != null) {
       cleanupVmNetworks(conn, vm.getDevices().getInterfaces());
     }
+    releaseNumaPlacement(conn, vmName);
   }
 
   protected String getUuid(String uuid) {
@@ -1877,7 +2231,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     return uuid;
   }
 
-  public LibvirtVmDef createVmFromSpec(final VirtualMachineTO vmTo) {
+  public LibvirtVmDef createVmFromSpec(final VirtualMachineTO vmTo) throws InternalErrorException {
     final LibvirtVmDef vm = new LibvirtVmDef();
     vm.setDomainName(vmTo.getName());
     String uuid = vmTo.getUuid();
@@ -1903,7 +2257,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     final GuestResourceDef grd = new GuestResourceDef();
 
-    if (vmTo.getMinRam() != vmTo.getMaxRam() && !noMemBalloon) {
+    final long hugePageSize = getHugePageSize(vmTo);
+    if (hugePageSize > 0) {
+      // the balloon cannot give hugepages back to the host
+      grd.setHugePageSize(hugePageSize);
+      grd.setMemorySize(vmTo.getMaxRam() / 1024);
+    } else if (vmTo.getMinRam() != vmTo.getMaxRam() && !noMemBalloon) {
       grd.setMemBalloning(true);
       grd.setCurrentMem(vmTo.getMinRam() / 1024);
       grd.setMemorySize(vmTo.getMaxRam() / 1024);
@@ -1937,6 +2296,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       } else {
         ctd.setShares(vmTo.getCpus() * vmTo.getSpeed());
       }
+      if (numaPlacementAllocator != null) {
+        placeOnNumaCells(vmTo, vm, cmd, ctd);
+      }
       vm.addComp(ctd);
     }
 
@@ -2023,7 +2385,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     for (int i = 0; i < nics.length; i++) {
       for (final NicTO nic : vmSpec.getNics()) {
         if (nic.getDeviceId() == i) {
-          createVif(vm, nic, nicAdapter);
+          createVif(vm, nic, nicAdapter, vmSpec);
         }
       }
     }
@@ -2057,6 +2419,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       }
     });
 
+    final List<KvmPhysicalDisk> activityCheckDisks = new ArrayList<KvmPhysicalDisk>();
     for (final DiskTO volume : disks) {
       KvmPhysicalDisk physicalDisk = null;
       KvmStoragePool pool = null;
@@ -2080,17 +2443,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         volPath = physicalDisk.getPath();
       }
 
-      // check for disk activity, if detected we should exit because vm is running elsewhere
-      if (diskActivityCheckEnabled && physicalDisk != null && physicalDisk.getFormat() == PhysicalDiskFormat.QCOW2) {
-        LOGGER.debug("Checking physical disk file at path " + volPath
-            + " for disk activity to ensure vm is not running elsewhere");
-        try {
-          HypervisorUtils.checkVolumeFileForActivity(volPath, diskActivityCheckTimeoutSeconds,
-              diskActivityInactiveThresholdMilliseconds, diskActivityCheckFileSizeMin);
-        } catch (final IOException ex) {
-          throw new CloudRuntimeException("Unable to check physical disk file for activity", ex);
-        }
-        LOGGER.debug("Disk activity check cleared");
+      if (physicalDisk != null && volume.getType() != Volume.Type.ISO) {
+        activityCheckDisks.add(physicalDisk);
       }
 
       // if params contains a rootDiskController key, use its value (this is what other HVs are doing)
@@ -2169,9 +2523,28 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
           disk.setCacheMode(DiskDef.DiskCacheMode.valueOf(volumeObjectTo.getCacheMode().toString().toUpperCase()));
         }
       }
+      if (diskTuning != null && pool != null) {
+        diskTuning.apply(disk, pool.getType(), volume.getDetails());
+      }
       vm.getDevices().addDevice(disk);
     }
 
+    // check for disk activity, if detected we should exit because vm is running elsewhere
+    if (diskActivityCheckEnabled && diskActivityProbe != null && !activityCheckDisks.isEmpty()) {
+      LOGGER.debug("Checking " + activityCheckDisks.size() + " disks of " + vmName
+          + " for disk activity to ensure vm is not running elsewhere");
+      final DiskActivityProbe.Activity activity;
+      try {
+        activity = diskActivityProbe.probeUntilIdle(activityCheckDisks, diskActivityCheckTimeoutSeconds * 1000L);
+      } catch (final InterruptedException e) {
+        throw new CloudRuntimeException("Interrupted while checking the disks of " + vmName + " for activity", e);
+      }
+      if (activity == DiskActivityProbe.Activity.ACTIVE) {
+        throw new CloudRuntimeException("Disks of " + vmName + " are in use, the vm is still running elsewhere");
+      }
+      LOGGER.debug("Disk activity check cleared: " + activity);
+    }
+
     if (vmSpec.getType() != VirtualMachine.Type.User) {
       if (sysvmIsoPath != null) {
         final DiskDef iso = new DiskDef();
@@ -2179,10 +2552,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         vm.getDevices().addDevice(iso);
       }
     }
+
+    if (diskTuning != null) {
+      diskTuning.assignIoThreads(vm, vmSpec.getCpus(), vmSpec.getDetails());
+    }
   }
 
-  private void createVif(final LibvirtVmDef vm, final NicTO nic, final String nicAdapter)
-      throws InternalErrorException, LibvirtException {
+  private void createVif(final LibvirtVmDef vm, final NicTO nic, final String nicAdapter,
+      final VirtualMachineTO vmSpec) throws InternalErrorException, LibvirtException {
 
     if (nic.getType().equals(TrafficType.Guest) && nic.getBroadcastType().equals(BroadcastDomainType.Vsp)) {
       final String vrIp = nic.getBroadcastUri().getPath().substring(1);
@@ -2195,8 +2572,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       }
     }
 
-    vm.getDevices().addDevice(
-        getVifDriver(nic.getType()).plug(nic, vm.getPlatformEmulator().toString(), nicAdapter).toString());
+    final InterfaceDef intf = getVifDriver(nic.getType()).plug(nic, vm.getPlatformEmulator().toString(), nicAdapter);
+    if (nicTuning != null) {
+      nicTuning.apply(intf, vmSpec.getCpus(), vmSpec.getDetails());
+    }
+    vm.getDevices().addDevice(intf.toString());
   }
 
   public boolean cleanupDisk(final DiskDef disk) {
@@ -2310,6 +2690,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         if (cacheMode != null) {
           diskdef.setCacheMode(DiskDef.DiskCacheMode.valueOf(cacheMode.toUpperCase()));
         }
+        if (diskTuning != null) {
+          diskTuning.apply(diskdef, attachingPool.getType(), null);
+        }
       }
 
       final String xml = diskdef.toString();
@@ -2359,7 +2742,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     if (!canBridgeFirewall) {
       return new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, this.getHostVmStateReport());
     } else {
-      final HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
+      final HashMap<String, Pair<Long, Long>> nwGrpStates = securityGroupRuleLogCache != null
+          ? securityGroupRuleLogCache.getRuleLogs() : syncNetworkGroups(id);
       return new PingRoutingWithNwGroupsCommand(getType(), id, this.getHostVmStateReport(), nwGrpStates);
     }
   }
@@ -2392,6 +2776,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     fillNetworkInformation(cmd);
     privateIp = cmd.getPrivateIpAddress();
     cmd.getHostDetails().putAll(getVersionStrings());
+    if (hugePages != null) {
+      cmd.getHostDetails().putAll(hugePages.getHostDetails());
+    }
+    if (monitor != null) {
+      cmd.getHostDetails().putAll(monitor.getHostDetails());
+    }
     cmd.setPool(pool);
     cmd.setCluster(clusterId);
     cmd.setGatewayIpAddress(localGateway);
@@ -2499,7 +2889,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     if (hypervisorType == HypervisorType.KVM) {
       try {
         conn = LibvirtConnection.getConnectionByType(HypervisorType.KVM.toString());
+        final long listed = System.currentTimeMillis();
         vmStates.putAll(getHostVmStateReport(conn));
+        if (numaPlacementAllocator != null) {
+          // VMs destroyed behind our back, the ones still starting get some slack
+          repinVcpus(conn, numaPlacementAllocator.retain(vmStates.keySet(), listed - NUMA_PLACEMENT_GRACE_MS));
+          pinNumaPlacements(conn);
+        }
       } catch (final LibvirtException e) {
         LOGGER.debug("Failed to get connection: " + e.getMessage());
       }
@@ -2668,19 +3064,21 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       String vmDef = dm.getXMLDesc(1);
       final LibvirtDomainXmlParser parser = new LibvirtDomainXmlParser();
       parser.parseDomainXml(vmDef);
+      final LibvirtDomainXmlRewriter rewriter = new LibvirtDomainXmlRewriter();
       for (final InterfaceDef nic : parser.getInterfaces()) {
         if (nic.getNetType() == GuestNetType.BRIDGE && nic.getBrName().startsWith("cloudVirBr")) {
           try {
             final int vnetId = Integer.parseInt(nic.getBrName().replaceFirst("cloudVirBr", ""));
             final String pifName = getPif(guestBridgeName);
             final String newBrName = "br" + pifName + "-" + vnetId;
-            vmDef = vmDef.replaceAll("'" + nic.getBrName() + "'", "'" + newBrName + "'");
+            rewriter.replaceBridge(nic.getBrName(), newBrName);
             LOGGER.debug("VM bridge name is changed from " + nic.getBrName() + " to " + newBrName);
           } catch (final NumberFormatException e) {
             continue;
           }
         }
       }
+      vmDef = rewriter.rewrite(vmDef);
       LOGGER.debug(vmDef);
       msg = stopVm(conn, vmName);
       msg = startVm(conn, vmName, vmDef);
@@ -2855,6 +3253,299 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     return false;
   }
 
+  private NumaPlacementAllocator createNumaPlacementAllocator(final Connect conn) {
+    final LibvirtCapXmlParser parser = new LibvirtCapXmlParser();
+    try {
+      parser.parseCapabilitiesXml(conn.getCapabilities());
+    } catch (final LibvirtException e) {
+      LOGGER.warn("Unable to get the NUMA topology of the host, VMs will not be placed: " + e.getMessage());
+      return null;
+    }
+    final NumaTopology topology = parser.getNumaTopology();
+    if (topology.isEmpty()) {
+      LOGGER.warn("Libvirt reports no NUMA topology for the host, VMs will not be placed");
+      return null;
+    }
+
+    // the memory the host keeps is spread over its cells
+    final NumaPlacementAllocator allocator = new NumaPlacementAllocator(topology,
+        dom0MinMem / 1024 / topology.getCells().size());
+
+    // account for the VMs placed before the agent restarted, and place the ones that were not pinned yet
+    final Map<String, LibvirtDomainXmlParser> unplaced = new LinkedHashMap<String, LibvirtDomainXmlParser>();
+    try {
+      for (final int id : conn.listDomains()) {
+        Domain dm = null;
+        try {
+          dm = conn.domainLookupByID(id);
+          final LibvirtDomainXmlParser domainParser = new LibvirtDomainXmlParser();
+          domainParser.parseDomainXml(dm.getXMLDesc(0));
+          final int[] vcpuPins = getVcpuPins(domainParser.getVcpuPins());
+          if (vcpuPins != null) {
+            allocator.restore(dm.getName(), vcpuPins, domainParser.getMemory());
+          } else if (domainParser.isNumaPlacement() && domainParser.getVcpuPins().isEmpty()
+              && domainParser.getVcpus() > 0) {
+            unplaced.put(dm.getName(), domainParser);
+          }
+        } finally {
+          if (dm != null) {
+            dm.free();
+          }
+        }
+      }
+    } catch (final LibvirtException e) {
+      LOGGER.warn("Unable to account for the placement of the running VMs: " + e.getMessage());
+    }
+    // the memory of a running VM is not free on the host anymore, it only counts against the cells
+    for (final Map.Entry<String, LibvirtDomainXmlParser> entry : unplaced.entrySet()) {
+      if (allocator.allocate(entry.getKey(), entry.getValue().getVcpus(), entry.getValue().getMemory()) != null) {
+        unpinnedNumaPlacements.add(entry.getKey());
+      }
+    }
+    LOGGER.info("Placing VMs on the " + topology.getCells().size() + " NUMA cells of the host");
+    return allocator;
+  }
+
+  /* the CPU of each vCPU, or null unless each vCPU is pinned to a single CPU like the allocator does */
+  private static int[] getVcpuPins(final Map<Integer, String> cpuSets) {
+    if (cpuSets.isEmpty()) {
+      return null;
+    }
+    final int[] vcpuPins = new int[cpuSets.size()];
+    for (int vcpu = 0; vcpu < vcpuPins.length; vcpu++) {
+      final String cpuSet = cpuSets.get(vcpu);
+      if (cpuSet == null || !cpuSet.matches("\\d+")) {
+        return null;
+      }
+      vcpuPins[vcpu] = Integer.parseInt(cpuSet);
+    }
+    return vcpuPins;
+  }
+
+  private void placeOnNumaCells(final VirtualMachineTO vmTo, final LibvirtVmDef vm, final CpuModeDef cmd,
+      final CpuTuneDef ctd) throws InternalErrorException {
+    if (!isNumaPlacement(vmTo)) {
+      vm.getMetaData().getMetadataNode(LibvirtVmDef.NumaPlacementDef.class);
+      return;
+    }
+    final NumaPlacementAllocator.Placement placement = numaPlacementAllocator.allocate(vmTo.getName(),
+        vmTo.getCpus(), vmTo.getMaxRam() / 1024, getNumaFreeMemory(vmTo), getHugePageSize(vmTo));
+    if (placement == null) {
+      return;
+    }
+
+    final Set<Integer> emulatorCpus = new HashSet<Integer>();
+    for (int vcpu = 0; vcpu < placement.getVcpus(); vcpu++) {
+      ctd.setVcpuPin(vcpu, String.valueOf(placement.getVcpuPin(vcpu)));
+    }
+    for (int cell = 0; cell < placement.getCellCount(); cell++) {
+      emulatorCpus.addAll(numaPlacementAllocator.getTopology().getCell(placement.getNode(cell)).getCpus());
+    }
+    ctd.setEmulatorPin(NumaTopology.formatCpuSet(emulatorCpus));
+
+    if (placement.getCellCount() == 1) {
+      vm.addComp(new NumaTuneDef(numaMemoryMode, placement.getNodeset()));
+      return;
+    }
+
+    // too big for a single cell, the guest sees a NUMA cell on each host cell it spans
+    final NumaTuneDef numaTune = new NumaTuneDef(numaMemoryMode, placement.getNodeset());
+    for (int cell = 0; cell < placement.getCellCount(); cell++) {
+      cmd.addNumaCell(placement.getCellVcpus(cell), placement.getMemory(cell));
+      numaTune.addMemNode(cell, String.valueOf(placement.getNode(cell)));
+    }
+    vm.addComp(numaTune);
+    if (vmTo.getCpus() % placement.getCellCount() == 0) {
+      cmd.setTopology(vmTo.getCpus() / placement.getCellCount(), placement.getCellCount());
+    }
+  }
+
+  /**
+   * Places a VM migrating to this host. Its domain arrives without the pinning of the source host, its vCPUs are
+   * pinned once it runs here.
+   */
+  public void placeMigratingVm(final VirtualMachineTO vmTo) throws InternalErrorException {
+    if (numaPlacementAllocator == null || !isNumaPlacement(vmTo)) {
+      return;
+    }
+    if (numaPlacementAllocator.allocate(vmTo.getName(), vmTo.getCpus(), vmTo.getMaxRam() / 1024,
+        getNumaFreeMemory(vmTo), getHugePageSize(vmTo)) != null) {
+      unpinnedNumaPlacements.add(vmTo.getName());
+    }
+  }
+
+  private static boolean isNumaPlacement(final VirtualMachineTO vmTo) {
+    final Map<String, String> details = vmTo.getDetails();
+    return details == null || !"false".equalsIgnoreCase(details.get("numaPlacement"));
+  }
+
+  /* the memory in KiB free on each cell for a VM, in hugepages of its size if it uses them */
+  private Map<Integer, Long> getNumaFreeMemory(final VirtualMachineTO vmTo) throws InternalErrorException {
+    final Map<Integer, Long> freeMemory = new HashMap<Integer, Long>();
+    final long pageSize = getHugePageSize(vmTo);
+    if (pageSize > 0) {
+      for (final int node : hugePages.getNodes()) {
+        freeMemory.put(node, hugePages.getFreePages(node, pageSize) * pageSize);
+      }
+      return freeMemory;
+    }
+
+    int cells = 0;
+    for (final NumaTopology.Cell cell : numaPlacementAllocator.getTopology().getCells()) {
+      cells = Math.max(cells, cell.getId() + 1);
+    }
+    try {
+      final Connect conn = LibvirtConnection.getConnectionByType(HypervisorType.KVM.toString());
+      final long[] free = conn.getCellsFreeMemory(0, cells);
+      for (int node = 0; node < free.length; node++) {
+        freeMemory.put(node, free[node] / 1024);
+      }
+    } catch (final LibvirtException e) {
+      LOGGER.debug("Unable to get the free memory of the NUMA cells, placing by their memory: " + e.getMessage());
+      return null;
+    }
+    return freeMemory;
+  }
+
+  /* pins the vCPUs of the placed VMs that run unpinned, once they run */
+  private void pinNumaPlacements(final Connect conn) {
+    for (final String vmName : new ArrayList<String>(unpinnedNumaPlacements)) {
+      final NumaPlacementAllocator.Placement placement = numaPlacementAllocator.getPlacement(vmName);
+      if (placement == null) {
+        unpinnedNumaPlacements.remove(vmName);
+        continue;
+      }
+      Domain dm = null;
+      try {
+        dm = conn.domainLookupByName(vmName);
+        if (dm.getInfo().state != DomainState.VIR_DOMAIN_RUNNING) {
+          // still migrating in
+          continue;
+        }
+        for (int vcpu = 0; vcpu < placement.getVcpus(); vcpu++) {
+          dm.pinVcpu(vcpu, getCpuMap(placement.getVcpuPin(vcpu)));
+        }
+        unpinnedNumaPlacements.remove(vmName);
+        LOGGER.debug("Pinned the vCPUs of " + vmName + " to the NUMA cells " + placement.getNodeset());
+      } catch (final LibvirtException e) {
+        LOGGER.debug("Unable to pin the vCPUs of " + vmName + " yet: " + e.getMessage());
+      } finally {
+        try {
+          if (dm != null) {
+            dm.free();
+          }
+        } catch (final LibvirtException e) {
+          LOGGER.trace("Ignoring libvirt error.", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the size in KiB of the hugepages the details of a VM ask for, or 0
+   * @throws InternalErrorException if the details ask for hugepages of a size the host does not know
+   */
+  long getHugePageSize(final VirtualMachineTO vmTo) throws InternalErrorException {
+    final Map<String, String> details = vmTo.getDetails();
+    if (hugePages == null || details == null) {
+      return 0;
+    }
+    try {
+      return hugePages.getPageSize(details.get(HugePages.DETAIL));
+    } catch (final InternalErrorException e) {
+      throw new InternalErrorException("Unable to back the memory of " + vmTo.getName() + " with hugepages: "
+          + e.getMessage());
+    }
+  }
+
+  /**
+   * Reserves the hugepages of a VM about to start on the NUMA nodes it is placed on, so the start fails right away
+   * instead of in qemu when the host does not have them.
+   */
+  public void reserveHugePages(final VirtualMachineTO vmTo) throws InternalErrorException {
+    final long pageSize = getHugePageSize(vmTo);
+    if (pageSize == 0) {
+      return;
+    }
+    final long memory = vmTo.getMaxRam() / 1024;
+    final Map<Integer, Long> pages = new HashMap<Integer, Long>();
+    final NumaPlacementAllocator.Placement placement = numaPlacementAllocator != null
+        ? numaPlacementAllocator.getPlacement(vmTo.getName()) : null;
+    if (placement != null) {
+      for (int cell = 0; cell < placement.getCellCount(); cell++) {
+        if (placement.getMemory(cell) % pageSize != 0) {
+          throw new InternalErrorException("The memory of " + vmTo.getName() + " on node " + placement.getNode(cell)
+              + ", " + placement.getMemory(cell) + " KiB, is not a multiple of its hugepages of " + pageSize + " KiB");
+        }
+        pages.put(placement.getNode(cell), placement.getMemory(cell) / pageSize);
+      }
+    } else {
+      if (memory % pageSize != 0) {
+        throw new InternalErrorException("The memory of " + vmTo.getName() + ", " + memory
+            + " KiB, is not a multiple of its hugepages of " + pageSize + " KiB");
+      }
+      pages.put(HugePages.ANY_NODE, memory / pageSize);
+    }
+    hugePages.reserve(vmTo.getName(), pageSize, pages);
+  }
+
+  public void releaseHugePages(final String vmName) {
+    if (hugePages != null) {
+      hugePages.release(vmName);
+    }
+  }
+
+  /**
+   * Releases the NUMA placement of a VM that is not running anymore, and pins the vCPUs the allocator moves to
+   * rebalance the CPUs it used.
+   */
+  public void releaseNumaPlacement(final Connect conn, final String vmName) {
+    if (numaPlacementAllocator != null) {
+      unpinnedNumaPlacements.remove(vmName);
+      repinVcpus(conn, numaPlacementAllocator.release(vmName));
+    }
+  }
+
+  /* pins the vCPUs the allocator moved, each move counts once its vCPU is pinned */
+  private void repinVcpus(final Connect conn, final List<NumaPlacementAllocator.Move> moves) {
+    if (conn == null) {
+      // without a connection nothing moves, the vCPUs stay where they are
+      return;
+    }
+    for (final NumaPlacementAllocator.Move move : moves) {
+      Domain dm = null;
+      try {
+        dm = conn.domainLookupByName(move.getVmName());
+        dm.pinVcpu(move.getVcpu(), getCpuMap(move.getCpu()));
+        numaPlacementAllocator.applyMove(move);
+        LOGGER.debug("Pinned vCPU " + move.getVcpu() + " of " + move.getVmName() + " to CPU " + move.getCpu());
+      } catch (final LibvirtException e) {
+        LOGGER.warn("Unable to pin vCPU " + move.getVcpu() + " of " + move.getVmName() + " to CPU " + move.getCpu()
+            + ": " + e.getMessage());
+      } finally {
+        try {
+          if (dm != null) {
+            dm.free();
+          }
+        } catch (final LibvirtException e) {
+          LOGGER.trace("Ignoring libvirt error.", e);
+        }
+      }
+    }
+  }
+
+  private int[] getCpuMap(final int cpu) {
+    int cpus = 0;
+    for (final NumaTopology.Cell cell : numaPlacementAllocator.getTopology().getCells()) {
+      for (final int hostCpu : cell.getCpus()) {
+        cpus = Math.max(cpus, hostCpu + 1);
+      }
+    }
+    final int[] cpuMap = new int[(cpus + 7) / 8];
+    cpuMap[cpu / 8] |= 1 << cpu % 8;
+    return cpuMap;
+  }
+
   private String getHypervisorPath(final Connect conn) {
     final LibvirtCapXmlParser parser = new LibvirtCapXmlParser();
     try {
@@ -3148,6 +3839,15 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
       cmd.add("--vif", vif);
     }
     final String result = cmd.execute();
+    if (securityGroupFirewall != null) {
+      securityGroupFirewall.destroyNetworkRules(vmName);
+    }
+    if (securityGroupRuleStateStore != null) {
+      securityGroupRuleStateStore.invalidate(vmName);
+    }
+    if (securityGroupRuleLogCache != null) {
+      securityGroupRuleLogCache.remove(vmName);
+    }
     if (result != null) {
       return false;
     }
@@ -3181,9 +3881,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     cmd.add("--brname", brname);
     cmd.add("--nicsecips", secIpStr);
     final String result = cmd.execute();
+    if (securityGroupFirewall != null) {
+      securityGroupFirewall.invalidate(vmName);
+    }
+    if (securityGroupRuleStateStore != null) {
+      securityGroupRuleStateStore.invalidate(vmName);
+    }
     if (result != null) {
       return false;
     }
+    if (securityGroupRuleLogCache != null) {
+      // security_group.py logs the default rules with seq -1
+      securityGroupRuleLogCache.update(vmName, vmId, -1);
+    }
     return true;
   }
 
@@ -3217,9 +3927,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     cmd.add("--hostIp", hostIp);
     cmd.add("--hostMacAddr", hostMacAddr);
     final String result = cmd.execute();
+    if (securityGroupFirewall != null) {
+      securityGroupFirewall.invalidate(vmName);
+    }
+    if (securityGroupRuleStateStore != null) {
+      securityGroupRuleStateStore.invalidate(vmName);
+    }
     if (result != null) {
       return false;
     }
+    if (securityGroupRuleLogCache != null) {
+      // security_group.py logs the default rules with seq -1
+      securityGroupRuleLogCache.update(vmName, vmId, -1);
+    }
     return true;
   }
 
@@ -3295,6 +4015,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     final Script cmd = new Script(securityGroupPath, timeout, LOGGER);
     cmd.add("cleanup_rules");
     final String result = cmd.execute();
+    if (securityGroupRuleLogCache != null) {
+      securityGroupRuleLogCache.requestResync();
+    }
     if (result != null) {
       return false;
     }
@@ -3313,23 +4036,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
   }
 
   private HashMap<String, Pair<Long, Long>> syncNetworkGroups(final long id) {
-    final HashMap<String, Pair<Long, Long>> states = new HashMap<String, Pair<Long, Long>>();
-
     final String result = getRuleLogsForVms();
     LOGGER.trace("syncNetworkGroups: id=" + id + " got: " + result);
-    final String[] rulelogs = result != null ? result.split(";") : new String[0];
-    for (final String rulesforvm : rulelogs) {
-      final String[] log = rulesforvm.split(",");
-      if (log.length != 6) {
-        continue;
-      }
-      try {
-        states.put(log[0], new Pair<Long, Long>(Long.parseLong(log[1]), Long.parseLong(log[5])));
-      } catch (final NumberFormatException nfe) {
-        states.put(log[0], new Pair<Long, Long>(-1L, -1L));
-      }
+    if (result == null) {
+      return new HashMap<String, Pair<Long, Long>>();
     }
-    return states;
+    return new HashMap<String, Pair<Long, Long>>(SecurityGroupRuleLogCache.parse(result));
   }
 
   /* online snapshot supported by enhanced qemu-kvm */
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -34,8 +36,12 @@ public class LibvirtDomainXmlParser {
   private final List<DiskDef> diskDefs = new ArrayList<DiskDef>();
   private final List<RngDef> rngDefs = new ArrayList<RngDef>();
   private final List<WatchDogDef> watchDogDefs = new ArrayList<WatchDogDef>();
+  private final Map<Integer, String> vcpuPins = new TreeMap<Integer, String>();
   private Integer vncPort;
   private String desc;
+  private long memory;
+  private int vcpus;
+  private boolean numaPlacement = true;
 
   public boolean parseDomainXml(String domXml) {
     DocumentBuilder builder;
@@ -50,6 +56,25 @@ public class LibvirtDomainXmlParser {
 
       desc = getTagValue("description", rootElement);
 
+      final String memoryValue = getTagValue("memory", rootElement);
+      if (memoryValue != null) {
+        memory = Long.parseLong(memoryValue.trim());
+      }
+
+      final String vcpuValue = getTagValue("vcpu", rootElement);
+      if (vcpuValue != null) {
+        vcpus = Integer.parseInt(vcpuValue.trim());
+      }
+
+      final NodeList numa = rootElement.getElementsByTagName(LibvirtVmDef.NumaPlacementDef.ELEMENT);
+      numaPlacement = numa.getLength() == 0 || !"off".equals(((Element) numa.item(0)).getAttribute("placement"));
+
+      final NodeList pins = rootElement.getElementsByTagName("vcpupin");
+      for (int i = 0; i < pins.getLength(); i++) {
+        final Element pin = (Element) pins.item(i);
+        vcpuPins.put(Integer.parseInt(pin.getAttribute("vcpu")), pin.getAttribute("cpuset"));
+      }
+
       final Element devices = (Element) rootElement.getElementsByTagName("devices").item(0);
       final NodeList disks = devices.getElementsByTagName("disk");
       for (int i = 0; i < disks.getLength(); i++) {
@@ -271,4 +296,29 @@ public class LibvirtDomainXmlParser {
   public String getDescription() {
     return desc;
   }
+
+  /**
+   * @return the memory of the domain in KiB
+   */
+  public long getMemory() {
+    return memory;
+  }
+
+  public int getVcpus() {
+    return vcpus;
+  }
+
+  /**
+   * @return false if the domain is marked to stay off the NUMA placement
+   */
+  public boolean isNumaPlacement() {
+    return numaPlacement;
+  }
+
+  /**
+   * @return the cpuset each pinned vCPU is pinned to
+   */
+  public Map<Integer, String> getVcpuPins() {
+    return vcpuPins;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Patches a few attributes of a domain XML in a single pass over the document, leaving everything else byte for byte
+ * as libvirt wrote it:
+ *
+ * - the listen address of graphics, in graphics/@listen and graphics/listen/@address
+ * - the bridge of interfaces, in interface/source/@bridge
+ *
+ * It can also drop the pinning of the domain to the CPUs and NUMA nodes of this host, cputune/vcpupin,
+ * cputune/emulatorpin, cputune/iothreadpin and numatune, which mean nothing on another host.
+ *
+ * Unlike a replace over the whole document, a value is only replaced in the attributes it belongs to. The
+ * replacements are set up once and the rewriter can then be applied to any number of documents.
+ */
+public class LibvirtDomainXmlRewriter {
+
+  private static final int MAX_DEPTH = 64;
+
+  private final Map<String, String> listenAddresses = new HashMap<String, String>();
+  private final Map<String, String> bridges = new HashMap<String, String>();
+  private boolean removeHostPlacement;
+
+  public LibvirtDomainXmlRewriter replaceGraphicsListen(String from, String to) {
+    if (from != null && to != null) {
+      listenAddresses.put(from, to);
+    }
+    return this;
+  }
+
+  public LibvirtDomainXmlRewriter replaceBridge(String from, String to) {
+    if (from != null && to != null) {
+      bridges.put(from, to);
+    }
+    return this;
+  }
+
+  public LibvirtDomainXmlRewriter removeHostPlacement() {
+    removeHostPlacement = true;
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return listenAddresses.isEmpty() && bridges.isEmpty() && !removeHostPlacement;
+  }
+
+  /**
+   * @return the patched document, or the document itself if nothing had to change
+   */
+  public String rewrite(String xml) {
+    if (xml == null || isEmpty()) {
+      return xml;
+    }
+    final int length = xml.length();
+    // start and length of the names of the open elements, to know the parent of an element
+    final int[] nameStarts = new int[MAX_DEPTH];
+    final int[] nameLengths = new int[MAX_DEPTH];
+    int depth = 0;
+    StringBuilder out = null;
+    int copied = 0;
+
+    int pos = 0;
+    while ((pos = xml.indexOf('<', pos)) >= 0 && pos + 1 < length) {
+      final char next = xml.charAt(pos + 1);
+      if (next == '!' || next == '?') {
+        pos = skipMarkup(xml, pos);
+        continue;
+      }
+      if (next == '/') {
+        if (depth > 0) {
+          depth--;
+        }
+        pos = xml.indexOf('>', pos);
+        if (pos < 0) {
+          break;
+        }
+        continue;
+      }
+
+      final int nameStart = pos + 1;
+      int nameEnd = nameStart;
+      while (nameEnd < length && !isNameEnd(xml.charAt(nameEnd))) {
+        nameEnd++;
+      }
+      final int nameLength = nameEnd - nameStart;
+      final int parent = depth - 1;
+      final boolean parentIsInterface = parent >= 0 && is(xml, nameStarts[parent], nameLengths[parent], "interface");
+      final boolean parentIsGraphics = parent >= 0 && is(xml, nameStarts[parent], nameLengths[parent], "graphics");
+      final boolean isSource = is(xml, nameStart, nameLength, "source");
+      final boolean isGraphics = is(xml, nameStart, nameLength, "graphics");
+      final boolean isListen = parentIsGraphics && is(xml, nameStart, nameLength, "listen");
+
+      if (removeHostPlacement && isHostPlacement(xml, nameStart, nameLength, parent >= 0
+          && is(xml, nameStarts[parent], nameLengths[parent], "cputune"))) {
+        if (out == null) {
+          out = new StringBuilder(length);
+        }
+        out.append(xml, copied, pos);
+        pos = skipElement(xml, nameStart, nameLength);
+        copied = pos;
+        continue;
+      }
+
+      // walk the attributes up to the end of the tag
+      pos = nameEnd;
+      boolean selfClosing = false;
+      while (pos < length) {
+        final char c = xml.charAt(pos);
+        if (c == '>') {
+          break;
+        }
+        if (c == '/') {
+          selfClosing = true;
+          pos++;
+          continue;
+        }
+        if (Character.isWhitespace(c)) {
+          pos++;
+          continue;
+        }
+        final int attributeStart = pos;
+        while (pos < length && xml.charAt(pos) != '=' && !Character.isWhitespace(xml.charAt(pos))) {
+          pos++;
+        }
+        final int attributeLength = pos - attributeStart;
+        while (pos < length && xml.charAt(pos) != '\'' && xml.charAt(pos) != '"') {
+          pos++;
+        }
+        if (pos >= length) {
+          break;
+        }
+        final int valueStart = pos + 1;
+        final int valueEnd = xml.indexOf(xml.charAt(pos), valueStart);
+        if (valueEnd < 0) {
+          pos = length;
+          break;
+        }
+        pos = valueEnd + 1;
+
+        final Map<String, String> replacements;
+        if (isGraphics && is(xml, attributeStart, attributeLength, "listen")
+            || isListen && is(xml, attributeStart, attributeLength, "address")) {
+          replacements = listenAddresses;
+        } else if (isSource && parentIsInterface && is(xml, attributeStart, attributeLength, "bridge")) {
+          replacements = bridges;
+        } else {
+          continue;
+        }
+        final String replacement = replacements.get(xml.substring(valueStart, valueEnd));
+        if (replacement == null) {
+          continue;
+        }
+        if (out == null) {
+          out = new StringBuilder(length + 64);
+        }
+        out.append(xml, copied, valueStart);
+        appendEscaped(out, replacement);
+        copied = valueEnd;
+      }
+
+      if (!selfClosing && depth < MAX_DEPTH) {
+        nameStarts[depth] = nameStart;
+        nameLengths[depth] = nameLength;
+        depth++;
+      }
+    }
+
+    if (out == null) {
+      return xml;
+    }
+    out.append(xml, copied, length);
+    return out.toString();
+  }
+
+  private static boolean isHostPlacement(String xml, int nameStart, int nameLength, boolean parentIsCputune) {
+    if (parentIsCputune) {
+      return is(xml, nameStart, nameLength, "vcpupin") || is(xml, nameStart, nameLength, "emulatorpin")
+          || is(xml, nameStart, nameLength, "iothreadpin");
+    }
+    return is(xml, nameStart, nameLength, "numatune");
+  }
+
+  /* the position after the end of the element */
+  private static int skipElement(String xml, int nameStart, int nameLength) {
+    final int tagEnd = xml.indexOf('>', nameStart);
+    if (tagEnd < 0) {
+      return xml.length();
+    }
+    if (xml.charAt(tagEnd - 1) == '/') {
+      return tagEnd + 1;
+    }
+    final String endTag = "</" + xml.substring(nameStart, nameStart + nameLength) + ">";
+    final int end = xml.indexOf(endTag, tagEnd);
+    return end < 0 ? xml.length() : end + endTag.length();
+  }
+
+  private static int skipMarkup(String xml, int pos) {
+    final String end;
+    if (xml.startsWith("<!--", pos)) {
+      end = "-->";
+    } else if (xml.startsWith("<![CDATA[", pos)) {
+      end = "]]>";
+    } else {
+      end = ">";
+    }
+    final int endPos = xml.indexOf(end, pos + 2);
+    return endPos < 0 ? xml.length() : endPos + end.length();
+  }
+
+  private static boolean isNameEnd(char c) {
+    return c == '>' || c == '/' || Character.isWhitespace(c);
+  }
+
+  private static boolean is(String xml, int start, int length, String name) {
+    return length == name.length() && xml.regionMatches(start, name, 0, length);
+  }
+
+  private static void appendEscaped(StringBuilder out, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          out.append("&amp;");
+          break;
+        case '<':
+          out.append("&lt;");
+          break;
+        case '\'':
+          out.append("&apos;");
+          break;
+        case '"':
+          out.append("&quot;");
+          break;
+        default:
+          out.append(c);
+      }
+    }
+  }
+}
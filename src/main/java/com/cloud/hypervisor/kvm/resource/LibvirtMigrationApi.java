@@ -0,0 +1,470 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Migration calls that libvirt-java does not expose, bound directly to libvirt through JNA.
+ *
+ * Uses its own connection to the local libvirtd, opened on first use and reopened after a failure. Migrations share
+ * one connection per libvirtd, like the libvirt-java migrations admitted by the {@link MigrationScheduler}.
+ */
+public class LibvirtMigrationApi {
+
+  private static final Logger logger = LoggerFactory.getLogger(LibvirtMigrationApi.class);
+
+  private static final long DEFAULT_PAGE_SIZE = 4096;
+
+  interface LibvirtLibrary extends Library {
+    Pointer virConnectOpen(String name);
+
+    int virConnectClose(Pointer conn);
+
+    Pointer virDomainLookupByName(Pointer conn, String name);
+
+    int virDomainFree(Pointer domain);
+
+    int virDomainGetJobStats(Pointer domain, IntByReference type, PointerByReference params, IntByReference nparams,
+        int flags);
+
+    int virTypedParamsGetULLong(Pointer params, int nparams, String name, LongByReference value);
+
+    void virTypedParamsFree(Pointer params, int nparams);
+
+    int virDomainMigrateSetMaxSpeed(Pointer domain, NativeLong bandwidth, int flags);
+
+    int virDomainMigrateStartPostCopy(Pointer domain, int flags);
+
+    Pointer virDomainMigrate3(Pointer domain, Pointer dconn, Pointer params, int nparams, int flags);
+
+    int virTypedParamsAddString(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+        String name, String value);
+
+    int virTypedParamsAddInt(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+        String name, int value);
+
+    int virTypedParamsAddULLong(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+        String name, long value);
+
+    int virTypedParamsAddStringList(PointerByReference params, IntByReference nparams, IntByReference maxparams,
+        String name, String[] values);
+
+    int virDomainBlockCopy(Pointer domain, String disk, String destxml, Pointer params, int nparams, int flags);
+
+    int virDomainGetBlockJobInfo(Pointer domain, String disk, BlockJobInfo info, int flags);
+
+    int virDomainBlockJobSetSpeed(Pointer domain, String disk, NativeLong bandwidth, int flags);
+
+    int virDomainBlockJobAbort(Pointer domain, String disk, int flags);
+
+    String virGetLastErrorMessage();
+  }
+
+  /**
+   * virDomainBlockJobInfo
+   */
+  public static class BlockJobInfo extends Structure {
+    public int type;
+    public NativeLong bandwidth;
+    public long cur;
+    public long end;
+
+    @Override
+    protected List<String> getFieldOrder() {
+      return Arrays.asList("type", "bandwidth", "cur", "end");
+    }
+  }
+
+  /**
+   * Progress of a block job in bytes.
+   */
+  public static class BlockJobProgress {
+    private final long cur;
+    private final long end;
+
+    public BlockJobProgress(long cur, long end) {
+      this.cur = cur;
+      this.end = end;
+    }
+
+    public long getCur() {
+      return cur;
+    }
+
+    public long getEnd() {
+      return end;
+    }
+
+    /**
+     * A block copy is ready to pivot once the mirror has caught up with the source.
+     */
+    public boolean isReady() {
+      return end > 0 && cur == end;
+    }
+  }
+
+  /* Makes virDomainGetJobStats return the statistics of the last completed job */
+  public static final int JOB_STATS_COMPLETED = 1;
+
+  private static final int BLOCK_JOB_ABORT_PIVOT = 1 << 1;
+
+  private static LibvirtLibrary library;
+
+  private final String hypervisorUri;
+  private final Map<String, SharedConnection> migrationConnections = new HashMap<String, SharedConnection>();
+  private Pointer connection;
+
+  public LibvirtMigrationApi(String hypervisorUri) {
+    this.hypervisorUri = hypervisorUri;
+  }
+
+  /**
+   * @return the statistics of the job running on the domain, or null if they could not be retrieved
+   */
+  public MigrationJobStats getJobStats(String vmName) {
+    return getJobStats(vmName, 0);
+  }
+
+  /**
+   * @param flags 0 for the running job, JOB_STATS_COMPLETED for the last completed one
+   */
+  public synchronized MigrationJobStats getJobStats(String vmName, int flags) {
+    final Pointer domain = lookupDomain(vmName);
+    if (domain == null) {
+      return null;
+    }
+    try {
+      final IntByReference type = new IntByReference();
+      final PointerByReference params = new PointerByReference();
+      final IntByReference nparams = new IntByReference();
+      if (library.virDomainGetJobStats(domain, type, params, nparams, flags) < 0) {
+        return null;
+      }
+      try {
+        final Pointer values = params.getValue();
+        final int count = nparams.getValue();
+        final long pageSize = getULLong(values, count, "memory_page_size", DEFAULT_PAGE_SIZE);
+        return new MigrationJobStats(type.getValue(),
+            getULLong(values, count, "time_elapsed", 0),
+            getULLong(values, count, "data_total", 0),
+            getULLong(values, count, "data_remaining", 0),
+            getULLong(values, count, "memory_total", 0),
+            getULLong(values, count, "memory_remaining", 0),
+            getULLong(values, count, "memory_dirty_rate", 0) * pageSize,
+            getULLong(values, count, "memory_iteration", 0),
+            getULLong(values, count, "memory_bps", 0),
+            getULLong(values, count, "auto_converge_throttle", 0),
+            getULLong(values, count, "memory_postcopy_requests", 0),
+            getULLong(values, count, "downtime", 0));
+      } finally {
+        library.virTypedParamsFree(params.getValue(), nparams.getValue());
+      }
+    } finally {
+      library.virDomainFree(domain);
+    }
+  }
+
+  /**
+   * @param bandwidth MiB/s
+   */
+  public synchronized boolean setMaxSpeed(String vmName, long bandwidth) {
+    final Pointer domain = lookupDomain(vmName);
+    if (domain == null) {
+      return false;
+    }
+    try {
+      return library.virDomainMigrateSetMaxSpeed(domain, new NativeLong(bandwidth), 0) == 0;
+    } finally {
+      library.virDomainFree(domain);
+    }
+  }
+
+  /**
+   * Switches a migration that was started with VIR_MIGRATE_POSTCOPY from pre-copy to post-copy.
+   */
+  public synchronized boolean startPostCopy(String vmName) {
+    final Pointer domain = lookupDomain(vmName);
+    if (domain == null) {
+      return false;
+    }
+    try {
+      return library.virDomainMigrateStartPostCopy(domain, 0) == 0;
+    } catch (final UnsatisfiedLinkError e) {
+      // libvirt before 1.3.3 has no virDomainMigrateStartPostCopy
+      logger.warn("Unable to switch the migration of " + vmName + " to post-copy: " + e.getMessage());
+      return false;
+    } finally {
+      library.virDomainFree(domain);
+    }
+  }
+
+  /**
+   * Migrates the domain with virDomainMigrate3, which takes the parallel connection and compression settings that the
+   * libvirt-java migrate call cannot pass. Runs on the connections shared by the migrations, not on the one the job
+   * statistics are read through, so those can be read meanwhile.
+   *
+   * @param bandwidth MiB/s, 0 for unlimited
+   */
+  public void migrate(String vmName, String destinationUri, long flags, String destinationXml, String migrateUri,
+      long bandwidth, MigrationTuning tuning) {
+    migrate(vmName, destinationUri, flags, destinationXml, migrateUri, bandwidth, tuning, null);
+  }
+
+  /**
+   * @param migrateDisks target devices of the disks to copy to the destination over NBD when flags has
+   *     VIR_MIGRATE_NON_SHARED_DISK, null or empty for all non shared disks
+   */
+  public void migrate(String vmName, String destinationUri, long flags, String destinationXml, String migrateUri,
+      long bandwidth, MigrationTuning tuning, List<String> migrateDisks) {
+    final LibvirtLibrary library = library();
+    if (library == null) {
+      throw new CloudRuntimeException("Unable to bind to libvirt to migrate " + vmName);
+    }
+
+    final PointerByReference params = new PointerByReference();
+    final IntByReference nparams = new IntByReference();
+    final IntByReference maxparams = new IntByReference();
+    SharedConnection source = null;
+    SharedConnection destination = null;
+    Pointer domain = null;
+    boolean migrated = false;
+    try {
+      library.virTypedParamsAddString(params, nparams, maxparams, "destination_name", vmName);
+      if (destinationXml != null) {
+        library.virTypedParamsAddString(params, nparams, maxparams, "destination_xml", destinationXml);
+      }
+      library.virTypedParamsAddString(params, nparams, maxparams, "migrate_uri", migrateUri);
+      if (bandwidth > 0) {
+        library.virTypedParamsAddULLong(params, nparams, maxparams, "bandwidth", bandwidth);
+      }
+      if (tuning.isParallel()) {
+        library.virTypedParamsAddInt(params, nparams, maxparams, "parallel.connections",
+            tuning.getParallelConnections());
+      }
+      if (tuning.isCompressed()) {
+        library.virTypedParamsAddString(params, nparams, maxparams, "compression", tuning.getCompression());
+        if (tuning.getCompressionLevel() >= 0) {
+          library.virTypedParamsAddInt(params, nparams, maxparams, "compression." + tuning.getCompression()
+              + ".level", tuning.getCompressionLevel());
+        }
+      }
+      if (migrateDisks != null && !migrateDisks.isEmpty()) {
+        library.virTypedParamsAddStringList(params, nparams, maxparams, "migrate_disks",
+            migrateDisks.toArray(new String[migrateDisks.size()]));
+      }
+
+      source = acquireConnection(hypervisorUri);
+      destination = acquireConnection(destinationUri);
+      if (source == null || destination == null) {
+        throw new CloudRuntimeException("Unable to connect to libvirt to migrate " + vmName + ": "
+            + library.virGetLastErrorMessage());
+      }
+      domain = library.virDomainLookupByName(source.pointer, vmName);
+      if (domain == null) {
+        throw new CloudRuntimeException("Unable to find " + vmName + " to migrate: " + library.virGetLastErrorMessage());
+      }
+
+      logger.debug("Migrating " + vmName + " to " + destinationUri + " with " + tuning + " bandwidth=" + bandwidth);
+      final Pointer migratedDomain = library.virDomainMigrate3(domain, destination.pointer, params.getValue(),
+          nparams.getValue(), (int) flags);
+      if (migratedDomain == null) {
+        throw new CloudRuntimeException("Failed to migrate " + vmName + ": " + library.virGetLastErrorMessage());
+      }
+      library.virDomainFree(migratedDomain);
+      migrated = true;
+    } finally {
+      if (domain != null) {
+        library.virDomainFree(domain);
+      }
+      /* A failure may have come from a broken connection, later migrations open fresh ones */
+      if (destination != null) {
+        releaseConnection(destinationUri, destination, !migrated);
+      }
+      if (source != null) {
+        releaseConnection(hypervisorUri, source, !migrated);
+      }
+      library.virTypedParamsFree(params.getValue(), nparams.getValue());
+    }
+  }
+
+  /**
+   * Starts mirroring a disk of a running domain to the destination described by destinationXml, a disk element with
+   * the type, driver and source of the copy.
+   *
+   * @param bandwidth MiB/s, 0 for unlimited
+   */
+  public synchronized void startBlockCopy(String vmName, String disk, String destinationXml, long bandwidth) {
+    final Pointer domain = lookupDomain(vmName);
+    if (domain == null) {
+      throw new CloudRuntimeException("Unable to find " + vmName + " to copy " + disk);
+    }
+    final PointerByReference params = new PointerByReference();
+    final IntByReference nparams = new IntByReference();
+    final IntByReference maxparams = new IntByReference();
+    try {
+      if (bandwidth > 0) {
+        library.virTypedParamsAddULLong(params, nparams, maxparams, "bandwidth", bandwidth * 1024 * 1024);
+      }
+      if (library.virDomainBlockCopy(domain, disk, destinationXml, params.getValue(), nparams.getValue(), 0) < 0) {
+        throw new CloudRuntimeException("Failed to copy " + disk + " of " + vmName + ": "
+            + library.virGetLastErrorMessage());
+      }
+    } finally {
+      library.virTypedParamsFree(params.getValue(), nparams.getValue());
+      library.virDomainFree(domain);
+    }
+  }
+
+  /**
+   * @return the progress of the block job on the disk, or null if there is no such job (anymore)
+   */
+  public synchronized BlockJobProgress getBlockJobProgress(String vmName, String disk) {
+    final Pointer domain = lookupDomain(vmName);
+    if (domain == null) {
+      return null;
+    }
+    try {
+      final BlockJobInfo info = new BlockJobInfo();
+      if (library.virDomainGetBlockJobInfo(domain, disk, info, 0) != 1) {
+        return null;
+      }
+      return new BlockJobProgress(info.cur, info.end);
+    } finally {
+      library.virDomainFree(domain);
+    }
+  }
+
+  /**
+   * @param bandwidth MiB/s, 0 for unlimited
+   */
+  public synchronized boolean setBlockJobSpeed(String vmName, String disk, long bandwidth) {
+    final Pointer domain = lookupDomain(vmName);
+    if (domain == null) {
+      return false;
+    }
+    try {
+      return library.virDomainBlockJobSetSpeed(domain, disk, new NativeLong(bandwidth), 0) == 0;
+    } finally {
+      library.virDomainFree(domain);
+    }
+  }
+
+  /**
+   * Ends the block job on the disk. With pivot the domain switches over to the copy, otherwise the copy is abandoned
+   * and the domain keeps using the original.
+   */
+  public synchronized boolean abortBlockJob(String vmName, String disk, boolean pivot) {
+    final Pointer domain = lookupDomain(vmName);
+    if (domain == null) {
+      return false;
+    }
+    try {
+      if (library.virDomainBlockJobAbort(domain, disk, pivot ? BLOCK_JOB_ABORT_PIVOT : 0) < 0) {
+        logger.debug("Failed to " + (pivot ? "pivot" : "cancel") + " the block job on " + disk + " of " + vmName
+            + ": " + library.virGetLastErrorMessage());
+        return false;
+      }
+      return true;
+    } finally {
+      library.virDomainFree(domain);
+    }
+  }
+
+  public synchronized void close() {
+    if (connection != null) {
+      library.virConnectClose(connection);
+      connection = null;
+    }
+  }
+
+  private SharedConnection acquireConnection(String uri) {
+    synchronized (migrationConnections) {
+      SharedConnection shared = migrationConnections.get(uri);
+      if (shared == null) {
+        final Pointer pointer = library.virConnectOpen(uri);
+        if (pointer == null) {
+          return null;
+        }
+        shared = new SharedConnection(pointer);
+        migrationConnections.put(uri, shared);
+      }
+      shared.users++;
+      return shared;
+    }
+  }
+
+  private void releaseConnection(String uri, SharedConnection shared, boolean discard) {
+    synchronized (migrationConnections) {
+      if (discard && migrationConnections.get(uri) == shared) {
+        migrationConnections.remove(uri);
+      }
+      shared.users--;
+      /* a discarded connection is closed once the migrations that still have it are done */
+      if (shared.users == 0 && migrationConnections.get(uri) != shared) {
+        library.virConnectClose(shared.pointer);
+      }
+    }
+  }
+
+  private long getULLong(Pointer params, int nparams, String name, long defaultValue) {
+    final LongByReference value = new LongByReference();
+    if (library.virTypedParamsGetULLong(params, nparams, name, value) == 1) {
+      return value.getValue();
+    }
+    return defaultValue;
+  }
+
+  private static synchronized LibvirtLibrary library() {
+    if (library == null) {
+      try {
+        library = (LibvirtLibrary) Native.loadLibrary("virt", LibvirtLibrary.class);
+      } catch (final UnsatisfiedLinkError e) {
+        logger.debug("Unable to bind to libvirt for migrations: " + e.getMessage());
+      }
+    }
+    return library;
+  }
+
+  private Pointer lookupDomain(String vmName) {
+    if (library() == null) {
+      return null;
+    }
+    if (connection == null) {
+      connection = library.virConnectOpen(hypervisorUri);
+      if (connection == null) {
+        logger.debug("Unable to open a libvirt connection to " + hypervisorUri + " for migration statistics");
+        return null;
+      }
+    }
+    final Pointer domain = library.virDomainLookupByName(connection, vmName);
+    if (domain == null) {
+      /* Either the domain is gone or the connection broke, start over with a fresh connection next time */
+      close();
+    }
+    return domain;
+  }
+
+  private static class SharedConnection {
+    private final Pointer pointer;
+    private int users;
+
+    SharedConnection(Pointer pointer) {
+      this.pointer = pointer;
+    }
+  }
+}
@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class LibvirtVmDef {
     private static final Logger s_logger = LoggerFactory.getLogger(LibvirtVmDef.class);
@@ -128,6 +129,7 @@ public class LibvirtVmDef {
         private long mem;
         private long currentMem = -1;
         private String memBacking;
+        private long hugePageSize;
         private int vcpu = -1;
         private boolean memBalloning = false;
 
@@ -143,6 +145,17 @@ public class LibvirtVmDef {
             this.memBacking = memBacking;
         }
 
+        /**
+         * @param hugePageSize the size in KiB of the hugepages backing the memory of the guest, 0 for none
+         */
+        public void setHugePageSize(final long hugePageSize) {
+            this.hugePageSize = hugePageSize;
+        }
+
+        public long getHugePageSize() {
+            return hugePageSize;
+        }
+
         public void setVcpuNum(final int vcpu) {
             this.vcpu = vcpu;
         }
@@ -158,8 +171,15 @@ public class LibvirtVmDef {
             if (currentMem != -1) {
                 resBuidler.append("<currentMemory>" + currentMem + "</currentMemory>\n");
             }
-            if (memBacking != null) {
-                resBuidler.append("<memoryBacking>" + "<" + memBacking + "/>" + "</memoryBacking>\n");
+            if (memBacking != null || hugePageSize > 0) {
+                resBuidler.append("<memoryBacking>");
+                if (hugePageSize > 0) {
+                    resBuidler.append("<hugepages><page size='" + hugePageSize + "' unit='KiB'/></hugepages>");
+                }
+                if (memBacking != null) {
+                    resBuidler.append("<" + memBacking + "/>");
+                }
+                resBuidler.append("</memoryBacking>\n");
             }
             if (memBalloning) {
                 resBuidler.append("<devices>\n" + "<memballoon model='virtio'/>\n" + "</devices>\n");
@@ -521,6 +541,20 @@ public class LibvirtVmDef {
             }
         }
 
+        public enum DiskIoMode {
+            NATIVE("native"), IO_URING("io_uring"), THREADS("threads");
+            String ioMode;
+
+            DiskIoMode(final String ioMode) {
+                this.ioMode = ioMode;
+            }
+
+            @Override
+            public String toString() {
+                return ioMode;
+            }
+        }
+
         private DeviceType deviceType; /* floppy, disk, cdrom */
         private DiskType diskType;
         private DiskProtocol diskProtocol;
@@ -542,6 +576,9 @@ public class LibvirtVmDef {
         private DiskCacheMode diskCacheMode;
         private String serial;
         private boolean qemuDriver = true;
+        private DiskIoMode ioMode;
+        private boolean discard;
+        private int ioThread;
 
         public void setDeviceType(final DeviceType deviceType) {
             this.deviceType = deviceType;
@@ -729,6 +766,36 @@ public class LibvirtVmDef {
             this.serial = serial;
         }
 
+        public void setIoMode(final DiskIoMode ioMode) {
+            this.ioMode = ioMode;
+        }
+
+        public DiskIoMode getIoMode() {
+            return ioMode;
+        }
+
+        /**
+         * Passes the discards of the guest down to the storage, and turns writes of zeroes into discards.
+         */
+        public void setDiscard(final boolean discard) {
+            this.discard = discard;
+        }
+
+        public boolean isDiscard() {
+            return discard;
+        }
+
+        /**
+         * @param ioThread the id of the IOThread of the domain that runs the I/O of this disk, or 0 for the main loop
+         */
+        public void setIoThread(final int ioThread) {
+            this.ioThread = ioThread;
+        }
+
+        public int getIoThread() {
+            return ioThread;
+        }
+
         @Override
         public String toString() {
             final StringBuilder diskBuilder = new StringBuilder();
@@ -740,7 +807,17 @@ public class LibvirtVmDef {
             diskBuilder.append(">\n");
             if (qemuDriver) {
                 diskBuilder.append("<driver name='qemu'" + " type='" + diskFmtType
-                        + "' cache='" + diskCacheMode + "' " + "/>\n");
+                        + "' cache='" + diskCacheMode + "'");
+                if (ioMode != null) {
+                    diskBuilder.append(" io='" + ioMode + "'");
+                }
+                if (discard) {
+                    diskBuilder.append(" discard='unmap' detect_zeroes='unmap'");
+                }
+                if (ioThread > 0) {
+                    diskBuilder.append(" iothread='" + ioThread + "'");
+                }
+                diskBuilder.append(" " + "/>\n");
             }
 
             if (diskType == DiskType.FILE) {
@@ -812,6 +889,68 @@ public class LibvirtVmDef {
         }
     }
 
+    public static class IoThreadsDef {
+        private final int ioThreads;
+
+        public IoThreadsDef(final int ioThreads) {
+            this.ioThreads = ioThreads;
+        }
+
+        public int getIoThreads() {
+            return ioThreads;
+        }
+
+        @Override
+        public String toString() {
+            if (ioThreads > 0) {
+                return "<iothreads>" + ioThreads + "</iothreads>\n";
+            }
+            return "";
+        }
+    }
+
+    public static class ScsiControllerDef {
+        private final int index;
+        private final int queues;
+        private final int ioThread;
+
+        /**
+         * @param queues the number of request queues, 0 for the default of one
+         * @param ioThread the id of the IOThread that runs the I/O of the controller, or 0 for the main loop
+         */
+        public ScsiControllerDef(final int index, final int queues, final int ioThread) {
+            this.index = index;
+            this.queues = queues;
+            this.ioThread = ioThread;
+        }
+
+        public int getQueues() {
+            return queues;
+        }
+
+        public int getIoThread() {
+            return ioThread;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder controllerBuilder = new StringBuilder();
+            controllerBuilder.append("<controller type='scsi' index='" + index + "' model='virtio-scsi'>\n");
+            if (queues > 1 || ioThread > 0) {
+                controllerBuilder.append("<driver");
+                if (queues > 1) {
+                    controllerBuilder.append(" queues='" + queues + "'");
+                }
+                if (ioThread > 0) {
+                    controllerBuilder.append(" iothread='" + ioThread + "'");
+                }
+                controllerBuilder.append("/>\n");
+            }
+            controllerBuilder.append("</controller>\n");
+            return controllerBuilder.toString();
+        }
+    }
+
     public static class InterfaceDef {
         enum GuestNetType {
             BRIDGE("bridge"), DIRECT("direct"), NETWORK("network"), USER("user"), ETHERNET("ethernet"), INTERNAL("internal");
@@ -858,6 +997,10 @@ public class LibvirtVmDef {
         private String virtualPortType;
         private String virtualPortInterfaceId;
         private int vlanTag = -1;
+        private String driverName;
+        private int driverQueues;
+        private int rxQueueSize;
+        private int txQueueSize;
 
         public void defBridgeNet(final String brName, final String targetBrName, final String macAddr, final NicModel model) {
             defBridgeNet(brName, targetBrName, macAddr, model, 0);
@@ -977,6 +1120,44 @@ public class LibvirtVmDef {
             return vlanTag;
         }
 
+        /**
+         * @param driverName the virtio-net backend, vhost or qemu, or null for the libvirt default
+         */
+        public void setDriverName(final String driverName) {
+            this.driverName = driverName;
+        }
+
+        public String getDriverName() {
+            return driverName;
+        }
+
+        /**
+         * @param driverQueues the number of virtio-net queue pairs, more than one for multi-queue
+         */
+        public void setDriverQueues(final int driverQueues) {
+            this.driverQueues = driverQueues;
+        }
+
+        public int getDriverQueues() {
+            return driverQueues;
+        }
+
+        public void setRxQueueSize(final int rxQueueSize) {
+            this.rxQueueSize = rxQueueSize;
+        }
+
+        public int getRxQueueSize() {
+            return rxQueueSize;
+        }
+
+        public void setTxQueueSize(final int txQueueSize) {
+            this.txQueueSize = txQueueSize;
+        }
+
+        public int getTxQueueSize() {
+            return txQueueSize;
+        }
+
         @Override
         public String toString() {
             final StringBuilder netBuilder = new StringBuilder();
@@ -997,6 +1178,22 @@ public class LibvirtVmDef {
             if (model != null) {
                 netBuilder.append("<model type='" + model + "'/>\n");
             }
+            if (model == NicModel.VIRTIO && (driverName != null || driverQueues > 1 || rxQueueSize > 0 || txQueueSize > 0)) {
+                netBuilder.append("<driver");
+                if (driverName != null) {
+                    netBuilder.append(" name='" + driverName + "'");
+                }
+                if (driverQueues > 1) {
+                    netBuilder.append(" queues='" + driverQueues + "'");
+                }
+                if (rxQueueSize > 0) {
+                    netBuilder.append(" rx_queue_size='" + rxQueueSize + "'");
+                }
+                if (txQueueSize > 0) {
+                    netBuilder.append(" tx_queue_size='" + txQueueSize + "'");
+                }
+                netBuilder.append("/>\n");
+            }
             if (s_libvirtVersion >= 9004 && networkRateKBps > 0) { // supported from libvirt 0.9.4
                 netBuilder.append("<bandwidth>\n");
                 netBuilder.append("<inbound average='" + networkRateKBps + "' peak='" + networkRateKBps + "'/>\n");
@@ -1056,6 +1253,8 @@ public class LibvirtVmDef {
 
     public static class CpuTuneDef {
         private int shares = 0;
+        private final Map<Integer, String> vcpuPins = new TreeMap<>();
+        private String emulatorPin;
 
         public void setShares(final int shares) {
             this.shares = shares;
@@ -1065,6 +1264,22 @@ public class LibvirtVmDef {
             return shares;
         }
 
+        public void setVcpuPin(final int vcpu, final String cpuSet) {
+            vcpuPins.put(vcpu, cpuSet);
+        }
+
+        public Map<Integer, String> getVcpuPins() {
+            return vcpuPins;
+        }
+
+        public void setEmulatorPin(final String cpuSet) {
+            emulatorPin = cpuSet;
+        }
+
+        public String getEmulatorPin() {
+            return emulatorPin;
+        }
+
         @Override
         public String toString() {
             final StringBuilder cpuTuneBuilder = new StringBuilder();
@@ -1072,17 +1287,69 @@ public class LibvirtVmDef {
             if (shares > 0) {
                 cpuTuneBuilder.append("<shares>" + shares + "</shares>\n");
             }
+            for (final Map.Entry<Integer, String> vcpuPin : vcpuPins.entrySet()) {
+                cpuTuneBuilder.append("<vcpupin vcpu='" + vcpuPin.getKey() + "' cpuset='" + vcpuPin.getValue() + "'/>\n");
+            }
+            if (emulatorPin != null) {
+                cpuTuneBuilder.append("<emulatorpin cpuset='" + emulatorPin + "'/>\n");
+            }
             cpuTuneBuilder.append("</cputune>\n");
             return cpuTuneBuilder.toString();
         }
     }
 
+    public static class NumaTuneDef {
+        private final String mode;
+        private final String nodeset;
+        private final Map<Integer, String> memNodes = new TreeMap<>();
+
+        /**
+         * @param mode strict, preferred or interleave
+         */
+        public NumaTuneDef(final String mode, final String nodeset) {
+            this.mode = mode;
+            this.nodeset = nodeset;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public String getNodeset() {
+            return nodeset;
+        }
+
+        /**
+         * Binds the memory of a guest NUMA cell to host nodes, in the mode of the numatune.
+         */
+        public void addMemNode(final int cellId, final String nodeset) {
+            memNodes.put(cellId, nodeset);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder numaTuneBuilder = new StringBuilder();
+            numaTuneBuilder.append("<numatune>\n");
+            // libvirt takes a single node for preferred, the memnodes bind the guest cells on their own
+            if (memNodes.isEmpty() || !"preferred".equals(mode)) {
+                numaTuneBuilder.append("<memory mode='" + mode + "' nodeset='" + nodeset + "'/>\n");
+            }
+            for (final Map.Entry<Integer, String> memNode : memNodes.entrySet()) {
+                numaTuneBuilder.append("<memnode cellid='" + memNode.getKey() + "' mode='" + mode + "' nodeset='"
+                        + memNode.getValue() + "'/>\n");
+            }
+            numaTuneBuilder.append("</numatune>\n");
+            return numaTuneBuilder.toString();
+        }
+    }
+
     public static class CpuModeDef {
         private String mode;
         private String model;
         private List<String> features;
         private int coresPerSocket = -1;
         private int sockets = -1;
+        private final List<String> numaCells = new ArrayList<>();
 
         public void setMode(final String mode) {
             this.mode = mode;
@@ -1103,6 +1370,16 @@ public class LibvirtVmDef {
             this.sockets = sockets;
         }
 
+        /**
+         * Adds a guest NUMA cell, the cells have to be added in the order of their ids.
+         *
+         * @param vcpus the vCPUs of the cell as a cpuset
+         * @param memory the memory of the cell in KiB
+         */
+        public void addNumaCell(final String vcpus, final long memory) {
+            numaCells.add("<cell id='" + numaCells.size() + "' cpus='" + vcpus + "' memory='" + memory + "' unit='KiB'/>");
+        }
+
         @Override
         public String toString() {
             final StringBuilder modeBuilder = new StringBuilder();
@@ -1129,6 +1406,14 @@ public class LibvirtVmDef {
                 modeBuilder.append("<topology sockets='" + sockets + "' cores='" + coresPerSocket + "' threads='1' />");
             }
 
+            if (!numaCells.isEmpty()) {
+                modeBuilder.append("<numa>");
+                for (final String numaCell : numaCells) {
+                    modeBuilder.append(numaCell);
+                }
+                modeBuilder.append("</numa>");
+            }
+
             // close cpu def
             modeBuilder.append("</cpu>");
             return modeBuilder.toString();
@@ -1350,6 +1635,19 @@ public class LibvirtVmDef {
         }
     }
 
+    /**
+     * Marks a domain whose vCPUs and memory are not placed on the NUMA cells of the host, so the agent leaves it alone
+     * after a restart or a migration.
+     */
+    public static class NumaPlacementDef {
+        public static final String ELEMENT = "cosmic:numa";
+
+        @Override
+        public String toString() {
+            return "<" + ELEMENT + " xmlns:cosmic='urn:cosmic:numa' placement='off'/>\n";
+        }
+    }
+
     public static class RngDef {
         enum RngModel {
             VIRTIO("virtio");
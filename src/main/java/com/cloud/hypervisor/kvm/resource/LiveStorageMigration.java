@@ -0,0 +1,191 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves disks of a running VM to another pool with libvirt block copy. A mirror of each disk is written to the
+ * destination while the guest keeps running, and as soon as the mirror has caught up the guest is pivoted to it.
+ *
+ * The mirrors of a VM run concurrently. At most storage.migrate.concurrent mirrors run on the host at once, and
+ * storage.migrate.bandwidth (MiB/s) is split over the running mirrors.
+ */
+public class LiveStorageMigration {
+
+  private static final Logger logger = LoggerFactory.getLogger(LiveStorageMigration.class);
+
+  private final LibvirtMigrationApi migrationApi;
+  private final Semaphore slots;
+  private final MigrationBandwidthBudget budget;
+  private final long pollInterval;
+
+  public static class Mirror {
+    private final String disk;
+    private final String destinationPath;
+    private final String destinationXml;
+    private int bandwidth;
+    private volatile long cur;
+    private volatile long end;
+    private volatile boolean pivoted;
+
+    public Mirror(String disk, String destinationPath, String destinationXml) {
+      this.disk = disk;
+      this.destinationPath = destinationPath;
+      this.destinationXml = destinationXml;
+    }
+
+    /**
+     * A mirror to a new image file on a file based pool.
+     */
+    public static Mirror toFile(String disk, String path, String format) {
+      return new Mirror(disk, path, "<disk type='file'><driver type='" + format + "'/><source file='" + path
+          + "'/></disk>");
+    }
+
+    public String getDisk() {
+      return disk;
+    }
+
+    public String getDestinationPath() {
+      return destinationPath;
+    }
+
+    public String getDestinationXml() {
+      return destinationXml;
+    }
+
+    public boolean isPivoted() {
+      return pivoted;
+    }
+
+    /**
+     * @return how much of the disk has been mirrored, 0 to 100
+     */
+    public int getProgress() {
+      return end > 0 ? (int) (cur * 100 / end) : 0;
+    }
+
+    @Override
+    public String toString() {
+      return disk + " -> " + destinationPath + " " + getProgress() + "%" + (pivoted ? " pivoted" : "");
+    }
+  }
+
+  /**
+   * @param maxMirrors mirrors running on the host at once, 0 for no limit
+   * @param pollInterval milliseconds between two reads of the block job progress
+   */
+  public LiveStorageMigration(LibvirtMigrationApi migrationApi, int maxMirrors, MigrationBandwidthBudget budget,
+      long pollInterval) {
+    this.migrationApi = migrationApi;
+    slots = maxMirrors > 0 ? new Semaphore(maxMirrors, true) : null;
+    this.budget = budget;
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * Mirrors and pivots the disks. When a mirror fails or the timeout passes, the mirrors that did not pivot yet are
+   * cancelled and the guest keeps running on their original disks, the ones that pivoted stay on the destination.
+   *
+   * @param timeout milliseconds, 0 for no timeout
+   */
+  public void migrate(String vmName, List<Mirror> mirrors, long timeout) throws InterruptedException {
+    final List<Mirror> pending = new ArrayList<Mirror>(mirrors);
+    final List<Mirror> active = new ArrayList<Mirror>();
+    final long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+    try {
+      while (!pending.isEmpty() || !active.isEmpty()) {
+        // only block for a slot when nothing of this VM is running, otherwise keep polling what runs
+        while (!pending.isEmpty() && acquireSlot(active.isEmpty(), deadline)) {
+          final Mirror mirror = pending.remove(0);
+          try {
+            start(vmName, mirror);
+          } catch (final CloudRuntimeException e) {
+            releaseSlot();
+            throw e;
+          }
+          active.add(mirror);
+        }
+        if (!active.isEmpty()) {
+          Thread.sleep(pollInterval);
+          poll(vmName, active);
+        }
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+          throw new CloudRuntimeException("Timed out after " + timeout + "ms migrating the disks of " + vmName + ": "
+              + mirrors);
+        }
+      }
+      logger.info("Migrated the disks of " + vmName + ": " + mirrors);
+    } finally {
+      for (final Mirror mirror : active) {
+        logger.warn("Cancelling the copy of " + mirror + " of " + vmName);
+        migrationApi.abortBlockJob(vmName, mirror.disk, false);
+        releaseSlot();
+      }
+    }
+  }
+
+  private void start(String vmName, Mirror mirror) {
+    mirror.bandwidth = budget.acquire(0);
+    logger.debug("Copying " + mirror.disk + " of " + vmName + " to " + mirror.destinationPath + " at "
+        + (mirror.bandwidth > 0 ? mirror.bandwidth + "MiB/s" : "unlimited bandwidth"));
+    migrationApi.startBlockCopy(vmName, mirror.disk, mirror.destinationXml, mirror.bandwidth);
+  }
+
+  private void poll(String vmName, List<Mirror> active) {
+    for (final Iterator<Mirror> iterator = active.iterator(); iterator.hasNext(); ) {
+      final Mirror mirror = iterator.next();
+      final LibvirtMigrationApi.BlockJobProgress progress = migrationApi.getBlockJobProgress(vmName, mirror.disk);
+      if (progress == null) {
+        throw new CloudRuntimeException("The copy of " + mirror.disk + " of " + vmName + " to "
+            + mirror.destinationPath + " stopped at " + mirror.getProgress() + "%");
+      }
+      mirror.cur = progress.getCur();
+      mirror.end = progress.getEnd();
+      logger.debug("Copy of " + mirror.disk + " of " + vmName + " is at " + mirror.getProgress() + "%");
+
+      if (progress.isReady() && migrationApi.abortBlockJob(vmName, mirror.disk, true)) {
+        mirror.pivoted = true;
+        iterator.remove();
+        releaseSlot();
+        logger.info("Pivoted " + mirror.disk + " of " + vmName + " to " + mirror.destinationPath);
+        continue;
+      }
+
+      // mirrors started or finished elsewhere on the host since the last poll
+      final int share = budget.share(0);
+      if (share != mirror.bandwidth && migrationApi.setBlockJobSpeed(vmName, mirror.disk, share)) {
+        mirror.bandwidth = share;
+      }
+    }
+  }
+
+  private boolean acquireSlot(boolean block, long deadline) throws InterruptedException {
+    if (slots == null) {
+      return true;
+    }
+    if (!block) {
+      return slots.tryAcquire();
+    }
+    if (deadline == 0) {
+      slots.acquire();
+      return true;
+    }
+    return slots.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+  }
+
+  private void releaseSlot() {
+    budget.release();
+    if (slots != null) {
+      slots.release();
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package com.cloud.hypervisor.kvm.resource;
 
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import org.libvirt.Connect;
@@ -8,6 +9,13 @@ import org.libvirt.LibvirtException;
 
 public class MigrateKvmAsync implements Callable<Domain> {
 
+  private static final long VIR_MIGRATE_LIVE = 1 << 0;
+  private static final long VIR_MIGRATE_NON_SHARED_DISK = 1 << 6;
+  private static final long VIR_MIGRATE_COMPRESSED = 1 << 11;
+  private static final long VIR_MIGRATE_AUTO_CONVERGE = 1 << 13;
+  private static final long VIR_MIGRATE_POSTCOPY = 1 << 15;
+  private static final long VIR_MIGRATE_PARALLEL = 1 << 17;
+
   private final LibvirtComputingResource libvirtComputingResource;
 
   private Domain dm = null;
@@ -15,6 +23,10 @@ public class MigrateKvmAsync implements Callable<Domain> {
   private String dxml = "";
   private String vmName = "";
   private String destIp = "";
+  private boolean postCopy;
+  private MigrationTuning tuning = MigrationTuning.DEFAULT;
+  private long bandwidth;
+  private List<String> nonSharedDisks;
 
   public MigrateKvmAsync(final LibvirtComputingResource libvirtComputingResource, final Domain dm, final Connect dconn,
       final String dxml, final String vmName, final String destIp) {
@@ -25,16 +37,63 @@ public class MigrateKvmAsync implements Callable<Domain> {
     this.dxml = dxml;
     this.vmName = vmName;
     this.destIp = destIp;
+    bandwidth = libvirtComputingResource.getMigrateSpeed();
+  }
+
+  /**
+   * @param bandwidth MiB/s, 0 for unlimited
+   */
+  public MigrateKvmAsync(final LibvirtComputingResource libvirtComputingResource, final Domain dm, final Connect dconn,
+      final String dxml, final String vmName, final String destIp, final boolean postCopy,
+      final MigrationTuning tuning, final long bandwidth) {
+    this(libvirtComputingResource, dm, dconn, dxml, vmName, destIp);
+    this.postCopy = postCopy;
+    this.tuning = tuning;
+    this.bandwidth = bandwidth;
+  }
+
+  /**
+   * Copies the given disks to the destination during the migration, over NBD. For disks on storage the destination
+   * does not share, like local storage.
+   *
+   * @param nonSharedDisks target devices of the disks
+   */
+  public void setNonSharedDisks(final List<String> nonSharedDisks) {
+    this.nonSharedDisks = nonSharedDisks;
   }
 
   @Override
   public Domain call() throws LibvirtException {
+    final long libvirtVersion = dconn.getLibVirVersion();
+    long flags = VIR_MIGRATE_LIVE;
     // set compression flag for migration if libvirt version supports it
-    if (dconn.getLibVirVersion() < 1003000) {
-      return dm.migrate(dconn, 1 << 0, dxml, vmName, "tcp:" + destIp, libvirtComputingResource.getMigrateSpeed());
-    } else {
-      return dm.migrate(dconn, 1 << 0 | 1 << 11, dxml, vmName, "tcp:" + destIp,
-          libvirtComputingResource.getMigrateSpeed());
+    if (libvirtVersion >= 1003000 && tuning.isCompressed()) {
+      flags |= VIR_MIGRATE_COMPRESSED;
+    }
+    // qemu only throttles the guest once it dirties memory faster than the migration can send it
+    if (libvirtComputingResource.isMigrateAutoConverge() && libvirtVersion >= 1002003) {
+      flags |= VIR_MIGRATE_AUTO_CONVERGE;
+    }
+    // allows the monitor to switch to post-copy, the migration itself still starts as pre-copy; the switch is made
+    // through the libvirt of this host, so both ends need it
+    if (postCopy && libvirtVersion >= 1003003 && libvirtComputingResource.getHypervisorLibvirtVersion() >= 1003003) {
+      flags |= VIR_MIGRATE_POSTCOPY;
+    }
+
+    final LibvirtMigrationApi migrationApi = libvirtComputingResource.getLibvirtMigrationApi();
+    // the legacy call cannot say which disks to copy and would copy the shared ones too
+    final boolean copyDisks = nonSharedDisks != null && !nonSharedDisks.isEmpty();
+    if ((tuning.needsExtendedParameters() || copyDisks) && migrationApi != null) {
+      if (tuning.isParallel()) {
+        flags |= VIR_MIGRATE_PARALLEL;
+      }
+      if (copyDisks) {
+        flags |= VIR_MIGRATE_NON_SHARED_DISK;
+      }
+      migrationApi.migrate(vmName, "qemu+tcp://" + destIp + "/system", flags, dxml, "tcp:" + destIp, bandwidth,
+          tuning, nonSharedDisks);
+      return dconn.domainLookupByName(vmName);
     }
+    return dm.migrate(dconn, flags, dxml, vmName, "tcp:" + destIp, bandwidth);
   }
 }
@@ -0,0 +1,55 @@
+package com.cloud.hypervisor.kvm.resource;
+
+/**
+ * Host wide bandwidth budget for outgoing live migrations, set with vm.migrate.bandwidth.budget (MiB/s).
+ *
+ * Every migration that starts gets an equal share of the budget given the migrations already running.
+ */
+public class MigrationBandwidthBudget {
+
+  private final int budget;
+  private int active;
+
+  /**
+   * @param budget MiB/s for all migrations together, 0 for no budget
+   */
+  public MigrationBandwidthBudget(int budget) {
+    this.budget = budget;
+  }
+
+  public int getBudget() {
+    return budget;
+  }
+
+  public synchronized int getActive() {
+    return active;
+  }
+
+  /**
+   * Registers a starting migration.
+   *
+   * @param requested the bandwidth the migration would use on its own in MiB/s, 0 for unlimited
+   * @return the bandwidth the migration may use in MiB/s, 0 for unlimited
+   */
+  public synchronized int acquire(int requested) {
+    active++;
+    return share(requested);
+  }
+
+  public synchronized void release() {
+    if (active > 0) {
+      active--;
+    }
+  }
+
+  /**
+   * @return the share of a migration given the migrations running now, in MiB/s, 0 for unlimited
+   */
+  public synchronized int share(int requested) {
+    if (budget <= 0) {
+      return requested;
+    }
+    final int share = Math.max(1, budget / Math.max(1, active));
+    return requested > 0 ? Math.min(requested, share) : share;
+  }
+}
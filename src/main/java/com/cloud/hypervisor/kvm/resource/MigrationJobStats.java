@@ -0,0 +1,130 @@
+package com.cloud.hypervisor.kvm.resource;
+
+/**
+ * Snapshot of the statistics libvirt reports for a running migration job (virDomainGetJobStats).
+ */
+public class MigrationJobStats {
+
+  public static final int JOB_NONE = 0;
+  public static final int JOB_BOUNDED = 1;
+  public static final int JOB_UNBOUNDED = 2;
+  public static final int JOB_COMPLETED = 3;
+  public static final int JOB_FAILED = 4;
+  public static final int JOB_CANCELLED = 5;
+
+  private final int type;
+  private final long timeElapsed;
+  private final long dataTotal;
+  private final long dataRemaining;
+  private final long memoryTotal;
+  private final long memoryRemaining;
+  private final long memoryDirtyRate;
+  private final long memoryIteration;
+  private final long memoryBps;
+  private final long autoConvergeThrottle;
+  private final long postcopyRequests;
+  private final long downtime;
+
+  public MigrationJobStats(int type, long timeElapsed, long dataTotal, long dataRemaining, long memoryTotal,
+      long memoryRemaining, long memoryDirtyRate, long memoryIteration, long memoryBps, long autoConvergeThrottle,
+      long postcopyRequests, long downtime) {
+    this.type = type;
+    this.timeElapsed = timeElapsed;
+    this.dataTotal = dataTotal;
+    this.dataRemaining = dataRemaining;
+    this.memoryTotal = memoryTotal;
+    this.memoryRemaining = memoryRemaining;
+    this.memoryDirtyRate = memoryDirtyRate;
+    this.memoryIteration = memoryIteration;
+    this.memoryBps = memoryBps;
+    this.autoConvergeThrottle = autoConvergeThrottle;
+    this.postcopyRequests = postcopyRequests;
+    this.downtime = downtime;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public boolean isActive() {
+    return type == JOB_BOUNDED || type == JOB_UNBOUNDED;
+  }
+
+  /**
+   * @return milliseconds since the job started
+   */
+  public long getTimeElapsed() {
+    return timeElapsed;
+  }
+
+  public long getDataTotal() {
+    return dataTotal;
+  }
+
+  public long getDataRemaining() {
+    return dataRemaining;
+  }
+
+  public long getMemoryTotal() {
+    return memoryTotal;
+  }
+
+  public long getMemoryRemaining() {
+    return memoryRemaining;
+  }
+
+  /**
+   * @return bytes per second the guest dirties
+   */
+  public long getMemoryDirtyRate() {
+    return memoryDirtyRate;
+  }
+
+  /**
+   * @return the number of passes over guest memory so far
+   */
+  public long getMemoryIteration() {
+    return memoryIteration;
+  }
+
+  /**
+   * @return bytes per second actually transferred
+   */
+  public long getMemoryBps() {
+    return memoryBps;
+  }
+
+  /**
+   * @return the percentage by which auto-converge throttles the guest cpus
+   */
+  public long getAutoConvergeThrottle() {
+    return autoConvergeThrottle;
+  }
+
+  /**
+   * @return the number of page requests the destination made after switching to post-copy
+   */
+  public long getPostcopyRequests() {
+    return postcopyRequests;
+  }
+
+  /**
+   * @return milliseconds the guest was paused to finish the migration, only known once the job completed
+   */
+  public long getDowntime() {
+    return downtime;
+  }
+
+  /**
+   * @return true if the guest dirties memory faster than it can be sent
+   */
+  public boolean isDirtyRateAboveLinkRate() {
+    return memoryBps > 0 && memoryDirtyRate > memoryBps;
+  }
+
+  @Override
+  public String toString() {
+    return "elapsed=" + timeElapsed + "ms iteration=" + memoryIteration + " remaining=" + memoryRemaining
+        + "B dirtyRate=" + memoryDirtyRate + "B/s bps=" + memoryBps + "B/s throttle=" + autoConvergeThrottle + "%";
+  }
+}
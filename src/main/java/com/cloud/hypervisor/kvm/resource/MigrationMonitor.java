@@ -0,0 +1,254 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches an outgoing live migration and steers it towards convergence.
+ *
+ * Every tick reads the job statistics. When a pass over guest memory does not shrink what remains, or the guest dirties
+ * memory faster than the link carries it, the max downtime is stepped up first and the bandwidth second. If the
+ * migration was started with post-copy allowed, it switches to post-copy once its MigrationPostCopyPolicy says so.
+ * Pausing the guest stays the last resort, after vm.migrate.pauseafter.
+ */
+public class MigrationMonitor {
+
+  private static final Logger logger = LoggerFactory.getLogger(MigrationMonitor.class);
+
+  /* A pass that leaves more than this share of the previous pass remaining counts as not converging */
+  private static final double CONVERGENCE_RATIO = 0.9;
+  private static final long INITIAL_DOWNTIME_DELAY = 1000;
+
+  private final String vmName;
+  private final Domain domain;
+  private final LibvirtMigrationApi migrationApi;
+  private final int downtimeMax;
+  private final int downtimeStep;
+  private int speedMax;
+  private final int pauseAfter;
+
+  private int downtime;
+  private int speed;
+  private boolean downtimeApplied;
+  private boolean paused;
+  private long lastIteration = -1;
+  private long lastIterationRemaining = -1;
+  private long lastAdjustedIteration = -1;
+  private long peakDirtyRate;
+  private MigrationPostCopyPolicy postCopyPolicy = MigrationPostCopyPolicy.DISABLED;
+  private long postCopyStartedAt = -1;
+  private long postCopyFinishedAt = -1;
+  private long postCopyRequests;
+  private final List<MigrationJobStats> series = new ArrayList<MigrationJobStats>();
+
+  public MigrationMonitor(String vmName, Domain domain, LibvirtMigrationApi migrationApi, int downtime,
+      int downtimeMax, int downtimeStep, int speed, int speedMax, int pauseAfter) {
+    this.vmName = vmName;
+    this.domain = domain;
+    this.migrationApi = migrationApi;
+    this.downtime = downtime;
+    this.downtimeMax = downtimeMax;
+    this.downtimeStep = downtimeStep;
+    this.speed = speed;
+    this.speedMax = speedMax;
+    this.pauseAfter = pauseAfter;
+  }
+
+  public void setPostCopyPolicy(MigrationPostCopyPolicy postCopyPolicy) {
+    this.postCopyPolicy = postCopyPolicy;
+  }
+
+  /**
+   * @param elapsed milliseconds since the migration was started
+   */
+  public synchronized void tick(long elapsed) {
+    if (!downtimeApplied && elapsed >= INITIAL_DOWNTIME_DELAY) {
+      downtimeApplied = true;
+      if (downtime > 0) {
+        applyDowntime(downtime);
+      }
+    }
+
+    final MigrationJobStats stats = migrationApi != null ? migrationApi.getJobStats(vmName) : null;
+    if (stats != null && stats.isActive()) {
+      series.add(stats);
+      peakDirtyRate = Math.max(peakDirtyRate, stats.getMemoryDirtyRate());
+      logger.debug("Migration of " + vmName + ": " + stats);
+      if (isPostCopyStarted()) {
+        postCopyRequests = stats.getPostcopyRequests();
+      } else if (postCopyPolicy.shouldSwitch(stats.getMemoryIteration(), elapsed)) {
+        startPostCopy(elapsed, stats);
+      } else {
+        adjust(stats);
+      }
+    }
+
+    // in post-copy the guest already runs on the destination, pausing the source would not help
+    if (pauseAfter > 0 && elapsed > pauseAfter && !paused && !isPostCopyStarted()) {
+      pause();
+    }
+  }
+
+  private void adjust(MigrationJobStats stats) {
+    final long iteration = stats.getMemoryIteration();
+    boolean converging = true;
+    if (iteration > lastIteration) {
+      if (lastIterationRemaining >= 0 && stats.getMemoryRemaining() > lastIterationRemaining * CONVERGENCE_RATIO) {
+        converging = false;
+      }
+      lastIteration = iteration;
+      lastIterationRemaining = stats.getMemoryRemaining();
+    }
+
+    /* Step at most once per pass, the effect of a step only shows in the pass after it */
+    if (converging && !stats.isDirtyRateAboveLinkRate() || iteration <= lastAdjustedIteration) {
+      return;
+    }
+    lastAdjustedIteration = iteration;
+
+    if (downtimeStep > 0 && downtime < downtimeMax) {
+      applyDowntime(Math.min(downtimeMax, Math.max(downtime, 0) + downtimeStep));
+    } else if (speed > 0 && speed < speedMax) {
+      final int newSpeed = Math.min(speedMax, speed * 2);
+      if (migrationApi.setMaxSpeed(vmName, newSpeed)) {
+        logger.info("Raised migration bandwidth of " + vmName + " from " + speed + " to " + newSpeed + " MiB/s, "
+            + stats);
+        speed = newSpeed;
+      }
+    }
+  }
+
+  /**
+   * Caps the bandwidth of the migration, for instance to its share of the host bandwidth budget. The caller already
+   * applied the limit to the running migration.
+   *
+   * @param limit MiB/s, 0 for no limit
+   */
+  public synchronized void setSpeedLimit(int limit) {
+    if (limit > 0) {
+      speed = limit;
+      speedMax = limit;
+    }
+  }
+
+  public long getPeakDirtyRate() {
+    return peakDirtyRate;
+  }
+
+  private void startPostCopy(long elapsed, MigrationJobStats stats) {
+    if (migrationApi.startPostCopy(vmName)) {
+      postCopyStartedAt = elapsed;
+      logger.info("Switched migration of " + vmName + " to post-copy after " + elapsed + "ms (" + postCopyPolicy
+          + "), " + stats);
+    } else {
+      logger.warn("Failed to switch migration of " + vmName + " to post-copy, continuing with pre-copy");
+      postCopyPolicy = MigrationPostCopyPolicy.DISABLED;
+    }
+  }
+
+  /**
+   * Marks the end of the migration, which closes the post-copy page fault window.
+   *
+   * @param elapsed milliseconds since the migration was started
+   */
+  public void finish(long elapsed) {
+    if (isPostCopyStarted() && postCopyFinishedAt < 0) {
+      postCopyFinishedAt = elapsed;
+    }
+  }
+
+  public boolean isPostCopyStarted() {
+    return postCopyStartedAt >= 0;
+  }
+
+  /**
+   * @return milliseconds during which the guest ran on the destination and faulted pages in from the source, or -1
+   */
+  public long getPostCopyWindow() {
+    if (!isPostCopyStarted() || postCopyFinishedAt < 0) {
+      return -1;
+    }
+    return postCopyFinishedAt - postCopyStartedAt;
+  }
+
+  private void applyDowntime(int newDowntime) {
+    try {
+      if (domain.migrateSetMaxDowntime(newDowntime) == 0) {
+        logger.debug("Set max downtime for migration of " + vmName + " to " + newDowntime + "ms");
+        downtime = newDowntime;
+      }
+    } catch (final LibvirtException e) {
+      logger.debug("Failed to set max downtime for migration, perhaps migration completed? Error: " + e.getMessage());
+    }
+  }
+
+  private void pause() {
+    try {
+      if (domain.getInfo().state != DomainState.VIR_DOMAIN_RUNNING) {
+        return;
+      }
+      logger.info("Pausing VM " + vmName + " due to property vm.migrate.pauseafter setting to " + pauseAfter
+          + "ms to complete migration");
+      domain.suspend();
+      paused = true;
+    } catch (final LibvirtException e) {
+      // pause could be racy if it attempts to pause right when vm is finished, simply warn
+      logger.info("Failed to pause vm " + vmName + " : " + e.getMessage());
+    }
+  }
+
+  public List<MigrationJobStats> getSeries() {
+    return series;
+  }
+
+  public int getDowntime() {
+    return downtime;
+  }
+
+  public synchronized int getSpeed() {
+    return speed;
+  }
+
+  public boolean isPaused() {
+    return paused;
+  }
+
+  /**
+   * @return a one line summary of the migration, suitable for the answer details
+   */
+  public String getSummary() {
+    final StringBuilder summary = new StringBuilder();
+    summary.append("samples=").append(series.size());
+    if (!series.isEmpty()) {
+      final MigrationJobStats last = series.get(series.size() - 1);
+      summary.append(" iterations=").append(last.getMemoryIteration());
+      summary.append(" lastRemaining=").append(last.getMemoryRemaining());
+      summary.append(" lastBps=").append(last.getMemoryBps());
+      summary.append(" maxThrottle=").append(maxThrottle()).append('%');
+    }
+    summary.append(" peakDirtyRate=").append(peakDirtyRate);
+    summary.append(" downtime=").append(downtime).append("ms");
+    summary.append(" speed=").append(speed).append("MiB/s");
+    summary.append(" paused=").append(paused);
+    if (isPostCopyStarted()) {
+      summary.append(" postCopyAfter=").append(postCopyStartedAt).append("ms");
+      summary.append(" postCopyWindow=").append(getPostCopyWindow()).append("ms");
+      summary.append(" postCopyRequests=").append(postCopyRequests);
+    }
+    return summary.toString();
+  }
+
+  private long maxThrottle() {
+    long max = 0;
+    for (final MigrationJobStats stats : series) {
+      max = Math.max(max, stats.getAutoConvergeThrottle());
+    }
+    return max;
+  }
+}
@@ -0,0 +1,73 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Map;
+
+import com.cloud.utils.NumbersUtil;
+
+/**
+ * Decides whether and when a live migration switches from pre-copy to post-copy.
+ *
+ * The agent properties vm.migrate.postcopy, vm.migrate.postcopy.iterations and vm.migrate.postcopy.seconds give the
+ * defaults, the VirtualMachineTO details migrationPostCopy, migrationPostCopyIterations and migrationPostCopySeconds
+ * override them per VM.
+ */
+public class MigrationPostCopyPolicy {
+
+  public static final String DETAIL_ENABLED = "migrationPostCopy";
+  public static final String DETAIL_ITERATIONS = "migrationPostCopyIterations";
+  public static final String DETAIL_SECONDS = "migrationPostCopySeconds";
+
+  public static final MigrationPostCopyPolicy DISABLED = new MigrationPostCopyPolicy(false, 0, 0);
+
+  private final boolean enabled;
+  private final int iterations;
+  private final int seconds;
+
+  /**
+   * @param iterations switch after this many passes over guest memory, 0 to not switch on passes
+   * @param seconds switch after this many seconds, 0 to not switch on time
+   */
+  public MigrationPostCopyPolicy(boolean enabled, int iterations, int seconds) {
+    this.enabled = enabled;
+    this.iterations = iterations;
+    this.seconds = seconds;
+  }
+
+  public static MigrationPostCopyPolicy fromDetails(Map<String, String> details, MigrationPostCopyPolicy defaults) {
+    if (details == null) {
+      return defaults;
+    }
+    final String enabled = details.get(DETAIL_ENABLED);
+    return new MigrationPostCopyPolicy(enabled != null ? Boolean.parseBoolean(enabled) : defaults.isEnabled(),
+        NumbersUtil.parseInt(details.get(DETAIL_ITERATIONS), defaults.getIterations()),
+        NumbersUtil.parseInt(details.get(DETAIL_SECONDS), defaults.getSeconds()));
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  public int getSeconds() {
+    return seconds;
+  }
+
+  /**
+   * @param iteration the current pass over guest memory
+   * @param elapsed milliseconds since the migration was started
+   */
+  public boolean shouldSwitch(long iteration, long elapsed) {
+    if (!enabled) {
+      return false;
+    }
+    return iterations > 0 && iteration >= iterations || seconds > 0 && elapsed >= seconds * 1000L;
+  }
+
+  @Override
+  public String toString() {
+    return "postcopy=" + enabled + " iterations=" + iterations + " seconds=" + seconds;
+  }
+}
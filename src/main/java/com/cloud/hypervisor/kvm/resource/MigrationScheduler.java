@@ -0,0 +1,303 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.hypervisor.kvm.resource.wrapper.LibvirtUtilitiesHelper;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits the outgoing live migrations of this host.
+ *
+ * At most vm.migrate.concurrent.max migrations run at once, and at most vm.migrate.concurrent.destination.max to the
+ * same destination. Waiting migrations are admitted cheapest first: the memory of the VM plus what it dirtied during
+ * DIRTY_RATE_WEIGHT seconds the last time it was migrated. Migrations to the same destination share one libvirt
+ * connection, and vm.migrate.bandwidth.budget is split evenly over the running migrations, rebalanced whenever one
+ * starts or finishes.
+ */
+public class MigrationScheduler {
+
+  private static final Logger logger = LoggerFactory.getLogger(MigrationScheduler.class);
+
+  private static final long DIRTY_RATE_WEIGHT = 30;
+
+  private final int maxConcurrent;
+  private final int maxPerDestination;
+  private final MigrationBandwidthBudget budget;
+  private final LibvirtMigrationApi migrationApi;
+
+  private final List<Ticket> waiting = new ArrayList<Ticket>();
+  private final List<Ticket> running = new ArrayList<Ticket>();
+  private final Map<String, Integer> runningPerDestination = new HashMap<String, Integer>();
+  private final Map<String, Long> lastDirtyRates = new ConcurrentHashMap<String, Long>();
+  private final Map<String, SharedConnection> connections = new HashMap<String, SharedConnection>();
+
+  public static class Ticket {
+    private final String vmName;
+    private final String destination;
+    private final int requestedBandwidth;
+    private final long cost;
+    private volatile int bandwidth;
+    private MigrationMonitor monitor;
+    private String connectionUri;
+    private SharedConnection connection;
+
+    Ticket(String vmName, String destination, int requestedBandwidth, long cost) {
+      this.vmName = vmName;
+      this.destination = destination;
+      this.requestedBandwidth = requestedBandwidth;
+      this.cost = cost;
+    }
+
+    public String getVmName() {
+      return vmName;
+    }
+
+    public String getDestination() {
+      return destination;
+    }
+
+    public long getCost() {
+      return cost;
+    }
+
+    /**
+     * @return the bandwidth this migration may use in MiB/s, 0 for unlimited
+     */
+    public int getBandwidth() {
+      return bandwidth;
+    }
+  }
+
+  private static class SpeedChange {
+    private final Ticket ticket;
+    private final int bandwidth;
+    private final boolean started;
+
+    SpeedChange(Ticket ticket, int bandwidth, boolean started) {
+      this.ticket = ticket;
+      this.bandwidth = bandwidth;
+      this.started = started;
+    }
+  }
+
+  private static class SharedConnection {
+    private final Connect connect;
+    private int users;
+
+    SharedConnection(Connect connect) {
+      this.connect = connect;
+    }
+  }
+
+  /**
+   * @param maxConcurrent migrations running at once, 0 for no limit
+   * @param maxPerDestination migrations running at once to one destination, 0 for no limit
+   */
+  public MigrationScheduler(int maxConcurrent, int maxPerDestination, MigrationBandwidthBudget budget,
+      LibvirtMigrationApi migrationApi) {
+    this.maxConcurrent = maxConcurrent;
+    this.maxPerDestination = maxPerDestination;
+    this.budget = budget;
+    this.migrationApi = migrationApi;
+  }
+
+  /**
+   * Waits until the migration may start.
+   *
+   * @param memory memory of the VM in bytes
+   * @param requestedBandwidth the bandwidth the migration would use on its own in MiB/s, 0 for unlimited
+   * @param timeout milliseconds to wait at most, 0 to wait as long as it takes
+   * @return the admitted ticket, or null if the timeout passed first
+   */
+  public Ticket acquire(String vmName, String destination, long memory, int requestedBandwidth, long timeout)
+      throws InterruptedException {
+    final Long dirtyRate = lastDirtyRates.get(vmName);
+    final Ticket ticket = new Ticket(vmName, destination, requestedBandwidth,
+        memory + (dirtyRate != null ? dirtyRate * DIRTY_RATE_WEIGHT : 0));
+
+    final long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+    final List<SpeedChange> changes;
+    synchronized (this) {
+      waiting.add(ticket);
+      try {
+        while (!isAdmissible(ticket)) {
+          if (deadline == 0) {
+            wait();
+          } else {
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+              logger.warn("Gave up waiting to migrate " + vmName + " to " + destination + " after " + timeout
+                  + "ms, " + running.size() + " migrations running and " + (waiting.size() - 1) + " waiting");
+              return null;
+            }
+            wait(remaining);
+          }
+        }
+      } finally {
+        waiting.remove(ticket);
+        // another waiting migration may be admissible now that this one left the queue
+        notifyAll();
+      }
+
+      running.add(ticket);
+      final Integer count = runningPerDestination.get(destination);
+      runningPerDestination.put(destination, count == null ? 1 : count + 1);
+      budget.acquire(requestedBandwidth);
+      changes = rebalance();
+    }
+    applySpeeds(changes);
+    logger.debug("Admitted migration of " + vmName + " to " + destination + " with cost " + ticket.getCost()
+        + " and bandwidth " + ticket.getBandwidth() + "MiB/s");
+    return ticket;
+  }
+
+  /**
+   * Lets the monitor of the migration follow the bandwidth share of the ticket.
+   */
+  public synchronized void attach(Ticket ticket, MigrationMonitor monitor) {
+    ticket.monitor = monitor;
+    if (budget.getBudget() > 0) {
+      monitor.setSpeedLimit(ticket.getBandwidth());
+    }
+  }
+
+  public void release(Ticket ticket) {
+    final List<SpeedChange> changes;
+    synchronized (this) {
+      if (!running.remove(ticket)) {
+        return;
+      }
+      final Integer count = runningPerDestination.get(ticket.destination);
+      if (count == null || count <= 1) {
+        runningPerDestination.remove(ticket.destination);
+      } else {
+        runningPerDestination.put(ticket.destination, count - 1);
+      }
+      budget.release();
+      if (ticket.monitor != null) {
+        lastDirtyRates.put(ticket.vmName, ticket.monitor.getPeakDirtyRate());
+      }
+      changes = rebalance();
+      notifyAll();
+    }
+    applySpeeds(changes);
+    if (ticket.connection != null) {
+      releaseConnection(ticket.connectionUri, ticket.connection);
+    }
+  }
+
+  /**
+   * Returns a libvirt connection to the destination of the ticket, shared with the other migrations to it. The
+   * connection is closed by release() once no migration uses it anymore.
+   */
+  public Connect getConnection(Ticket ticket, String uri, LibvirtUtilitiesHelper helper) throws LibvirtException {
+    synchronized (connections) {
+      SharedConnection shared = connections.get(uri);
+      if (shared != null) {
+        try {
+          shared.connect.getVersion();
+        } catch (final LibvirtException e) {
+          logger.debug("Shared migration connection to " + uri + " is broken, opening a new one: " + e.getMessage());
+          connections.remove(uri);
+          shared = null;
+        }
+      }
+      if (shared == null) {
+        shared = new SharedConnection(helper.retrieveQemuConnection(uri));
+        connections.put(uri, shared);
+      }
+      shared.users++;
+      ticket.connectionUri = uri;
+      ticket.connection = shared;
+      return shared.connect;
+    }
+  }
+
+  private void releaseConnection(String uri, SharedConnection shared) {
+    synchronized (connections) {
+      if (--shared.users > 0) {
+        return;
+      }
+      if (connections.get(uri) == shared) {
+        connections.remove(uri);
+      }
+      try {
+        shared.connect.close();
+      } catch (final LibvirtException e) {
+        logger.trace("Ignoring libvirt error.", e);
+      }
+    }
+  }
+
+  public synchronized int getRunning() {
+    return running.size();
+  }
+
+  public synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  private boolean isAdmissible(Ticket ticket) {
+    if (!hasRoom(ticket.destination)) {
+      return false;
+    }
+    // the cheapest waiting migration that could run goes first
+    for (final Ticket other : waiting) {
+      if (other != ticket && other.cost < ticket.cost && hasRoom(other.destination)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean hasRoom(String destination) {
+    if (maxConcurrent > 0 && running.size() >= maxConcurrent) {
+      return false;
+    }
+    final Integer count = runningPerDestination.get(destination);
+    return maxPerDestination <= 0 || count == null || count < maxPerDestination;
+  }
+
+  /**
+   * Recomputes the bandwidth shares of the running migrations.
+   *
+   * @return the changes to pass on to the running migrations once the lock of the scheduler is released
+   */
+  private List<SpeedChange> rebalance() {
+    final List<SpeedChange> changes = new ArrayList<SpeedChange>();
+    for (final Ticket ticket : running) {
+      final int share = budget.share(ticket.requestedBandwidth);
+      if (share == ticket.bandwidth) {
+        continue;
+      }
+      changes.add(new SpeedChange(ticket, share, ticket.bandwidth != 0));
+      ticket.bandwidth = share;
+    }
+    return changes;
+  }
+
+  /* talks to libvirt, so a slow libvirtd does not hold up the admission of other migrations */
+  private void applySpeeds(List<SpeedChange> changes) {
+    for (final SpeedChange change : changes) {
+      if (change.started && migrationApi != null) {
+        migrationApi.setMaxSpeed(change.ticket.vmName, change.bandwidth);
+      }
+      final MigrationMonitor monitor;
+      synchronized (this) {
+        monitor = change.ticket.monitor;
+      }
+      if (monitor != null) {
+        monitor.setSpeedLimit(change.bandwidth);
+      }
+    }
+  }
+}
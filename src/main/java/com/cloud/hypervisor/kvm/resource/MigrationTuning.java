@@ -0,0 +1,122 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.naming.ConfigurationException;
+
+import com.cloud.utils.NumbersUtil;
+
+/**
+ * Transport settings for a live migration: the number of parallel (multifd) connections and the compression method
+ * and level.
+ *
+ * Read from the agent properties vm.migrate.parallel.connections, vm.migrate.compression and
+ * vm.migrate.compression.level. VMs with at least vm.migrate.tuning.large.memory MiB of memory use the .large variants
+ * of these properties where they are set.
+ */
+public class MigrationTuning {
+
+  public static final String COMPRESSION_NONE = "none";
+  public static final String COMPRESSION_XBZRLE = "xbzrle";
+  public static final String COMPRESSION_MT = "mt";
+  public static final String COMPRESSION_ZLIB = "zlib";
+  public static final String COMPRESSION_ZSTD = "zstd";
+
+  public static final MigrationTuning DEFAULT = new MigrationTuning(0, COMPRESSION_XBZRLE, -1);
+
+  private final int parallelConnections;
+  private final String compression;
+  private final int compressionLevel;
+
+  /**
+   * @param parallelConnections number of multifd connections, 0 for a single connection
+   * @param compression one of the COMPRESSION_ methods
+   * @param compressionLevel level for mt, zlib or zstd compression, -1 for the qemu default
+   */
+  public MigrationTuning(int parallelConnections, String compression, int compressionLevel) {
+    this.parallelConnections = parallelConnections;
+    this.compression = compression;
+    this.compressionLevel = compressionLevel;
+  }
+
+  public static MigrationTuning fromParams(Map<String, Object> params, String suffix, MigrationTuning defaults) {
+    final int parallelConnections = NumbersUtil.parseInt(
+        (String) params.get("vm.migrate.parallel.connections" + suffix), defaults.getParallelConnections());
+    String compression = (String) params.get("vm.migrate.compression" + suffix);
+    if (compression == null) {
+      compression = defaults.getCompression();
+    }
+    final int compressionLevel = NumbersUtil.parseInt((String) params.get("vm.migrate.compression.level" + suffix),
+        defaults.getCompressionLevel());
+    return new MigrationTuning(parallelConnections, compression.toLowerCase(), compressionLevel);
+  }
+
+  /**
+   * Rejects settings qemu would refuse only once a migration starts.
+   *
+   * @param suffix the suffix of the properties the settings were read from, for the message
+   */
+  public void validate(String suffix) throws ConfigurationException {
+    if (!Arrays.asList(COMPRESSION_NONE, COMPRESSION_XBZRLE, COMPRESSION_MT, COMPRESSION_ZLIB, COMPRESSION_ZSTD)
+        .contains(compression)) {
+      throw new ConfigurationException("vm.migrate.compression" + suffix + " is " + compression
+          + ", it has to be none, xbzrle, mt, zlib or zstd");
+    }
+    if (parallelConnections < 0) {
+      throw new ConfigurationException("vm.migrate.parallel.connections" + suffix + " cannot be negative");
+    }
+    if (isMultifdCompression() && !isParallel()) {
+      throw new ConfigurationException("vm.migrate.compression" + suffix + " " + compression
+          + " compresses the multifd channels, it needs vm.migrate.parallel.connections" + suffix);
+    }
+    if (compressionLevel >= 0 && !COMPRESSION_MT.equals(compression) && !isMultifdCompression()) {
+      // libvirt has no level parameter for xbzrle, and none has nothing to set it on
+      throw new ConfigurationException("vm.migrate.compression.level" + suffix + " only applies to mt, zlib or zstd"
+          + " compression, not to " + compression);
+    }
+    if (COMPRESSION_MT.equals(compression) && isParallel()) {
+      throw new ConfigurationException("vm.migrate.compression" + suffix
+          + " mt cannot be combined with parallel connections, use zlib or zstd instead");
+    }
+  }
+
+  public int getParallelConnections() {
+    return parallelConnections;
+  }
+
+  public String getCompression() {
+    return compression;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public boolean isParallel() {
+    return parallelConnections > 0;
+  }
+
+  public boolean isCompressed() {
+    return !COMPRESSION_NONE.equals(compression);
+  }
+
+  /**
+   * zlib and zstd compress the multifd channels, they need parallel connections.
+   */
+  public boolean isMultifdCompression() {
+    return COMPRESSION_ZLIB.equals(compression) || COMPRESSION_ZSTD.equals(compression);
+  }
+
+  /**
+   * @return true if these settings can only be passed with virDomainMigrate3
+   */
+  public boolean needsExtendedParameters() {
+    return isParallel() || isCompressed() && !COMPRESSION_XBZRLE.equals(compression) || compressionLevel >= 0;
+  }
+
+  @Override
+  public String toString() {
+    return "parallel=" + parallelConnections + " compression=" + compression + " level=" + compressionLevel;
+  }
+}
@@ -0,0 +1,84 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.IOException;
+
+import com.cloud.utils.script.OutputInterpreter;
+import com.cloud.utils.script.Script;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the heartbeats in KVMHA/hb-[host ip] files on an NFS pool, the layout kvmheartbeat.sh uses.
+ *
+ * When the pool is not mounted, kvmheartbeat.sh is run instead: it remounts the pool, and before writing it also stops
+ * the VMs that used it.
+ */
+public class NfsHeartbeatBackend extends KvmHaBase implements HeartbeatBackend {
+
+  private static final Logger logger = LoggerFactory.getLogger(NfsHeartbeatBackend.class);
+
+  private final NfsStoragePool pool;
+
+  public NfsHeartbeatBackend(NfsStoragePool pool) {
+    this.pool = pool;
+  }
+
+  public NfsStoragePool getPool() {
+    return pool;
+  }
+
+  @Override
+  public String getPoolUuid() {
+    return pool.innerPoolUuid;
+  }
+
+  @Override
+  public void write(String hostIp, long timestamp) throws IOException {
+    if (isMounted(pool.innerMountDestPath)) {
+      writeHeartbeat(pool.innerMountDestPath, hostIp, timestamp);
+      return;
+    }
+    logger.warn("NFS pool " + pool.innerPoolUuid + " is not mounted on " + pool.innerMountDestPath + ", remounting");
+    final Script cmd = createScript(heartBeatUpdateTimeout, hostIp);
+    final String result = cmd.execute();
+    if (result != null) {
+      throw new IOException(result);
+    }
+  }
+
+  /**
+   * When the pool has to be remounted the script only tells whether the heartbeat is fresh, then the current time
+   * stands for a fresh heartbeat and 0 for a stale one.
+   */
+  @Override
+  public long read(String hostIp) throws IOException {
+    if (isMounted(pool.innerMountDestPath)) {
+      return readHeartbeat(pool.innerMountDestPath, hostIp);
+    }
+    final Script cmd = createScript(heartBeatUpdateTimeout, hostIp);
+    cmd.add("-r");
+    cmd.add("-t", String.valueOf(heartBeatUpdateFreq));
+    final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
+    final String result = cmd.execute(parser);
+    logger.debug("pool: " + pool.innetPoolIp + " result: " + result + " parser: " + parser.getLine());
+    if (result != null) {
+      throw new IOException(result);
+    }
+    return parser.getLine() != null && parser.getLine().contains("> DEAD <") ? 0 : System.currentTimeMillis() / 1000;
+  }
+
+  /**
+   * @return kvmheartbeat.sh with the arguments that locate the pool
+   */
+  Script createScript(long timeout, String hostIp) {
+    final Script cmd = new Script(heartBeatPath, timeout, logger);
+    cmd.add("-i", pool.innetPoolIp);
+    cmd.add("-p", pool.innerPoolMountSourcePath);
+    cmd.add("-m", pool.innerMountDestPath);
+    if (hostIp != null) {
+      cmd.add("-h", hostIp);
+    }
+    return cmd;
+  }
+}
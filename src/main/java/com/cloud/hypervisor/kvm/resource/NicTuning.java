@@ -0,0 +1,104 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Map;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef;
+import com.cloud.utils.NumbersUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the virtio-net NICs of a VM: multi-queue sized to its vCPUs, the vhost or qemu backend and the ring sizes.
+ *
+ * The defaults come from the agent properties, and can be overridden per VM with the details of the VirtualMachineTO:
+ * nicMultiqueue (true or false), nicQueues (a fixed number of queues), nicDriver, nicRxQueueSize and nicTxQueueSize.
+ */
+public class NicTuning {
+
+  private static final Logger logger = LoggerFactory.getLogger(NicTuning.class);
+
+  public static final String MULTIQUEUE = "nicMultiqueue";
+  public static final String QUEUES = "nicQueues";
+  public static final String DRIVER = "nicDriver";
+  public static final String RX_QUEUE_SIZE = "nicRxQueueSize";
+  public static final String TX_QUEUE_SIZE = "nicTxQueueSize";
+
+  /* the most queues a tap device supports */
+  private static final int MAX_QUEUES = 256;
+
+  private final boolean multiqueue;
+  private final int maxQueues;
+  private final String driver;
+  private final int rxQueueSize;
+  private final int txQueueSize;
+
+  /**
+   * @param maxQueues the most queues multi-queue sizes a NIC to, however many vCPUs the VM has
+   * @param driver vhost, qemu, or null for the libvirt default
+   * @param rxQueueSize the rx ring size, or 0 for the default
+   * @param txQueueSize the tx ring size, or 0 for the default
+   */
+  public NicTuning(boolean multiqueue, int maxQueues, String driver, int rxQueueSize, int txQueueSize) {
+    this.multiqueue = multiqueue;
+    this.maxQueues = Math.max(1, Math.min(maxQueues, MAX_QUEUES));
+    this.driver = validDriver(driver);
+    this.rxQueueSize = validQueueSize(rxQueueSize);
+    this.txQueueSize = validQueueSize(txQueueSize);
+  }
+
+  /**
+   * @param details the details of the VirtualMachineTO, or null
+   */
+  public void apply(InterfaceDef intf, int vcpus, Map<String, String> details) {
+    if (intf.getModel() != InterfaceDef.NicModel.VIRTIO) {
+      return;
+    }
+
+    intf.setDriverQueues(getQueues(vcpus, details));
+    final String nicDriver = details != null ? details.get(DRIVER) : null;
+    intf.setDriverName(nicDriver != null ? validDriver(nicDriver) : driver);
+    intf.setRxQueueSize(getQueueSize(details, RX_QUEUE_SIZE, rxQueueSize));
+    intf.setTxQueueSize(getQueueSize(details, TX_QUEUE_SIZE, txQueueSize));
+  }
+
+  int getQueues(int vcpus, Map<String, String> details) {
+    final String queues = details != null ? details.get(QUEUES) : null;
+    if (queues != null) {
+      return Math.max(1, Math.min(NumbersUtil.parseInt(queues, 1), MAX_QUEUES));
+    }
+    final String enabled = details != null ? details.get(MULTIQUEUE) : null;
+    if (enabled != null ? Boolean.parseBoolean(enabled) : multiqueue) {
+      return Math.max(1, Math.min(vcpus, maxQueues));
+    }
+    return 1;
+  }
+
+  private int getQueueSize(Map<String, String> details, String key, int defaultSize) {
+    final String size = details != null ? details.get(key) : null;
+    return size != null ? validQueueSize(NumbersUtil.parseInt(size, 0)) : defaultSize;
+  }
+
+  private static String validDriver(String driver) {
+    if (driver == null || driver.isEmpty()) {
+      return null;
+    }
+    if (!"vhost".equals(driver) && !"qemu".equals(driver)) {
+      logger.warn("Ignoring virtio-net driver " + driver + ", it is neither vhost nor qemu");
+      return null;
+    }
+    return driver;
+  }
+
+  /* libvirt accepts powers of two from 256 up to 1024 */
+  private static int validQueueSize(int size) {
+    if (size == 0) {
+      return 0;
+    }
+    if (size < 256 || size > 1024 || Integer.bitCount(size) != 1) {
+      logger.warn("Ignoring virtio-net queue size " + size + ", it is not a power of two from 256 to 1024");
+      return 0;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,495 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Places the vCPUs and the memory of VMs on the NUMA cells of the host, and keeps track of the CPUs and the memory of
+ * each cell the running VMs use.
+ *
+ * A VM goes to the single cell with the lowest vCPU load per CPU that has the memory and the CPUs for it. A VM too big
+ * for any cell is spread over the fewest cells that have the memory, with a guest NUMA cell on each of them, and over
+ * no more cells than it has vCPUs. Each vCPU
+ * is pinned to the least loaded CPU of its cell, filling separate cores before hyperthread siblings.
+ *
+ * The free memory of a cell is its memory less the memory reserved for the host and the memory of the VMs placed on
+ * it, and never more than the host reports free on it, which leaves out the memory of the host itself, of the VMs that
+ * are not placed and of the hugepages.
+ *
+ * When a VM stops, the vCPUs of the other VMs on its cells are moved from the most to the least loaded CPUs until the
+ * loads of the CPUs of a cell are at most one vCPU apart. The moves stay within a cell, the memory remains local. A
+ * move only counts once the vCPU is pinned to its new CPU.
+ */
+public class NumaPlacementAllocator {
+
+  private static final Logger logger = LoggerFactory.getLogger(NumaPlacementAllocator.class);
+
+  /**
+   * Where the vCPUs and the memory of a VM are.
+   */
+  public static class Placement {
+    private final int[] vcpuPins;
+    private final int[] vcpuCells;
+    private final int[] nodes;
+    private final long[] memory;
+    private final long allocated;
+
+    /**
+     * @param vcpuPins the CPU of each vCPU
+     * @param vcpuCells the guest cell of each vCPU
+     * @param nodes the host cell of each guest cell
+     * @param memory the memory in KiB of each guest cell
+     */
+    Placement(int[] vcpuPins, int[] vcpuCells, int[] nodes, long[] memory, long allocated) {
+      this.vcpuPins = vcpuPins;
+      this.vcpuCells = vcpuCells;
+      this.nodes = nodes;
+      this.memory = memory;
+      this.allocated = allocated;
+    }
+
+    public int getVcpus() {
+      return vcpuPins.length;
+    }
+
+    public int getVcpuPin(int vcpu) {
+      return vcpuPins[vcpu];
+    }
+
+    public int getCellCount() {
+      return nodes.length;
+    }
+
+    public int getNode(int cell) {
+      return nodes[cell];
+    }
+
+    public long getMemory(int cell) {
+      return memory[cell];
+    }
+
+    /**
+     * @return the vCPUs of a guest cell as a cpuset
+     */
+    public String getCellVcpus(int cell) {
+      final List<Integer> vcpus = new ArrayList<Integer>();
+      for (int vcpu = 0; vcpu < vcpuCells.length; vcpu++) {
+        if (vcpuCells[vcpu] == cell) {
+          vcpus.add(vcpu);
+        }
+      }
+      return NumaTopology.formatCpuSet(vcpus);
+    }
+
+    /**
+     * @return the host cells of the VM as a nodeset
+     */
+    public String getNodeset() {
+      final List<Integer> nodeset = new ArrayList<Integer>();
+      for (final int node : nodes) {
+        nodeset.add(node);
+      }
+      return NumaTopology.formatCpuSet(nodeset);
+    }
+  }
+
+  /**
+   * A vCPU of a running VM to pin to another CPU.
+   */
+  public static class Move {
+    private final String vmName;
+    private final int vcpu;
+    private final int from;
+    private final int cpu;
+
+    Move(String vmName, int vcpu, int from, int cpu) {
+      this.vmName = vmName;
+      this.vcpu = vcpu;
+      this.from = from;
+      this.cpu = cpu;
+    }
+
+    public String getVmName() {
+      return vmName;
+    }
+
+    public int getVcpu() {
+      return vcpu;
+    }
+
+    public int getFrom() {
+      return from;
+    }
+
+    public int getCpu() {
+      return cpu;
+    }
+  }
+
+  private final NumaTopology topology;
+  private final long reservedMemory;
+  private final Map<String, Placement> placements = new HashMap<String, Placement>();
+  private final Map<Integer, Integer> cpuLoads = new HashMap<Integer, Integer>();
+  private final Map<Integer, Long> usedMemory = new HashMap<Integer, Long>();
+
+  public NumaPlacementAllocator(NumaTopology topology) {
+    this(topology, 0);
+  }
+
+  /**
+   * @param reservedMemory the memory in KiB of each cell that is kept for the host
+   */
+  public NumaPlacementAllocator(NumaTopology topology, long reservedMemory) {
+    this.topology = topology;
+    this.reservedMemory = reservedMemory;
+  }
+
+  public NumaTopology getTopology() {
+    return topology;
+  }
+
+  /**
+   * Places a VM, replacing the placement it had.
+   *
+   * @param memory the memory of the VM in KiB
+   * @return the placement, or null if the cells do not have the memory for the VM
+   */
+  public Placement allocate(String vmName, int vcpus, long memory) {
+    return allocate(vmName, vcpus, memory, null, 0);
+  }
+
+  /**
+   * Places a VM, replacing the placement it had.
+   *
+   * @param memory the memory of the VM in KiB
+   * @param hostFreeMemory the memory in KiB the host has free on each cell, or null if unknown
+   * @param pageSize the size in KiB of the hugepages of the VM, its memory is split over cells in whole pages, or 0
+   * @return the placement, or null if the cells do not have the memory for the VM
+   */
+  public synchronized Placement allocate(String vmName, int vcpus, long memory, Map<Integer, Long> hostFreeMemory,
+      long pageSize) {
+    release(vmName, false);
+    if (vcpus <= 0 || topology.isEmpty()) {
+      return null;
+    }
+
+    final List<NumaTopology.Cell> cells = getCellsByLoad(hostFreeMemory);
+    List<NumaTopology.Cell> chosen = null;
+    for (final NumaTopology.Cell cell : cells) {
+      if (cell.getCpus().size() >= vcpus && getFreeMemory(cell, hostFreeMemory) >= memory) {
+        chosen = Collections.singletonList(cell);
+        break;
+      }
+    }
+    // each guest cell needs a vCPU of its own
+    for (int count = 2; chosen == null && count <= Math.min(cells.size(), vcpus); count++) {
+      chosen = chooseCells(cells, splitMemory(memory, count, pageSize), hostFreeMemory);
+    }
+    if (chosen == null) {
+      logger.debug("No NUMA placement for " + vmName + ", the cells of the host lack the " + memory
+          + " KiB of memory it needs");
+      return null;
+    }
+
+    final int[] nodes = new int[chosen.size()];
+    final long[] cellMemory = splitMemory(memory, chosen.size(), pageSize);
+    final int[] vcpuPins = new int[vcpus];
+    final int[] vcpuCells = new int[vcpus];
+    int vcpu = 0;
+    for (int i = 0; i < chosen.size(); i++) {
+      final NumaTopology.Cell cell = chosen.get(i);
+      nodes[i] = cell.getId();
+      final int cellVcpus = vcpus / chosen.size() + (i < vcpus % chosen.size() ? 1 : 0);
+      final Map<Integer, Integer> ownLoads = new HashMap<Integer, Integer>();
+      for (int j = 0; j < cellVcpus; j++, vcpu++) {
+        final int cpu = pickCpu(cell, ownLoads);
+        vcpuPins[vcpu] = cpu;
+        vcpuCells[vcpu] = i;
+        increment(ownLoads, cpu, 1);
+        increment(cpuLoads, cpu, 1);
+      }
+      usedMemory.put(cell.getId(), getUsedMemory(cell.getId()) + cellMemory[i]);
+    }
+
+    final Placement placement = new Placement(vcpuPins, vcpuCells, nodes, cellMemory, System.currentTimeMillis());
+    placements.put(vmName, placement);
+    return placement;
+  }
+
+  /**
+   * Accounts for a VM that is already running, like after a restart of the agent.
+   *
+   * @param vcpuPins the CPU each vCPU is pinned to
+   * @param memory the memory of the VM in KiB
+   */
+  public synchronized void restore(String vmName, int[] vcpuPins, long memory) {
+    release(vmName, false);
+    final List<Integer> nodes = new ArrayList<Integer>();
+    final int[] vcpuCells = new int[vcpuPins.length];
+    for (int vcpu = 0; vcpu < vcpuPins.length; vcpu++) {
+      final NumaTopology.Cell cell = topology.getCellOfCpu(vcpuPins[vcpu]);
+      if (cell == null) {
+        logger.debug("Not accounting for the placement of " + vmName + ", the host has no CPU " + vcpuPins[vcpu]);
+        return;
+      }
+      if (!nodes.contains(cell.getId())) {
+        nodes.add(cell.getId());
+      }
+      vcpuCells[vcpu] = nodes.indexOf(cell.getId());
+    }
+    if (nodes.isEmpty()) {
+      return;
+    }
+
+    final int[] nodeIds = new int[nodes.size()];
+    final long[] cellMemory = new long[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++) {
+      nodeIds[i] = nodes.get(i);
+      cellMemory[i] = memory / nodes.size();
+      usedMemory.put(nodeIds[i], getUsedMemory(nodeIds[i]) + cellMemory[i]);
+    }
+    for (final int cpu : vcpuPins) {
+      increment(cpuLoads, cpu, 1);
+    }
+    placements.put(vmName, new Placement(vcpuPins.clone(), vcpuCells, nodeIds, cellMemory, 0));
+  }
+
+  /**
+   * Releases the CPUs and the memory of a VM that stopped, and rebalances the vCPUs of the VMs left on its cells.
+   *
+   * @return the vCPUs to pin to another CPU, empty if the VM had no placement
+   */
+  public synchronized List<Move> release(String vmName) {
+    return release(vmName, true);
+  }
+
+  /**
+   * Releases the VMs that are not running anymore, like the ones destroyed behind the back of the agent.
+   *
+   * @param running the names of the running VMs
+   * @param before only placements made before this time are released, a VM being started is not running yet
+   */
+  public synchronized List<Move> retain(Collection<String> running, long before) {
+    final List<Move> moves = new ArrayList<Move>();
+    final Set<String> names = new LinkedHashSet<String>(placements.keySet());
+    for (final String vmName : names) {
+      if (!running.contains(vmName) && placements.get(vmName).allocated < before) {
+        moves.addAll(release(vmName, true));
+      }
+    }
+    return moves;
+  }
+
+  public synchronized Placement getPlacement(String vmName) {
+    return placements.get(vmName);
+  }
+
+  synchronized int getLoad(int cpu) {
+    return getLoad(cpuLoads, cpu);
+  }
+
+  /**
+   * Pins a vCPU to the CPU a move took it to, once the domain has it there. A move the domain failed to make is left
+   * out, the vCPU stays where it was.
+   *
+   * @return false if the vCPU is not where the move took it from anymore
+   */
+  public synchronized boolean applyMove(Move move) {
+    final Placement placement = placements.get(move.vmName);
+    if (placement == null || move.vcpu >= placement.vcpuPins.length || placement.vcpuPins[move.vcpu] != move.from) {
+      return false;
+    }
+    placement.vcpuPins[move.vcpu] = move.cpu;
+    increment(cpuLoads, move.from, -1);
+    increment(cpuLoads, move.cpu, 1);
+    return true;
+  }
+
+  synchronized long getFreeMemory(NumaTopology.Cell cell) {
+    return getFreeMemory(cell, null);
+  }
+
+  private long getFreeMemory(NumaTopology.Cell cell, Map<Integer, Long> hostFreeMemory) {
+    final long free = cell.getMemory() - reservedMemory - getUsedMemory(cell.getId());
+    final Long hostFree = hostFreeMemory != null ? hostFreeMemory.get(cell.getId()) : null;
+    return hostFree != null ? Math.min(free, hostFree - reservedMemory) : free;
+  }
+
+  private List<Move> release(String vmName, boolean rebalance) {
+    final Placement placement = placements.remove(vmName);
+    if (placement == null) {
+      return Collections.emptyList();
+    }
+    for (final int cpu : placement.vcpuPins) {
+      increment(cpuLoads, cpu, -1);
+    }
+    for (int i = 0; i < placement.nodes.length; i++) {
+      usedMemory.put(placement.nodes[i], getUsedMemory(placement.nodes[i]) - placement.memory[i]);
+    }
+    if (!rebalance) {
+      return Collections.emptyList();
+    }
+
+    // planned on copies, the moves are applied once the vCPUs are pinned
+    final Map<Integer, Integer> loads = new HashMap<Integer, Integer>(cpuLoads);
+    final Map<String, int[]> pins = new HashMap<String, int[]>();
+    final List<Move> moves = new ArrayList<Move>();
+    for (final int node : placement.nodes) {
+      final NumaTopology.Cell cell = topology.getCell(node);
+      if (cell != null) {
+        rebalance(cell, loads, pins, moves);
+      }
+    }
+    return moves;
+  }
+
+  private void rebalance(NumaTopology.Cell cell, Map<Integer, Integer> loads, Map<String, int[]> pins,
+      List<Move> moves) {
+    while (true) {
+      int busiest = -1;
+      int idlest = -1;
+      for (final int cpu : cell.getCpus()) {
+        if (busiest < 0 || getLoad(loads, cpu) > getLoad(loads, busiest)) {
+          busiest = cpu;
+        }
+        if (idlest < 0 || getLoad(loads, cpu) < getLoad(loads, idlest)) {
+          idlest = cpu;
+        }
+      }
+      if (busiest < 0 || getLoad(loads, busiest) - getLoad(loads, idlest) <= 1) {
+        return;
+      }
+      if (!moveVcpu(busiest, idlest, loads, pins, moves)) {
+        return;
+      }
+    }
+  }
+
+  private boolean moveVcpu(int from, int to, Map<Integer, Integer> loads, Map<String, int[]> pins,
+      List<Move> moves) {
+    for (final Map.Entry<String, Placement> entry : placements.entrySet()) {
+      int[] vcpuPins = pins.get(entry.getKey());
+      if (vcpuPins == null) {
+        vcpuPins = entry.getValue().vcpuPins;
+      }
+      for (int vcpu = 0; vcpu < vcpuPins.length; vcpu++) {
+        if (vcpuPins[vcpu] == from) {
+          if (!pins.containsKey(entry.getKey())) {
+            vcpuPins = vcpuPins.clone();
+            pins.put(entry.getKey(), vcpuPins);
+          }
+          vcpuPins[vcpu] = to;
+          increment(loads, from, -1);
+          increment(loads, to, 1);
+          moves.add(new Move(entry.getKey(), vcpu, from, to));
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /* the least loaded CPU, on a core the VM does not use yet if there is one */
+  private int pickCpu(NumaTopology.Cell cell, Map<Integer, Integer> ownLoads) {
+    int best = -1;
+    int bestLoad = 0;
+    int bestShared = 0;
+    for (final int cpu : cell.getCpus()) {
+      final int load = getLoad(cpu);
+      int shared = 0;
+      for (final int sibling : cell.getSiblings(cpu)) {
+        final Integer own = ownLoads.get(sibling);
+        shared += own != null ? own : 0;
+      }
+      if (best < 0 || load < bestLoad || load == bestLoad && shared < bestShared) {
+        best = cpu;
+        bestLoad = load;
+        bestShared = shared;
+      }
+    }
+    return best;
+  }
+
+  /* the cells with the lowest load that each have the largest share of the memory */
+  private List<NumaTopology.Cell> chooseCells(List<NumaTopology.Cell> cells, long[] shares,
+      Map<Integer, Long> hostFreeMemory) {
+    long share = 0;
+    for (final long cellShare : shares) {
+      share = Math.max(share, cellShare);
+    }
+    final List<NumaTopology.Cell> chosen = new ArrayList<NumaTopology.Cell>();
+    for (final NumaTopology.Cell cell : cells) {
+      if (getFreeMemory(cell, hostFreeMemory) >= share) {
+        chosen.add(cell);
+        if (chosen.size() == shares.length) {
+          return chosen;
+        }
+      }
+    }
+    return null;
+  }
+
+  /* the memory of each of count cells, in whole pages with the part of a page left on the last cell */
+  static long[] splitMemory(long memory, int count, long pageSize) {
+    final long unit = pageSize > 0 ? pageSize : 1;
+    final long units = memory / unit;
+    final long[] shares = new long[count];
+    for (int i = 0; i < count; i++) {
+      shares[i] = (units / count + (i < units % count ? 1 : 0)) * unit;
+    }
+    shares[count - 1] += memory % unit;
+    return shares;
+  }
+
+  /* by vCPUs per CPU, then by free memory */
+  private List<NumaTopology.Cell> getCellsByLoad(final Map<Integer, Long> hostFreeMemory) {
+    final List<NumaTopology.Cell> cells = new ArrayList<NumaTopology.Cell>(topology.getCells());
+    Collections.sort(cells, new Comparator<NumaTopology.Cell>() {
+      @Override
+      public int compare(NumaTopology.Cell a, NumaTopology.Cell b) {
+        final int byLoad = Double.compare(getCellLoad(a), getCellLoad(b));
+        if (byLoad != 0) {
+          return byLoad;
+        }
+        return Long.compare(getFreeMemory(b, hostFreeMemory), getFreeMemory(a, hostFreeMemory));
+      }
+    });
+    return cells;
+  }
+
+  private double getCellLoad(NumaTopology.Cell cell) {
+    if (cell.getCpus().isEmpty()) {
+      return Double.MAX_VALUE;
+    }
+    int load = 0;
+    for (final int cpu : cell.getCpus()) {
+      load += getLoad(cpu);
+    }
+    return (double) load / cell.getCpus().size();
+  }
+
+  private long getUsedMemory(int node) {
+    final Long used = usedMemory.get(node);
+    return used != null ? used : 0;
+  }
+
+  private static int getLoad(Map<Integer, Integer> loads, int cpu) {
+    final Integer load = loads.get(cpu);
+    return load != null ? load : 0;
+  }
+
+  private static void increment(Map<Integer, Integer> counts, int key, int delta) {
+    final Integer count = counts.get(key);
+    counts.put(key, (count != null ? count : 0) + delta);
+  }
+}
@@ -0,0 +1,159 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The NUMA cells of the host as libvirt reports them in the host/topology of its capabilities: the memory of each
+ * cell, its CPUs and the hyperthread siblings of each CPU.
+ */
+public class NumaTopology {
+
+  public static class Cell {
+    private final int id;
+    private long memory;
+    private final List<Integer> cpus = new ArrayList<Integer>();
+    private final Map<Integer, List<Integer>> siblings = new HashMap<Integer, List<Integer>>();
+
+    public Cell(int id) {
+      this.id = id;
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * @return the memory of the cell in KiB
+     */
+    public long getMemory() {
+      return memory;
+    }
+
+    public void setMemory(long memory) {
+      this.memory = memory;
+    }
+
+    public List<Integer> getCpus() {
+      return cpus;
+    }
+
+    /**
+     * @param siblings the CPUs sharing a core with the CPU, itself included, or null
+     */
+    public void addCpu(int cpu, List<Integer> siblings) {
+      cpus.add(cpu);
+      if (siblings != null) {
+        this.siblings.put(cpu, siblings);
+      }
+    }
+
+    public List<Integer> getSiblings(int cpu) {
+      final List<Integer> cpuSiblings = siblings.get(cpu);
+      return cpuSiblings != null ? cpuSiblings : Collections.singletonList(cpu);
+    }
+  }
+
+  private final List<Cell> cells = new ArrayList<Cell>();
+
+  public void addCell(Cell cell) {
+    cells.add(cell);
+  }
+
+  public List<Cell> getCells() {
+    return cells;
+  }
+
+  public Cell getCell(int id) {
+    for (final Cell cell : cells) {
+      if (cell.getId() == id) {
+        return cell;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the cell of a CPU, or null if the host has no such CPU
+   */
+  public Cell getCellOfCpu(int cpu) {
+    for (final Cell cell : cells) {
+      if (cell.getCpus().contains(cpu)) {
+        return cell;
+      }
+    }
+    return null;
+  }
+
+  public boolean isEmpty() {
+    return cells.isEmpty();
+  }
+
+  /**
+   * Parses a cpuset as libvirt writes it, like 0-3,8,10-11.
+   */
+  public static List<Integer> parseCpuSet(String cpuSet) {
+    final List<Integer> cpus = new ArrayList<Integer>();
+    if (cpuSet == null) {
+      return cpus;
+    }
+    for (final String part : cpuSet.split(",")) {
+      final String range = part.trim();
+      if (range.isEmpty() || range.startsWith("^")) {
+        continue;
+      }
+      final int dash = range.indexOf('-');
+      try {
+        if (dash > 0) {
+          final int last = Integer.parseInt(range.substring(dash + 1).trim());
+          for (int cpu = Integer.parseInt(range.substring(0, dash).trim()); cpu <= last; cpu++) {
+            cpus.add(cpu);
+          }
+        } else {
+          cpus.add(Integer.parseInt(range));
+        }
+      } catch (final NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid cpuset " + cpuSet);
+      }
+    }
+    return cpus;
+  }
+
+  /**
+   * Formats CPUs as a cpuset, collapsing consecutive CPUs into ranges.
+   */
+  public static String formatCpuSet(Collection<Integer> cpus) {
+    final StringBuilder cpuSet = new StringBuilder();
+    int first = -1;
+    int last = -1;
+    for (final int cpu : new TreeSet<Integer>(cpus)) {
+      if (cpu == last + 1 && first >= 0) {
+        last = cpu;
+        continue;
+      }
+      appendRange(cpuSet, first, last);
+      first = cpu;
+      last = cpu;
+    }
+    appendRange(cpuSet, first, last);
+    return cpuSet.toString();
+  }
+
+  private static void appendRange(StringBuilder cpuSet, int first, int last) {
+    if (first < 0) {
+      return;
+    }
+    if (cpuSet.length() > 0) {
+      cpuSet.append(',');
+    }
+    cpuSet.append(first);
+    if (last > first) {
+      cpuSet.append('-').append(last);
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package com.cloud.hypervisor.kvm.resource;
 
+import java.io.IOException;
 import java.util.Map;
 
 import javax.naming.ConfigurationException;
@@ -22,6 +23,7 @@ public class OvsVifDriver extends VifDriverBase {
   private final Logger logger = LoggerFactory.getLogger(OvsVifDriver.class);
 
   private int timeout;
+  private OvsdbClient ovsdbClient;
 
   @Override
   public void configure(Map<String, Object> params) throws ConfigurationException {
@@ -35,6 +37,10 @@ public class OvsVifDriver extends VifDriverBase {
     final String value = (String) params.get("scripts.timeout");
     timeout = NumbersUtil.parseInt(value, 30 * 60) * 1000;
 
+    if (libvirtComputingResource != null) {
+      ovsdbClient = libvirtComputingResource.getOvsdbClient();
+    }
+
     createControlNetwork(bridges.get("linklocal"));
   }
 
@@ -156,12 +162,31 @@ public class OvsVifDriver extends VifDriverBase {
   private void createControlNetwork(String privBrName) {
     deleteExitingLinkLocalRouteTable(privBrName);
     if (!isBridgeExists(privBrName)) {
+      if (ovsdbClient != null) {
+        try {
+          ovsdbClient.transaction().addBridge(privBrName, null).commit();
+          Script.runSimpleBashScript("ip link set " + privBrName + " up; ip address add 169.254.0.1/16 dev "
+              + privBrName, timeout);
+          return;
+        } catch (final IOException e) {
+          logger.warn("Unable to add bridge " + privBrName + " through ovsdb-server, using ovs-vsctl: "
+              + e.getMessage());
+        }
+      }
       Script.runSimpleBashScript("ovs-vsctl add-br " + privBrName + "; ip link set " + privBrName
           + " up; ip address add 169.254.0.1/16 dev " + privBrName, timeout);
     }
   }
 
   private boolean isBridgeExists(String bridgeName) {
+    if (ovsdbClient != null) {
+      try {
+        return ovsdbClient.bridgeExists(bridgeName);
+      } catch (final IOException e) {
+        logger.warn("Unable to look up bridge " + bridgeName + " through ovsdb-server, using ovs-vsctl: "
+            + e.getMessage());
+      }
+    }
     final Script command = new Script("/bin/sh", timeout);
     command.add("-c");
     command.add("ovs-vsctl br-exists " + bridgeName);
@@ -0,0 +1,556 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonStreamParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client for the OVSDB management protocol of RFC 7047, talking JSON-RPC to the local ovsdb-server instead of forking
+ * ovs-vsctl for every question.
+ *
+ * It keeps one connection and monitors the Bridge and Interface tables, so lookups are answered from memory. Changes
+ * are collected in a Transaction and committed with one transact request; adding bridges waits for ovs-vswitchd to
+ * apply the change, like ovs-vsctl does. The connection is opened on first use and reopened after a failure.
+ *
+ * The connection is "unix:&lt;path&gt;", usually unix:/var/run/openvswitch/db.sock, or "tcp:&lt;ip&gt;:&lt;port&gt;".
+ */
+public class OvsdbClient {
+
+  private static final Logger logger = LoggerFactory.getLogger(OvsdbClient.class);
+
+  private static final String DATABASE = "Open_vSwitch";
+  private static final String BRIDGE = "Bridge";
+  private static final String INTERFACE = "Interface";
+
+  private final String target;
+  private final int timeout;
+  private final AtomicLong ids = new AtomicLong();
+  private final AtomicLong transactions = new AtomicLong();
+  private final ConcurrentMap<String, Map<String, JsonObject>> tables =
+      new ConcurrentHashMap<String, Map<String, JsonObject>>();
+  /* notified whenever a monitor update was applied to the tables */
+  private final Object updates = new Object();
+  private Session session;
+
+  /**
+   * @param timeout milliseconds to wait for ovsdb-server to answer, and for ovs-vswitchd to apply a change
+   */
+  public OvsdbClient(String target, int timeout) {
+    this.target = target;
+    this.timeout = timeout;
+  }
+
+  public Set<String> getBridgeNames() throws IOException {
+    session();
+    final Set<String> names = new HashSet<String>();
+    for (final JsonObject row : table(BRIDGE).values()) {
+      names.add(row.get("name").getAsString());
+    }
+    return names;
+  }
+
+  public boolean bridgeExists(String name) throws IOException {
+    return getBridgeNames().contains(name);
+  }
+
+  /**
+   * @return the other_config of the bridge, null when there is no such bridge
+   */
+  public Map<String, String> getBridgeOtherConfig(String name) throws IOException {
+    session();
+    final JsonObject row = findRow(BRIDGE, name);
+    return row != null ? getMap(row, "other_config") : null;
+  }
+
+  /**
+   * @return the name of the interface libvirt attached for the mac address, null when there is none
+   */
+  public String getInterfaceByAttachedMac(String mac) throws IOException {
+    session();
+    for (final JsonObject row : table(INTERFACE).values()) {
+      if (mac.equalsIgnoreCase(getMap(row, "external_ids").get("attached-mac"))) {
+        return row.get("name").getAsString();
+      }
+    }
+    return null;
+  }
+
+  public Transaction transaction() {
+    return new Transaction();
+  }
+
+  /**
+   * @return the number of transact requests sent
+   */
+  public long getTransactionCount() {
+    return transactions.get();
+  }
+
+  public synchronized void close() {
+    if (session != null) {
+      session.close();
+      session = null;
+    }
+  }
+
+  synchronized boolean isConnected() {
+    return session != null && !session.closed;
+  }
+
+  /**
+   * A batch of changes, committed atomically with one transact request.
+   */
+  public class Transaction {
+    private final JsonArray operations = new JsonArray();
+    private final Set<String> bridges = new HashSet<String>();
+    private boolean reconfigures;
+
+    private Transaction() {
+    }
+
+    /**
+     * Adds a bridge with its internal port, unless it exists already, like ovs-vsctl --may-exist add-br.
+     */
+    public Transaction addBridge(String name, Map<String, String> otherConfig) throws IOException {
+      if (bridgeExists(name) || !bridges.add(name)) {
+        return this;
+      }
+      final int n = operations.size();
+      final JsonObject iface = new JsonObject();
+      iface.addProperty("name", name);
+      iface.addProperty("type", "internal");
+      operations.add(insert(INTERFACE, iface, "interface" + n));
+
+      final JsonObject port = new JsonObject();
+      port.addProperty("name", name);
+      port.add("interfaces", namedUuid("interface" + n));
+      operations.add(insert("Port", port, "port" + n));
+
+      final JsonObject bridge = new JsonObject();
+      bridge.addProperty("name", name);
+      bridge.add("ports", namedUuid("port" + n));
+      bridge.add("other_config", map(otherConfig));
+      operations.add(insert(BRIDGE, bridge, "bridge" + n));
+
+      final JsonArray uuids = new JsonArray();
+      uuids.add(namedUuid("bridge" + n));
+      operations.add(mutate(DATABASE, new JsonArray(), mutation("bridges", "insert", set(uuids))));
+      reconfigures = true;
+      return this;
+    }
+
+    /**
+     * Sets a key of the other_config of a bridge, like ovs-vsctl set bridge &lt;name&gt; other_config:&lt;key&gt;=&lt;value&gt;.
+     */
+    public Transaction setBridgeOtherConfig(String name, String key, String value) {
+      final JsonArray keys = new JsonArray();
+      keys.add(new JsonPrimitive(key));
+      operations.add(mutate(BRIDGE, whereName(name), mutation("other_config", "delete", set(keys)),
+          mutation("other_config", "insert", map(Collections.singletonMap(key, value)))));
+      return this;
+    }
+
+    public boolean isEmpty() {
+      return operations.size() == 0;
+    }
+
+    public void commit() throws IOException {
+      if (isEmpty()) {
+        return;
+      }
+      final JsonArray params = new JsonArray();
+      params.add(new JsonPrimitive(DATABASE));
+      for (final JsonElement operation : operations) {
+        params.add(operation);
+      }
+      if (reconfigures) {
+        // tell ovs-vswitchd to pick up the change, and read the config sequence to wait for
+        params.add(mutate(DATABASE, new JsonArray(), mutation("next_cfg", "+=", new JsonPrimitive(1))));
+        final JsonObject select = new JsonObject();
+        select.addProperty("op", "select");
+        select.addProperty("table", DATABASE);
+        select.add("where", new JsonArray());
+        final JsonArray columns = new JsonArray();
+        columns.add(new JsonPrimitive("next_cfg"));
+        select.add("columns", columns);
+        params.add(select);
+      }
+
+      transactions.incrementAndGet();
+      final JsonArray results = session().call("transact", params, false).getAsJsonArray();
+      for (final JsonElement result : results) {
+        if (result.isJsonObject() && result.getAsJsonObject().has("error")) {
+          throw new IOException("ovsdb-server rejected the transaction: " + result);
+        }
+      }
+      if (reconfigures) {
+        final JsonObject select = results.get(results.size() - 1).getAsJsonObject();
+        awaitConfigured(select.getAsJsonArray("rows").get(0).getAsJsonObject().get("next_cfg").getAsLong());
+      }
+    }
+  }
+
+  private synchronized Session session() throws IOException {
+    if (session == null || session.closed) {
+      session = null;
+      final Session connected = new Session(open());
+      try {
+        connected.monitor();
+      } catch (final IOException e) {
+        connected.close();
+        throw e;
+      }
+      session = connected;
+      logger.info("Connected to ovsdb-server at " + target);
+    }
+    return session;
+  }
+
+  private Connection open() throws IOException {
+    if (target.startsWith("unix:")) {
+      final UnixDomainSocket socket = UnixDomainSocket.connect(target.substring("unix:".length()));
+      return new Connection(socket.getInputStream(), socket.getOutputStream(), socket);
+    } else if (target.startsWith("tcp:")) {
+      final int colon = target.lastIndexOf(':');
+      final Socket socket = new Socket();
+      socket.connect(new InetSocketAddress(target.substring("tcp:".length(), colon),
+          Integer.parseInt(target.substring(colon + 1))), timeout);
+      return new Connection(socket.getInputStream(), socket.getOutputStream(), socket);
+    }
+    throw new IOException("Unsupported ovsdb connection " + target);
+  }
+
+  private void awaitConfigured(long nextCfg) {
+    final long deadline = System.currentTimeMillis() + timeout;
+    synchronized (updates) {
+      while (getCurrentConfig() < nextCfg) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          logger.warn("Timed out waiting for ovs-vswitchd to apply configuration " + nextCfg);
+          return;
+        }
+        try {
+          updates.wait(remaining);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private long getCurrentConfig() {
+    for (final JsonObject row : table(DATABASE).values()) {
+      final JsonElement curCfg = row.get("cur_cfg");
+      if (curCfg != null && curCfg.isJsonPrimitive()) {
+        return curCfg.getAsLong();
+      }
+    }
+    return -1;
+  }
+
+  private Map<String, JsonObject> table(String name) {
+    final Map<String, JsonObject> table = tables.get(name);
+    if (table != null) {
+      return table;
+    }
+    final Map<String, JsonObject> created = new ConcurrentHashMap<String, JsonObject>();
+    final Map<String, JsonObject> raced = tables.putIfAbsent(name, created);
+    return raced != null ? raced : created;
+  }
+
+  private JsonObject findRow(String table, String name) {
+    for (final JsonObject row : table(table).values()) {
+      if (name.equals(row.get("name").getAsString())) {
+        return row;
+      }
+    }
+    return null;
+  }
+
+  private void applyUpdates(JsonObject tableUpdates) {
+    for (final Map.Entry<String, JsonElement> tableUpdate : tableUpdates.entrySet()) {
+      final Map<String, JsonObject> table = table(tableUpdate.getKey());
+      for (final Map.Entry<String, JsonElement> rowUpdate : tableUpdate.getValue().getAsJsonObject().entrySet()) {
+        final JsonElement row = rowUpdate.getValue().getAsJsonObject().get("new");
+        if (row == null || row.isJsonNull()) {
+          table.remove(rowUpdate.getKey());
+        } else {
+          table.put(rowUpdate.getKey(), row.getAsJsonObject());
+        }
+      }
+    }
+    synchronized (updates) {
+      updates.notifyAll();
+    }
+  }
+
+  static Map<String, String> getMap(JsonObject row, String column) {
+    final Map<String, String> map = new HashMap<String, String>();
+    final JsonElement value = row.get(column);
+    if (value != null && value.isJsonArray() && "map".equals(value.getAsJsonArray().get(0).getAsString())) {
+      for (final JsonElement pair : value.getAsJsonArray().get(1).getAsJsonArray()) {
+        map.put(pair.getAsJsonArray().get(0).getAsString(), pair.getAsJsonArray().get(1).getAsString());
+      }
+    }
+    return map;
+  }
+
+  private static JsonObject insert(String table, JsonObject row, String uuidName) {
+    final JsonObject insert = new JsonObject();
+    insert.addProperty("op", "insert");
+    insert.addProperty("table", table);
+    insert.add("row", row);
+    insert.addProperty("uuid-name", uuidName);
+    return insert;
+  }
+
+  private static JsonObject mutate(String table, JsonArray where, JsonArray... mutations) {
+    final JsonObject mutate = new JsonObject();
+    mutate.addProperty("op", "mutate");
+    mutate.addProperty("table", table);
+    mutate.add("where", where);
+    final JsonArray list = new JsonArray();
+    for (final JsonArray mutation : mutations) {
+      list.add(mutation);
+    }
+    mutate.add("mutations", list);
+    return mutate;
+  }
+
+  private static JsonArray mutation(String column, String mutator, JsonElement value) {
+    final JsonArray mutation = new JsonArray();
+    mutation.add(new JsonPrimitive(column));
+    mutation.add(new JsonPrimitive(mutator));
+    mutation.add(value);
+    return mutation;
+  }
+
+  private static JsonArray whereName(String name) {
+    final JsonArray condition = new JsonArray();
+    condition.add(new JsonPrimitive("name"));
+    condition.add(new JsonPrimitive("=="));
+    condition.add(new JsonPrimitive(name));
+    final JsonArray where = new JsonArray();
+    where.add(condition);
+    return where;
+  }
+
+  private static JsonArray namedUuid(String name) {
+    final JsonArray uuid = new JsonArray();
+    uuid.add(new JsonPrimitive("named-uuid"));
+    uuid.add(new JsonPrimitive(name));
+    return uuid;
+  }
+
+  private static JsonArray set(JsonArray elements) {
+    final JsonArray set = new JsonArray();
+    set.add(new JsonPrimitive("set"));
+    set.add(elements);
+    return set;
+  }
+
+  private static JsonArray map(Map<String, String> entries) {
+    final JsonArray pairs = new JsonArray();
+    if (entries != null) {
+      for (final Map.Entry<String, String> entry : entries.entrySet()) {
+        final JsonArray pair = new JsonArray();
+        pair.add(new JsonPrimitive(entry.getKey()));
+        pair.add(new JsonPrimitive(entry.getValue()));
+        pairs.add(pair);
+      }
+    }
+    final JsonArray map = new JsonArray();
+    map.add(new JsonPrimitive("map"));
+    map.add(pairs);
+    return map;
+  }
+
+  private static class Connection {
+    final InputStream in;
+    final OutputStream out;
+    final Closeable closeable;
+
+    Connection(InputStream in, OutputStream out, Closeable closeable) {
+      this.in = in;
+      this.out = out;
+      this.closeable = closeable;
+    }
+  }
+
+  private static class Call {
+    final CountDownLatch done = new CountDownLatch(1);
+    final boolean monitor;
+    volatile JsonElement result;
+    volatile JsonElement error;
+    volatile IOException failure;
+
+    Call(boolean monitor) {
+      this.monitor = monitor;
+    }
+  }
+
+  /**
+   * One connection to ovsdb-server, with the thread that reads its replies and monitor updates.
+   */
+  private class Session implements Runnable {
+    private final Connection connection;
+    private final Writer writer;
+    private final Map<Long, Call> calls = new ConcurrentHashMap<Long, Call>();
+    private volatile boolean closed;
+
+    Session(Connection connection) {
+      this.connection = connection;
+      this.writer = new OutputStreamWriter(connection.out, StandardCharsets.UTF_8);
+      final Thread reader = new Thread(this, "OvsdbClient-" + target);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    void monitor() throws IOException {
+      tables.clear();
+      final JsonObject requests = new JsonObject();
+      requests.add(BRIDGE, columns("name", "other_config"));
+      requests.add(INTERFACE, columns("name", "ofport", "external_ids"));
+      requests.add(DATABASE, columns("cur_cfg"));
+      final JsonArray params = new JsonArray();
+      params.add(new JsonPrimitive(DATABASE));
+      params.add(JsonNull.INSTANCE);
+      params.add(requests);
+      call("monitor", params, true);
+    }
+
+    private JsonObject columns(String... names) {
+      final JsonArray columns = new JsonArray();
+      for (final String name : names) {
+        columns.add(new JsonPrimitive(name));
+      }
+      final JsonObject request = new JsonObject();
+      request.add("columns", columns);
+      return request;
+    }
+
+    JsonElement call(String method, JsonArray params, boolean monitor) throws IOException {
+      final long id = ids.incrementAndGet();
+      final JsonObject request = new JsonObject();
+      request.addProperty("method", method);
+      request.add("params", params);
+      request.addProperty("id", id);
+      final Call call = new Call(monitor);
+      calls.put(id, call);
+      try {
+        send(request);
+        if (!call.done.await(timeout, TimeUnit.MILLISECONDS)) {
+          throw new IOException("Timed out waiting for ovsdb-server to answer " + method);
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for ovsdb-server to answer " + method);
+      } finally {
+        calls.remove(id);
+      }
+      if (call.failure != null) {
+        throw call.failure;
+      }
+      if (call.error != null && !call.error.isJsonNull()) {
+        throw new IOException("ovsdb-server failed " + method + ": " + call.error);
+      }
+      return call.result;
+    }
+
+    private void send(JsonObject message) throws IOException {
+      synchronized (writer) {
+        writer.write(message.toString());
+        writer.flush();
+      }
+    }
+
+    @Override
+    public void run() {
+      IOException failure = new IOException("ovsdb-server at " + target + " closed the connection");
+      try {
+        final JsonStreamParser parser = new JsonStreamParser(new InputStreamReader(connection.in,
+            StandardCharsets.UTF_8));
+        while (!closed && parser.hasNext()) {
+          handle(parser.next().getAsJsonObject());
+        }
+      } catch (final RuntimeException e) {
+        failure = new IOException("Lost the connection to ovsdb-server at " + target + ": " + e.getMessage());
+      }
+      if (!closed) {
+        logger.warn(failure.getMessage());
+      }
+      close();
+      for (final Call call : calls.values()) {
+        call.failure = failure;
+        call.done.countDown();
+      }
+    }
+
+    private void handle(JsonObject message) {
+      final JsonElement method = message.get("method");
+      if (method != null && !method.isJsonNull()) {
+        if ("update".equals(method.getAsString())) {
+          applyUpdates(message.getAsJsonArray("params").get(1).getAsJsonObject());
+        } else if ("echo".equals(method.getAsString())) {
+          final JsonObject reply = new JsonObject();
+          reply.add("result", message.get("params"));
+          reply.add("error", JsonNull.INSTANCE);
+          reply.add("id", message.get("id"));
+          try {
+            send(reply);
+          } catch (final IOException e) {
+            logger.debug("Unable to answer the echo of ovsdb-server: " + e.getMessage());
+          }
+        }
+        return;
+      }
+      final Call call = calls.get(message.get("id").getAsLong());
+      if (call == null) {
+        return;
+      }
+      call.result = message.get("result");
+      call.error = message.get("error");
+      if (call.monitor && call.result != null && call.result.isJsonObject()) {
+        // applied by the reader, so no update that follows can be overwritten by the initial rows
+        applyUpdates(call.result.getAsJsonObject());
+      }
+      call.done.countDown();
+    }
+
+    void close() {
+      closed = true;
+      try {
+        connection.closeable.close();
+      } catch (final IOException e) {
+        logger.trace("Ignoring failure to close the ovsdb connection", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.ceph.rados.IoCTX;
+import com.ceph.rados.Rados;
+import com.ceph.rados.RadosObjectInfo;
+import com.ceph.rados.exceptions.RadosException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the heartbeats as small RADOS objects named cosmic-ha-hb-[host ip] in the pool of an RBD primary storage, for
+ * clusters without NFS primary storage.
+ *
+ * A heartbeat rewrites the whole object with the timestamp, and a check is a single stat of the object: the
+ * modification time the OSDs recorded is the time of the heartbeat, so checking never reads the object itself.
+ *
+ * The writer and the checkers share one connection. A connection that failed or was closed is only torn down once the
+ * calls still running on it are done, the native handles must not go away under them.
+ */
+public class RbdHeartbeatBackend implements HeartbeatBackend {
+
+  private static final Logger logger = LoggerFactory.getLogger(RbdHeartbeatBackend.class);
+
+  static final String OBJECT_PREFIX = "cosmic-ha-hb-";
+
+  /**
+   * The RADOS operations a heartbeat needs, so the backend can run against an in-memory store in tests.
+   */
+  interface ObjectStore {
+    void writeFull(String oid, byte[] data) throws IOException;
+
+    /**
+     * @return the modification time of the object in seconds since the epoch
+     */
+    long getMtime(String oid) throws IOException;
+
+    void close();
+  }
+
+  interface ObjectStoreFactory {
+    ObjectStore connect() throws IOException;
+  }
+
+  /* a connection and the calls running on it */
+  private static class Connection {
+    private final ObjectStore store;
+    private int users;
+    private boolean retired;
+
+    Connection(ObjectStore store) {
+      this.store = store;
+    }
+  }
+
+  private final String poolUuid;
+  private final ObjectStoreFactory factory;
+  private Connection connection;
+
+  public RbdHeartbeatBackend(String poolUuid, final String monHost, final String authUserName,
+      final String authSecret, final String poolName) {
+    this(poolUuid, new ObjectStoreFactory() {
+      @Override
+      public ObjectStore connect() throws IOException {
+        return new RadosObjectStore(monHost, authUserName, authSecret, poolName);
+      }
+    });
+  }
+
+  RbdHeartbeatBackend(String poolUuid, ObjectStoreFactory factory) {
+    this.poolUuid = poolUuid;
+    this.factory = factory;
+  }
+
+  @Override
+  public String getPoolUuid() {
+    return poolUuid;
+  }
+
+  @Override
+  public void write(String hostIp, long timestamp) throws IOException {
+    final Connection connection = acquire();
+    try {
+      connection.store.writeFull(OBJECT_PREFIX + hostIp, String.valueOf(timestamp).getBytes(StandardCharsets.US_ASCII));
+    } catch (final IOException e) {
+      retire(connection);
+      throw e;
+    } finally {
+      release(connection);
+    }
+  }
+
+  @Override
+  public long read(String hostIp) throws IOException {
+    final Connection connection = acquire();
+    try {
+      return connection.store.getMtime(OBJECT_PREFIX + hostIp);
+    } catch (final IOException e) {
+      retire(connection);
+      throw e;
+    } finally {
+      release(connection);
+    }
+  }
+
+  /**
+   * Closes the connection, right away when no call runs on it or else once the last one returns.
+   */
+  public synchronized void close() {
+    if (connection != null) {
+      retire(connection);
+    }
+  }
+
+  private synchronized Connection acquire() throws IOException {
+    if (connection == null) {
+      connection = new Connection(factory.connect());
+    }
+    connection.users++;
+    return connection;
+  }
+
+  private synchronized void release(Connection released) {
+    released.users--;
+    if (released.retired && released.users == 0) {
+      released.store.close();
+    }
+  }
+
+  /* the connection may be what failed, start over with a new one next time */
+  private synchronized void retire(Connection failed) {
+    if (connection == failed) {
+      connection = null;
+    }
+    if (!failed.retired) {
+      failed.retired = true;
+      if (failed.users == 0) {
+        failed.store.close();
+      }
+    }
+  }
+
+  private static class RadosObjectStore implements ObjectStore {
+    private final Rados rados;
+    private final IoCTX io;
+
+    RadosObjectStore(String monHost, String authUserName, String authSecret, String poolName) throws IOException {
+      try {
+        rados = new Rados(authUserName);
+        rados.confSet("mon_host", monHost);
+        rados.confSet("key", authSecret);
+        rados.confSet("client_mount_timeout", "30");
+        rados.connect();
+      } catch (final RadosException e) {
+        throw new IOException("Unable to connect to Ceph cluster at " + monHost + ": " + e.getMessage(), e);
+      }
+      try {
+        io = rados.ioCtxCreate(poolName);
+      } catch (final RadosException e) {
+        rados.shutDown();
+        throw new IOException("Unable to open pool " + poolName + " at " + monHost + ": " + e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public void writeFull(String oid, byte[] data) throws IOException {
+      try {
+        io.writeFull(oid, data, data.length);
+      } catch (final RadosException e) {
+        throw new IOException("Unable to write " + oid + ": " + e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public long getMtime(String oid) throws IOException {
+      try {
+        final RadosObjectInfo info = io.stat(oid);
+        return info.getMtime();
+      } catch (final RadosException e) {
+        throw new IOException("Unable to stat " + oid + ": " + e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        rados.ioCtxDestroy(io);
+      } catch (final RuntimeException e) {
+        logger.trace("Ignoring rados error.", e);
+      } finally {
+        rados.shutDown();
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.utils.script.OutputInterpreter.AllLinesParser;
+import com.cloud.utils.script.Script;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Programs the security group rules of VMs without security_group.py. The rules are compiled by
+ * SecurityGroupRuleCompiler, diffed against what is programmed, and only the changes are loaded: the ipsets with one
+ * "ipset restore" and the chains with one "iptables-restore --noflush", which replaces them atomically.
+ *
+ * What is programmed is remembered per VM. It is read back from iptables-save and ipset save for a VM that is not
+ * known yet, after an agent restart or after security_group.py rebuilt its chains. The output of one save serves all
+ * the VMs read back within SAVE_MAX_AGE, like the burst of rules the management server sends after an agent restart,
+ * until the firewall is changed outside of it. In dry run mode the transactions are logged instead of loaded.
+ */
+public class SecurityGroupFirewall {
+
+  private static final Logger logger = LoggerFactory.getLogger(SecurityGroupFirewall.class);
+
+  private static final long SAVE_MAX_AGE = 60 * 1000L;
+
+  private final SecurityGroupRuleCompiler compiler = new SecurityGroupRuleCompiler();
+  private final Map<String, SecurityGroupRuleset> programmed = new HashMap<String, SecurityGroupRuleset>();
+  private final boolean dryRun;
+  private final int timeout;
+  private final String ruleLogDir;
+  private List<String> savedIptables;
+  private List<String> savedIpsets;
+  private long savedAt;
+
+  /**
+   * @param ruleLogDir the directory security_group.py keeps its rule logs in, read by get_rule_logs_for_vms
+   */
+  public SecurityGroupFirewall(boolean dryRun, int timeout, String ruleLogDir) {
+    this.dryRun = dryRun;
+    this.timeout = timeout;
+    this.ruleLogDir = ruleLogDir;
+  }
+
+  public boolean isDryRun() {
+    return dryRun;
+  }
+
+  public synchronized boolean addNetworkRules(String vmName, long vmId, String guestIp, int domId, String signature,
+      long seqNum, IpPortAndProto[] ingress, IpPortAndProto[] egress) {
+    final SecurityGroupRuleset ruleset = compiler.compile(vmName, ingress, egress);
+    SecurityGroupRuleset current = programmed.get(vmName);
+    if (current == null && !dryRun) {
+      current = readProgrammed(vmName);
+    }
+    final SecurityGroupRuleset.Transaction transaction = ruleset.diff(current);
+
+    if (dryRun) {
+      logger.info("Dry run of security group rules for vm " + vmName + ", seq " + seqNum + ":\n" + transaction);
+      programmed.put(vmName, ruleset);
+      return true;
+    }
+    if (transaction.isEmpty()) {
+      logger.debug("Security group rules of vm " + vmName + " are programmed already");
+    } else if (!load(transaction)) {
+      programmed.remove(vmName);
+      forgetSaved();
+      return false;
+    }
+    programmed.put(vmName, ruleset);
+    writeRuleLog(vmName, vmId, guestIp, domId, signature, seqNum);
+    return true;
+  }
+
+  /**
+   * Forgets what is programmed for the VM, after security_group.py rebuilt its chains.
+   */
+  public synchronized void invalidate(String vmName) {
+    programmed.remove(vmName);
+    forgetSaved();
+  }
+
+  /**
+   * Destroys the ipsets of the VM, once security_group.py removed the chains that referred to them.
+   */
+  public synchronized void destroyNetworkRules(String vmName) {
+    SecurityGroupRuleset current = programmed.remove(vmName);
+    if (dryRun) {
+      return;
+    }
+    if (current == null) {
+      current = readProgrammed(vmName);
+    }
+    forgetSaved();
+    if (current == null || current.getSets().isEmpty()) {
+      return;
+    }
+    final StringBuilder destroy = new StringBuilder();
+    for (final String set : current.getSets().keySet()) {
+      destroy.append("destroy ").append(set).append('\n');
+    }
+    restore("ipset", destroy.toString());
+  }
+
+  /**
+   * @return what is programmed for the VM, or null when it could not be read
+   */
+  private SecurityGroupRuleset readProgrammed(String vmName) {
+    if (savedIptables == null || System.currentTimeMillis() - savedAt > SAVE_MAX_AGE) {
+      savedIptables = save(new Script("iptables-save", timeout, logger), "-t", "filter");
+      savedIpsets = save(new Script("ipset", timeout, logger), "save");
+      savedAt = System.currentTimeMillis();
+      if (savedIptables == null || savedIpsets == null) {
+        forgetSaved();
+        return null;
+      }
+    }
+    // the VMs read back so far are known now, so what the saves show of them is not used again
+    return SecurityGroupRuleset.parse(vmName, savedIptables, savedIpsets);
+  }
+
+  private void forgetSaved() {
+    savedIptables = null;
+    savedIpsets = null;
+  }
+
+  private List<String> save(Script cmd, String... args) {
+    for (final String arg : args) {
+      cmd.add(arg);
+    }
+    final AllLinesParser parser = new AllLinesParser();
+    final String result = cmd.execute(parser);
+    if (result != null) {
+      logger.warn("Unable to read the programmed security group rules: " + result);
+      return null;
+    }
+    return parser.getLines() != null ? Arrays.asList(parser.getLines().split("\\n"))
+        : Collections.<String>emptyList();
+  }
+
+  private boolean load(SecurityGroupRuleset.Transaction transaction) {
+    if (!transaction.getIpsets().isEmpty() && !restore("ipset", transaction.getIpsets())) {
+      return false;
+    }
+    if (!transaction.getIptables().isEmpty() && !restore("iptables", transaction.getIptables())) {
+      return false;
+    }
+    if (!transaction.getDestroyIpsets().isEmpty()) {
+      // sets that are left behind only cost memory, the rules are in place
+      restore("ipset", transaction.getDestroyIpsets());
+    }
+    return true;
+  }
+
+  private boolean restore(String tool, String input) {
+    Path file = null;
+    try {
+      file = Files.createTempFile("security-group-", ".rules");
+      Files.write(file, input.getBytes(StandardCharsets.UTF_8));
+      final Script cmd = new Script("/bin/bash", timeout, logger);
+      cmd.add("-c");
+      cmd.add("iptables".equals(tool) ? "iptables-restore --noflush " + file : "ipset restore < " + file);
+      final String result = cmd.execute();
+      if (result != null) {
+        logger.warn("Failed to load security group rules with " + tool + ": " + result + "\n" + input);
+        return false;
+      }
+      return true;
+    } catch (final IOException e) {
+      logger.warn("Failed to write security group rules: " + e.getMessage());
+      return false;
+    } finally {
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (final IOException e) {
+          logger.trace("Ignoring failure to remove " + file, e);
+        }
+      }
+    }
+  }
+
+  /* the same log security_group.py writes, it tells the management server which rules are programmed */
+  private void writeRuleLog(String vmName, long vmId, String guestIp, int domId, String signature, long seqNum) {
+    final String log = vmName + "," + vmId + "," + guestIp + "," + domId + "," + signature + "," + seqNum;
+    try {
+      Files.write(new File(ruleLogDir, vmName + ".log").toPath(), log.getBytes(StandardCharsets.UTF_8));
+    } catch (final IOException e) {
+      logger.warn("Failed to write the rule log of vm " + vmName + ": " + e.getMessage());
+    }
+  }
+}
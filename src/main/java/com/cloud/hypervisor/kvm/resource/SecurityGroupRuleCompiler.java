@@ -0,0 +1,223 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles the ingress and egress rules of a SecurityGroupRulesCmd into the chains security_group.py hooks up for a
+ * VM in default_network_rules: the ingress chain named after the VM and the egress chain with the -eg suffix.
+ *
+ * Rules for the same protocol and ports are merged into one iptables rule that matches an ipset holding all of their
+ * CIDRs, so a rule update that only changes the members of a security group changes ipset members, not rules.
+ *
+ * Only IPv4 is compiled, rulesets with IPv6 CIDRs are left to security_group.py, see hasIpv6Cidrs().
+ */
+public class SecurityGroupRuleCompiler {
+
+  private static final Logger logger = LoggerFactory.getLogger(SecurityGroupRuleCompiler.class);
+
+  private static final String ANY = "0.0.0.0/0";
+  private static final int SET_PREFIX_LENGTH = 18;
+
+  public static String ingressChain(String vmName) {
+    return vmName;
+  }
+
+  public static String egressChain(String vmName) {
+    return vmName + "-eg";
+  }
+
+  /**
+   * @return the prefix of the names of the ipsets of a VM, short enough to keep the names within 31 characters
+   */
+  public static String setPrefix(String vmName) {
+    String prefix = vmName.endsWith("-VM") ? vmName.substring(0, vmName.length() - 3) : vmName;
+    if (prefix.length() > SET_PREFIX_LENGTH) {
+      prefix = prefix.substring(0, SET_PREFIX_LENGTH);
+    }
+    return prefix + "-";
+  }
+
+  /**
+   * @return whether an ipset is one of the sets compiled for a VM: its prefix, the direction and the 8 hex digits of
+   *     the match. The per-VM set security_group.py names after the VM itself shares the prefix but is not one of them
+   */
+  public static boolean isSetOf(String vmName, String set) {
+    final String prefix = setPrefix(vmName);
+    if (set.length() != prefix.length() + 9 || !set.startsWith(prefix)) {
+      return false;
+    }
+    final char direction = set.charAt(prefix.length());
+    if (direction != 'i' && direction != 'e') {
+      return false;
+    }
+    for (int i = prefix.length() + 1; i < set.length(); i++) {
+      if (Character.digit(set.charAt(i), 16) < 0 || Character.isUpperCase(set.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the CIDR the way ipset save prints it: the network address, followed by the prefix length unless the CIDR
+   *     is a single address. Null when it is not an IPv4 CIDR
+   */
+  public static String canonicalCidr(String cidr) {
+    final int slash = cidr.indexOf('/');
+    final String[] octets = (slash < 0 ? cidr : cidr.substring(0, slash)).split("\\.", -1);
+    if (octets.length != 4) {
+      return null;
+    }
+    try {
+      final int prefix = slash < 0 ? 32 : Integer.parseInt(cidr.substring(slash + 1));
+      if (prefix < 0 || prefix > 32) {
+        return null;
+      }
+      long address = 0;
+      for (final String octet : octets) {
+        final int value = Integer.parseInt(octet);
+        if (value < 0 || value > 255) {
+          return null;
+        }
+        address = address << 8 | value;
+      }
+      address &= prefix == 0 ? 0 : 0xffffffffL << (32 - prefix) & 0xffffffffL;
+      final String network = (address >> 24) + "." + (address >> 16 & 0xff) + "." + (address >> 8 & 0xff) + "."
+          + (address & 0xff);
+      return prefix == 32 ? network : network + "/" + prefix;
+    } catch (final NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return whether any of the rules allows an IPv6 CIDR, which the IPv4 chains and ipsets cannot hold
+   */
+  public static boolean hasIpv6Cidrs(IpPortAndProto[]... ruleSets) {
+    for (final IpPortAndProto[] rules : ruleSets) {
+      if (rules == null) {
+        continue;
+      }
+      for (final IpPortAndProto rule : rules) {
+        if (rule.getAllowedCidrs() == null) {
+          continue;
+        }
+        for (final String cidr : rule.getAllowedCidrs()) {
+          if (cidr.contains(":")) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  public SecurityGroupRuleset compile(String vmName, IpPortAndProto[] ingress, IpPortAndProto[] egress) {
+    final SecurityGroupRuleset ruleset = new SecurityGroupRuleset(vmName);
+    compile(ruleset, vmName, ingressChain(vmName), 'i', "src", "ACCEPT", ingress);
+    ruleset.addRule(ingressChain(vmName), "-j DROP");
+
+    final int egressRules = compile(ruleset, vmName, egressChain(vmName), 'e', "dst", "RETURN", egress);
+    // without egress rules all traffic from the VM is allowed, like security_group.py does
+    ruleset.addRule(egressChain(vmName), egressRules == 0 ? "-j RETURN" : "-j DROP");
+    return ruleset;
+  }
+
+  /**
+   * @return the number of rules of the security group, before merging
+   */
+  private int compile(SecurityGroupRuleset ruleset, String vmName, String chain, char direction, String flag,
+      String action, IpPortAndProto[] rules) {
+    if (rules == null) {
+      return 0;
+    }
+    final Map<String, Set<String>> cidrsByMatch = new LinkedHashMap<String, Set<String>>();
+    final Set<String> allowAny = new LinkedHashSet<String>();
+    for (final IpPortAndProto rule : rules) {
+      final String match = match(rule);
+      if (!cidrsByMatch.containsKey(match)) {
+        cidrsByMatch.put(match, new LinkedHashSet<String>());
+      }
+      if (rule.getAllowedCidrs() == null) {
+        continue;
+      }
+      for (final String cidr : rule.getAllowedCidrs()) {
+        // canonical, so the members compare equal to what ipset save prints
+        final String canonical = canonicalCidr(cidr);
+        if (canonical == null) {
+          logger.warn("Skipping " + cidr + " in the security group rules of " + vmName + ", it is not an IPv4 CIDR");
+        } else if (ANY.equals(canonical)) {
+          allowAny.add(match);
+        } else {
+          cidrsByMatch.get(match).add(canonical);
+        }
+      }
+    }
+
+    final Set<String> setNames = new LinkedHashSet<String>();
+    for (final Map.Entry<String, Set<String>> entry : cidrsByMatch.entrySet()) {
+      final String match = entry.getKey();
+      if (allowAny.contains(match)) {
+        ruleset.addRule(chain, match + "-j " + action);
+      } else if (!entry.getValue().isEmpty()) {
+        final String set = setName(vmName, direction, match, setNames);
+        for (final String cidr : entry.getValue()) {
+          ruleset.addSetMember(set, cidr);
+        }
+        ruleset.addRule(chain, match + "-m set --match-set " + set + " " + flag + " -j " + action);
+      }
+    }
+    return rules.length;
+  }
+
+  /**
+   * @return the protocol and port match of a rule, followed by a space
+   */
+  private String match(IpPortAndProto rule) {
+    final String proto = rule.getProto().toLowerCase();
+    if ("all".equals(proto)) {
+      return "-m state --state NEW ";
+    } else if ("icmp".equals(proto)) {
+      final String type;
+      if (rule.getStartPort() == -1) {
+        type = "any";
+      } else if (rule.getEndPort() == -1) {
+        type = String.valueOf(rule.getStartPort());
+      } else {
+        type = rule.getStartPort() + "/" + rule.getEndPort();
+      }
+      return "-p icmp -m icmp --icmp-type " + type + " ";
+    } else if (!"tcp".equals(proto) && !"udp".equals(proto)) {
+      return "-p " + proto + " -m state --state NEW ";
+    }
+    final String ports = rule.getStartPort() == rule.getEndPort() ? String.valueOf(rule.getStartPort())
+        : rule.getStartPort() + ":" + rule.getEndPort();
+    return "-p " + proto + " -m " + proto + " --dport " + ports + " -m state --state NEW ";
+  }
+
+  /**
+   * Names the ipset after the match it is used by, so the same rule keeps its ipset across updates.
+   */
+  private String setName(String vmName, char direction, String match, Set<String> taken) {
+    String seed = match;
+    while (true) {
+      final CRC32 crc = new CRC32();
+      crc.update(seed.getBytes(StandardCharsets.UTF_8));
+      final String name = setPrefix(vmName) + direction + String.format("%08x", crc.getValue());
+      if (taken.add(name)) {
+        return name;
+      }
+      seed = seed + "#";
+    }
+  }
+}
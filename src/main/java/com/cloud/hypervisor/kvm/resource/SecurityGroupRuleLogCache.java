@@ -0,0 +1,156 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the rule logs PingRoutingWithNwGroupsCommand reports, vm name to vm id and the seq of the programmed security
+ * group rules, in memory. It is updated whenever rules are programmed, so a ping does not need to run
+ * security_group.py get_rule_logs_for_vms.
+ *
+ * The rule logs are read from security_group.py once before the first ping and then again every resync interval in
+ * the background, to pick up changes made outside of the agent. Entries updated while a resync runs are kept.
+ */
+public class SecurityGroupRuleLogCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(SecurityGroupRuleLogCache.class);
+
+  private final Map<String, Pair<Long, Long>> ruleLogs = new ConcurrentHashMap<String, Pair<Long, Long>>();
+  /* when each vm was last updated, to keep updates that raced with a resync */
+  private final Map<String, Long> updated = new ConcurrentHashMap<String, Long>();
+  private final Callable<String> loader;
+  private final int resyncInterval;
+  private ScheduledExecutorService resyncer;
+  private volatile boolean loaded;
+
+  /**
+   * @param loader returns the output of get_rule_logs_for_vms, or null when it failed
+   * @param resyncInterval seconds between two full resyncs
+   */
+  public SecurityGroupRuleLogCache(Callable<String> loader, int resyncInterval) {
+    this.loader = loader;
+    this.resyncInterval = resyncInterval;
+  }
+
+  public synchronized void start() {
+    if (resyncer == null && resyncInterval > 0) {
+      resyncer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SecurityGroupRuleLogResync"));
+      resyncer.scheduleWithFixedDelay(new Resync(), resyncInterval, resyncInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  public synchronized void stop() {
+    if (resyncer != null) {
+      resyncer.shutdownNow();
+      resyncer = null;
+    }
+  }
+
+  public void update(String vmName, long vmId, long seqNum) {
+    updated.put(vmName, System.nanoTime());
+    ruleLogs.put(vmName, new Pair<Long, Long>(vmId, seqNum));
+  }
+
+  public void remove(String vmName) {
+    updated.put(vmName, System.nanoTime());
+    ruleLogs.remove(vmName);
+  }
+
+  /**
+   * Schedules a resync right away, after rules were changed outside of this cache.
+   */
+  public synchronized void requestResync() {
+    if (resyncer != null) {
+      resyncer.execute(new Resync());
+    } else {
+      loaded = false;
+    }
+  }
+
+  /**
+   * @return the rule logs for PingRoutingWithNwGroupsCommand
+   */
+  public HashMap<String, Pair<Long, Long>> getRuleLogs() {
+    if (!loaded) {
+      resync();
+    }
+    return new HashMap<String, Pair<Long, Long>>(ruleLogs);
+  }
+
+  synchronized void resync() {
+    final long started = System.nanoTime();
+    final String result;
+    try {
+      result = loader.call();
+    } catch (final Exception e) {
+      logger.warn("Failed to read the security group rule logs: " + e.toString());
+      return;
+    }
+    if (result == null) {
+      logger.warn("Failed to read the security group rule logs");
+      return;
+    }
+
+    final Map<String, Pair<Long, Long>> fresh = parse(result);
+    for (final Map.Entry<String, Pair<Long, Long>> entry : fresh.entrySet()) {
+      if (!isUpdatedSince(entry.getKey(), started)) {
+        ruleLogs.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (final String vmName : ruleLogs.keySet()) {
+      if (!fresh.containsKey(vmName) && !isUpdatedSince(vmName, started)) {
+        ruleLogs.remove(vmName);
+      }
+    }
+    for (final Map.Entry<String, Long> entry : updated.entrySet()) {
+      if (entry.getValue() - started < 0) {
+        updated.remove(entry.getKey());
+      }
+    }
+    loaded = true;
+    logger.debug("Resynced the security group rule logs of " + ruleLogs.size() + " vms");
+  }
+
+  private boolean isUpdatedSince(String vmName, long started) {
+    final Long time = updated.get(vmName);
+    return time != null && time - started >= 0;
+  }
+
+  /**
+   * Parses the output of get_rule_logs_for_vms, vm name, vm id, vm ip, domain id, signature and seq per vm.
+   */
+  static Map<String, Pair<Long, Long>> parse(String result) {
+    final Map<String, Pair<Long, Long>> states = new HashMap<String, Pair<Long, Long>>();
+    for (final String rulesforvm : result.split(";")) {
+      final String[] log = rulesforvm.split(",");
+      if (log.length != 6) {
+        continue;
+      }
+      try {
+        states.put(log[0], new Pair<Long, Long>(Long.parseLong(log[1]), Long.parseLong(log[5])));
+      } catch (final NumberFormatException nfe) {
+        states.put(log[0], new Pair<Long, Long>(-1L, -1L));
+      }
+    }
+    return states;
+  }
+
+  private class Resync extends ManagedContextRunnable {
+    @Override
+    protected void runInContext() {
+      resync();
+    }
+  }
+}
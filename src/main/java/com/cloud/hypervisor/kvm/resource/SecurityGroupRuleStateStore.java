@@ -0,0 +1,167 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers per VM which security group rules are programmed: the signature and sequence number of the last
+ * SecurityGroupRulesCmd that was applied, and a hash of its rules. The management server resends rules on every
+ * reconnect; a resend of what is programmed, or of rules older than what is programmed, does not need to touch the
+ * firewall.
+ *
+ * The state is kept in one file per VM, so it survives agent restarts, which is when most resends arrive.
+ */
+public class SecurityGroupRuleStateStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(SecurityGroupRuleStateStore.class);
+
+  static class State {
+    final String signature;
+    final long seqNum;
+    final String rulesHash;
+
+    State(String signature, long seqNum, String rulesHash) {
+      this.signature = signature;
+      this.seqNum = seqNum;
+      this.rulesHash = rulesHash;
+    }
+  }
+
+  private final File directory;
+  private final Map<String, State> states = new ConcurrentHashMap<String, State>();
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong identicalSkips = new AtomicLong();
+  private final AtomicLong staleSkips = new AtomicLong();
+
+  public SecurityGroupRuleStateStore(File directory) {
+    this.directory = directory;
+    load();
+  }
+
+  /**
+   * @return whether the rules need to be applied, false when they, or newer ones, are programmed already
+   */
+  public boolean needsApply(String vmName, String signature, long seqNum, String rulesHash) {
+    final State state = states.get(vmName);
+    if (state == null) {
+      return true;
+    }
+    if (seqNum < state.seqNum) {
+      staleSkips.incrementAndGet();
+      logger.debug("Skipping security group rules of vm " + vmName + " with seq " + seqNum + ", seq " + state.seqNum
+          + " is programmed");
+      return false;
+    }
+    if (seqNum == state.seqNum && state.signature.equals(signature) && state.rulesHash.equals(rulesHash)) {
+      identicalSkips.incrementAndGet();
+      logger.debug("Skipping security group rules of vm " + vmName + " with seq " + seqNum
+          + ", they are programmed already");
+      return false;
+    }
+    return true;
+  }
+
+  public void programmed(String vmName, String signature, long seqNum, String rulesHash) {
+    applied.incrementAndGet();
+    final State state = new State(signature, seqNum, rulesHash);
+    states.put(vmName, state);
+    persist(vmName, state);
+  }
+
+  /**
+   * Forgets the rules of the VM, after its chains were rebuilt or removed.
+   */
+  public void invalidate(String vmName) {
+    if (states.remove(vmName) != null) {
+      final File file = new File(directory, vmName);
+      if (!file.delete() && file.exists()) {
+        logger.warn("Failed to remove security group rule state " + file);
+      }
+    }
+  }
+
+  public long getAppliedCount() {
+    return applied.get();
+  }
+
+  public long getIdenticalSkipCount() {
+    return identicalSkips.get();
+  }
+
+  public long getStaleSkipCount() {
+    return staleSkips.get();
+  }
+
+  /**
+   * @return a hash of everything a SecurityGroupRulesCmd programs besides its signature and seq
+   */
+  public static String hashRules(String guestIp, String guestMac, String rules, String secIps) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (final String part : new String[] { guestIp, guestMac, rules, secIps }) {
+        digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+      }
+      final StringBuilder hash = new StringBuilder();
+      for (final byte b : digest.digest()) {
+        hash.append(String.format("%02x", b));
+      }
+      return hash.toString();
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private void load() {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (final File file : files) {
+      if (!file.isFile() || file.getName().endsWith(".tmp")) {
+        continue;
+      }
+      try {
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        final String[] tokens = lines.isEmpty() ? new String[0] : lines.get(0).split("\t");
+        if (tokens.length == 3) {
+          states.put(file.getName(), new State(tokens[0], Long.parseLong(tokens[1]), tokens[2]));
+        } else {
+          logger.warn("Ignoring malformed security group rule state " + file);
+        }
+      } catch (final IOException | NumberFormatException e) {
+        logger.warn("Failed to read security group rule state " + file + ": " + e.toString());
+      }
+    }
+    logger.info("Loaded the security group rule state of " + states.size() + " vms from " + directory);
+  }
+
+  private void persist(String vmName, State state) {
+    if (!directory.exists() && !directory.mkdirs()) {
+      logger.warn("Failed to create directory " + directory + " for the security group rule state");
+      return;
+    }
+    final File file = new File(directory, vmName);
+    final File tmp = new File(directory, vmName + ".tmp");
+    try {
+      Files.write(tmp.toPath(), (state.signature + "\t" + state.seqNum + "\t" + state.rulesHash + "\n")
+          .getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (final IOException e) {
+      // only costs a reapply of the rules after a restart
+      logger.warn("Failed to write security group rule state " + file + ": " + e.toString());
+    }
+  }
+}
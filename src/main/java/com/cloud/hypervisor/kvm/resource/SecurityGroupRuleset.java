@@ -0,0 +1,193 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The iptables chains and ipsets that hold the security group rules of one VM, as compiled by
+ * SecurityGroupRuleCompiler or as read back from iptables-save and ipset save.
+ *
+ * Rules are kept in the form iptables-save prints them, so that a ruleset read from the kernel compares equal to the
+ * compiled one when nothing changed.
+ */
+public class SecurityGroupRuleset {
+
+  private final String vmName;
+  private final Map<String, List<String>> chains = new LinkedHashMap<String, List<String>>();
+  private final Map<String, Set<String>> sets = new LinkedHashMap<String, Set<String>>();
+
+  public SecurityGroupRuleset(String vmName) {
+    this.vmName = vmName;
+  }
+
+  public String getVmName() {
+    return vmName;
+  }
+
+  public Map<String, List<String>> getChains() {
+    return Collections.unmodifiableMap(chains);
+  }
+
+  public Map<String, Set<String>> getSets() {
+    return Collections.unmodifiableMap(sets);
+  }
+
+  void addChain(String chain) {
+    if (!chains.containsKey(chain)) {
+      chains.put(chain, new ArrayList<String>());
+    }
+  }
+
+  void addRule(String chain, String rule) {
+    addChain(chain);
+    chains.get(chain).add("-A " + chain + " " + rule);
+  }
+
+  void addSet(String set) {
+    if (!sets.containsKey(set)) {
+      sets.put(set, new LinkedHashSet<String>());
+    }
+  }
+
+  void addSetMember(String set, String member) {
+    addSet(set);
+    sets.get(set).add(member);
+  }
+
+  /**
+   * Reads the chains and ipsets of a VM back from the output of "iptables-save -t filter" and "ipset save".
+   */
+  public static SecurityGroupRuleset parse(String vmName, List<String> iptablesSave, List<String> ipsetSave) {
+    final SecurityGroupRuleset ruleset = new SecurityGroupRuleset(vmName);
+    final String ingress = SecurityGroupRuleCompiler.ingressChain(vmName);
+    final String egress = SecurityGroupRuleCompiler.egressChain(vmName);
+    for (final String line : iptablesSave) {
+      if (line.startsWith(":" + ingress + " ") || line.startsWith(":" + egress + " ")) {
+        ruleset.addChain(line.substring(1, line.indexOf(' ')));
+      } else if (line.startsWith("-A " + ingress + " ") || line.startsWith("-A " + egress + " ")) {
+        final String chain = line.substring(3, line.indexOf(' ', 3));
+        ruleset.addChain(chain);
+        ruleset.chains.get(chain).add(line.trim());
+      }
+    }
+
+    for (final String line : ipsetSave) {
+      final String[] fields = line.trim().split(" ");
+      if (fields.length < 2 || !SecurityGroupRuleCompiler.isSetOf(vmName, fields[1])) {
+        continue;
+      }
+      if ("create".equals(fields[0])) {
+        ruleset.addSet(fields[1]);
+      } else if ("add".equals(fields[0]) && fields.length > 2) {
+        final String member = SecurityGroupRuleCompiler.canonicalCidr(fields[2]);
+        ruleset.addSetMember(fields[1], member != null ? member : fields[2]);
+      }
+    }
+    return ruleset;
+  }
+
+  /**
+   * @return the changes that turn current into this ruleset, current may be null when nothing is known about it
+   */
+  public Transaction diff(SecurityGroupRuleset current) {
+    final Map<String, List<String>> currentChains = current != null ? current.chains
+        : Collections.<String, List<String>>emptyMap();
+    final Map<String, Set<String>> currentSets = current != null ? current.sets
+        : Collections.<String, Set<String>>emptyMap();
+
+    final StringBuilder ipsets = new StringBuilder();
+    for (final Map.Entry<String, Set<String>> set : sets.entrySet()) {
+      final Set<String> members = currentSets.get(set.getKey());
+      if (members == null) {
+        ipsets.append("create ").append(set.getKey()).append(" hash:net family inet -exist\n");
+        ipsets.append("flush ").append(set.getKey()).append('\n');
+      }
+      for (final String member : set.getValue()) {
+        if (members == null || !members.contains(member)) {
+          ipsets.append("add ").append(set.getKey()).append(' ').append(member).append(" -exist\n");
+        }
+      }
+      if (members != null) {
+        for (final String member : members) {
+          if (!set.getValue().contains(member)) {
+            ipsets.append("del ").append(set.getKey()).append(' ').append(member).append(" -exist\n");
+          }
+        }
+      }
+    }
+
+    final StringBuilder iptables = new StringBuilder();
+    for (final Map.Entry<String, List<String>> chain : chains.entrySet()) {
+      if (chain.getValue().equals(currentChains.get(chain.getKey()))) {
+        continue;
+      }
+      // iptables-restore --noflush creates a listed chain, or flushes it when it exists
+      iptables.append(':').append(chain.getKey()).append(" - [0:0]\n");
+      for (final String rule : chain.getValue()) {
+        iptables.append(rule).append('\n');
+      }
+    }
+    if (iptables.length() > 0) {
+      iptables.insert(0, "*filter\n").append("COMMIT\n");
+    }
+
+    final StringBuilder destroy = new StringBuilder();
+    for (final String set : currentSets.keySet()) {
+      if (!sets.containsKey(set)) {
+        destroy.append("destroy ").append(set).append('\n');
+      }
+    }
+    return new Transaction(ipsets.toString(), iptables.toString(), destroy.toString());
+  }
+
+  /**
+   * The changes to one ruleset, applied in three steps: the ipsets are filled before the rules that match on them are
+   * loaded, and ipsets are destroyed only after no rule refers to them any more.
+   */
+  public static class Transaction {
+    private final String ipsets;
+    private final String iptables;
+    private final String destroyIpsets;
+
+    Transaction(String ipsets, String iptables, String destroyIpsets) {
+      this.ipsets = ipsets;
+      this.iptables = iptables;
+      this.destroyIpsets = destroyIpsets;
+    }
+
+    /**
+     * @return input for "ipset restore"
+     */
+    public String getIpsets() {
+      return ipsets;
+    }
+
+    /**
+     * @return input for "iptables-restore --noflush"
+     */
+    public String getIptables() {
+      return iptables;
+    }
+
+    /**
+     * @return input for "ipset restore", to run after the iptables rules are loaded
+     */
+    public String getDestroyIpsets() {
+      return destroyIpsets;
+    }
+
+    public boolean isEmpty() {
+      return ipsets.isEmpty() && iptables.isEmpty() && destroyIpsets.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+      return ipsets + iptables + destroyIpsets;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Structure;
+
+/**
+ * A stream socket connected to a unix domain socket, like the one of the local ovsdb-server, bound to libc through
+ * JNA as the JDK has no unix domain sockets.
+ */
+public class UnixDomainSocket implements Closeable {
+
+  private static final int AF_UNIX = 1;
+  private static final int SOCK_STREAM = 1;
+  private static final int SHUT_RDWR = 2;
+
+  interface CLibrary extends Library {
+    int socket(int domain, int type, int protocol) throws LastErrorException;
+
+    int connect(int sockfd, SockaddrUn addr, int addrlen) throws LastErrorException;
+
+    NativeLong read(int fd, byte[] buf, NativeLong count) throws LastErrorException;
+
+    NativeLong write(int fd, byte[] buf, NativeLong count) throws LastErrorException;
+
+    int shutdown(int sockfd, int how) throws LastErrorException;
+
+    int close(int fd) throws LastErrorException;
+  }
+
+  /**
+   * struct sockaddr_un
+   */
+  public static class SockaddrUn extends Structure {
+    public short sun_family;
+    public byte[] sun_path = new byte[108];
+
+    @Override
+    protected List<String> getFieldOrder() {
+      return Arrays.asList("sun_family", "sun_path");
+    }
+  }
+
+  private static CLibrary library;
+
+  private final int fd;
+  private final InputStream in = new SocketInputStream();
+  private final OutputStream out = new SocketOutputStream();
+  private volatile boolean closed;
+
+  private UnixDomainSocket(int fd) {
+    this.fd = fd;
+  }
+
+  public static UnixDomainSocket connect(String path) throws IOException {
+    final CLibrary library = library();
+    final byte[] name = path.getBytes(StandardCharsets.UTF_8);
+    final SockaddrUn address = new SockaddrUn();
+    if (name.length >= address.sun_path.length) {
+      throw new IOException("Socket path " + path + " is too long");
+    }
+    address.sun_family = AF_UNIX;
+    System.arraycopy(name, 0, address.sun_path, 0, name.length);
+
+    final int fd;
+    try {
+      fd = library.socket(AF_UNIX, SOCK_STREAM, 0);
+    } catch (final LastErrorException e) {
+      throw new IOException("Unable to create a unix domain socket: " + e.getMessage());
+    }
+    try {
+      library.connect(fd, address, address.size());
+    } catch (final LastErrorException e) {
+      library.close(fd);
+      throw new IOException("Unable to connect to " + path + ": " + e.getMessage());
+    }
+    return new UnixDomainSocket(fd);
+  }
+
+  public InputStream getInputStream() {
+    return in;
+  }
+
+  public OutputStream getOutputStream() {
+    return out;
+  }
+
+  /**
+   * Closes the socket, a read blocked on it returns end of stream.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      library.shutdown(fd, SHUT_RDWR);
+    } catch (final LastErrorException e) {
+      // not connected anymore
+    }
+    try {
+      library.close(fd);
+    } catch (final LastErrorException e) {
+      throw new IOException("Unable to close unix domain socket: " + e.getMessage());
+    }
+  }
+
+  private static synchronized CLibrary library() throws IOException {
+    if (library == null) {
+      try {
+        library = (CLibrary) Native.loadLibrary("c", CLibrary.class);
+      } catch (final UnsatisfiedLinkError e) {
+        throw new IOException("Unable to bind to libc for unix domain sockets: " + e.getMessage());
+      }
+    }
+    return library;
+  }
+
+  private class SocketInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        return -1;
+      }
+      final byte[] buffer = off == 0 ? b : new byte[len];
+      final long read;
+      try {
+        read = library.read(fd, buffer, new NativeLong(len)).longValue();
+      } catch (final LastErrorException e) {
+        if (closed) {
+          return -1;
+        }
+        throw new IOException("Unable to read from unix domain socket: " + e.getMessage());
+      }
+      if (read <= 0) {
+        return -1;
+      }
+      if (buffer != b) {
+        System.arraycopy(buffer, 0, b, off, (int) read);
+      }
+      return (int) read;
+    }
+  }
+
+  private class SocketOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      byte[] remaining = off == 0 && len == b.length ? b : Arrays.copyOfRange(b, off, off + len);
+      while (remaining.length > 0) {
+        if (closed) {
+          throw new IOException("Unix domain socket is closed");
+        }
+        final int written;
+        try {
+          written = library.write(fd, remaining, new NativeLong(remaining.length)).intValue();
+        } catch (final LastErrorException e) {
+          throw new IOException("Unable to write to unix domain socket: " + e.getMessage());
+        }
+        remaining = Arrays.copyOfRange(remaining, written, remaining.length);
+      }
+    }
+  }
+}
@@ -20,4 +20,9 @@ public interface VifDriver {
 
   public void unplug(LibvirtVmDef.InterfaceDef iface);
 
+  /**
+   * Stops the background work of the driver, when the resource stops.
+   */
+  public void stop();
+
 }
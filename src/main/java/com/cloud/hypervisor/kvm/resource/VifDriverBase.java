@@ -30,6 +30,10 @@ public abstract class VifDriverBase implements VifDriver {
   @Override
   public abstract void unplug(LibvirtVmDef.InterfaceDef iface);
 
+  @Override
+  public void stop() {
+  }
+
   protected LibvirtVmDef.InterfaceDef.NicModel getGuestNicModel(String platformEmulator, String nicAdapter) {
     // if nicAdapter is found in ENUM, use it. Otherwise, match guest OS type as before
     if (nicAdapter != null && !nicAdapter.isEmpty()) {
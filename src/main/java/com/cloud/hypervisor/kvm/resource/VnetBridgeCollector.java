@@ -0,0 +1,181 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the NICs plugged into each vNet bridge and removes bridges that stayed idle for a while in the background, so
+ * stopping or migrating a VM does not wait for bridges to be torn down, and a VM that is stopped and started again
+ * finds its bridge in place.
+ *
+ * The counts are fed by plug and unplug, and reconciled with the bridges the running domains are attached to: counts
+ * that did not change for the removal delay are replaced by what the domains use, which corrects plugs that were never
+ * followed by an unplug, like a failed incoming migration. A bridge is only removed when it is idle by both counts.
+ */
+public class VnetBridgeCollector {
+
+  private static final Logger logger = LoggerFactory.getLogger(VnetBridgeCollector.class);
+
+  public interface Topology {
+    /**
+     * @return the number of NICs of running domains per bridge
+     */
+    Map<String, Integer> getBridgesInUse() throws Exception;
+  }
+
+  public interface BridgeRemover {
+    /**
+     * @return whether the bridge is gone
+     */
+    boolean remove(String bridge);
+  }
+
+  private static class Tracked {
+    int references;
+    long changed;
+
+    Tracked(long now) {
+      changed = now;
+    }
+  }
+
+  private final Map<String, Tracked> bridges = new HashMap<String, Tracked>();
+  private final Topology topology;
+  private final BridgeRemover remover;
+  private final long delayMs;
+  private ScheduledExecutorService collector;
+
+  /**
+   * @param delayMs how long a bridge stays idle before it is removed
+   */
+  public VnetBridgeCollector(Topology topology, BridgeRemover remover, long delayMs) {
+    this.topology = topology;
+    this.remover = remover;
+    this.delayMs = delayMs;
+  }
+
+  public synchronized void start() {
+    if (collector == null) {
+      final long interval = Math.max(1000L, Math.min(delayMs, 60000L));
+      collector = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("VnetBridgeCollector"));
+      collector.scheduleWithFixedDelay(new Collect(), interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized void stop() {
+    if (collector != null) {
+      collector.shutdownNow();
+      collector = null;
+    }
+  }
+
+  public synchronized void acquire(String bridge) {
+    Tracked tracked = bridges.get(bridge);
+    if (tracked == null) {
+      tracked = new Tracked(now());
+      bridges.put(bridge, tracked);
+    }
+    tracked.references++;
+    tracked.changed = now();
+  }
+
+  /**
+   * Drops a reference to the bridge, starting to track it when it is not known yet, after an agent restart.
+   */
+  public synchronized void release(String bridge) {
+    Tracked tracked = bridges.get(bridge);
+    if (tracked == null) {
+      tracked = new Tracked(now());
+      bridges.put(bridge, tracked);
+    }
+    if (tracked.references > 0) {
+      tracked.references--;
+    }
+    tracked.changed = now();
+  }
+
+  public synchronized int getReferences(String bridge) {
+    final Tracked tracked = bridges.get(bridge);
+    return tracked != null ? tracked.references : 0;
+  }
+
+  /**
+   * @return whether the bridge may be removed, checked again under the bridge lock right before it is
+   */
+  public synchronized boolean isIdle(String bridge) {
+    final Tracked tracked = bridges.get(bridge);
+    return tracked != null && tracked.references == 0 && now() - tracked.changed >= delayMs;
+  }
+
+  /**
+   * Reconciles the counts with the running domains and removes the bridges that are idle.
+   */
+  void collect() {
+    final Map<String, Integer> inUse;
+    try {
+      inUse = topology.getBridgesInUse();
+    } catch (final Exception e) {
+      // never remove a bridge without knowing what the domains use
+      logger.warn("Unable to read the bridges of the running domains, not collecting bridges: " + e.toString());
+      return;
+    }
+
+    final List<String> idle = new ArrayList<String>();
+    synchronized (this) {
+      final long now = now();
+      for (final Map.Entry<String, Tracked> entry : bridges.entrySet()) {
+        final Tracked tracked = entry.getValue();
+        final Integer used = inUse.get(entry.getKey());
+        final int references = used != null ? used : 0;
+        if (now - tracked.changed < delayMs) {
+          continue;
+        }
+        if (tracked.references != references) {
+          logger.debug("Reconciled the references of bridge " + entry.getKey() + " from " + tracked.references
+              + " to " + references);
+          tracked.references = references;
+          if (references == 0) {
+            tracked.changed = now;
+            continue;
+          }
+        }
+        if (references == 0) {
+          idle.add(entry.getKey());
+        }
+      }
+    }
+
+    for (final String bridge : idle) {
+      if (remover.remove(bridge)) {
+        synchronized (this) {
+          final Tracked tracked = bridges.get(bridge);
+          if (tracked != null && tracked.references == 0) {
+            bridges.remove(bridge);
+          }
+        }
+      }
+    }
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private class Collect extends ManagedContextRunnable {
+    @Override
+    protected void runInContext() {
+      collect();
+    }
+  }
+}
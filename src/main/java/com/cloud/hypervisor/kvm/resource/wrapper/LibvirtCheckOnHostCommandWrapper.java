@@ -1,16 +1,12 @@
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.CheckOnHostCommand;
 import com.cloud.agent.api.to.HostTO;
 import com.cloud.agent.api.to.NetworkTO;
-import com.cloud.hypervisor.kvm.resource.KvmHaBase.NfsStoragePool;
+import com.cloud.hypervisor.kvm.resource.HeartbeatBackend;
 import com.cloud.hypervisor.kvm.resource.KvmHaChecker;
 import com.cloud.hypervisor.kvm.resource.KvmHaMonitor;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
@@ -23,17 +19,15 @@ public final class LibvirtCheckOnHostCommandWrapper
 
   @Override
   public Answer execute(final CheckOnHostCommand command, final LibvirtComputingResource libvirtComputingResource) {
-    final ExecutorService executors = Executors.newSingleThreadExecutor();
     final KvmHaMonitor monitor = libvirtComputingResource.getMonitor();
 
-    final List<NfsStoragePool> pools = monitor.getStoragePools();
+    final List<HeartbeatBackend> pools = monitor.getHeartbeatBackends();
     final HostTO host = command.getHost();
     final NetworkTO privateNetwork = host.getPrivateNetwork();
-    final KvmHaChecker ha = new KvmHaChecker(pools, privateNetwork.getIp());
+    final KvmHaChecker ha = new KvmHaChecker(pools, privateNetwork.getIp(), monitor.getCheckerExecutor());
 
-    final Future<Boolean> future = executors.submit(ha);
     try {
-      final Boolean result = future.get();
+      final Boolean result = ha.call();
       if (result) {
         return new Answer(command, false, "Heart is still beating...");
       } else {
@@ -41,8 +35,6 @@ public final class LibvirtCheckOnHostCommandWrapper
       }
     } catch (final InterruptedException e) {
       return new Answer(command, false, "can't get status of host:");
-    } catch (final ExecutionException e) {
-      return new Answer(command, false, "can't get status of host:");
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package com.cloud.hypervisor.kvm.resource.wrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.CheckVmDiskActivityAnswer;
+import com.cloud.agent.api.CheckVmDiskActivityCommand;
+import com.cloud.hypervisor.kvm.resource.DiskActivityProbe;
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.storage.KvmPhysicalDisk;
+import com.cloud.hypervisor.kvm.storage.KvmStoragePoolManager;
+import com.cloud.resource.CommandWrapper;
+import com.cloud.resource.ResourceWrapper;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@ResourceWrapper(handles = CheckVmDiskActivityCommand.class)
+public final class LibvirtCheckVmDiskActivityCommandWrapper
+    extends CommandWrapper<CheckVmDiskActivityCommand, Answer, LibvirtComputingResource> {
+
+  private static final Logger s_logger = LoggerFactory.getLogger(LibvirtCheckVmDiskActivityCommandWrapper.class);
+
+  @Override
+  public Answer execute(final CheckVmDiskActivityCommand command,
+      final LibvirtComputingResource libvirtComputingResource) {
+    final KvmStoragePoolManager storagePoolMgr = libvirtComputingResource.getStoragePoolMgr();
+    final List<KvmPhysicalDisk> disks = new ArrayList<KvmPhysicalDisk>();
+    for (final CheckVmDiskActivityCommand.Disk disk : command.getDisks()) {
+      try {
+        disks.add(storagePoolMgr.getPhysicalDisk(disk.getPoolType(), disk.getPoolUuid(), disk.getPath()));
+      } catch (final CloudRuntimeException e) {
+        s_logger.debug("Unable to find disk " + disk.getPath() + " of " + command.getVmName() + ": " + e.getMessage());
+      }
+    }
+
+    try {
+      final DiskActivityProbe.Activity activity = libvirtComputingResource.getDiskActivityProbe().probe(disks);
+      s_logger.debug("Disks of " + command.getVmName() + " are " + activity);
+      if (activity == DiskActivityProbe.Activity.UNKNOWN) {
+        return new CheckVmDiskActivityAnswer(command, "Unable to tell whether the disks of " + command.getVmName()
+            + " are in use");
+      }
+      return new CheckVmDiskActivityAnswer(command, activity == DiskActivityProbe.Activity.ACTIVE, activity.toString());
+    } catch (final InterruptedException e) {
+      return new CheckVmDiskActivityAnswer(command, "Interrupted while probing the disks of " + command.getVmName());
+    }
+  }
+}
@@ -25,7 +25,9 @@ public final class LibvirtDestroyCommandWrapper
     try {
       final KvmStoragePoolManager storagePoolMgr = libvirtComputingResource.getStoragePoolMgr();
       final KvmStoragePool pool = storagePoolMgr.getStoragePool(vol.getPoolType(), vol.getPoolUuid());
-      pool.deletePhysicalDisk(vol.getPath(), null);
+      if (!storagePoolMgr.enqueuePhysicalDiskDeletion(pool, vol.getPath(), null)) {
+        pool.deletePhysicalDisk(vol.getPath(), null);
+      }
       return new Answer(command, true, "Success");
     } catch (final CloudRuntimeException e) {
       s_logger.debug("Failed to delete volume: " + e.toString());
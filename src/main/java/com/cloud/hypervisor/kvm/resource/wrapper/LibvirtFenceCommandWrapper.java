@@ -1,15 +1,11 @@
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.FenceAnswer;
 import com.cloud.agent.api.FenceCommand;
-import com.cloud.hypervisor.kvm.resource.KvmHaBase.NfsStoragePool;
+import com.cloud.hypervisor.kvm.resource.HeartbeatBackend;
 import com.cloud.hypervisor.kvm.resource.KvmHaChecker;
 import com.cloud.hypervisor.kvm.resource.KvmHaMonitor;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
@@ -26,27 +22,25 @@ public final class LibvirtFenceCommandWrapper extends CommandWrapper<FenceComman
 
   @Override
   public Answer execute(final FenceCommand command, final LibvirtComputingResource libvirtComputingResource) {
-    final ExecutorService executors = Executors.newSingleThreadExecutor();
     final KvmHaMonitor monitor = libvirtComputingResource.getMonitor();
 
-    final List<NfsStoragePool> pools = monitor.getStoragePools();
+    final List<HeartbeatBackend> pools = monitor.getHeartbeatBackends();
 
     /**
-     * We can only safely fence off hosts when we use NFS On NFS primary storage pools hosts continuesly write a
-     * heartbeat. Disable Fencing Off for hosts without NFS
+     * We can only safely fence off hosts when they continuously write a heartbeat, to NFS primary storage pools or to
+     * RBD pools with ha.rbd.heartbeat enabled. Disable Fencing Off for hosts without any
      */
     if (pools.size() == 0) {
-      final String logline = "No NFS storage pools found. No way to safely fence " + command.getVmName() + " on host "
-          + command.getHostGuid();
+      final String logline = "No NFS or RBD heartbeat storage pools found. No way to safely fence "
+          + command.getVmName() + " on host " + command.getHostGuid();
       s_logger.warn(logline);
       return new FenceAnswer(command, false, logline);
     }
 
-    final KvmHaChecker ha = new KvmHaChecker(pools, command.getHostIp());
+    final KvmHaChecker ha = new KvmHaChecker(pools, command.getHostIp(), monitor.getCheckerExecutor());
 
-    final Future<Boolean> future = executors.submit(ha);
     try {
-      final Boolean result = future.get();
+      final Boolean result = ha.call();
       if (result) {
         return new FenceAnswer(command, false, "Heart is still beating...");
       } else {
@@ -55,9 +49,6 @@ public final class LibvirtFenceCommandWrapper extends CommandWrapper<FenceComman
     } catch (final InterruptedException e) {
       s_logger.warn("Unable to fence", e);
       return new FenceAnswer(command, false, e.getMessage());
-    } catch (final ExecutionException e) {
-      s_logger.warn("Unable to fence", e);
-      return new FenceAnswer(command, false, e.getMessage());
     }
   }
 }
\ No newline at end of file
@@ -14,6 +14,7 @@ import com.cloud.resource.ResourceWrapper;
 import com.cloud.utils.Pair;
 
 import org.apache.cloudstack.utils.linux.CpuStat;
+import org.apache.cloudstack.utils.linux.HostMetricsSampler;
 import org.apache.cloudstack.utils.linux.MemStat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +27,15 @@ public final class LibvirtGetHostStatsCommandWrapper
 
   @Override
   public Answer execute(final GetHostStatsCommand command, final LibvirtComputingResource libvirtComputingResource) {
+    final HostMetricsSampler sampler = libvirtComputingResource.getHostMetricsSampler();
+    if (sampler != null && sampler.hasSamples()) {
+      final String publicNic = libvirtComputingResource.getPublicBridgeName();
+      final HostStatsEntry hostStats = new HostStatsEntry(command.getHostId(), sampler.getCpuUsedPercent(),
+          sampler.getNicRxBytes(publicNic) / 1024, sampler.getNicTxBytes(publicNic) / 1024, "host",
+          sampler.getMemTotalKb(), sampler.getMemAvailableKb(), 0, 0);
+      return new GetHostStatsAnswer(command, hostStats);
+    }
+
     CpuStat cpuStat = libvirtComputingResource.getCpuStat();
     MemStat memStat = libvirtComputingResource.getMemStat();
 
@@ -1,7 +1,7 @@
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -13,16 +13,23 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.MigrateAnswer;
 import com.cloud.agent.api.MigrateCommand;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainXmlRewriter;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.DiskDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtMigrationApi;
 import com.cloud.hypervisor.kvm.resource.MigrateKvmAsync;
+import com.cloud.hypervisor.kvm.resource.MigrationJobStats;
+import com.cloud.hypervisor.kvm.resource.MigrationMonitor;
+import com.cloud.hypervisor.kvm.resource.MigrationPostCopyPolicy;
+import com.cloud.hypervisor.kvm.resource.MigrationScheduler;
+import com.cloud.hypervisor.kvm.resource.MigrationTuning;
 import com.cloud.hypervisor.kvm.resource.VifDriver;
 import com.cloud.resource.CommandWrapper;
 import com.cloud.resource.ResourceWrapper;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 import org.libvirt.Connect;
 import org.libvirt.Domain;
-import org.libvirt.DomainInfo.DomainState;
 import org.libvirt.LibvirtException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,11 +40,16 @@ public final class LibvirtMigrateCommandWrapper
 
   private static final Logger s_logger = LoggerFactory.getLogger(LibvirtMigrateCommandWrapper.class);
 
+  private static final int DEFAULT_MONITOR_INTERVAL = 1000;
+  private static final ExecutorService MIGRATION_EXECUTOR = Executors.newCachedThreadPool(
+      new NamedThreadFactory("MigrateKvmAsync"));
+
   @Override
   public Answer execute(final MigrateCommand command, final LibvirtComputingResource libvirtComputingResource) {
     final String vmName = command.getVmName();
 
     String result = null;
+    boolean migrationFailed = false;
 
     List<InterfaceDef> ifaces = null;
     List<DiskDef> disks = null;
@@ -47,6 +59,9 @@ public final class LibvirtMigrateCommandWrapper
     Domain destDomain = null;
     Connect conn = null;
     String xmlDesc = null;
+    MigrationMonitor monitor = null;
+    MigrationScheduler scheduler = null;
+    MigrationScheduler.Ticket ticket = null;
     try {
       final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
 
@@ -72,57 +87,76 @@ public final class LibvirtMigrateCommandWrapper
        */
       final int xmlFlag = conn.getLibVirVersion() >= 1000000 ? 8 : 1; // 1000000 equals v1.0.0
 
-      xmlDesc = dm.getXMLDesc(xmlFlag).replace(libvirtComputingResource.getPrivateIp(), command.getDestinationIp());
+      xmlDesc = new LibvirtDomainXmlRewriter()
+          .replaceGraphicsListen(libvirtComputingResource.getPrivateIp(), command.getDestinationIp())
+          .removeHostPlacement()
+          .rewrite(dm.getXMLDesc(xmlFlag));
 
-      dconn = libvirtUtilitiesHelper.retrieveQemuConnection("qemu+tcp://" + command.getDestinationIp() + "/system");
+      final long memory = command.getVirtualMachine() != null ? command.getVirtualMachine().getMaxRam() : 0;
+      int bandwidth = libvirtComputingResource.getMigrateSpeed();
+      final String destinationUri = "qemu+tcp://" + command.getDestinationIp() + "/system";
+      scheduler = libvirtComputingResource.getMigrationScheduler();
+      if (scheduler != null) {
+        ticket = scheduler.acquire(vmName, command.getDestinationIp(), memory, bandwidth,
+            libvirtComputingResource.getMigrateQueueTimeout());
+        if (ticket == null) {
+          throw new TimeoutException("Timed out waiting for a migration slot to " + command.getDestinationIp());
+        }
+        bandwidth = ticket.getBandwidth();
+        dconn = scheduler.getConnection(ticket, destinationUri, libvirtUtilitiesHelper);
+      } else {
+        dconn = libvirtUtilitiesHelper.retrieveQemuConnection(destinationUri);
+      }
 
       // run migration in thread so we can monitor it
       s_logger.info("Live migration of instance " + vmName + " initiated");
-      final ExecutorService executor = Executors.newFixedThreadPool(1);
-      final Callable<Domain> worker = new MigrateKvmAsync(libvirtComputingResource, dm, dconn, xmlDesc, vmName,
-          command.getDestinationIp());
-      final Future<Domain> migrateThread = executor.submit(worker);
-      executor.shutdown();
-      long sleeptime = 0;
-      while (!executor.isTerminated()) {
-        Thread.sleep(100);
-        sleeptime += 100;
-        if (sleeptime == 1000) {
-          final int migrateDowntime = libvirtComputingResource.getMigrateDowntime();
-          if (migrateDowntime > 0) {
-            try {
-              final int setDowntime = dm.migrateSetMaxDowntime(migrateDowntime);
-              if (setDowntime == 0) {
-                s_logger.debug(
-                    "Set max downtime for migration of " + vmName + " to " + String.valueOf(migrateDowntime) + "ms");
-              }
-            } catch (final LibvirtException e) {
-              s_logger.debug(
-                  "Failed to set max downtime for migration, perhaps migration completed? Error: " + e.getMessage());
-            }
-          }
-        }
-        if (sleeptime % 1000 == 0) {
-          s_logger.info("Waiting for migration of " + vmName + " to complete, waited " + sleeptime + "ms");
-        }
+      MigrationPostCopyPolicy postCopyPolicy = libvirtComputingResource.getMigratePostCopyPolicy();
+      if (postCopyPolicy == null) {
+        postCopyPolicy = MigrationPostCopyPolicy.DISABLED;
+      }
+      if (command.getVirtualMachine() != null) {
+        postCopyPolicy = MigrationPostCopyPolicy.fromDetails(command.getVirtualMachine().getDetails(), postCopyPolicy);
+      }
+      MigrationTuning tuning = libvirtComputingResource.getMigrationTuning(memory);
+      if (tuning == null) {
+        tuning = MigrationTuning.DEFAULT;
+      }
+      s_logger.debug("Migrating " + vmName + " with " + tuning + " " + postCopyPolicy + " bandwidth=" + bandwidth
+          + "MiB/s");
 
-        // pause vm if we meet the vm.migrate.pauseafter threshold and not already paused
-        final int migratePauseAfter = libvirtComputingResource.getMigratePauseAfter();
-        if (migratePauseAfter > 0 && sleeptime > migratePauseAfter
-            && dm.getInfo().state == DomainState.VIR_DOMAIN_RUNNING) {
-          s_logger.info("Pausing VM " + vmName + " due to property vm.migrate.pauseafter setting to "
-              + migratePauseAfter + "ms to complete migration");
+      final MigrateKvmAsync worker = new MigrateKvmAsync(libvirtComputingResource, dm, dconn, xmlDesc, vmName,
+          command.getDestinationIp(), postCopyPolicy.isEnabled(), tuning, bandwidth);
+      if (libvirtComputingResource.isMigrateNonSharedDisks()) {
+        worker.setNonSharedDisks(getLocalDisks(disks, libvirtComputingResource.getLocalStoragePath()));
+      }
+      final Future<Domain> migrateThread = MIGRATION_EXECUTOR.submit(worker);
+      monitor = new MigrationMonitor(vmName, dm, libvirtComputingResource.getLibvirtMigrationApi(),
+          libvirtComputingResource.getMigrateDowntime(), libvirtComputingResource.getMigrateDowntimeMax(),
+          libvirtComputingResource.getMigrateDowntimeStep(), bandwidth,
+          libvirtComputingResource.getMigrateSpeedMax(), libvirtComputingResource.getMigratePauseAfter());
+      monitor.setPostCopyPolicy(postCopyPolicy);
+      if (ticket != null) {
+        scheduler.attach(ticket, monitor);
+      }
+      final int interval = libvirtComputingResource.getMigrateMonitorInterval() > 0
+          ? libvirtComputingResource.getMigrateMonitorInterval() : DEFAULT_MONITOR_INTERVAL;
+      final long start = System.currentTimeMillis();
+      try {
+        while (true) {
           try {
-            dm.suspend();
-          } catch (final LibvirtException e) {
-            // pause could be racy if it attempts to pause right when vm is finished, simply warn
-            s_logger.info("Failed to pause vm " + vmName + " : " + e.getMessage());
+            // wakes up as soon as the migration finishes, otherwise once per tick
+            destDomain = migrateThread.get(interval, TimeUnit.MILLISECONDS);
+            break;
+          } catch (final TimeoutException e) {
+            final long elapsed = System.currentTimeMillis() - start;
+            s_logger.info("Waiting for migration of " + vmName + " to complete, waited " + elapsed + "ms");
+            monitor.tick(elapsed);
           }
         }
+      } finally {
+        monitor.finish(System.currentTimeMillis() - start);
       }
-      s_logger.info("Migration thread for " + vmName + " is done");
-
-      destDomain = migrateThread.get(10, TimeUnit.SECONDS);
+      s_logger.info("Migration of " + vmName + " is done: " + monitor.getSummary());
 
       if (destDomain != null) {
         for (final DiskDef disk : disks) {
@@ -138,10 +172,19 @@ public final class LibvirtMigrateCommandWrapper
     } catch (final ExecutionException e) {
       s_logger.debug("Failed to execute while migrating domain: " + e.getMessage());
       result = e.getMessage();
+      migrationFailed = true;
     } catch (final TimeoutException e) {
       s_logger.debug("Timed out while migrating domain: " + e.getMessage());
       result = e.getMessage();
     } finally {
+      if (result != null && monitor != null && monitor.isPostCopyStarted()) {
+        if (isMigrationJobFailed(libvirtComputingResource.getLibvirtMigrationApi(), vmName, migrationFailed)) {
+          result = handlePostCopyFailure(vmName, dm, dconn, result);
+        } else {
+          s_logger.warn("Stopped waiting for the post-copy migration of " + vmName + ", leaving it running: " + result);
+          result = "Stopped waiting for the post-copy migration, which may still complete: " + result;
+        }
+      }
       try {
         if (dm != null) {
           if (dm.isPersistent() == 1) {
@@ -149,7 +192,8 @@ public final class LibvirtMigrateCommandWrapper
           }
           dm.free();
         }
-        if (dconn != null) {
+        // a connection handed out by the scheduler is shared with other migrations, release() closes it
+        if (dconn != null && ticket == null) {
           dconn.close();
         }
         if (destDomain != null) {
@@ -158,9 +202,13 @@ public final class LibvirtMigrateCommandWrapper
       } catch (final LibvirtException e) {
         s_logger.trace("Ignoring libvirt error.", e);
       }
+      if (ticket != null) {
+        scheduler.release(ticket);
+      }
     }
 
     if (result == null) {
+      libvirtComputingResource.releaseNumaPlacement(conn, vmName);
       libvirtComputingResource.destroyNetworkRulesForVm(conn, vmName);
       for (final InterfaceDef iface : ifaces) {
         // We don't know which "traffic type" is associated with
@@ -172,6 +220,75 @@ public final class LibvirtMigrateCommandWrapper
       }
     }
 
-    return new MigrateAnswer(command, result == null, result, null);
+    return new MigrateAnswer(command, result == null, result == null && monitor != null ? monitor.getSummary() : result,
+        null);
+  }
+
+  /**
+   * @return the target devices of the disks on local storage, which the destination has to receive a copy of
+   */
+  private List<String> getLocalDisks(final List<DiskDef> disks, final String localStoragePath) {
+    final List<String> localDisks = new ArrayList<String>();
+    if (localStoragePath == null) {
+      return localDisks;
+    }
+    for (final DiskDef disk : disks) {
+      if (disk.getDeviceType() == DiskDef.DeviceType.DISK && disk.getDiskPath() != null
+          && disk.getDiskPath().startsWith(localStoragePath + "/")) {
+        localDisks.add(disk.getDiskLabel());
+      }
+    }
+    return localDisks;
+  }
+
+  /**
+   * Tells a failed migration job apart from the agent giving up on waiting for it, which must not destroy a guest
+   * that is still being migrated.
+   *
+   * @param reported whether the migration call itself failed
+   */
+  private boolean isMigrationJobFailed(final LibvirtMigrationApi migrationApi, final String vmName,
+      final boolean reported) {
+    if (migrationApi == null) {
+      return reported;
+    }
+    final MigrationJobStats running = migrationApi.getJobStats(vmName);
+    if (running != null && running.isActive()) {
+      return false;
+    }
+    final MigrationJobStats completed = migrationApi.getJobStats(vmName, LibvirtMigrationApi.JOB_STATS_COMPLETED);
+    if (completed != null && completed.getType() != MigrationJobStats.JOB_NONE) {
+      return completed.getType() == MigrationJobStats.JOB_FAILED;
+    }
+    return reported;
+  }
+
+  /**
+   * Once a migration has switched to post-copy the guest runs on the destination, while part of its memory still
+   * lives on the source. If the migration fails at that point neither side holds a consistent guest, so both are
+   * destroyed rather than resumed, and the answer says so.
+   */
+  private String handlePostCopyFailure(final String vmName, final Domain dm, final Connect dconn,
+      final String result) {
+    s_logger.error("Post-copy migration of " + vmName + " failed, destroying the instance on both hosts: " + result);
+    try {
+      if (dm != null) {
+        dm.destroy();
+      }
+    } catch (final LibvirtException e) {
+      s_logger.warn("Failed to destroy " + vmName + " on the source after a failed post-copy migration: "
+          + e.getMessage());
+    }
+    if (dconn != null) {
+      try {
+        final Domain destination = dconn.domainLookupByName(vmName);
+        destination.destroy();
+        destination.free();
+      } catch (final LibvirtException e) {
+        s_logger.warn("Failed to destroy " + vmName + " on the destination after a failed post-copy migration: "
+            + e.getMessage());
+      }
+    }
+    return "Post-copy migration failed and the instance was stopped: " + result;
   }
 }
\ No newline at end of file
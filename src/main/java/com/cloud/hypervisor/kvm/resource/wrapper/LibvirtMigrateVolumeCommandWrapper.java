@@ -0,0 +1,115 @@
+package com.cloud.hypervisor.kvm.resource.wrapper;
+
+import java.io.File;
+import java.util.Collections;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.storage.MigrateVolumeAnswer;
+import com.cloud.agent.api.storage.MigrateVolumeCommand;
+import com.cloud.agent.api.to.StorageFilerTO;
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LiveStorageMigration;
+import com.cloud.hypervisor.kvm.storage.KvmStoragePool;
+import com.cloud.resource.CommandWrapper;
+import com.cloud.resource.ResourceWrapper;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves a volume of a running VM to another primary storage pool without stopping the VM, see LiveStorageMigration.
+ * Volumes of stopped VMs are copied through secondary storage with CopyVolumeCommand instead.
+ *
+ * Only image files are moved, to a new qcow2 image on a file based pool. The source image is deleted once the VM has
+ * pivoted to the copy.
+ */
+@ResourceWrapper(handles = MigrateVolumeCommand.class)
+public final class LibvirtMigrateVolumeCommandWrapper
+    extends CommandWrapper<MigrateVolumeCommand, Answer, LibvirtComputingResource> {
+
+  private static final Logger s_logger = LoggerFactory.getLogger(LibvirtMigrateVolumeCommandWrapper.class);
+
+  @Override
+  public Answer execute(final MigrateVolumeCommand command, final LibvirtComputingResource libvirtComputingResource) {
+    final String vmName = command.getAttachedVmName();
+    final String volumePath = command.getVolumePath();
+    final StorageFilerTO pool = command.getPool();
+
+    if (vmName == null) {
+      return new MigrateVolumeAnswer(command, false, "Volume " + volumePath
+          + " is not attached to a running instance, only live migration is supported", null);
+    }
+    final LiveStorageMigration liveStorageMigration = libvirtComputingResource.getLiveStorageMigration();
+    if (liveStorageMigration == null) {
+      return new MigrateVolumeAnswer(command, false, "Live storage migration is not available on this host", null);
+    }
+    if (pool.getType() != StoragePoolType.NetworkFilesystem && pool.getType() != StoragePoolType.Filesystem
+        && pool.getType() != StoragePoolType.SharedMountPoint) {
+      return new MigrateVolumeAnswer(command, false, "Live migration of volumes to " + pool.getType() + " pool "
+          + pool.getUuid() + " is not supported, only to " + StoragePoolType.NetworkFilesystem + ", "
+          + StoragePoolType.Filesystem + " and " + StoragePoolType.SharedMountPoint + " pools", null);
+    }
+
+    try {
+      final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+      final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vmName);
+      final DiskDef disk = findDisk(libvirtComputingResource, conn, vmName, volumePath);
+      if (disk == null) {
+        return new MigrateVolumeAnswer(command, false, "Volume " + volumePath + " is not attached to " + vmName, null);
+      }
+      final String sourcePath = disk.getDiskPath();
+      if (!new File(sourcePath).isFile()) {
+        return new MigrateVolumeAnswer(command, false, "Volume " + volumePath + " of " + vmName + " at " + sourcePath
+            + " is not an image file, only volumes on file based pools can be live migrated", null);
+      }
+
+      final KvmStoragePool destPool = libvirtComputingResource.getStoragePoolMgr().getStoragePool(pool.getType(),
+          pool.getUuid());
+      if (destPool == null) {
+        return new MigrateVolumeAnswer(command, false, "Pool " + pool.getUuid() + " is not available on this host",
+            null);
+      }
+      final String volumeName = libvirtUtilitiesHelper.generateUuidName();
+      final LiveStorageMigration.Mirror mirror = LiveStorageMigration.Mirror.toFile(disk.getDiskLabel(),
+          destPool.getLocalPath() + "/" + volumeName, "qcow2");
+
+      s_logger.info("Live migrating volume " + volumePath + " of " + vmName + " to pool " + pool.getUuid());
+      liveStorageMigration.migrate(vmName, Collections.singletonList(mirror), command.getWait() * 1000L);
+
+      // the guest runs on the copy now, nothing refers to the source image anymore
+      String details = mirror.toString();
+      if (libvirtComputingResource.getStorage().delete(sourcePath)) {
+        s_logger.info("Deleted " + sourcePath + " after moving it to " + mirror.getDestinationPath());
+      } else {
+        s_logger.warn("Failed to delete " + sourcePath + " after moving it to " + mirror.getDestinationPath());
+        details += ", failed to delete the source " + sourcePath;
+      }
+      return new MigrateVolumeAnswer(command, true, details, volumeName);
+    } catch (final LibvirtException e) {
+      s_logger.debug("Failed to live migrate volume " + volumePath + ": " + e.getMessage());
+      return new MigrateVolumeAnswer(command, false, e.getMessage(), null);
+    } catch (final CloudRuntimeException e) {
+      s_logger.debug("Failed to live migrate volume " + volumePath + ": " + e.getMessage());
+      return new MigrateVolumeAnswer(command, false, e.getMessage(), null);
+    } catch (final InterruptedException e) {
+      s_logger.debug("Interrupted while live migrating volume " + volumePath + ": " + e.getMessage());
+      return new MigrateVolumeAnswer(command, false, e.getMessage(), null);
+    }
+  }
+
+  private DiskDef findDisk(final LibvirtComputingResource libvirtComputingResource, final Connect conn,
+      final String vmName, final String volumePath) {
+    for (final DiskDef disk : libvirtComputingResource.getDisks(conn, vmName)) {
+      final String path = disk.getDiskPath();
+      if (path != null && (path.equals(volumePath) || path.endsWith("/" + volumePath))) {
+        return disk;
+      }
+    }
+    return null;
+  }
+}
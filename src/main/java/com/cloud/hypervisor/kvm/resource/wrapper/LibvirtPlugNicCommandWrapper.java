@@ -13,6 +13,7 @@ import com.cloud.agent.api.to.NicTO;
 import com.cloud.exception.InternalErrorException;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef;
+import com.cloud.hypervisor.kvm.resource.NicTuning;
 import com.cloud.hypervisor.kvm.resource.VifDriver;
 import com.cloud.resource.CommandWrapper;
 import com.cloud.resource.ResourceWrapper;
@@ -50,6 +51,10 @@ public final class LibvirtPlugNicCommandWrapper
       }
       final VifDriver vifDriver = libvirtComputingResource.getVifDriver(nic.getType());
       final InterfaceDef interfaceDef = vifDriver.plug(nic, "Other PV", "");
+      final NicTuning nicTuning = libvirtComputingResource.getNicTuning();
+      if (nicTuning != null) {
+        nicTuning.apply(interfaceDef, vm.getInfo().nrVirtCpu, null);
+      }
       vm.attachDevice(interfaceDef.toString());
 
       return new PlugNicAnswer(command, true, "success");
@@ -65,6 +65,8 @@ public final class LibvirtPrepareForMigrationCommandWrapper
         return new PrepareForMigrationAnswer(command, "failed to connect physical disks to host");
       }
 
+      libvirtComputingResource.placeMigratingVm(vm);
+
       return new PrepareForMigrationAnswer(command);
     } catch (final LibvirtException e) {
       return new PrepareForMigrationAnswer(command, e.toString());
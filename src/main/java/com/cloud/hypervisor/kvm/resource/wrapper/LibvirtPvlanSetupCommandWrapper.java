@@ -4,12 +4,14 @@
 
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
+import java.io.IOException;
 import java.util.List;
 
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.PvlanSetupCommand;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef;
+import com.cloud.hypervisor.kvm.resource.OvsdbClient;
 import com.cloud.resource.CommandWrapper;
 import com.cloud.resource.ResourceWrapper;
 import com.cloud.utils.script.Script;
@@ -52,14 +54,9 @@ public final class LibvirtPvlanSetupCommandWrapper
         final Script script = new Script(ovsPvlanDhcpHostPath, timeout, s_logger);
 
         if (add) {
-          final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
-          final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(dhcpName);
-
-          final List<InterfaceDef> ifaces = libvirtComputingResource.getInterfaces(conn, dhcpName);
-          final InterfaceDef guestNic = ifaces.get(0);
           script.add(opr, "-b", guestBridgeName, "-p", primaryPvlan, "-i", isolatedPvlan, "-n", dhcpName, "-d", dhcpIp,
               "-m", dhcpMac, "-I",
-              guestNic.getDevName());
+              getDhcpDevName(libvirtComputingResource, dhcpName, dhcpMac));
         } else {
           script.add(opr, "-b", guestBridgeName, "-p", primaryPvlan, "-i", isolatedPvlan, "-n", dhcpName, "-d", dhcpIp,
               "-m", dhcpMac);
@@ -93,4 +90,24 @@ public final class LibvirtPvlanSetupCommandWrapper
     }
     return new Answer(command, true, result);
   }
+
+  private String getDhcpDevName(final LibvirtComputingResource libvirtComputingResource, final String dhcpName,
+      final String dhcpMac) throws LibvirtException {
+    final OvsdbClient ovsdbClient = libvirtComputingResource.getOvsdbClient();
+    if (ovsdbClient != null) {
+      try {
+        final String devName = ovsdbClient.getInterfaceByAttachedMac(dhcpMac);
+        if (devName != null) {
+          return devName;
+        }
+      } catch (final IOException e) {
+        s_logger.warn("Unable to look up the interface of " + dhcpName + " through ovsdb-server: " + e.getMessage());
+      }
+    }
+    final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+    final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(dhcpName);
+
+    final List<InterfaceDef> ifaces = libvirtComputingResource.getInterfaces(conn, dhcpName);
+    return ifaces.get(0).getDevName();
+  }
 }
\ No newline at end of file
@@ -11,10 +11,15 @@ import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef;
+import com.cloud.hypervisor.kvm.resource.SecurityGroupFirewall;
+import com.cloud.hypervisor.kvm.resource.SecurityGroupRuleCompiler;
+import com.cloud.hypervisor.kvm.resource.SecurityGroupRuleLogCache;
+import com.cloud.hypervisor.kvm.resource.SecurityGroupRuleStateStore;
 import com.cloud.resource.CommandWrapper;
 import com.cloud.resource.ResourceWrapper;
 
 import org.libvirt.Connect;
+import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,8 +32,30 @@ public final class LibvirtSecurityGroupRulesCommandWrapper
 
   @Override
   public Answer execute(final SecurityGroupRulesCmd command, final LibvirtComputingResource libvirtComputingResource) {
+    final SecurityGroupRuleStateStore stateStore = libvirtComputingResource.getSecurityGroupRuleStateStore();
+    String rulesHash = null;
+    if (stateStore != null) {
+      rulesHash = SecurityGroupRuleStateStore.hashRules(command.getGuestIp(), command.getGuestMac(),
+          command.stringifyRules(), command.getSecIpsString());
+      if (!stateStore.needsApply(command.getVmName(), command.getSignature(), command.getSeqNum(), rulesHash)) {
+        s_logger.debug("Security group rules applied " + stateStore.getAppliedCount() + " times, skipped "
+            + stateStore.getIdenticalSkipCount() + " identical and " + stateStore.getStaleSkipCount() + " stale");
+        return new SecurityGroupRuleAnswer(command);
+      }
+    }
+
     String vif = null;
     String brname = null;
+    int domId = -1;
+    SecurityGroupFirewall firewall = libvirtComputingResource.getSecurityGroupFirewall();
+    if (firewall != null
+        && SecurityGroupRuleCompiler.hasIpv6Cidrs(command.getIngressRuleSet(), command.getEgressRuleSet())) {
+      // the firewall is IPv4 only, security_group.py rebuilds all rules of the VM instead
+      s_logger.info("Security group rules of vm " + command.getVmName() + " have IPv6 CIDRs, programming them with "
+          + "security_group.py");
+      firewall.invalidate(command.getVmName());
+      firewall = null;
+    }
     try {
       final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
 
@@ -37,19 +64,37 @@ public final class LibvirtSecurityGroupRulesCommandWrapper
 
       vif = nics.get(0).getDevName();
       brname = nics.get(0).getBrName();
+      if (firewall != null) {
+        final Domain dm = conn.domainLookupByName(command.getVmName());
+        domId = dm.getID();
+        dm.free();
+      }
     } catch (final LibvirtException e) {
       return new SecurityGroupRuleAnswer(command, false, e.toString());
     }
 
-    final boolean result = libvirtComputingResource.addNetworkRules(command.getVmName(),
-        Long.toString(command.getVmId()), command.getGuestIp(), command.getSignature(),
-        Long.toString(command.getSeqNum()), command.getGuestMac(), command.stringifyRules(), vif, brname,
-        command.getSecIpsString());
+    final boolean result;
+    if (firewall != null) {
+      result = firewall.addNetworkRules(command.getVmName(), command.getVmId(), command.getGuestIp(), domId,
+          command.getSignature(), command.getSeqNum(), command.getIngressRuleSet(), command.getEgressRuleSet());
+    } else {
+      result = libvirtComputingResource.addNetworkRules(command.getVmName(),
+          Long.toString(command.getVmId()), command.getGuestIp(), command.getSignature(),
+          Long.toString(command.getSeqNum()), command.getGuestMac(), command.stringifyRules(), vif, brname,
+          command.getSecIpsString());
+    }
 
     if (!result) {
       s_logger.warn("Failed to program network rules for vm " + command.getVmName());
       return new SecurityGroupRuleAnswer(command, false, "programming network rules failed");
     } else {
+      if (stateStore != null) {
+        stateStore.programmed(command.getVmName(), command.getSignature(), command.getSeqNum(), rulesHash);
+      }
+      final SecurityGroupRuleLogCache ruleLogCache = libvirtComputingResource.getSecurityGroupRuleLogCache();
+      if (ruleLogCache != null) {
+        ruleLogCache.update(command.getVmName(), command.getVmId(), command.getSeqNum());
+      }
       s_logger.debug("Programmed network rules for vm " + command.getVmName() + " guestIp=" + command.getGuestIp()
           + ",ingress numrules="
           + command.getIngressRuleSet().length + ",egress numrules=" + command.getEgressRuleSet().length);
@@ -49,6 +49,7 @@ public final class LibvirtStartCommandWrapper extends CommandWrapper<StartComman
 
             vm = libvirtComputingResource.createVmFromSpec(vmSpec);
             conn = libvirtUtilitiesHelper.getConnectionByType(vm.getHvsType());
+            libvirtComputingResource.reserveHugePages(vmSpec);
             libvirtComputingResource.createVbd(conn, vmSpec, vmName, vm);
 
             if (!storagePoolMgr.connectPhysicalDisksViaVmSpec(vmSpec)) {
@@ -125,7 +126,11 @@ public final class LibvirtStartCommandWrapper extends CommandWrapper<StartComman
             }
             return new StartAnswer(command, e.getMessage());
         } finally {
+            // a running VM holds its hugepages in the kernel, a failed one never got them
+            libvirtComputingResource.releaseHugePages(vmName);
             if (state != DomainState.VIR_DOMAIN_RUNNING) {
+                // also when the start failed before there was a connection or a domain
+                libvirtComputingResource.releaseNumaPlacement(conn, vmName);
                 storagePoolMgr.disconnectPhysicalDisksViaVmSpec(vmSpec);
             }
         }
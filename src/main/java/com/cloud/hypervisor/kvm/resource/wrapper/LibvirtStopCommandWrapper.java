@@ -55,6 +55,7 @@ public final class LibvirtStopCommandWrapper extends CommandWrapper<StopCommand,
       libvirtComputingResource.destroyNetworkRulesForVm(conn, vmName);
       final String result = libvirtComputingResource.stopVm(conn, vmName);
       if (result == null) {
+        libvirtComputingResource.releaseNumaPlacement(conn, vmName);
         for (final DiskDef disk : disks) {
           libvirtComputingResource.cleanupDisk(disk);
         }
@@ -0,0 +1,186 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.cloudstack.utils.qemu.QemuImg.PhysicalDiskFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of the volumes in the directory of a file based storage pool.
+ *
+ * The index is built once by reconcile() and then kept current by update() and remove(), so a volume can be looked
+ * up by name without asking libvirt to rescan the pool.
+ */
+public class FileVolumeIndex {
+
+  private static final Logger logger = LoggerFactory.getLogger(FileVolumeIndex.class);
+
+  private static final int QCOW2_MAGIC = 0x514649fb; /* "QFI\xfb" */
+  private static final int QCOW2_HEADER_SIZE = 32;
+  private static final int QCOW2_SIZE_OFFSET = 24;
+
+  private final String poolUuid;
+  private final Path directory;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  public static class Entry {
+    private final String name;
+    private final String path;
+    private final PhysicalDiskFormat format;
+    private final long size;
+    private final long virtualSize;
+    private final long lastModified;
+
+    public Entry(String name, String path, PhysicalDiskFormat format, long size, long virtualSize, long lastModified) {
+      this.name = name;
+      this.path = path;
+      this.format = format;
+      this.size = size;
+      this.virtualSize = virtualSize;
+      this.lastModified = lastModified;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public PhysicalDiskFormat getFormat() {
+      return format;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getVirtualSize() {
+      return virtualSize;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public KvmPhysicalDisk toPhysicalDisk(KvmStoragePool pool) {
+      final KvmPhysicalDisk disk = new KvmPhysicalDisk(path, name, pool);
+      disk.setFormat(format);
+      disk.setSize(size);
+      disk.setVirtualSize(virtualSize);
+      return disk;
+    }
+  }
+
+  public FileVolumeIndex(String poolUuid, Path directory) {
+    this.poolUuid = poolUuid;
+    this.directory = directory;
+  }
+
+  public String getPoolUuid() {
+    return poolUuid;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public Entry get(String name) {
+    return entries.get(name);
+  }
+
+  public List<Entry> list() {
+    return new ArrayList<Entry>(entries.values());
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Brings the index in line with the directory. Files whose size and modification time did not change are not
+   * inspected again.
+   */
+  public void reconcile() throws IOException {
+    final Set<String> seen = new HashSet<String>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (final Path file : stream) {
+        final String name = file.getFileName().toString();
+        seen.add(name);
+        try {
+          final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+          final Entry existing = entries.get(name);
+          if (existing != null && existing.getSize() == attributes.size()
+              && existing.getLastModified() == attributes.lastModifiedTime().toMillis()) {
+            continue;
+          }
+          entries.put(name, inspect(file, attributes));
+        } catch (final NoSuchFileException e) {
+          seen.remove(name);
+        }
+      }
+    }
+    entries.keySet().retainAll(seen);
+  }
+
+  public void update(String name) {
+    final Path file = directory.resolve(name);
+    try {
+      entries.put(name, inspect(file, Files.readAttributes(file, BasicFileAttributes.class)));
+    } catch (final NoSuchFileException e) {
+      entries.remove(name);
+    } catch (final IOException e) {
+      logger.debug("Failed to inspect " + file + ", dropping it from the volume index of pool " + poolUuid + ": "
+          + e.toString());
+      entries.remove(name);
+    }
+  }
+
+  public void remove(String name) {
+    entries.remove(name);
+  }
+
+  protected static Entry inspect(Path file, BasicFileAttributes attributes) throws IOException {
+    final String name = file.getFileName().toString();
+    final long size = attributes.size();
+    final long lastModified = attributes.lastModifiedTime().toMillis();
+
+    if (attributes.isDirectory()) {
+      return new Entry(name, file.toString(), PhysicalDiskFormat.DIR, 0, 0, lastModified);
+    }
+    if (name.endsWith("tar") || name.endsWith("TAR")) {
+      return new Entry(name, file.toString(), PhysicalDiskFormat.TAR, size, size, lastModified);
+    }
+
+    if (size >= QCOW2_HEADER_SIZE) {
+      final ByteBuffer header = ByteBuffer.allocate(QCOW2_HEADER_SIZE);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+          continue;
+        }
+      }
+      header.flip();
+      if (header.remaining() == QCOW2_HEADER_SIZE && header.getInt(0) == QCOW2_MAGIC) {
+        return new Entry(name, file.toString(), PhysicalDiskFormat.QCOW2, size, header.getLong(QCOW2_SIZE_OFFSET),
+            lastModified);
+      }
+    }
+    return new Entry(name, file.toString(), PhysicalDiskFormat.RAW, size, size, lastModified);
+  }
+}
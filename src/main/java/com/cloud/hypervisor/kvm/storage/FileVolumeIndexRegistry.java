@@ -0,0 +1,168 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns the volume indexes of all file based pools. Local changes are picked up through a WatchService (inotify), and
+ * every index is reconciled periodically because inotify does not see changes made by other NFS clients.
+ */
+public class FileVolumeIndexRegistry {
+
+  private final Logger logger = LoggerFactory.getLogger(FileVolumeIndexRegistry.class);
+
+  private final int reconcileSeconds;
+  private final WatchService watchService;
+  private final ScheduledExecutorService reconciler;
+  private final Map<String, FileVolumeIndex> indexes = new ConcurrentHashMap<String, FileVolumeIndex>();
+  private final Map<WatchKey, FileVolumeIndex> watchedIndexes = new ConcurrentHashMap<WatchKey, FileVolumeIndex>();
+  private final Map<String, WatchKey> watchKeys = new ConcurrentHashMap<String, WatchKey>();
+
+  public FileVolumeIndexRegistry(int reconcileSeconds) {
+    this.reconcileSeconds = reconcileSeconds;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+    } catch (final IOException e) {
+      throw new CloudRuntimeException("Unable to create a watch service for the volume indexes", e);
+    }
+    reconciler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("FileVolumeIndexReconciler"));
+  }
+
+  public void start() {
+    final Thread watcher = new Thread(new ManagedContextRunnable() {
+      @Override
+      protected void runInContext() {
+        processEvents();
+      }
+    }, "FileVolumeIndexWatcher");
+    watcher.setDaemon(true);
+    watcher.start();
+
+    reconciler.scheduleWithFixedDelay(new ManagedContextRunnable() {
+      @Override
+      protected void runInContext() {
+        for (final FileVolumeIndex index : indexes.values()) {
+          try {
+            index.reconcile();
+          } catch (final IOException e) {
+            logger.warn("Failed to reconcile the volume index of pool " + index.getPoolUuid() + ": " + e.toString());
+          }
+        }
+      }
+    }, reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    reconciler.shutdownNow();
+    try {
+      watchService.close();
+    } catch (final IOException e) {
+      logger.debug("[ignored] failed to close the volume index watch service.", e);
+    }
+  }
+
+  /**
+   * Returns the index of the pool, building it on first use.
+   */
+  public FileVolumeIndex getIndex(String poolUuid, String localPath) {
+    FileVolumeIndex index = indexes.get(poolUuid);
+    if (index != null) {
+      return index;
+    }
+
+    synchronized (indexes) {
+      index = indexes.get(poolUuid);
+      if (index == null) {
+        index = new FileVolumeIndex(poolUuid, Paths.get(localPath));
+        try {
+          final WatchKey key = index.getDirectory().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+          watchedIndexes.put(key, index);
+          watchKeys.put(poolUuid, key);
+          index.reconcile();
+        } catch (final IOException e) {
+          throw new CloudRuntimeException("Unable to index the volumes of pool " + poolUuid + " at " + localPath, e);
+        }
+        indexes.put(poolUuid, index);
+        logger.debug("Indexed " + index.size() + " volumes of pool " + poolUuid + " at " + localPath);
+      }
+    }
+    return index;
+  }
+
+  public void remove(String poolUuid) {
+    indexes.remove(poolUuid);
+    final WatchKey key = watchKeys.remove(poolUuid);
+    if (key != null) {
+      key.cancel();
+      watchedIndexes.remove(key);
+    }
+  }
+
+  private void processEvents() {
+    while (true) {
+      final WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (final InterruptedException e) {
+        logger.debug("[ignored] interrupted while waiting for volume index events.");
+        continue;
+      } catch (final ClosedWatchServiceException e) {
+        return;
+      }
+
+      final FileVolumeIndex index = watchedIndexes.get(key);
+      if (index != null) {
+        final Set<String> changed = new HashSet<String>();
+        boolean overflow = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW) {
+            overflow = true;
+          } else {
+            changed.add(((Path) event.context()).toString());
+          }
+        }
+
+        if (overflow) {
+          try {
+            index.reconcile();
+          } catch (final IOException e) {
+            logger.warn("Failed to reconcile the volume index of pool " + index.getPoolUuid() + ": " + e.toString());
+          }
+        } else {
+          for (final String name : changed) {
+            index.update(name);
+          }
+        }
+      }
+
+      if (!key.reset()) {
+        watchedIndexes.remove(key);
+      }
+    }
+  }
+}
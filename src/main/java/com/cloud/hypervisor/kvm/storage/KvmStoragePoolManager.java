@@ -1,5 +1,6 @@
 package com.cloud.hypervisor.kvm.storage;
 
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
@@ -15,10 +16,12 @@ import com.cloud.agent.api.to.VirtualMachineTO;
 import com.cloud.hypervisor.kvm.resource.KvmHaBase;
 import com.cloud.hypervisor.kvm.resource.KvmHaBase.PoolType;
 import com.cloud.hypervisor.kvm.resource.KvmHaMonitor;
+import com.cloud.hypervisor.kvm.resource.RbdHeartbeatBackend;
 import com.cloud.storage.Storage;
 import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.StorageLayer;
 import com.cloud.storage.Volume;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 
 import org.apache.cloudstack.storage.to.PrimaryDataStoreTO;
@@ -59,6 +62,11 @@ public class KvmStoragePoolManager {
 
   private final KvmHaMonitor haMonitor;
 
+  private FileVolumeIndexRegistry volumeIndexRegistry;
+  private VolumeDeletionQueue volumeDeletionQueue;
+  private StoragePoolCapacitySampler capacitySampler;
+  private boolean rbdHeartbeat;
+
   private StorageAdaptor getStorageAdaptor(StoragePoolType type) {
     // type can be null: LibVirtComputingResource:3238
     if (type == null) {
@@ -111,6 +119,77 @@ public class KvmStoragePoolManager {
     }
   }
 
+  public void configure(Map<String, Object> params) {
+    final LibvirtStorageAdaptor libvirtAdaptor = (LibvirtStorageAdaptor) storageMapper.get("libvirt");
+
+    String value = (String) params.get("rbd.template.prewarm.limit");
+    libvirtAdaptor.setRbdTemplatePrewarmLimit(NumbersUtil.parseInt(value, 0));
+
+    value = (String) params.get("storage.volume.index");
+    if (Boolean.parseBoolean(value)) {
+      final int reconcile = NumbersUtil.parseInt((String) params.get("storage.volume.index.reconcile"), 300);
+      volumeIndexRegistry = new FileVolumeIndexRegistry(reconcile);
+      volumeIndexRegistry.start();
+      libvirtAdaptor.setVolumeIndexRegistry(volumeIndexRegistry);
+    }
+
+    value = (String) params.get("volume.delete.async");
+    if (Boolean.parseBoolean(value)) {
+      String journal = (String) params.get("volume.delete.journal");
+      if (journal == null) {
+        journal = "/var/cache/cosmic/agent/volume-deletion.journal";
+      }
+      final int batchSize = NumbersUtil.parseInt((String) params.get("volume.delete.batch.size"), 10);
+      final int concurrency = NumbersUtil.parseInt((String) params.get("volume.delete.concurrency"), 2);
+      final int interval = NumbersUtil.parseInt((String) params.get("volume.delete.interval"), 5);
+
+      volumeDeletionQueue = new VolumeDeletionQueue(this, new File(journal), batchSize, concurrency, interval);
+      volumeDeletionQueue.start();
+    }
+
+    value = (String) params.get("storage.pool.capacity.sampler");
+    if (Boolean.parseBoolean(value)) {
+      final int interval = NumbersUtil.parseInt((String) params.get("storage.pool.capacity.interval"), 60);
+      capacitySampler = new StoragePoolCapacitySampler(interval);
+      capacitySampler.start();
+    }
+
+    value = (String) params.get("ha.rbd.heartbeat");
+    rbdHeartbeat = Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Stops the background services started by configure.
+   */
+  public void stop() {
+    if (volumeDeletionQueue != null) {
+      volumeDeletionQueue.stop();
+    }
+    if (capacitySampler != null) {
+      capacitySampler.stop();
+    }
+    if (volumeIndexRegistry != null) {
+      volumeIndexRegistry.stop();
+    }
+    final StorageAdaptor libvirtAdaptor = storageMapper.get("libvirt");
+    if (libvirtAdaptor instanceof LibvirtStorageAdaptor) {
+      ((LibvirtStorageAdaptor) libvirtAdaptor).stop();
+    }
+  }
+
+  /**
+   * Hands the deletion of a volume to the background deletion queue when it is enabled.
+   *
+   * @return false if the caller has to delete the volume itself
+   */
+  public boolean enqueuePhysicalDiskDeletion(KvmStoragePool pool, String volumeUuid, Storage.ImageFormat format) {
+    if (volumeDeletionQueue == null) {
+      return false;
+    }
+    volumeDeletionQueue.enqueue(pool.getType(), pool.getUuid(), volumeUuid, format);
+    return true;
+  }
+
   public boolean connectPhysicalDisk(StoragePoolType type, String poolUuid, String volPath,
       Map<String, String> details) {
     final StorageAdaptor adaptor = getStorageAdaptor(type);
@@ -218,9 +297,16 @@ public class KvmStoragePoolManager {
   public KvmStoragePool getStoragePool(StoragePoolType type, String uuid, boolean refreshInfo) {
 
     final StorageAdaptor adaptor = getStorageAdaptor(type);
+
+    // serve the capacity from the sampler instead of having libvirt rescan the pool
+    StoragePoolCapacitySampler.Sample sample = null;
+    if (refreshInfo && capacitySampler != null) {
+      sample = capacitySampler.getSample(uuid);
+    }
+
     KvmStoragePool pool = null;
     try {
-      pool = adaptor.getStoragePool(uuid, refreshInfo);
+      pool = adaptor.getStoragePool(uuid, refreshInfo && sample == null);
     } catch (final Exception e) {
       final StoragePoolInformation info = storagePools.get(uuid);
       if (info != null) {
@@ -229,9 +315,16 @@ public class KvmStoragePoolManager {
         throw new CloudRuntimeException("Could not fetch storage pool " + uuid + " from libvirt");
       }
     }
+    if (sample != null && pool instanceof LibvirtStoragePool) {
+      sample.applyTo((LibvirtStoragePool) pool);
+    }
     return pool;
   }
 
+  public boolean isVolumeIndexed(KvmStoragePool pool) {
+    return volumeIndexRegistry != null && ((LibvirtStorageAdaptor) storageMapper.get("libvirt")).isVolumeIndexed(pool);
+  }
+
   public KvmStoragePool getStoragePoolByUri(String uri) {
     URI storageUri = null;
 
@@ -310,6 +403,19 @@ public class KvmStoragePoolManager {
           PoolType.PrimaryStorage);
       haMonitor.addStoragePool(nfspool);
     }
+    if (type == StoragePoolType.RBD && primaryStorage && rbdHeartbeat) {
+      haMonitor.addHeartbeatBackend(new RbdHeartbeatBackend(pool.getUuid(),
+          pool.getSourceHost() + ":" + pool.getSourcePort(), pool.getAuthUserName(), pool.getAuthSecret(),
+          pool.getSourceDir()));
+    }
+    if (capacitySampler != null && primaryStorage && pool instanceof LibvirtStoragePool) {
+      capacitySampler.register(pool, adaptor);
+      // a statvfs is cheaper than the libvirt refresh, also for the StartupStorageCommand of the local pool
+      final StoragePoolCapacitySampler.Sample sample = capacitySampler.sampleNow(pool.getUuid());
+      if (sample != null) {
+        sample.applyTo((LibvirtStoragePool) pool);
+      }
+    }
     final StoragePoolInformation info = new StoragePoolInformation(name, host, port, path, userInfo, type,
         primaryStorage);
     addStoragePool(pool.getUuid(), info);
@@ -326,6 +432,9 @@ public class KvmStoragePoolManager {
   public boolean deleteStoragePool(StoragePoolType type, String uuid) {
     final StorageAdaptor adaptor = getStorageAdaptor(type);
     haMonitor.removeStoragePool(uuid);
+    if (capacitySampler != null) {
+      capacitySampler.unregister(uuid);
+    }
     adaptor.deleteStoragePool(uuid);
     synchronized (storagePools) {
       storagePools.remove(uuid);
@@ -32,6 +32,7 @@ import com.cloud.agent.api.to.DiskTO;
 import com.cloud.agent.api.to.NfsTO;
 import com.cloud.agent.api.to.S3TO;
 import com.cloud.exception.InternalErrorException;
+import com.cloud.hypervisor.kvm.resource.DiskTuning;
 import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
 import com.cloud.hypervisor.kvm.resource.LibvirtConnection;
 import com.cloud.hypervisor.kvm.resource.LibvirtDomainXmlParser;
@@ -125,6 +126,35 @@ public class KvmStorageProcessor implements StorageProcessor {
     return true;
   }
 
+  /* the qcow2 template of a secondary storage directory, refreshing the pool unless its volume index is current */
+  private KvmPhysicalDisk findTemplate(final KvmStoragePool secondaryPool) {
+    // the volume index sees new templates without a rescan of the pool
+    final boolean indexed = storagePoolMgr.isVolumeIndexed(secondaryPool);
+    if (!indexed) {
+      secondaryPool.refresh();
+    }
+    final KvmPhysicalDisk template = findQcow2Template(secondaryPool);
+    if (template == null && indexed) {
+      // the template may have been written after the index was last reconciled
+      secondaryPool.refresh();
+      return findQcow2Template(secondaryPool);
+    }
+    return template;
+  }
+
+  private KvmPhysicalDisk findQcow2Template(final KvmStoragePool secondaryPool) {
+    final List<KvmPhysicalDisk> disks = secondaryPool.listPhysicalDisks();
+    if (disks == null) {
+      return null;
+    }
+    for (final KvmPhysicalDisk disk : disks) {
+      if (disk.getName().endsWith("qcow2")) {
+        return disk;
+      }
+    }
+    return null;
+  }
+
   @Override
   public SnapshotAndCopyAnswer snapshotAndCopy(final SnapshotAndCopyCommand cmd) {
     logger.info(
@@ -161,17 +191,7 @@ public class KvmStorageProcessor implements StorageProcessor {
 
       /* Get template vol */
       if (tmpltname == null) {
-        secondaryPool.refresh();
-        final List<KvmPhysicalDisk> disks = secondaryPool.listPhysicalDisks();
-        if (disks == null || disks.isEmpty()) {
-          return new PrimaryStorageDownloadAnswer("Failed to get volumes from pool: " + secondaryPool.getUuid());
-        }
-        for (final KvmPhysicalDisk disk : disks) {
-          if (disk.getName().endsWith("qcow2")) {
-            tmplVol = disk;
-            break;
-          }
-        }
+        tmplVol = findTemplate(secondaryPool);
       } else {
         tmplVol = secondaryPool.getPhysicalDisk(tmpltname);
       }
@@ -245,7 +265,7 @@ public class KvmStorageProcessor implements StorageProcessor {
   }
 
   // this is much like PrimaryStorageDownloadCommand, but keeping it separate. copies template direct to root disk
-  private KvmPhysicalDisk templateToPrimaryDownload(final String templateUrl, final KvmStoragePool primaryPool,
+  KvmPhysicalDisk templateToPrimaryDownload(final String templateUrl, final KvmStoragePool primaryPool,
       final String volUuid, final Long size, final int timeout) {
     final int index = templateUrl.lastIndexOf("/");
     final String mountpoint = templateUrl.substring(0, index);
@@ -260,18 +280,7 @@ public class KvmStorageProcessor implements StorageProcessor {
       secondaryPool = storagePoolMgr.getStoragePoolByUri(mountpoint);
       /* Get template vol */
       if (templateName == null) {
-        secondaryPool.refresh();
-        final List<KvmPhysicalDisk> disks = secondaryPool.listPhysicalDisks();
-        if (disks == null || disks.isEmpty()) {
-          logger.error("Failed to get volumes from pool: " + secondaryPool.getUuid());
-          return null;
-        }
-        for (final KvmPhysicalDisk disk : disks) {
-          if (disk.getName().endsWith("qcow2")) {
-            templateVol = disk;
-            break;
-          }
-        }
+        templateVol = findTemplate(secondaryPool);
         if (templateVol == null) {
           logger.error("Failed to get template from pool: " + secondaryPool.getUuid());
           return null;
@@ -978,6 +987,10 @@ public class KvmStorageProcessor implements StorageProcessor {
         } else if (attachingDisk.getFormat() == PhysicalDiskFormat.RAW) {
           diskdef.defBlockBasedDisk(attachingDisk.getPath(), devId, DiskDef.DiskBus.VIRTIO);
         }
+        final DiskTuning diskTuning = resource.getDiskTuning();
+        if (diskTuning != null) {
+          diskTuning.apply(diskdef, attachingPool.getType(), null);
+        }
       }
 
       final String xml = diskdef.toString();
@@ -1184,7 +1197,9 @@ public class KvmStorageProcessor implements StorageProcessor {
         logger.debug("can't find volume: " + vol.getPath() + ", return true");
         return new Answer(null);
       }
-      pool.deletePhysicalDisk(vol.getPath(), vol.getFormat());
+      if (!storagePoolMgr.enqueuePhysicalDiskDeletion(pool, vol.getPath(), vol.getFormat())) {
+        pool.deletePhysicalDisk(vol.getPath(), vol.getFormat());
+      }
       return new Answer(null);
     } catch (final CloudRuntimeException e) {
       logger.debug("Failed to delete volume: ", e);
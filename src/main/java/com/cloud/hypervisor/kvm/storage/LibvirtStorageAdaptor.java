@@ -1,12 +1,15 @@
 package com.cloud.hypervisor.kvm.storage;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.ceph.rados.IoCTX;
 import com.ceph.rados.Rados;
@@ -18,6 +21,7 @@ import com.ceph.rbd.jna.RbdImageInfo;
 import com.ceph.rbd.jna.RbdSnapInfo;
 import com.cloud.exception.InternalErrorException;
 import com.cloud.hypervisor.kvm.resource.LibvirtConnection;
+import com.cloud.hypervisor.kvm.resource.LibvirtDomainXmlParser;
 import com.cloud.hypervisor.kvm.resource.LibvirtSecretDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtSecretDef.Usage;
 import com.cloud.hypervisor.kvm.resource.LibvirtStoragePoolDef;
@@ -27,9 +31,11 @@ import com.cloud.hypervisor.kvm.resource.LibvirtStoragePoolXmlParser;
 import com.cloud.hypervisor.kvm.resource.LibvirtStorageVolumeDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtStorageVolumeDef.VolumeFormat;
 import com.cloud.hypervisor.kvm.resource.LibvirtStorageVolumeXmlParser;
+import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.DiskDef;
 import com.cloud.storage.Storage;
 import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.StorageLayer;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.script.Script;
 
@@ -39,6 +45,7 @@ import org.apache.cloudstack.utils.qemu.QemuImgException;
 import org.apache.cloudstack.utils.qemu.QemuImgFile;
 import org.apache.commons.codec.binary.Base64;
 import org.libvirt.Connect;
+import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
 import org.libvirt.Secret;
 import org.libvirt.StoragePool;
@@ -59,11 +66,142 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
   private final int rbdFeatures = 1 << 0; /* Feature 1<<0 means layering in RBD format 2 */
   private final int rbdOrder = 0; /* Order 0 means 4MB blocks (the default) */
 
+  private final RbdTemplateSnapshotCache rbdTemplateSnapshotCache = new RbdTemplateSnapshotCache(rbdTemplateSnapName);
+  private final ExecutorService rbdTemplatePrewarmExecutor = Executors.newSingleThreadExecutor(
+      new NamedThreadFactory("RbdTemplatePrewarm"));
+  private int rbdTemplatePrewarmLimit = 0;
+  private FileVolumeIndexRegistry volumeIndexRegistry;
+
   public LibvirtStorageAdaptor(StorageLayer storage) {
     storageLayer = storage;
     manageSnapshotPath = Script.findScript("scripts/storage/qcow2/", "managesnapshot.sh");
   }
 
+  public RbdTemplateSnapshotCache getRbdTemplateSnapshotCache() {
+    return rbdTemplateSnapshotCache;
+  }
+
+  public void setRbdTemplatePrewarmLimit(int limit) {
+    rbdTemplatePrewarmLimit = limit;
+  }
+
+  public void setVolumeIndexRegistry(FileVolumeIndexRegistry registry) {
+    volumeIndexRegistry = registry;
+  }
+
+  /**
+   * Stops pre-warming the RBD template snapshot cache.
+   */
+  public void stop() {
+    rbdTemplatePrewarmExecutor.shutdownNow();
+  }
+
+  /**
+   * @return whether the volumes of the pool are served from a volume index instead of libvirt
+   */
+  public boolean isVolumeIndexed(KvmStoragePool pool) {
+    return getVolumeIndex(pool) != null;
+  }
+
+  private FileVolumeIndex getVolumeIndex(KvmStoragePool pool) {
+    if (volumeIndexRegistry == null || pool.getLocalPath() == null || pool.getLocalPath().isEmpty()) {
+      return null;
+    }
+    final StoragePoolType type = pool.getType();
+    if (type != StoragePoolType.NetworkFilesystem && type != StoragePoolType.Filesystem
+        && type != StoragePoolType.SharedMountPoint) {
+      return null;
+    }
+    try {
+      return volumeIndexRegistry.getIndex(pool.getUuid(), pool.getLocalPath());
+    } catch (final CloudRuntimeException e) {
+      logger.warn("Volume index of pool " + pool.getUuid() + " is not available: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void prewarmRbdTemplateSnapshotCache(final KvmStoragePool pool) {
+    if (rbdTemplatePrewarmLimit <= 0 || rbdTemplatePrewarmExecutor.isShutdown()) {
+      return;
+    }
+
+    rbdTemplatePrewarmExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        final List<String> volumes = getRunningVolumes(pool);
+        Rados r = null;
+        IoCTX io = null;
+        try {
+          r = new Rados(pool.getAuthUserName());
+          r.confSet("mon_host", pool.getSourceHost() + ":" + pool.getSourcePort());
+          r.confSet("key", pool.getAuthSecret());
+          r.confSet("client_mount_timeout", "30");
+          r.connect();
+
+          io = r.ioCtxCreate(pool.getSourceDir());
+          final Rbd rbd = new Rbd(io);
+          final int found = rbdTemplateSnapshotCache.prewarm(pool.getUuid(), rbd, rbdTemplatePrewarmLimit,
+              volumes);
+
+          logger.info("Pre-warmed RBD template snapshot cache of pool " + pool.getUuid() + " with " + found
+              + " images having a protected " + rbdTemplateSnapName + " snapshot, ranked by the " + volumes.size()
+              + " volumes of the running VMs");
+        } catch (final RadosException e) {
+          logger.warn("Failed to pre-warm RBD template snapshot cache of pool " + pool.getUuid() + ": " + e.toString());
+        } catch (final RbdException e) {
+          logger.warn("Failed to pre-warm RBD template snapshot cache of pool " + pool.getUuid() + ": " + e.toString());
+        } finally {
+          if (io != null) {
+            r.ioCtxDestroy(io);
+          }
+          if (r != null) {
+            r.shutDown();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the images of the RBD pool that are disks of the VMs running on this host
+   */
+  private List<String> getRunningVolumes(KvmStoragePool pool) {
+    final List<String> volumes = new ArrayList<String>();
+    final String prefix = pool.getSourceDir() + "/";
+    try {
+      final Connect conn = LibvirtConnection.getConnection();
+      for (final int id : conn.listDomains()) {
+        Domain dm = null;
+        try {
+          dm = conn.domainLookupByID(id);
+          final LibvirtDomainXmlParser parser = new LibvirtDomainXmlParser();
+          parser.parseDomainXml(dm.getXMLDesc(0));
+          for (final DiskDef disk : parser.getDisks()) {
+            final String path = disk.getDiskPath();
+            // the source of an RBD disk is pool/image, the paths of file based disks are absolute
+            if (path != null && path.startsWith(prefix)) {
+              volumes.add(path.substring(prefix.length()));
+            }
+          }
+        } catch (final LibvirtException e) {
+          logger.debug("Failed to list the disks of domain " + id + ": " + e.toString());
+        } finally {
+          if (dm != null) {
+            try {
+              dm.free();
+            } catch (final LibvirtException e) {
+              logger.trace("Ignoring libvirt error.", e);
+            }
+          }
+        }
+      }
+    } catch (final LibvirtException e) {
+      logger.warn("Failed to list the running VMs to rank the RBD templates of pool " + pool.getUuid() + ": "
+          + e.toString());
+    }
+    return volumes;
+  }
+
   @Override
   public boolean createFolder(String uuid, String path) {
     final String mountPoint = this.mountPoint + File.separator + uuid;
@@ -420,6 +558,14 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
   public KvmPhysicalDisk getPhysicalDisk(String volumeUuid, KvmStoragePool pool) {
     final LibvirtStoragePool libvirtPool = (LibvirtStoragePool) pool;
 
+    final FileVolumeIndex index = getVolumeIndex(pool);
+    if (index != null) {
+      final FileVolumeIndex.Entry entry = index.get(volumeUuid);
+      if (entry != null) {
+        return entry.toPhysicalDisk(pool);
+      }
+    }
+
     try {
       final StorageVol vol = getVolume(libvirtPool.getPool(), volumeUuid);
       KvmPhysicalDisk disk;
@@ -558,7 +704,11 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
         sp.create(0);
       }
 
-      return getStoragePool(name);
+      final KvmStoragePool pool = getStoragePool(name);
+      if (type == StoragePoolType.RBD) {
+        prewarmRbdTemplateSnapshotCache(pool);
+      }
+      return pool;
     } catch (final LibvirtException e) {
       final String error = e.toString();
       if (error.contains("Storage source conflict")) {
@@ -575,6 +725,10 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
   @Override
   public boolean deleteStoragePool(String uuid) {
     logger.info("Attempting to remove storage pool " + uuid + " from libvirt");
+    rbdTemplateSnapshotCache.invalidatePool(uuid);
+    if (volumeIndexRegistry != null) {
+      volumeIndexRegistry.remove(uuid);
+    }
     Connect conn = null;
     try {
       conn = LibvirtConnection.getConnection();
@@ -818,6 +972,7 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
     logger.info("Attempting to remove volume " + uuid + " from pool " + pool.getUuid());
 
     if (pool.getType() == StoragePoolType.RBD) {
+      rbdTemplateSnapshotCache.invalidate(pool.getUuid(), uuid);
       try {
         logger.info("Unprotecting and Removing RBD snapshots of image " + pool.getSourceDir() + "/" + uuid
             + " prior to removing the image");
@@ -1003,68 +1158,88 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
           logger.debug("Succesfully connected to Ceph cluster at " + r.confGet("mon_host"));
 
           final IoCTX io = r.ioCtxCreate(srcPool.getSourceDir());
-          final Rbd rbd = new Rbd(io);
-          final RbdImage srcImage = rbd.open(template.getName());
+          try {
+            final Rbd rbd = new Rbd(io);
+
+            if (rbdTemplateSnapshotCache.isProtected(srcPool.getUuid(), template.getName())) {
+              logger.debug("RBD snapshot " + srcPool.getSourceDir() + "/" + template.getName() + "@"
+                  + rbdTemplateSnapName + " is known to be protected, cloning without inspecting the source image");
+              boolean cloned = false;
+              try {
+                rbd.clone(template.getName(), rbdTemplateSnapName, io, disk.getName(), rbdFeatures, rbdOrder);
+                cloned = true;
+              } catch (final RbdException e) {
+                logger.debug("Cached RBD clone of " + template.getName() + "@" + rbdTemplateSnapName
+                    + " failed, falling back to inspecting the source image: " + e.getMessage());
+                rbdTemplateSnapshotCache.invalidate(srcPool.getUuid(), template.getName());
+              }
+              if (cloned) {
+                logger.debug(
+                    "Succesfully cloned " + template.getName() + "@" + rbdTemplateSnapName + " to " + disk.getName());
+                // the clone exists now, a failed resize must not fall back to cloning it again
+                resizeRbdCloneIfNeeded(rbd, template, disk);
+                return disk;
+              }
+            }
 
-          if (srcImage.isOldFormat()) {
-            /* The source image is RBD format 1, we have to do a regular copy */
-            logger.debug("The source image " + srcPool.getSourceDir() + "/" + template.getName()
-                + " is RBD format 1. We have to perform a regular copy (" + disk.getVirtualSize() + " bytes)");
+            final RbdImage srcImage = rbd.open(template.getName());
 
-            rbd.create(disk.getName(), disk.getVirtualSize(), rbdFeatures, rbdOrder);
-            final RbdImage destImage = rbd.open(disk.getName());
+            if (srcImage.isOldFormat()) {
+              /* The source image is RBD format 1, we have to do a regular copy */
+              logger.debug("The source image " + srcPool.getSourceDir() + "/" + template.getName()
+                  + " is RBD format 1. We have to perform a regular copy (" + disk.getVirtualSize() + " bytes)");
 
-            logger.debug("Starting to copy " + srcImage.getName() + " to " + destImage.getName() + " in Ceph pool "
-                + srcPool.getSourceDir());
-            rbd.copy(srcImage, destImage);
+              rbd.create(disk.getName(), disk.getVirtualSize(), rbdFeatures, rbdOrder);
+              final RbdImage destImage = rbd.open(disk.getName());
 
-            logger.debug("Finished copying " + srcImage.getName() + " to " + destImage.getName() + " in Ceph pool "
-                + srcPool.getSourceDir());
-            rbd.close(destImage);
-          } else {
-            logger.debug("The source image " + srcPool.getSourceDir() + "/" + template.getName()
-                + " is RBD format 2. We will perform a RBD clone using snapshot "
-                + rbdTemplateSnapName);
-            /* The source image is format 2, we can do a RBD snapshot+clone (layering) */
-
-            logger.debug("Checking if RBD snapshot " + srcPool.getSourceDir() + "/" + template.getName()
-                + "@" + rbdTemplateSnapName + " exists prior to attempting a clone operation.");
-
-            final List<RbdSnapInfo> snaps = srcImage.snapList();
-            logger.debug("Found " + snaps.size() + " snapshots on RBD image " + srcPool.getSourceDir() + "/"
-                + template.getName());
-            boolean snapFound = false;
-            for (final RbdSnapInfo snap : snaps) {
-              if (rbdTemplateSnapName.equals(snap.name)) {
-                logger.debug("RBD snapshot " + srcPool.getSourceDir() + "/" + template.getName()
-                    + "@" + rbdTemplateSnapName + " already exists.");
-                snapFound = true;
-                break;
+              logger.debug("Starting to copy " + srcImage.getName() + " to " + destImage.getName() + " in Ceph pool "
+                  + srcPool.getSourceDir());
+              rbd.copy(srcImage, destImage);
+
+              logger.debug("Finished copying " + srcImage.getName() + " to " + destImage.getName() + " in Ceph pool "
+                  + srcPool.getSourceDir());
+              rbd.close(destImage);
+            } else {
+              logger.debug("The source image " + srcPool.getSourceDir() + "/" + template.getName()
+                  + " is RBD format 2. We will perform a RBD clone using snapshot "
+                  + rbdTemplateSnapName);
+              /* The source image is format 2, we can do a RBD snapshot+clone (layering) */
+
+              logger.debug("Checking if RBD snapshot " + srcPool.getSourceDir() + "/" + template.getName()
+                  + "@" + rbdTemplateSnapName + " exists prior to attempting a clone operation.");
+
+              final List<RbdSnapInfo> snaps = srcImage.snapList();
+              logger.debug("Found " + snaps.size() + " snapshots on RBD image " + srcPool.getSourceDir() + "/"
+                  + template.getName());
+              boolean snapFound = false;
+              for (final RbdSnapInfo snap : snaps) {
+                if (rbdTemplateSnapName.equals(snap.name)) {
+                  logger.debug("RBD snapshot " + srcPool.getSourceDir() + "/" + template.getName()
+                      + "@" + rbdTemplateSnapName + " already exists.");
+                  snapFound = true;
+                  break;
+                }
               }
-            }
 
-            if (!snapFound) {
-              logger.debug("Creating RBD snapshot " + rbdTemplateSnapName + " on image " + name);
-              srcImage.snapCreate(rbdTemplateSnapName);
-              logger.debug("Protecting RBD snapshot " + rbdTemplateSnapName + " on image " + name);
-              srcImage.snapProtect(rbdTemplateSnapName);
-            }
+              if (!snapFound) {
+                logger.debug("Creating RBD snapshot " + rbdTemplateSnapName + " on image " + name);
+                srcImage.snapCreate(rbdTemplateSnapName);
+                logger.debug("Protecting RBD snapshot " + rbdTemplateSnapName + " on image " + name);
+                srcImage.snapProtect(rbdTemplateSnapName);
+              }
+              rbdTemplateSnapshotCache.markProtected(srcPool.getUuid(), template.getName());
 
-            rbd.clone(template.getName(), rbdTemplateSnapName, io, disk.getName(), rbdFeatures, rbdOrder);
-            logger.debug(
-                "Succesfully cloned " + template.getName() + "@" + rbdTemplateSnapName + " to " + disk.getName());
-            /* We also need to resize the image if the VM was deployed with a larger root disk size */
-            if (disk.getVirtualSize() > template.getVirtualSize()) {
-              final RbdImage diskImage = rbd.open(disk.getName());
-              diskImage.resize(disk.getVirtualSize());
-              rbd.close(diskImage);
-              logger.debug("Resized " + disk.getName() + " to " + disk.getVirtualSize());
+              rbd.clone(template.getName(), rbdTemplateSnapName, io, disk.getName(), rbdFeatures, rbdOrder);
+              logger.debug(
+                  "Succesfully cloned " + template.getName() + "@" + rbdTemplateSnapName + " to " + disk.getName());
+              resizeRbdCloneIfNeeded(rbd, template, disk);
             }
 
+            rbd.close(srcImage);
+          } finally {
+            r.ioCtxDestroy(io);
+            r.shutDown();
           }
-
-          rbd.close(srcImage);
-          r.ioCtxDestroy(io);
         } else {
           /* The source pool or host is not the same Ceph cluster, we do a simple copy with Qemu-Img */
           logger.debug("Both the source and destination are RBD, but not the same Ceph cluster. Performing a copy");
@@ -1120,6 +1295,16 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
     return disk;
   }
 
+  private void resizeRbdCloneIfNeeded(Rbd rbd, KvmPhysicalDisk template, KvmPhysicalDisk disk) throws RbdException {
+    /* We also need to resize the image if the VM was deployed with a larger root disk size */
+    if (disk.getVirtualSize() > template.getVirtualSize()) {
+      final RbdImage diskImage = rbd.open(disk.getName());
+      diskImage.resize(disk.getVirtualSize());
+      rbd.close(diskImage);
+      logger.debug("Resized " + disk.getName() + " to " + disk.getVirtualSize());
+    }
+  }
+
   @Override
   public KvmPhysicalDisk createTemplateFromDisk(KvmPhysicalDisk disk, String name, PhysicalDiskFormat format, long size,
       KvmStoragePool destPool) {
@@ -1131,6 +1316,14 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
     final LibvirtStoragePool libvirtPool = (LibvirtStoragePool) pool;
     final StoragePool virtPool = libvirtPool.getPool();
     final List<KvmPhysicalDisk> disks = new ArrayList<KvmPhysicalDisk>();
+
+    final FileVolumeIndex index = getVolumeIndex(pool);
+    if (index != null) {
+      for (final FileVolumeIndex.Entry entry : index.list()) {
+        disks.add(entry.toPhysicalDisk(pool));
+      }
+      return disks;
+    }
     try {
       final String[] vols = virtPool.listVolumes();
       for (final String volName : vols) {
@@ -1307,6 +1500,15 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
     } catch (final LibvirtException e) {
       return false;
     }
+
+    final FileVolumeIndex index = getVolumeIndex(pool);
+    if (index != null) {
+      try {
+        index.reconcile();
+      } catch (final IOException e) {
+        logger.warn("Failed to reconcile the volume index of pool " + pool.getUuid() + ": " + e.toString());
+      }
+    }
     return true;
   }
 
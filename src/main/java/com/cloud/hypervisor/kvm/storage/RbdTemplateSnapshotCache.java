@@ -0,0 +1,167 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ceph.rbd.Rbd;
+import com.ceph.rbd.RbdException;
+import com.ceph.rbd.RbdImage;
+import com.ceph.rbd.jna.RbdImageInfo;
+import com.ceph.rbd.jna.RbdSnapInfo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of which RBD template images already carry a protected base snapshot, per storage pool, so cloning a
+ * volume from a template does not have to open the template and list its snapshots on every deploy.
+ */
+public class RbdTemplateSnapshotCache {
+
+  private final Logger logger = LoggerFactory.getLogger(RbdTemplateSnapshotCache.class);
+
+  private final String snapshotName;
+  private final Map<String, Set<String>> protectedImages = new ConcurrentHashMap<String, Set<String>>();
+
+  public RbdTemplateSnapshotCache(String snapshotName) {
+    this.snapshotName = snapshotName;
+  }
+
+  public String getSnapshotName() {
+    return snapshotName;
+  }
+
+  public boolean isProtected(String poolUuid, String imageName) {
+    final Set<String> images = protectedImages.get(poolUuid);
+    return images != null && images.contains(imageName);
+  }
+
+  public void markProtected(String poolUuid, String imageName) {
+    Set<String> images = protectedImages.get(poolUuid);
+    if (images == null) {
+      synchronized (protectedImages) {
+        images = protectedImages.get(poolUuid);
+        if (images == null) {
+          images = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+          protectedImages.put(poolUuid, images);
+        }
+      }
+    }
+    images.add(imageName);
+  }
+
+  public void invalidate(String poolUuid, String imageName) {
+    final Set<String> images = protectedImages.get(poolUuid);
+    if (images != null && images.remove(imageName)) {
+      logger.debug("Invalidated cached protected snapshot state of RBD image " + imageName + " in pool " + poolUuid);
+    }
+  }
+
+  public void invalidatePool(String poolUuid) {
+    protectedImages.remove(poolUuid);
+  }
+
+  public int size(String poolUuid) {
+    final Set<String> images = protectedImages.get(poolUuid);
+    return images == null ? 0 : images.size();
+  }
+
+  public int prewarm(String poolUuid, Rbd rbd, int limit) throws RbdException {
+    return prewarm(poolUuid, rbd, limit, Collections.<String>emptyList());
+  }
+
+  /**
+   * Walks at most limit images of the pool and records the ones that already have a protected base snapshot. The
+   * parents of the volumes in use come first, the most used one first, the other images follow in listing order.
+   *
+   * @param volumes the images of the pool in use by the VMs on this host
+   * @return the number of images that were added to the cache
+   */
+  public int prewarm(String poolUuid, Rbd rbd, int limit, Collection<String> volumes) throws RbdException {
+    final List<String> listed = rbd.list();
+    final Set<String> images = new LinkedHashSet<String>();
+    for (final String parent : rankParents(rbd, volumes)) {
+      if (listed.contains(parent)) {
+        images.add(parent);
+      }
+    }
+    images.addAll(listed);
+
+    int checked = 0;
+    int found = 0;
+    for (final String imageName : images) {
+      if (checked++ >= limit) {
+        break;
+      }
+      if (isProtected(poolUuid, imageName)) {
+        continue;
+      }
+      final RbdImage image = rbd.open(imageName);
+      try {
+        if (image.isOldFormat()) {
+          continue;
+        }
+        for (final RbdSnapInfo snap : image.snapList()) {
+          if (snapshotName.equals(snap.name) && image.snapIsProtected(snap.name)) {
+            markProtected(poolUuid, imageName);
+            found++;
+            break;
+          }
+        }
+      } finally {
+        rbd.close(image);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return the parent images of the volumes, the one with the most clones among them first
+   */
+  private List<String> rankParents(Rbd rbd, Collection<String> volumes) {
+    final Map<String, Integer> clones = new HashMap<String, Integer>();
+    for (final String volume : volumes) {
+      try {
+        final RbdImage image = rbd.openReadOnly(volume);
+        try {
+          final RbdImageInfo info = image.stat();
+          final String parent = toString(info.parent_name);
+          if (!parent.isEmpty()) {
+            final Integer count = clones.get(parent);
+            clones.put(parent, count == null ? 1 : count + 1);
+          }
+        } finally {
+          rbd.close(image);
+        }
+      } catch (final RbdException e) {
+        logger.debug("Failed to look up the parent of RBD image " + volume + ": " + e.toString());
+      }
+    }
+
+    final List<String> parents = new ArrayList<String>(clones.keySet());
+    Collections.sort(parents, new Comparator<String>() {
+      @Override
+      public int compare(String left, String right) {
+        return clones.get(right).compareTo(clones.get(left));
+      }
+    });
+    return parents;
+  }
+
+  private static String toString(byte[] name) {
+    int length = 0;
+    while (length < name.length && name[length] != 0) {
+      length++;
+    }
+    return new String(name, 0, length, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,248 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the capacity of every registered storage pool on its own schedule and serves the last sample from memory.
+ *
+ * File based pools are sampled with statvfs on the mount point, other pools through a libvirt pool refresh. Every
+ * pool is resampled after the configured interval plus a random jitter; slow or failing samples back the pool off up
+ * to MAX_BACKOFF times the interval. A sample older than MAX_STALE_INTERVALS intervals, or than one interval past
+ * the next sample of a backed off pool, is not served, the caller falls back to refreshing the pool itself.
+ *
+ * The schedule and backoff of a pool are guarded by the pool's target, a pool is sampled by one thread at a time.
+ */
+public class StoragePoolCapacitySampler {
+
+  private final Logger logger = LoggerFactory.getLogger(StoragePoolCapacitySampler.class);
+
+  private static final long TICK_MILLISECONDS = 1000;
+  private static final int MAX_BACKOFF = 8;
+  private static final int MAX_STALE_INTERVALS = 3;
+
+  private final long intervalMilliseconds;
+  private final Random random = new Random();
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, Target> targets = new ConcurrentHashMap<String, Target>();
+  private final Map<String, Sample> samples = new ConcurrentHashMap<String, Sample>();
+
+  public static class Sample {
+    private final long capacity;
+    private final long used;
+    private final long available;
+    private final long sampledAt;
+
+    public Sample(long capacity, long used, long available, long sampledAt) {
+      this.capacity = capacity;
+      this.used = used;
+      this.available = available;
+      this.sampledAt = sampledAt;
+    }
+
+    public long getCapacity() {
+      return capacity;
+    }
+
+    public long getUsed() {
+      return used;
+    }
+
+    public long getAvailable() {
+      return available;
+    }
+
+    public long getSampledAt() {
+      return sampledAt;
+    }
+
+    public void applyTo(LibvirtStoragePool pool) {
+      pool.setCapacity(capacity);
+      pool.setUsed(used);
+      pool.setAvailable(available);
+    }
+  }
+
+  private static class Target {
+    final String uuid;
+    final StoragePoolType type;
+    final String localPath;
+    final StorageAdaptor adaptor;
+    // guarded by the target
+    long nextDue;
+    int backoff = 1;
+
+    Target(String uuid, StoragePoolType type, String localPath, StorageAdaptor adaptor) {
+      this.uuid = uuid;
+      this.type = type;
+      this.localPath = localPath;
+      this.adaptor = adaptor;
+    }
+  }
+
+  public StoragePoolCapacitySampler(int intervalSeconds) {
+    intervalMilliseconds = intervalSeconds * 1000L;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("StoragePoolCapacitySampler"));
+  }
+
+  public void start() {
+    scheduler.scheduleWithFixedDelay(new ManagedContextRunnable() {
+      @Override
+      protected void runInContext() {
+        // an exception escaping the task would cancel the schedule for good
+        try {
+          sampleDuePools();
+        } catch (final RuntimeException e) {
+          logger.warn("Failed to sample the capacity of the storage pools", e);
+        }
+      }
+    }, TICK_MILLISECONDS, TICK_MILLISECONDS, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  public void register(KvmStoragePool pool, StorageAdaptor adaptor) {
+    final Target target = new Target(pool.getUuid(), pool.getType(), pool.getLocalPath(), adaptor);
+    synchronized (target) {
+      target.nextDue = currentTimeMillis();
+    }
+    targets.put(target.uuid, target);
+  }
+
+  public void unregister(String uuid) {
+    targets.remove(uuid);
+    samples.remove(uuid);
+  }
+
+  /**
+   * @return the last sample of the pool, or null if there is none or it is too old to be trusted
+   */
+  public Sample getSample(String uuid) {
+    final Sample sample = samples.get(uuid);
+    if (sample == null) {
+      return null;
+    }
+    // a backed off pool is sampled less often, its sample stays good until an interval past the next one is due
+    final int backoff = getBackoff(uuid);
+    final long maxAge = Math.max(MAX_STALE_INTERVALS, backoff + 1) * intervalMilliseconds;
+    if (currentTimeMillis() - sample.getSampledAt() > maxAge) {
+      return null;
+    }
+    return sample;
+  }
+
+  /**
+   * Samples a file based pool right away, which only costs a statvfs, like for the StartupStorageCommand of the
+   * local pool.
+   *
+   * @return the sample, or null if the pool is not registered, not file based or cannot be sampled
+   */
+  public Sample sampleNow(String uuid) {
+    final Target target = targets.get(uuid);
+    if (target == null || !isFileBased(target.type) || target.localPath == null || target.localPath.isEmpty()) {
+      return null;
+    }
+    return sample(target);
+  }
+
+  protected void sampleDuePools() {
+    final long now = currentTimeMillis();
+    for (final Target target : targets.values()) {
+      synchronized (target) {
+        if (target.nextDue <= now) {
+          sample(target);
+        }
+      }
+    }
+  }
+
+  private Sample sample(Target target) {
+    synchronized (target) {
+      return sampleLocked(target);
+    }
+  }
+
+  private Sample sampleLocked(Target target) {
+    final long start = currentTimeMillis();
+    Sample sample = null;
+    try {
+      if (isFileBased(target.type) && target.localPath != null && !target.localPath.isEmpty()) {
+        sample = sampleFileSystem(target);
+      } else {
+        final KvmStoragePool pool = target.adaptor.getStoragePool(target.uuid, true);
+        sample = new Sample(pool.getCapacity(), pool.getUsed(), pool.getAvailable(), currentTimeMillis());
+      }
+      samples.put(target.uuid, sample);
+
+      final long took = currentTimeMillis() - start;
+      if (took > intervalMilliseconds / 2) {
+        target.backoff = Math.min(target.backoff * 2, MAX_BACKOFF);
+        logger.debug("Sampling capacity of storage pool " + target.uuid + " took " + took + " ms, backing off to "
+            + target.backoff + " times the interval");
+      } else {
+        target.backoff = 1;
+      }
+    } catch (final IOException | RuntimeException e) {
+      target.backoff = Math.min(target.backoff * 2, MAX_BACKOFF);
+      logger.warn("Failed to sample capacity of storage pool " + target.uuid + ": " + e.toString());
+    }
+
+    final long jitter = (long) (random.nextDouble() * intervalMilliseconds / 4);
+    target.nextDue = currentTimeMillis() + target.backoff * intervalMilliseconds + jitter;
+    return sample;
+  }
+
+  private Sample sampleFileSystem(Target target) throws IOException {
+    final Path path = Paths.get(target.localPath);
+    final FileStore store = Files.getFileStore(path);
+    if (target.type == StoragePoolType.NetworkFilesystem || target.type == StoragePoolType.Gluster) {
+      final Path parent = path.getParent();
+      if (parent != null && store.equals(Files.getFileStore(parent))) {
+        throw new CloudRuntimeException(target.localPath + " is not mounted");
+      }
+    }
+
+    final long capacity = store.getTotalSpace();
+    final long available = store.getUsableSpace();
+    final long used = capacity - store.getUnallocatedSpace();
+    return new Sample(capacity, used, available, currentTimeMillis());
+  }
+
+  int getBackoff(String uuid) {
+    final Target target = targets.get(uuid);
+    if (target == null) {
+      return 0;
+    }
+    synchronized (target) {
+      return target.backoff;
+    }
+  }
+
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  private boolean isFileBased(StoragePoolType type) {
+    return type == StoragePoolType.NetworkFilesystem || type == StoragePoolType.Filesystem
+        || type == StoragePoolType.SharedMountPoint || type == StoragePoolType.Gluster;
+  }
+}
@@ -0,0 +1,281 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes volumes in the background so the agent can acknowledge a delete as soon as the volume is no longer in use.
+ *
+ * Every pool gets at most one batch of deletions in flight and at most batchSize deletions per interval. Queued
+ * deletions are written to a journal before they are acknowledged and replayed when the agent starts again.
+ */
+public class VolumeDeletionQueue {
+
+  private final Logger logger = LoggerFactory.getLogger(VolumeDeletionQueue.class);
+
+  private static final String JOURNAL_ADD = "ADD";
+  private static final String JOURNAL_DONE = "DONE";
+  private static final String NO_FORMAT = "-";
+  private static final int MAX_ATTEMPTS = 3;
+
+  private final KvmStoragePoolManager storagePoolMgr;
+  private final File journal;
+  private final int batchSize;
+  private final int intervalSeconds;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService scheduler;
+
+  private final Map<String, Queue<PendingDeletion>> pending = new ConcurrentHashMap<String, Queue<PendingDeletion>>();
+  private final Set<String> busyPools = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  static class PendingDeletion {
+    final StoragePoolType poolType;
+    final String poolUuid;
+    final String volumeUuid;
+    final ImageFormat format;
+    int attempts;
+
+    PendingDeletion(StoragePoolType poolType, String poolUuid, String volumeUuid, ImageFormat format) {
+      this.poolType = poolType;
+      this.poolUuid = poolUuid;
+      this.volumeUuid = volumeUuid;
+      this.format = format;
+    }
+
+    String getKey() {
+      return poolUuid + "/" + volumeUuid;
+    }
+  }
+
+  public VolumeDeletionQueue(KvmStoragePoolManager storagePoolMgr, File journal, int batchSize, int concurrency,
+      int intervalSeconds) {
+    this.storagePoolMgr = storagePoolMgr;
+    this.journal = journal;
+    this.batchSize = batchSize;
+    this.intervalSeconds = intervalSeconds;
+    workers = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("VolumeDeletion"));
+    scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("VolumeDeletionScheduler"));
+  }
+
+  public void start() {
+    final List<PendingDeletion> replayed = replayJournal();
+    for (final PendingDeletion deletion : replayed) {
+      queue(deletion);
+    }
+    compactJournal();
+    if (!replayed.isEmpty()) {
+      logger.info("Resuming " + replayed.size() + " volume deletions from journal " + journal.getAbsolutePath());
+    }
+
+    scheduler.scheduleWithFixedDelay(new ManagedContextRunnable() {
+      @Override
+      protected void runInContext() {
+        try {
+          dispatch();
+        } catch (final Exception e) {
+          // an exception would cancel the schedule and leave the queue unattended
+          logger.error("Failed to dispatch volume deletions: " + e.toString(), e);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+    workers.shutdown();
+  }
+
+  public synchronized void enqueue(StoragePoolType poolType, String poolUuid, String volumeUuid, ImageFormat format) {
+    final PendingDeletion deletion = new PendingDeletion(poolType, poolUuid, volumeUuid, format);
+    appendToJournal(JOURNAL_ADD + "\t" + poolType + "\t" + poolUuid + "\t" + volumeUuid + "\t"
+        + (format == null ? NO_FORMAT : format.toString()));
+    queue(deletion);
+    logger.debug("Queued deletion of volume " + volumeUuid + " in pool " + poolUuid);
+  }
+
+  public int getPendingCount() {
+    int count = 0;
+    for (final Queue<PendingDeletion> poolQueue : pending.values()) {
+      count += poolQueue.size();
+    }
+    return count;
+  }
+
+  public boolean isPending(String poolUuid, String volumeUuid) {
+    final Queue<PendingDeletion> poolQueue = pending.get(poolUuid);
+    if (poolQueue == null) {
+      return false;
+    }
+    for (final PendingDeletion deletion : poolQueue) {
+      if (deletion.volumeUuid.equals(volumeUuid)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void queue(PendingDeletion deletion) {
+    Queue<PendingDeletion> poolQueue = pending.get(deletion.poolUuid);
+    if (poolQueue == null) {
+      synchronized (pending) {
+        poolQueue = pending.get(deletion.poolUuid);
+        if (poolQueue == null) {
+          poolQueue = new ConcurrentLinkedQueue<PendingDeletion>();
+          pending.put(deletion.poolUuid, poolQueue);
+        }
+      }
+    }
+    poolQueue.add(deletion);
+  }
+
+  protected void dispatch() {
+    for (final Map.Entry<String, Queue<PendingDeletion>> entry : pending.entrySet()) {
+      final String poolUuid = entry.getKey();
+      final Queue<PendingDeletion> poolQueue = entry.getValue();
+      if (poolQueue.isEmpty() || !busyPools.add(poolUuid)) {
+        continue;
+      }
+
+      final List<PendingDeletion> batch = new ArrayList<PendingDeletion>(batchSize);
+      PendingDeletion deletion;
+      while (batch.size() < batchSize && (deletion = poolQueue.poll()) != null) {
+        batch.add(deletion);
+      }
+
+      workers.submit(new ManagedContextRunnable() {
+        @Override
+        protected void runInContext() {
+          try {
+            for (final PendingDeletion deletion : batch) {
+              try {
+                purge(deletion);
+              } catch (final Exception e) {
+                logger.error("Failed to record the deletion of volume " + deletion.volumeUuid + " from pool "
+                    + deletion.poolUuid + ": " + e.toString());
+              }
+            }
+          } finally {
+            busyPools.remove(poolUuid);
+          }
+        }
+      });
+    }
+
+    if (getPendingCount() == 0 && busyPools.isEmpty()) {
+      compactJournal();
+    }
+  }
+
+  protected void purge(PendingDeletion deletion) {
+    deletion.attempts++;
+    try {
+      final KvmStoragePool pool = storagePoolMgr.getStoragePool(deletion.poolType, deletion.poolUuid);
+      pool.deletePhysicalDisk(deletion.volumeUuid, deletion.format);
+      logger.info("Deleted volume " + deletion.volumeUuid + " from pool " + deletion.poolUuid);
+    } catch (final Exception e) {
+      if (deletion.attempts < MAX_ATTEMPTS) {
+        logger.warn("Failed to delete volume " + deletion.volumeUuid + " from pool " + deletion.poolUuid
+            + " (attempt " + deletion.attempts + "), retrying later: " + e.toString());
+        queue(deletion);
+        return;
+      }
+      logger.error("Giving up deleting volume " + deletion.volumeUuid + " from pool " + deletion.poolUuid
+          + " after " + deletion.attempts + " attempts: " + e.toString());
+    }
+    appendToJournal(JOURNAL_DONE + "\t" + deletion.poolUuid + "\t" + deletion.volumeUuid);
+  }
+
+  protected List<PendingDeletion> replayJournal() {
+    final Map<String, PendingDeletion> replayed = new LinkedHashMap<String, PendingDeletion>();
+    if (!journal.exists()) {
+      return new ArrayList<PendingDeletion>();
+    }
+
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] tokens = line.split("\t");
+        if (tokens.length == 5 && JOURNAL_ADD.equals(tokens[0])) {
+          final ImageFormat format = NO_FORMAT.equals(tokens[4]) ? null : ImageFormat.valueOf(tokens[4]);
+          final PendingDeletion deletion = new PendingDeletion(StoragePoolType.valueOf(tokens[1]), tokens[2],
+              tokens[3], format);
+          replayed.put(deletion.getKey(), deletion);
+        } else if (tokens.length == 3 && JOURNAL_DONE.equals(tokens[0])) {
+          replayed.remove(tokens[1] + "/" + tokens[2]);
+        } else {
+          logger.warn("Ignoring malformed volume deletion journal entry: " + line);
+        }
+      }
+    } catch (final IOException | IllegalArgumentException e) {
+      logger.error("Failed to replay volume deletion journal " + journal.getAbsolutePath() + ": " + e.toString());
+    }
+
+    return new ArrayList<PendingDeletion>(replayed.values());
+  }
+
+  private synchronized void appendToJournal(String line) {
+    try (FileOutputStream out = new FileOutputStream(journal, true)) {
+      out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+      out.getChannel().force(false);
+    } catch (final IOException e) {
+      throw new CloudRuntimeException("Failed to write volume deletion journal " + journal.getAbsolutePath(), e);
+    }
+  }
+
+  private synchronized void compactJournal() {
+    final File directory = journal.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.exists() && !directory.mkdirs()) {
+      logger.warn("Failed to create directory " + directory + " for the volume deletion journal");
+      return;
+    }
+
+    final StringBuilder content = new StringBuilder();
+    for (final Queue<PendingDeletion> poolQueue : pending.values()) {
+      for (final PendingDeletion deletion : poolQueue) {
+        content.append(JOURNAL_ADD).append('\t').append(deletion.poolType).append('\t').append(deletion.poolUuid)
+            .append('\t').append(deletion.volumeUuid).append('\t')
+            .append(deletion.format == null ? NO_FORMAT : deletion.format.toString()).append('\n');
+      }
+    }
+
+    final File compacted = new File(journal.getAbsolutePath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(compacted, false)) {
+      out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+      out.getChannel().force(false);
+    } catch (final IOException e) {
+      logger.warn("Failed to compact volume deletion journal " + journal.getAbsolutePath() + ": " + e.toString());
+      return;
+    }
+    if (!compacted.renameTo(journal)) {
+      logger.warn("Failed to replace volume deletion journal " + journal.getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,346 @@
+package org.apache.cloudstack.utils.linux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples host cpu, memory and network counters from /proc/stat, /proc/meminfo and /sys/class/net in the background.
+ *
+ * Every file is read into a direct buffer owned by its reader and parsed in place, and the results go into primitive
+ * arrays and ring buffers, so neither sampling nor answering a GetHostStatsCommand allocates.
+ */
+public class HostMetricsSampler {
+
+  private static final Logger logger = LoggerFactory.getLogger(HostMetricsSampler.class);
+
+  public static final int USER = 0;
+  public static final int SYSTEM = 1;
+  public static final int IOWAIT = 2;
+  public static final int STEAL = 3;
+
+  /* Field positions in a cpu line of /proc/stat: user nice system idle iowait irq softirq steal */
+  private static final int STAT_FIELDS = 8;
+  private static final int STAT_USER = 0;
+  private static final int STAT_NICE = 1;
+  private static final int STAT_SYSTEM = 2;
+  private static final int STAT_IDLE = 3;
+  private static final int STAT_IOWAIT = 4;
+  private static final int STAT_IRQ = 5;
+  private static final int STAT_SOFTIRQ = 6;
+  private static final int STAT_STEAL = 7;
+
+  private static final int NIC_RESCAN_SAMPLES = 30;
+
+  /* The most cpus tracked one by one; the aggregate cpu line always covers all of them */
+  public static final int MAX_CPUS = 256;
+
+  private static final byte[] CPU = "cpu".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MEM_TOTAL = "MemTotal:".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MEM_FREE = "MemFree:".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MEM_AVAILABLE = "MemAvailable:".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] CACHED = "Cached:".getBytes(StandardCharsets.US_ASCII);
+
+  private final String sysClassNetDir;
+  private final ProcFileReader statReader;
+  private final ProcFileReader meminfoReader;
+  private final int cpus;
+
+  /* Index 0 is the aggregate cpu line, index n + 1 is cpu n */
+  private final long[][] previousTicks;
+  private final long[][] currentTicks;
+  private final double[][] cpuPercent;
+  private boolean hasPreviousTicks;
+
+  private final MetricRingBuffer cpuUsed;
+  private final MetricRingBuffer memAvailable;
+  private volatile double memTotalKb;
+  private volatile double memAvailableKb;
+  private volatile double memFreeKb;
+
+  private volatile Map<String, NicCounters> nics = new HashMap<String, NicCounters>();
+  private int samplesSinceNicScan;
+
+  private ScheduledExecutorService executor;
+
+  private static class NicCounters {
+    private final ProcFileReader rxReader;
+    private final ProcFileReader txReader;
+    private volatile long rxBytes;
+    private volatile long txBytes;
+
+    NicCounters(String statisticsDir) {
+      rxReader = new ProcFileReader(statisticsDir + "/rx_bytes", 32);
+      txReader = new ProcFileReader(statisticsDir + "/tx_bytes", 32);
+    }
+
+    void sample() throws IOException {
+      rxBytes = rxReader.readLong();
+      txBytes = txReader.readLong();
+    }
+
+    void close() {
+      try {
+        rxReader.close();
+        txReader.close();
+      } catch (final IOException e) {
+        logger.debug("[ignored] failed to close nic counters.", e);
+      }
+    }
+  }
+
+  public HostMetricsSampler(int history) {
+    this(Runtime.getRuntime().availableProcessors(), history);
+  }
+
+  /**
+   * @param cpus the number of cpus to track one by one, capped at MAX_CPUS
+   */
+  public HostMetricsSampler(int cpus, int history) {
+    this("/proc/stat", "/proc/meminfo", "/sys/class/net", Math.max(1, Math.min(cpus, MAX_CPUS)), history);
+  }
+
+  protected HostMetricsSampler(String procStat, String procMeminfo, String sysClassNetDir, int cpus, int history) {
+    this.sysClassNetDir = sysClassNetDir;
+    this.cpus = cpus;
+    /* The cpu lines come first in /proc/stat; what follows them is never parsed and may be cut off */
+    statReader = new ProcFileReader(procStat, Math.max(16384, 256 * (cpus + 1)));
+    meminfoReader = new ProcFileReader(procMeminfo, 8192);
+    previousTicks = new long[cpus + 1][STAT_FIELDS];
+    currentTicks = new long[cpus + 1][STAT_FIELDS];
+    cpuPercent = new double[cpus + 1][4];
+    cpuUsed = new MetricRingBuffer(history);
+    memAvailable = new MetricRingBuffer(history);
+  }
+
+  public synchronized void start(int intervalSeconds) {
+    executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HostMetricsSampler"));
+    executor.scheduleAtFixedRate(new ManagedContextRunnable() {
+      @Override
+      protected void runInContext() {
+        try {
+          sample();
+        } catch (final IOException e) {
+          logger.warn("Failed to sample host metrics: " + e.toString());
+        }
+      }
+    }, 0, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    try {
+      statReader.close();
+      meminfoReader.close();
+    } catch (final IOException e) {
+      logger.debug("[ignored] failed to close host metrics files.", e);
+    }
+    for (final NicCounters counters : nics.values()) {
+      counters.close();
+    }
+  }
+
+  public synchronized void sample() throws IOException {
+    final long now = System.currentTimeMillis();
+    sampleCpu(now);
+    sampleMemory(now);
+    sampleNics();
+  }
+
+  private void sampleCpu(long now) throws IOException {
+    final ByteBuffer buffer = statReader.read();
+    do {
+      if (!ProcFileReader.startsWith(buffer, CPU)) {
+        break;
+      }
+      buffer.position(buffer.position() + CPU.length);
+      final int index;
+      if (buffer.hasRemaining() && buffer.get(buffer.position()) == ' ') {
+        index = 0;
+      } else {
+        index = (int) ProcFileReader.parseLong(buffer) + 1;
+      }
+      if (index < 0 || index > cpus) {
+        continue;
+      }
+      final long[] ticks = currentTicks[index];
+      for (int field = 0; field < STAT_FIELDS; field++) {
+        final long value = ProcFileReader.parseLong(buffer);
+        ticks[field] = value < 0 ? 0 : value;
+      }
+    } while (ProcFileReader.nextLine(buffer));
+
+    if (hasPreviousTicks) {
+      for (int i = 0; i <= cpus; i++) {
+        computePercentages(previousTicks[i], currentTicks[i], cpuPercent[i]);
+      }
+      cpuUsed.add(now, Math.max(0d, 100d - idlePercent(previousTicks[0], currentTicks[0])));
+    }
+    for (int i = 0; i <= cpus; i++) {
+      System.arraycopy(currentTicks[i], 0, previousTicks[i], 0, STAT_FIELDS);
+    }
+    hasPreviousTicks = true;
+  }
+
+  private static void computePercentages(long[] previous, long[] current, double[] percent) {
+    final long total = totalTicks(current) - totalTicks(previous);
+    if (total <= 0) {
+      return;
+    }
+    percent[USER] = 100d * (current[STAT_USER] + current[STAT_NICE] - previous[STAT_USER] - previous[STAT_NICE]) / total;
+    percent[SYSTEM] = 100d * (current[STAT_SYSTEM] + current[STAT_IRQ] + current[STAT_SOFTIRQ]
+        - previous[STAT_SYSTEM] - previous[STAT_IRQ] - previous[STAT_SOFTIRQ]) / total;
+    percent[IOWAIT] = 100d * (current[STAT_IOWAIT] - previous[STAT_IOWAIT]) / total;
+    percent[STEAL] = 100d * (current[STAT_STEAL] - previous[STAT_STEAL]) / total;
+  }
+
+  /**
+   * Idle time including iowait, to match what the uptime based CpuStat reports as not used.
+   */
+  private static double idlePercent(long[] previous, long[] current) {
+    final long total = totalTicks(current) - totalTicks(previous);
+    if (total <= 0) {
+      return 100d;
+    }
+    return 100d * (current[STAT_IDLE] + current[STAT_IOWAIT] - previous[STAT_IDLE] - previous[STAT_IOWAIT]) / total;
+  }
+
+  private static long totalTicks(long[] ticks) {
+    long total = 0;
+    for (int field = 0; field < STAT_FIELDS; field++) {
+      total += ticks[field];
+    }
+    return total;
+  }
+
+  private void sampleMemory(long now) throws IOException {
+    final ByteBuffer buffer = meminfoReader.read();
+    long total = -1;
+    long free = -1;
+    long available = -1;
+    long cached = -1;
+    do {
+      if (ProcFileReader.startsWith(buffer, MEM_TOTAL)) {
+        buffer.position(buffer.position() + MEM_TOTAL.length);
+        total = ProcFileReader.parseLong(buffer);
+      } else if (ProcFileReader.startsWith(buffer, MEM_FREE)) {
+        buffer.position(buffer.position() + MEM_FREE.length);
+        free = ProcFileReader.parseLong(buffer);
+      } else if (ProcFileReader.startsWith(buffer, MEM_AVAILABLE)) {
+        buffer.position(buffer.position() + MEM_AVAILABLE.length);
+        available = ProcFileReader.parseLong(buffer);
+      } else if (ProcFileReader.startsWith(buffer, CACHED)) {
+        buffer.position(buffer.position() + CACHED.length);
+        cached = ProcFileReader.parseLong(buffer);
+      }
+    } while (ProcFileReader.nextLine(buffer));
+
+    if (available < 0) {
+      /* Kernels before 3.14 have no MemAvailable, fall back to what MemStat reports */
+      available = Math.max(free, 0) + Math.max(cached, 0);
+    }
+    memTotalKb = total;
+    memFreeKb = free;
+    memAvailableKb = available;
+    memAvailable.add(now, available);
+  }
+
+  private void sampleNics() {
+    if (samplesSinceNicScan++ % NIC_RESCAN_SAMPLES == 0) {
+      rescanNics();
+    }
+    for (final NicCounters counters : nics.values()) {
+      try {
+        counters.sample();
+      } catch (final IOException e) {
+        /* The nic went away, the next rescan drops it */
+        counters.rxBytes = 0;
+        counters.txBytes = 0;
+      }
+    }
+  }
+
+  private void rescanNics() {
+    final String[] names = new File(sysClassNetDir).list();
+    if (names == null) {
+      return;
+    }
+    final Map<String, NicCounters> current = nics;
+    final Map<String, NicCounters> scanned = new HashMap<String, NicCounters>();
+    for (final String name : names) {
+      final NicCounters existing = current.get(name);
+      scanned.put(name, existing != null ? existing : new NicCounters(sysClassNetDir + "/" + name + "/statistics"));
+    }
+    for (final Map.Entry<String, NicCounters> entry : current.entrySet()) {
+      if (!scanned.containsKey(entry.getKey())) {
+        entry.getValue().close();
+      }
+    }
+    nics = scanned;
+  }
+
+  public boolean hasSamples() {
+    return cpuUsed.size() > 0;
+  }
+
+  public int getCpus() {
+    return cpus;
+  }
+
+  public double getCpuUsedPercent() {
+    return cpuUsed.latest();
+  }
+
+  /**
+   * @param cpu the cpu number, or -1 for all cpus together
+   * @param field one of USER, SYSTEM, IOWAIT or STEAL
+   */
+  public synchronized double getCpuPercent(int cpu, int field) {
+    return cpuPercent[cpu + 1][field];
+  }
+
+  public MetricRingBuffer getCpuUsedHistory() {
+    return cpuUsed;
+  }
+
+  public MetricRingBuffer getMemAvailableHistory() {
+    return memAvailable;
+  }
+
+  public double getMemTotalKb() {
+    return memTotalKb;
+  }
+
+  public double getMemFreeKb() {
+    return memFreeKb;
+  }
+
+  public double getMemAvailableKb() {
+    return memAvailableKb;
+  }
+
+  public double getNicRxBytes(String nic) {
+    final NicCounters counters = nics.get(nic);
+    return counters == null ? 0d : counters.rxBytes;
+  }
+
+  public double getNicTxBytes(String nic) {
+    final NicCounters counters = nics.get(nic);
+    return counters == null ? 0d : counters.txBytes;
+  }
+}
@@ -0,0 +1,82 @@
+package org.apache.cloudstack.utils.linux;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size ring of timestamped samples backed by primitive arrays.
+ */
+public class MetricRingBuffer {
+
+  private final long[] timestamps;
+  private final double[] values;
+  private int next;
+  private int count;
+
+  public MetricRingBuffer(int capacity) {
+    timestamps = new long[capacity];
+    values = new double[capacity];
+  }
+
+  public synchronized void add(long timestamp, double value) {
+    timestamps[next] = timestamp;
+    values[next] = value;
+    next = (next + 1) % values.length;
+    if (count < values.length) {
+      count++;
+    }
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  /**
+   * @param age 0 for the latest sample, 1 for the one before, and so on
+   */
+  public synchronized double get(int age) {
+    if (age >= count) {
+      throw new IndexOutOfBoundsException("Only " + count + " samples available");
+    }
+    return values[index(age)];
+  }
+
+  public synchronized long getTimestamp(int age) {
+    if (age >= count) {
+      throw new IndexOutOfBoundsException("Only " + count + " samples available");
+    }
+    return timestamps[index(age)];
+  }
+
+  public synchronized double latest() {
+    return count == 0 ? 0d : values[index(0)];
+  }
+
+  public synchronized double average() {
+    if (count == 0) {
+      return 0d;
+    }
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += values[i];
+    }
+    return sum / count;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the nearest rank percentile of the samples, or 0 without samples
+   */
+  public synchronized double percentile(double percentile) {
+    if (count == 0) {
+      return 0d;
+    }
+    final double[] sorted = Arrays.copyOf(values, count);
+    Arrays.sort(sorted);
+    final int rank = (int) Math.ceil(percentile / 100 * count);
+    return sorted[Math.min(Math.max(rank, 1), count) - 1];
+  }
+
+  private int index(int age) {
+    return (next - 1 - age + values.length) % values.length;
+  }
+}
@@ -0,0 +1,124 @@
+package org.apache.cloudstack.utils.linux;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a procfs or sysfs file into a reusable direct buffer and offers allocation free parsing helpers.
+ *
+ * The file is kept open and re-read from offset 0 on every read, which procfs and sysfs both support.
+ */
+public class ProcFileReader implements Closeable {
+
+  private final Path path;
+  private final ByteBuffer buffer;
+  private FileChannel channel;
+
+  public ProcFileReader(String path, int capacity) {
+    this.path = Paths.get(path);
+    buffer = ByteBuffer.allocateDirect(capacity);
+  }
+
+  public String getPath() {
+    return path.toString();
+  }
+
+  /**
+   * Reads the file, or as much of it as fits in the buffer.
+   *
+   * @return the buffer, positioned at the start of the content
+   */
+  public ByteBuffer read() throws IOException {
+    if (channel == null) {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+    buffer.clear();
+    long position = 0;
+    int read;
+    while (buffer.hasRemaining() && (read = channel.read(buffer, position)) > 0) {
+      position += read;
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Reads a file holding a single number, like the counters below /sys/class/net/[nic]/statistics.
+   */
+  public long readLong() throws IOException {
+    final ByteBuffer content = read();
+    return parseLong(content);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Skips spaces and tabs and parses the unsigned decimal number at the position of the buffer.
+   *
+   * @return the number, or -1 if there is no number at the position
+   */
+  public static long parseLong(ByteBuffer buffer) {
+    skipBlanks(buffer);
+    long value = -1;
+    while (buffer.hasRemaining()) {
+      final byte b = buffer.get(buffer.position());
+      if (b < '0' || b > '9') {
+        break;
+      }
+      value = (value < 0 ? 0 : value * 10) + (b - '0');
+      buffer.position(buffer.position() + 1);
+    }
+    return value;
+  }
+
+  public static void skipBlanks(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      final byte b = buffer.get(buffer.position());
+      if (b != ' ' && b != '\t') {
+        break;
+      }
+      buffer.position(buffer.position() + 1);
+    }
+  }
+
+  /**
+   * Moves the position of the buffer to the start of the next line.
+   *
+   * @return false if there is no next line
+   */
+  public static boolean nextLine(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      if (buffer.get() == '\n') {
+        return buffer.hasRemaining();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether the bytes at the position of the buffer equal the given prefix, without moving the position.
+   */
+  public static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+    if (buffer.remaining() < prefix.length) {
+      return false;
+    }
+    final int position = buffer.position();
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer.get(position + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,88 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloud.exception.InternalErrorException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BridgeDeviceRegistryTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BridgeDeviceRegistry.DeviceCreator creator(final String bridge, final String port,
+      final AtomicInteger runs) {
+    return new BridgeDeviceRegistry.DeviceCreator() {
+      @Override
+      public void create() throws InternalErrorException {
+        runs.incrementAndGet();
+        try {
+          Thread.sleep(50);
+        } catch (final InterruptedException e) {
+          throw new InternalErrorException(e.getMessage());
+        }
+        new File(folder.getRoot(), bridge + "/bridge").mkdirs();
+        new File(folder.getRoot(), bridge + "/brif/" + port).mkdirs();
+        new File(folder.getRoot(), port).mkdirs();
+      }
+    };
+  }
+
+  @Test
+  public void testCreatesMissingBridgeOnce() throws Exception {
+    final BridgeDeviceRegistry registry = new BridgeDeviceRegistry(folder.getRoot());
+    final AtomicInteger runs = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<Void>> plugs = new ArrayList<Future<Void>>();
+      for (int i = 0; i < 8; i++) {
+        plugs.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            registry.ensure("breth0-100", "eth0.100", creator("breth0-100", "eth0.100", runs));
+            return null;
+          }
+        }));
+      }
+      for (final Future<Void> plug : plugs) {
+        plug.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(1, runs.get());
+    Assert.assertTrue(registry.isBridge("breth0-100"));
+    Assert.assertTrue(registry.isAttached("breth0-100", "eth0.100"));
+  }
+
+  @Test
+  public void testRecreatesBridgeWithoutPort() throws Exception {
+    new File(folder.getRoot(), "eth0").mkdirs();
+    new File(folder.getRoot(), "breth0-200/brif/vnet0").mkdirs();
+    new File(folder.getRoot(), "breth0-200/bridge").mkdirs();
+    final BridgeDeviceRegistry registry = new BridgeDeviceRegistry(folder.getRoot());
+    Assert.assertTrue(registry.isBridge("breth0-200"));
+    // a physical interface exists, but is no bridge
+    Assert.assertTrue(registry.exists("eth0"));
+    Assert.assertFalse(registry.isBridge("eth0"));
+
+    final AtomicInteger runs = new AtomicInteger();
+    registry.ensure("breth0-200", "eth0.200", creator("breth0-200", "eth0.200", runs));
+    registry.ensure("breth0-200", "eth0.200", creator("breth0-200", "eth0.200", runs));
+    Assert.assertEquals(1, runs.get());
+    Assert.assertEquals(2, registry.getPorts("breth0-200").size());
+    Assert.assertTrue(registry.getPorts("breth0-300").isEmpty());
+  }
+}
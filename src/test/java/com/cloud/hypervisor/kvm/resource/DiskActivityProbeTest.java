@@ -0,0 +1,93 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.cloud.hypervisor.kvm.storage.KvmPhysicalDisk;
+import com.cloud.hypervisor.kvm.storage.KvmStoragePool;
+import com.cloud.storage.Storage.StoragePoolType;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskActivityProbeTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Map<String, Integer> watchers = new HashMap<String, Integer>();
+  private final DiskActivityProbe.WatcherCounter watcherCounter = new DiskActivityProbe.WatcherCounter() {
+    @Override
+    public int countWatchers(KvmStoragePool pool, String image) throws IOException {
+      final Integer count = watchers.get(image);
+      if (count == null) {
+        throw new IOException("No such image " + image);
+      }
+      return count;
+    }
+  };
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private DiskActivityProbe createProbe() {
+    return new DiskActivityProbe(executor, watcherCounter, 50, 30000, 0, 5000);
+  }
+
+  private KvmPhysicalDisk disk(StoragePoolType type, String path, String name) {
+    final KvmStoragePool pool = mock(KvmStoragePool.class);
+    when(pool.getType()).thenReturn(type);
+    return new KvmPhysicalDisk(path, name, pool);
+  }
+
+  private KvmPhysicalDisk idleFile(String name) throws IOException {
+    final File file = folder.newFile(name);
+    Assert.assertTrue(file.setLastModified(System.currentTimeMillis() - 3600 * 1000L));
+    return disk(StoragePoolType.NetworkFilesystem, file.getAbsolutePath(), name);
+  }
+
+  @Test
+  public void testRbdImageWithWatcherIsActive() throws Exception {
+    watchers.put("idle", 0);
+    watchers.put("running", 1);
+
+    Assert.assertEquals(DiskActivityProbe.Activity.ACTIVE, createProbe().probe(Arrays.asList(
+        disk(StoragePoolType.RBD, "rbd/idle", "idle"), disk(StoragePoolType.RBD, "rbd/running", "running"))));
+    Assert.assertEquals(DiskActivityProbe.Activity.IDLE, createProbe().probe(
+        Collections.singletonList(disk(StoragePoolType.RBD, "rbd/idle", "idle"))));
+  }
+
+  @Test
+  public void testRecentlyModifiedFileIsActive() throws Exception {
+    final File file = folder.newFile("recent");
+
+    Assert.assertEquals(DiskActivityProbe.Activity.ACTIVE, createProbe().probe(Arrays.asList(idleFile("old"),
+        disk(StoragePoolType.NetworkFilesystem, file.getAbsolutePath(), "recent"))));
+    // an unchanged file never proves the VM is gone
+    Assert.assertEquals(DiskActivityProbe.Activity.UNKNOWN, createProbe().probe(
+        Collections.singletonList(idleFile("older"))));
+  }
+
+  @Test
+  public void testUnreadableDiskIsUnknown() throws Exception {
+    Assert.assertEquals(DiskActivityProbe.Activity.UNKNOWN, createProbe().probe(Arrays.asList(idleFile("old"),
+        disk(StoragePoolType.RBD, "rbd/missing", "missing"))));
+    Assert.assertEquals(DiskActivityProbe.Activity.UNKNOWN, createProbe().probe(
+        Collections.singletonList(disk(StoragePoolType.CLVM, "/dev/vg/lv", "lv"))));
+  }
+}
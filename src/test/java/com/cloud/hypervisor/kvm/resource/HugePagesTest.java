@@ -0,0 +1,115 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloud.exception.InternalErrorException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HugePagesTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static void write(File dir, String name, long value) throws IOException {
+    Assert.assertTrue(dir.isDirectory() || dir.mkdirs());
+    Files.write(new File(dir, name).toPath(), (value + "\n").getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static void pages(File dir, long total, long free) throws IOException {
+    write(dir, "nr_hugepages", total);
+    write(dir, "free_hugepages", free);
+  }
+
+  /* 2 MiB pages on two nodes, 1 GiB pages on node 0 */
+  private HugePages createHugePages() throws IOException {
+    final File hugePagesDir = new File(folder.getRoot(), "hugepages");
+    final File nodesDir = new File(folder.getRoot(), "node");
+    pages(new File(hugePagesDir, "hugepages-2048kB"), 1024, 800);
+    write(new File(hugePagesDir, "hugepages-2048kB"), "resv_hugepages", 100);
+    pages(new File(hugePagesDir, "hugepages-1048576kB"), 4, 4);
+    pages(new File(nodesDir, "node0/hugepages/hugepages-2048kB"), 512, 300);
+    pages(new File(nodesDir, "node1/hugepages/hugepages-2048kB"), 512, 500);
+    pages(new File(nodesDir, "node0/hugepages/hugepages-1048576kB"), 4, 4);
+    Assert.assertTrue(new File(nodesDir, "node1/hugepages/hugepages-1048576kB").mkdirs());
+    Assert.assertTrue(new File(nodesDir, "possible").mkdirs());
+    return new HugePages(hugePagesDir, nodesDir, 2048);
+  }
+
+  @Test
+  public void testReadsTheHugePagesOfTheHost() throws IOException {
+    final HugePages hugePages = createHugePages();
+    Assert.assertEquals(Arrays.asList(2048L, 1048576L), hugePages.getPageSizes());
+    Assert.assertEquals(Arrays.asList(0, 1), hugePages.getNodes());
+    // the pages reserved by mappings are not free
+    Assert.assertEquals(700, hugePages.getFreePages(2048));
+    Assert.assertEquals(500, hugePages.getFreePages(1, 2048));
+
+    final Map<String, String> details = hugePages.getHostDetails();
+    Assert.assertEquals("1024", details.get("hugepages.2048kB.total"));
+    Assert.assertEquals("300", details.get("hugepages.2048kB.node0.free"));
+    Assert.assertEquals("0", details.get("hugepages.1048576kB.node1.total"));
+  }
+
+  @Test
+  public void testParsesPageSizes() throws InternalErrorException, IOException {
+    final HugePages hugePages = createHugePages();
+    Assert.assertEquals(0, hugePages.getPageSize(null));
+    Assert.assertEquals(0, hugePages.getPageSize("false"));
+    Assert.assertEquals(2048, hugePages.getPageSize("true"));
+    Assert.assertEquals(2048, hugePages.getPageSize("2M"));
+    Assert.assertEquals(1048576, hugePages.getPageSize("1GiB"));
+    Assert.assertEquals(2048, hugePages.getPageSize("2048"));
+    try {
+      hugePages.getPageSize("huge");
+      Assert.fail();
+    } catch (final InternalErrorException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReservesPagesUntilTheyRunOut() throws InternalErrorException, IOException {
+    final HugePages hugePages = createHugePages();
+    final Map<Integer, Long> node0 = new HashMap<Integer, Long>();
+    node0.put(0, 200L);
+    hugePages.reserve("i-2-1-VM", 2048, node0);
+
+    // 300 are free on node 0, 200 of them are reserved
+    try {
+      hugePages.reserve("i-2-2-VM", 2048, node0);
+      Assert.fail();
+    } catch (final InternalErrorException e) {
+      Assert.assertTrue(e.getMessage().contains("node 0"));
+    }
+
+    // 700 are free on the host, 200 of them are reserved
+    hugePages.reserve("i-2-3-VM", 2048, Collections.singletonMap(HugePages.ANY_NODE, 500L));
+    try {
+      hugePages.reserve("i-2-4-VM", 2048, Collections.singletonMap(1, 1L));
+      Assert.fail();
+    } catch (final InternalErrorException e) {
+      // expected
+    }
+
+    hugePages.release("i-2-1-VM");
+    hugePages.reserve("i-2-4-VM", 2048, Collections.singletonMap(1, 200L));
+    // the reservations of another size do not count
+    hugePages.reserve("i-2-5-VM", 1048576, Collections.singletonMap(0, 4L));
+  }
+
+  @Test(expected = InternalErrorException.class)
+  public void testFailsWithoutPagesOfTheSize() throws InternalErrorException, IOException {
+    createHugePages().reserve("i-2-1-VM", 16384, Collections.singletonMap(HugePages.ANY_NODE, 1L));
+  }
+}
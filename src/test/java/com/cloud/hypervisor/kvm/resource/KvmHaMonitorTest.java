@@ -0,0 +1,86 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KvmHaMonitorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testWritesHeartbeatFile() throws Exception {
+    final KvmHaMonitor monitor = new KvmHaMonitor(null, "10.0.0.1", "kvmheartbeat.sh");
+    final String mountPoint = folder.getRoot().getAbsolutePath();
+
+    monitor.writeHeartbeat(mountPoint, "10.0.0.1", 12345678901L);
+    monitor.writeHeartbeat(mountPoint, "10.0.0.1", 1500000000L);
+
+    final File heartbeat = new File(monitor.getHbFile(mountPoint, "10.0.0.1"));
+    Assert.assertEquals("1500000000\n", new String(Files.readAllBytes(heartbeat.toPath()), StandardCharsets.US_ASCII));
+    Assert.assertEquals(1500000000L, monitor.readHeartbeat(mountPoint, "10.0.0.1"));
+  }
+
+  @Test
+  public void testCheckerWithoutPoolsReportsDead() throws Exception {
+    final KvmHaMonitor monitor = new KvmHaMonitor(null, "10.0.0.1", "kvmheartbeat.sh");
+    try {
+      Assert.assertFalse(
+          new KvmHaChecker(monitor.getHeartbeatBackends(), "10.0.0.2", monitor.getCheckerExecutor()).call());
+    } finally {
+      monitor.stop();
+    }
+  }
+
+  @Test
+  public void testCheckerAfterStopReportsAlive() throws Exception {
+    final KvmHaMonitor monitor = new KvmHaMonitor(null, "10.0.0.1", "kvmheartbeat.sh");
+    monitor.stop();
+    final HeartbeatBackend backend = new HeartbeatBackend() {
+      @Override
+      public String getPoolUuid() {
+        return "pool";
+      }
+
+      @Override
+      public void write(String hostIp, long timestamp) {
+      }
+
+      @Override
+      public long read(String hostIp) {
+        return 0;
+      }
+    };
+    // the stale heartbeat cannot be read, which must not declare the host dead
+    Assert.assertTrue(new KvmHaChecker(Collections.singletonList(backend), "10.0.0.2", monitor.getCheckerExecutor())
+        .call());
+  }
+
+  @Test
+  public void testReportsHeartbeatLatencyInHostDetails() {
+    final KvmHaMonitor monitor = new KvmHaMonitor(null, "10.0.0.1", "kvmheartbeat.sh");
+    try {
+      for (int latency = 1; latency <= 50; latency++) {
+        monitor.recordLatency("pool", latency);
+      }
+      monitor.recordLatency("pool", 4000);
+
+      final Map<String, String> details = monitor.getHostDetails();
+      Assert.assertEquals("26", details.get("heartbeat.pool.latency.p50"));
+      Assert.assertEquals("4000", details.get("heartbeat.pool.latency.p99"));
+
+      monitor.removeStoragePool("pool");
+      Assert.assertTrue(monitor.getHostDetails().isEmpty());
+    } finally {
+      monitor.stop();
+    }
+  }
+}
@@ -89,7 +89,6 @@ import com.cloud.agent.api.to.VirtualMachineTO;
 import com.cloud.agent.api.to.VolumeTO;
 import com.cloud.agent.resource.virtualnetwork.VirtualRoutingResource;
 import com.cloud.exception.InternalErrorException;
-import com.cloud.hypervisor.kvm.resource.KvmHaBase.NfsStoragePool;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.DiskDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.InterfaceDef;
 import com.cloud.hypervisor.kvm.resource.wrapper.LibvirtRequestWrapper;
@@ -159,7 +158,7 @@ public class LibvirtComputingResourceTest {
    * The overcommit feature has not been merged in there and thus only 'speed' is set.
    */
   @Test
-  public void testcreateVmFromSpecLegacy() {
+  public void testcreateVmFromSpecLegacy() throws InternalErrorException {
     final int id = _random.nextInt(65534);
     final String name = "test-instance-1";
 
@@ -189,7 +188,7 @@ public class LibvirtComputingResourceTest {
    * This test verifies that CPU topology is properly set for hex-core
    */
   @Test
-  public void testcreateVmFromSpecWithTopology6() {
+  public void testcreateVmFromSpecWithTopology6() throws InternalErrorException {
     final int id = _random.nextInt(65534);
     final String name = "test-instance-1";
 
@@ -220,7 +219,7 @@ public class LibvirtComputingResourceTest {
    * This test verifies that CPU topology is properly set for quad-core
    */
   @Test
-  public void testcreateVmFromSpecWithTopology4() {
+  public void testcreateVmFromSpecWithTopology4() throws InternalErrorException {
     final int id = _random.nextInt(65534);
     final String name = "test-instance-1";
 
@@ -253,7 +252,7 @@ public class LibvirtComputingResourceTest {
    * It tests if the Agent can handle a vmSpec with overcommit data like minSpeed and maxSpeed in there
    */
   @Test
-  public void testcreateVmFromSpec() {
+  public void testcreateVmFromSpec() throws InternalErrorException {
     final int id = _random.nextInt(65534);
     final String name = "test-instance-1";
 
@@ -2490,7 +2489,7 @@ public class LibvirtComputingResourceTest {
   }
 
   @Test
-  public void testFenceCommand() {
+  public void testFenceCommand() throws IOException {
     final VirtualMachine vm = Mockito.mock(VirtualMachine.class);
     ;
     final com.cloud.host.Host host = Mockito.mock(com.cloud.host.Host.class);
@@ -2499,12 +2498,13 @@ public class LibvirtComputingResourceTest {
 
     final KvmHaMonitor monitor = Mockito.mock(KvmHaMonitor.class);
 
-    final NfsStoragePool storagePool = Mockito.mock(NfsStoragePool.class);
-    final List<NfsStoragePool> pools = new ArrayList<NfsStoragePool>();
+    final HeartbeatBackend storagePool = Mockito.mock(HeartbeatBackend.class);
+    final List<HeartbeatBackend> pools = new ArrayList<HeartbeatBackend>();
     pools.add(storagePool);
 
     when(libvirtComputingResource.getMonitor()).thenReturn(monitor);
-    when(monitor.getStoragePools()).thenReturn(pools);
+    when(monitor.getHeartbeatBackends()).thenReturn(pools);
+    when(storagePool.read(command.getHostIp())).thenReturn(System.currentTimeMillis() / 1000);
 
     final LibvirtRequestWrapper wrapper = LibvirtRequestWrapper.getInstance();
     assertNotNull(wrapper);
@@ -2513,7 +2513,7 @@ public class LibvirtComputingResourceTest {
     assertFalse(answer.getResult());
 
     verify(libvirtComputingResource, times(1)).getMonitor();
-    verify(monitor, times(1)).getStoragePools();
+    verify(monitor, times(1)).getHeartbeatBackends();
   }
 
   @Test
@@ -4302,10 +4302,10 @@ public class LibvirtComputingResourceTest {
     when(vmSpec.getNics()).thenReturn(nics);
     when(vmSpec.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
     when(vmSpec.getName()).thenReturn(vmName);
-    when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
 
     when(libvirtComputingResource.getLibvirtUtilitiesHelper()).thenReturn(libvirtUtilitiesHelper);
     try {
+      when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
       when(libvirtUtilitiesHelper.getConnectionByType(vmDef.getHvsType())).thenReturn(conn);
       doNothing().when(libvirtComputingResource).createVbd(conn, vmSpec, vmName, vmDef);
     } catch (final LibvirtException e) {
@@ -4355,13 +4355,15 @@ public class LibvirtComputingResourceTest {
     when(vmSpec.getNics()).thenReturn(nics);
     when(vmSpec.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
     when(vmSpec.getName()).thenReturn(vmName);
-    when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
 
     when(libvirtComputingResource.getLibvirtUtilitiesHelper()).thenReturn(libvirtUtilitiesHelper);
     try {
+      when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
       when(libvirtUtilitiesHelper.getConnectionByType(vmDef.getHvsType())).thenThrow(LibvirtException.class);
     } catch (final LibvirtException e) {
       fail(e.getMessage());
+    } catch (final InternalErrorException e) {
+      fail(e.getMessage());
     }
 
     final LibvirtRequestWrapper wrapper = LibvirtRequestWrapper.getInstance();
@@ -4401,10 +4403,10 @@ public class LibvirtComputingResourceTest {
     when(vmSpec.getNics()).thenReturn(nics);
     when(vmSpec.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
     when(vmSpec.getName()).thenReturn(vmName);
-    when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
 
     when(libvirtComputingResource.getLibvirtUtilitiesHelper()).thenReturn(libvirtUtilitiesHelper);
     try {
+      when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
       when(libvirtUtilitiesHelper.getConnectionByType(vmDef.getHvsType())).thenReturn(conn);
       doThrow(InternalErrorException.class).when(libvirtComputingResource).createVbd(conn, vmSpec, vmName, vmDef);
     } catch (final LibvirtException e) {
@@ -4452,10 +4454,10 @@ public class LibvirtComputingResourceTest {
     when(vmSpec.getNics()).thenReturn(nics);
     when(vmSpec.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
     when(vmSpec.getName()).thenReturn(vmName);
-    when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
 
     when(libvirtComputingResource.getLibvirtUtilitiesHelper()).thenReturn(libvirtUtilitiesHelper);
     try {
+      when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
       when(libvirtUtilitiesHelper.getConnectionByType(vmDef.getHvsType())).thenReturn(conn);
       doThrow(URISyntaxException.class).when(libvirtComputingResource).createVbd(conn, vmSpec, vmName, vmDef);
     } catch (final LibvirtException e) {
@@ -4505,10 +4507,10 @@ public class LibvirtComputingResourceTest {
     when(vmSpec.getNics()).thenReturn(nics);
     when(vmSpec.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
     when(vmSpec.getName()).thenReturn(vmName);
-    when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
 
     when(libvirtComputingResource.getLibvirtUtilitiesHelper()).thenReturn(libvirtUtilitiesHelper);
     try {
+      when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
       when(libvirtUtilitiesHelper.getConnectionByType(vmDef.getHvsType())).thenReturn(conn);
       doNothing().when(libvirtComputingResource).createVbd(conn, vmSpec, vmName, vmDef);
     } catch (final LibvirtException e) {
@@ -4577,10 +4579,10 @@ public class LibvirtComputingResourceTest {
     when(vmSpec.getNics()).thenReturn(nics);
     when(vmSpec.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
     when(vmSpec.getName()).thenReturn(vmName);
-    when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
 
     when(libvirtComputingResource.getLibvirtUtilitiesHelper()).thenReturn(libvirtUtilitiesHelper);
     try {
+      when(libvirtComputingResource.createVmFromSpec(vmSpec)).thenReturn(vmDef);
       when(libvirtUtilitiesHelper.getConnectionByType(vmDef.getHvsType())).thenReturn(conn);
       doNothing().when(libvirtComputingResource).createVbd(conn, vmSpec, vmName, vmDef);
     } catch (final LibvirtException e) {
@@ -0,0 +1,87 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class LibvirtDomainXmlRewriterTest {
+
+  private static final String DOMAIN = "<domain type='kvm' id='3'>\n"
+      + "  <name>i-2-3-VM</name>\n"
+      + "  <description>Running on 10.0.0.1 with cloudVirBr100</description>\n"
+      + "  <metadata><host address='10.0.0.1'/></metadata>\n"
+      + "  <devices>\n"
+      + "    <!-- <graphics listen='10.0.0.1'/> -->\n"
+      + "    <disk type='file' device='disk'>\n"
+      + "      <driver name='qemu' type='qcow2' cache='none'/>\n"
+      + "      <source file='/mnt/a/vol-1'/>\n"
+      + "      <backingStore type='file'><source file='/mnt/a/vol-1'/></backingStore>\n"
+      + "      <target dev='vda' bus='virtio'/>\n"
+      + "    </disk>\n"
+      + "    <disk type='block' device='disk'>\n"
+      + "      <source dev=\"/dev/vg/vol-2\"/>\n"
+      + "      <target dev='vdb' bus='virtio'/>\n"
+      + "    </disk>\n"
+      + "    <interface type='bridge'>\n"
+      + "      <mac address='02:00:00:00:00:01'/>\n"
+      + "      <source bridge='cloudVirBr100'/>\n"
+      + "      <target dev='vnet0'/>\n"
+      + "    </interface>\n"
+      + "    <graphics type='vnc' port='5900' autoport='yes' listen='10.0.0.1'>\n"
+      + "      <listen type='address' address='10.0.0.1'/>\n"
+      + "    </graphics>\n"
+      + "  </devices>\n"
+      + "</domain>\n";
+
+  @Test
+  public void testPatchesOnlyTheAttributesItOwns() {
+    final String xml = new LibvirtDomainXmlRewriter()
+        .replaceGraphicsListen("10.0.0.1", "10.0.0.2")
+        .replaceBridge("cloudVirBr100", "breth1-100")
+        .rewrite(DOMAIN);
+
+    final String expected = DOMAIN
+        .replace("<source bridge='cloudVirBr100'/>", "<source bridge='breth1-100'/>")
+        .replace("autoport='yes' listen='10.0.0.1'", "autoport='yes' listen='10.0.0.2'")
+        .replace("<listen type='address' address='10.0.0.1'/>", "<listen type='address' address='10.0.0.2'/>");
+    assertEquals(expected, xml);
+  }
+
+  @Test
+  public void testReturnsTheDocumentWhenNothingMatches() {
+    final LibvirtDomainXmlRewriter rewriter = new LibvirtDomainXmlRewriter().replaceBridge("cloudVirBr200", "br-200");
+    assertSame(DOMAIN, rewriter.rewrite(DOMAIN));
+    assertSame(DOMAIN, new LibvirtDomainXmlRewriter().replaceGraphicsListen(null, "10.0.0.2").rewrite(DOMAIN));
+  }
+
+  @Test
+  public void testEscapesReplacements() {
+    final String xml = new LibvirtDomainXmlRewriter().replaceBridge("cloudVirBr100", "br'100&1").rewrite(DOMAIN);
+    assertEquals(DOMAIN.replace("<source bridge='cloudVirBr100'/>", "<source bridge='br&apos;100&amp;1'/>"), xml);
+  }
+
+  @Test
+  public void testRemovesHostPlacement() {
+    final String placed = DOMAIN.replace("  <devices>\n", "  <cputune>\n"
+        + "    <shares>2000</shares>\n"
+        + "    <vcpupin vcpu='0' cpuset='4'/>\n"
+        + "    <vcpupin vcpu='1' cpuset='5'/>\n"
+        + "    <emulatorpin cpuset='4-7'/>\n"
+        + "  </cputune>\n"
+        + "  <numatune>\n"
+        + "    <memory mode='strict' nodeset='1'/>\n"
+        + "  </numatune>\n"
+        + "  <devices>\n");
+    final String xml = new LibvirtDomainXmlRewriter().removeHostPlacement().replaceBridge("cloudVirBr100", "br-100")
+        .rewrite(placed);
+    assertEquals(DOMAIN.replace("  <devices>\n", "  <cputune>\n"
+        + "    <shares>2000</shares>\n"
+        + "    \n"
+        + "    \n"
+        + "    \n"
+        + "  </cputune>\n"
+        + "  \n"
+        + "  <devices>\n").replace("<source bridge='cloudVirBr100'/>", "<source bridge='br-100'/>"), xml);
+  }
+}
@@ -2,7 +2,11 @@
 
 package com.cloud.hypervisor.kvm.resource;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import com.cloud.hypervisor.kvm.resource.LibvirtVmDef.DiskDef;
+import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.utils.Pair;
 
 import junit.framework.TestCase;
@@ -32,6 +36,43 @@ public class LibvirtVMDefTest extends TestCase {
     assertEquals(expected, ifDef.toString());
   }
 
+  public void testInterfaceMultiqueue() {
+    LibvirtVmDef.InterfaceDef ifDef = new LibvirtVmDef.InterfaceDef();
+    ifDef.defBridgeNet("cloudbr0", null, "00:11:22:aa:bb:dd", LibvirtVmDef.InterfaceDef.NicModel.VIRTIO);
+    new NicTuning(true, 8, "vhost", 1024, 0).apply(ifDef, 4, null);
+
+    String expected = "<interface type='bridge'>\n" + "<source bridge='cloudbr0'/>\n"
+        + "<mac address='00:11:22:aa:bb:dd'/>\n" + "<model type='virtio'/>\n"
+        + "<driver name='vhost' queues='4' rx_queue_size='1024'/>\n"
+        + "</interface>\n";
+
+    assertEquals(expected, ifDef.toString());
+  }
+
+  public void testNicTuningFollowsDetails() {
+    NicTuning tuning = new NicTuning(true, 8, null, 0, 0);
+    Map<String, String> details = new HashMap<String, String>();
+    assertEquals(8, tuning.getQueues(16, details));
+    assertEquals(1, tuning.getQueues(1, details));
+
+    details.put(NicTuning.MULTIQUEUE, "false");
+    assertEquals(1, tuning.getQueues(16, details));
+    details.put(NicTuning.QUEUES, "2");
+    assertEquals(2, tuning.getQueues(16, details));
+
+    details.put(NicTuning.TX_QUEUE_SIZE, "512");
+    details.put(NicTuning.RX_QUEUE_SIZE, "1000");
+    LibvirtVmDef.InterfaceDef ifDef = new LibvirtVmDef.InterfaceDef();
+    ifDef.defBridgeNet("cloudbr0", null, "00:11:22:aa:bb:dd", LibvirtVmDef.InterfaceDef.NicModel.VIRTIO);
+    tuning.apply(ifDef, 16, details);
+    assertTrue(ifDef.toString().contains("<driver queues='2' tx_queue_size='512'/>\n"));
+
+    LibvirtVmDef.InterfaceDef e1000 = new LibvirtVmDef.InterfaceDef();
+    e1000.defBridgeNet("cloudbr0", null, "00:11:22:aa:bb:dd", LibvirtVmDef.InterfaceDef.NicModel.E1000);
+    tuning.apply(e1000, 16, details);
+    assertFalse(e1000.toString().contains("<driver"));
+  }
+
   public void testCpuModeDef() {
     LibvirtVmDef.CpuModeDef cpuModeDef = new LibvirtVmDef.CpuModeDef();
     cpuModeDef.setMode("custom");
@@ -77,6 +118,143 @@ public class LibvirtVMDefTest extends TestCase {
     assertEquals(xmlDef, expectedXml);
   }
 
+  public void testDiskTuningByPoolType() {
+    DiskTuning tuning = new DiskTuning(0, "native", true, 8);
+
+    DiskDef file = new DiskDef();
+    file.defFileBasedDisk("/mnt/primary/disk.qcow2", "vda", DiskDef.DiskBus.VIRTIO, DiskDef.DiskFmtType.QCOW2);
+    tuning.apply(file, StoragePoolType.NetworkFilesystem, null);
+    assertTrue(file.toString().contains(
+        "<driver name='qemu' type='qcow2' cache='none' io='native' discard='unmap' detect_zeroes='unmap' />\n"));
+
+    DiskDef lv = new DiskDef();
+    lv.defBlockBasedDisk("/dev/vg/disk", "vdb", DiskDef.DiskBus.VIRTIO);
+    tuning.apply(lv, StoragePoolType.CLVM, null);
+    assertEquals(DiskDef.DiskIoMode.NATIVE, lv.getIoMode());
+    assertFalse(lv.isDiscard());
+
+    DiskDef rbd = new DiskDef();
+    rbd.defNetworkBasedDisk("pool/disk", "ceph", 6789, "admin", "uuid", "vdc", DiskDef.DiskBus.VIRTIO,
+        DiskDef.DiskProtocol.RBD, DiskDef.DiskFmtType.RAW);
+    tuning.apply(rbd, StoragePoolType.RBD, null);
+    assertNull(rbd.getIoMode());
+    assertTrue(rbd.isDiscard());
+
+    Map<String, String> details = new HashMap<String, String>();
+    details.put(DiskTuning.IO_MODE, "io_uring");
+    details.put(DiskTuning.DISCARD, "false");
+    DiskDef writeback = new DiskDef();
+    writeback.defFileBasedDisk("/mnt/primary/disk.qcow2", "vdd", DiskDef.DiskBus.VIRTIO, DiskDef.DiskFmtType.QCOW2);
+    writeback.setCacheMode(DiskDef.DiskCacheMode.WRITEBACK);
+    tuning.apply(writeback, StoragePoolType.Filesystem, details);
+    assertEquals(DiskDef.DiskIoMode.IO_URING, writeback.getIoMode());
+    assertFalse(writeback.isDiscard());
+
+    DiskDef nativeWriteback = new DiskDef();
+    nativeWriteback.defFileBasedDisk("/mnt/primary/disk.qcow2", "vde", DiskDef.DiskBus.VIRTIO,
+        DiskDef.DiskFmtType.QCOW2);
+    nativeWriteback.setCacheMode(DiskDef.DiskCacheMode.WRITEBACK);
+    tuning.apply(nativeWriteback, StoragePoolType.Filesystem, null);
+    assertNull(nativeWriteback.getIoMode());
+  }
+
+  public void testIoThreadsAreAssignedRoundRobin() {
+    LibvirtVmDef vm = new LibvirtVmDef();
+    LibvirtVmDef.DevicesDef devices = new LibvirtVmDef.DevicesDef();
+    vm.addComp(devices);
+    String[] labels = { "vda", "vdb", "vdc" };
+    for (String label : labels) {
+      DiskDef disk = new DiskDef();
+      disk.defFileBasedDisk("/mnt/primary/" + label + ".qcow2", label, DiskDef.DiskBus.VIRTIO, DiskDef.DiskFmtType.QCOW2);
+      devices.addDevice(disk);
+    }
+    DiskDef scsi = new DiskDef();
+    scsi.defBlockBasedDisk("/dev/vg/disk", "sda", DiskDef.DiskBus.SCSI);
+    devices.addDevice(scsi);
+    DiskDef iso = new DiskDef();
+    iso.defIsoDisk(null);
+    devices.addDevice(iso);
+
+    new DiskTuning(2, null, false, 8).assignIoThreads(vm, 16, null);
+
+    assertEquals(1, devices.getDisks().get(0).getIoThread());
+    assertEquals(2, devices.getDisks().get(1).getIoThread());
+    assertEquals(1, devices.getDisks().get(2).getIoThread());
+    assertEquals(0, scsi.getIoThread());
+    assertEquals(0, iso.getIoThread());
+    String xml = vm.toString();
+    assertTrue(xml.contains("<iothreads>2</iothreads>\n"));
+    assertTrue(xml.contains("<controller type='scsi' index='0' model='virtio-scsi'>\n"
+        + "<driver queues='8' iothread='2'/>\n</controller>\n"));
+
+    Map<String, String> details = new HashMap<String, String>();
+    details.put(DiskTuning.IO_THREADS, "0");
+    LibvirtVmDef single = new LibvirtVmDef();
+    LibvirtVmDef.DevicesDef singleDevices = new LibvirtVmDef.DevicesDef();
+    single.addComp(singleDevices);
+    DiskDef disk = new DiskDef();
+    disk.defFileBasedDisk("/mnt/primary/vda.qcow2", "vda", DiskDef.DiskBus.VIRTIO, DiskDef.DiskFmtType.QCOW2);
+    singleDevices.addDevice(disk);
+    new DiskTuning(4, null, false, 8).assignIoThreads(single, 2, details);
+    assertEquals(0, disk.getIoThread());
+    assertFalse(single.toString().contains("iothread"));
+
+    // without tuning a disk on the scsi bus gets the controller libvirt adds
+    LibvirtVmDef untuned = new LibvirtVmDef();
+    LibvirtVmDef.DevicesDef untunedDevices = new LibvirtVmDef.DevicesDef();
+    untuned.addComp(untunedDevices);
+    untunedDevices.addDevice(scsi);
+    new DiskTuning(0, null, false, 0).assignIoThreads(untuned, 16, null);
+    assertFalse(untuned.toString().contains("<controller type='scsi'"));
+  }
+
+  public void testNumaPlacementDefs() {
+    LibvirtVmDef.CpuTuneDef cpuTune = new LibvirtVmDef.CpuTuneDef();
+    cpuTune.setShares(2000);
+    cpuTune.setVcpuPin(1, "3");
+    cpuTune.setVcpuPin(0, "2");
+    cpuTune.setEmulatorPin("2-3,6-7");
+    assertEquals("<cputune>\n<shares>2000</shares>\n<vcpupin vcpu='0' cpuset='2'/>\n<vcpupin vcpu='1' cpuset='3'/>\n"
+        + "<emulatorpin cpuset='2-3,6-7'/>\n</cputune>\n", cpuTune.toString());
+
+    LibvirtVmDef.NumaTuneDef numaTune = new LibvirtVmDef.NumaTuneDef("strict", "0-1");
+    numaTune.addMemNode(0, "0");
+    numaTune.addMemNode(1, "1");
+    assertEquals("<numatune>\n<memory mode='strict' nodeset='0-1'/>\n<memnode cellid='0' mode='strict' nodeset='0'/>\n"
+        + "<memnode cellid='1' mode='strict' nodeset='1'/>\n</numatune>\n", numaTune.toString());
+
+    numaTune = new LibvirtVmDef.NumaTuneDef("preferred", "0-1");
+    numaTune.addMemNode(0, "0");
+    numaTune.addMemNode(1, "1");
+    assertEquals("<numatune>\n<memnode cellid='0' mode='preferred' nodeset='0'/>\n"
+        + "<memnode cellid='1' mode='preferred' nodeset='1'/>\n</numatune>\n", numaTune.toString());
+    assertEquals("<numatune>\n<memory mode='preferred' nodeset='1'/>\n</numatune>\n",
+        new LibvirtVmDef.NumaTuneDef("preferred", "1").toString());
+
+    LibvirtVmDef.CpuModeDef cpuMode = new LibvirtVmDef.CpuModeDef();
+    cpuMode.setMode("host-passthrough");
+    cpuMode.setTopology(2, 2);
+    cpuMode.addNumaCell("0-1", 1048576);
+    cpuMode.addNumaCell("2-3", 1048576);
+    assertEquals("<cpu mode='host-passthrough'><topology sockets='2' cores='2' threads='1' />"
+        + "<numa><cell id='0' cpus='0-1' memory='1048576' unit='KiB'/><cell id='1' cpus='2-3' memory='1048576' unit='KiB'/>"
+        + "</numa></cpu>", cpuMode.toString());
+  }
+
+  public void testHugePagesMemoryBacking() {
+    LibvirtVmDef.GuestResourceDef resources = new LibvirtVmDef.GuestResourceDef();
+    resources.setMemorySize(2097152);
+    assertFalse(resources.toString().contains("memoryBacking"));
+
+    resources.setHugePageSize(1048576);
+    assertTrue(resources.toString().contains(
+        "<memoryBacking><hugepages><page size='1048576' unit='KiB'/></hugepages></memoryBacking>\n"));
+
+    resources.setMemBacking("nosharepages");
+    assertTrue(resources.toString().contains(
+        "<memoryBacking><hugepages><page size='1048576' unit='KiB'/></hugepages><nosharepages/></memoryBacking>\n"));
+  }
+
   public void testHypervEnlightDef() {
     LibvirtVmDef.FeaturesDef featuresDef = new LibvirtVmDef.FeaturesDef();
     LibvirtVmDef.HyperVEnlightenmentFeatureDef hyperVEnlightenmentFeatureDef = new LibvirtVmDef.HyperVEnlightenmentFeatureDef();
@@ -0,0 +1,90 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.junit.Test;
+
+public class LiveStorageMigrationTest {
+
+  @Test
+  public void testPivotsEachMirrorOnceInSync() throws Exception {
+    final LibvirtMigrationApi migrationApi = mock(LibvirtMigrationApi.class);
+    when(migrationApi.getBlockJobProgress("vm", "vda")).thenReturn(
+        new LibvirtMigrationApi.BlockJobProgress(50, 100), new LibvirtMigrationApi.BlockJobProgress(100, 100));
+    when(migrationApi.getBlockJobProgress("vm", "vdb")).thenReturn(new LibvirtMigrationApi.BlockJobProgress(10, 10));
+    when(migrationApi.abortBlockJob(anyString(), anyString(), eq(true))).thenReturn(true);
+    final MigrationBandwidthBudget budget = new MigrationBandwidthBudget(100);
+    final LiveStorageMigration migration = new LiveStorageMigration(migrationApi, 0, budget, 1);
+
+    final LiveStorageMigration.Mirror vda = LiveStorageMigration.Mirror.toFile("vda", "/mnt/b/vda", "qcow2");
+    final LiveStorageMigration.Mirror vdb = LiveStorageMigration.Mirror.toFile("vdb", "/mnt/b/vdb", "qcow2");
+    migration.migrate("vm", Arrays.asList(vda, vdb), 0);
+
+    verify(migrationApi).startBlockCopy("vm", "vda", vda.getDestinationXml(), 100);
+    verify(migrationApi).startBlockCopy("vm", "vdb", vdb.getDestinationXml(), 50);
+    verify(migrationApi).abortBlockJob("vm", "vda", true);
+    verify(migrationApi).abortBlockJob("vm", "vdb", true);
+    // vda shares the budget with vdb while both copy
+    verify(migrationApi).setBlockJobSpeed("vm", "vda", 50);
+    assertTrue(vda.isPivoted());
+    assertTrue(vdb.isPivoted());
+    assertEquals(100, vda.getProgress());
+    assertEquals(0, budget.getActive());
+  }
+
+  @Test
+  public void testCancelsMirrorsWhenOneFails() throws Exception {
+    final LibvirtMigrationApi migrationApi = mock(LibvirtMigrationApi.class);
+    when(migrationApi.getBlockJobProgress("vm", "vda")).thenReturn(new LibvirtMigrationApi.BlockJobProgress(5, 100));
+    when(migrationApi.getBlockJobProgress("vm", "vdb")).thenReturn(null);
+    final LiveStorageMigration migration = new LiveStorageMigration(migrationApi, 0, new MigrationBandwidthBudget(0),
+        1);
+
+    final LiveStorageMigration.Mirror vda = LiveStorageMigration.Mirror.toFile("vda", "/mnt/b/vda", "qcow2");
+    final LiveStorageMigration.Mirror vdb = LiveStorageMigration.Mirror.toFile("vdb", "/mnt/b/vdb", "qcow2");
+    try {
+      migration.migrate("vm", Arrays.asList(vda, vdb), 0);
+      fail("the failed copy of vdb should fail the migration");
+    } catch (final CloudRuntimeException e) {
+      assertTrue(e.getMessage().contains("vdb"));
+    }
+    verify(migrationApi).abortBlockJob("vm", "vda", false);
+    verify(migrationApi).abortBlockJob("vm", "vdb", false);
+    verify(migrationApi, never()).abortBlockJob(anyString(), anyString(), eq(true));
+    assertFalse(vda.isPivoted());
+  }
+
+  @Test
+  public void testLimitsConcurrentMirrors() throws Exception {
+    final LibvirtMigrationApi migrationApi = mock(LibvirtMigrationApi.class);
+    when(migrationApi.getBlockJobProgress(anyString(), anyString())).thenReturn(
+        new LibvirtMigrationApi.BlockJobProgress(1, 1));
+    when(migrationApi.abortBlockJob(anyString(), anyString(), eq(true))).thenReturn(true);
+    final LiveStorageMigration migration = new LiveStorageMigration(migrationApi, 1,
+        new MigrationBandwidthBudget(100), 1);
+
+    final LiveStorageMigration.Mirror vda = LiveStorageMigration.Mirror.toFile("vda", "/mnt/b/vda", "qcow2");
+    final LiveStorageMigration.Mirror vdb = LiveStorageMigration.Mirror.toFile("vdb", "/mnt/b/vdb", "qcow2");
+    migration.migrate("vm", Arrays.asList(vda, vdb), 0);
+    // the second mirror only starts once the first pivoted and gave its slot back, so neither shares the budget
+    verify(migrationApi).startBlockCopy("vm", "vda", vda.getDestinationXml(), 100);
+    verify(migrationApi).startBlockCopy("vm", "vdb", vdb.getDestinationXml(), 100);
+    verify(migrationApi, never()).setBlockJobSpeed(anyString(), anyString(), anyLong());
+    verify(migrationApi).abortBlockJob("vm", "vda", true);
+    verify(migrationApi).abortBlockJob("vm", "vdb", true);
+  }
+}
@@ -0,0 +1,160 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInfo.DomainState;
+
+public class MigrationMonitorTest {
+
+  private static final String VM_NAME = "i-2-3-VM";
+
+  private Domain domain;
+  private LibvirtMigrationApi migrationApi;
+
+  @Before
+  public void setUp() throws Exception {
+    domain = mock(Domain.class);
+    migrationApi = mock(LibvirtMigrationApi.class);
+    when(domain.migrateSetMaxDowntime(anyLong())).thenReturn(0);
+    when(migrationApi.setMaxSpeed(eq(VM_NAME), anyLong())).thenReturn(true);
+  }
+
+  private MigrationJobStats stats(long iteration, long remaining, long dirtyRate, long bps) {
+    return new MigrationJobStats(MigrationJobStats.JOB_UNBOUNDED, 0, 0, remaining, 0, remaining, dirtyRate, iteration,
+        bps, 0, 0, 0);
+  }
+
+  @Test
+  public void testStepsDowntimeThenBandwidthWhenNotConverging() throws Exception {
+    final MigrationMonitor monitor = new MigrationMonitor(VM_NAME, domain, migrationApi, 100, 300, 100, 100, 400, -1);
+
+    when(migrationApi.getJobStats(VM_NAME)).thenReturn(stats(1, 1000, 10, 100));
+    monitor.tick(1000);
+    verify(domain).migrateSetMaxDowntime(100);
+    assertEquals(100, monitor.getDowntime());
+
+    // every further pass leaves as much memory as before
+    for (int iteration = 2; iteration <= 5; iteration++) {
+      when(migrationApi.getJobStats(VM_NAME)).thenReturn(stats(iteration, 1000, 10, 100));
+      monitor.tick(iteration * 1000);
+      // another tick within the same pass must not step again
+      monitor.tick(iteration * 1000 + 500);
+    }
+
+    assertEquals(300, monitor.getDowntime());
+    assertEquals(400, monitor.getSpeed());
+    verify(migrationApi).setMaxSpeed(VM_NAME, 200);
+    verify(migrationApi).setMaxSpeed(VM_NAME, 400);
+    assertEquals(9, monitor.getSeries().size());
+  }
+
+  @Test
+  public void testLeavesConvergingMigrationAlone() throws Exception {
+    final MigrationMonitor monitor = new MigrationMonitor(VM_NAME, domain, migrationApi, 100, 300, 100, 100, 400, -1);
+
+    long remaining = 1000;
+    for (int iteration = 1; iteration <= 4; iteration++) {
+      when(migrationApi.getJobStats(VM_NAME)).thenReturn(stats(iteration, remaining, 10, 100));
+      monitor.tick(iteration * 1000);
+      remaining /= 2;
+    }
+
+    assertEquals(100, monitor.getDowntime());
+    verify(migrationApi, never()).setMaxSpeed(eq(VM_NAME), anyLong());
+  }
+
+  @Test
+  public void testStepsWhenDirtyRateExceedsLinkRate() throws Exception {
+    final MigrationMonitor monitor = new MigrationMonitor(VM_NAME, domain, migrationApi, 100, 300, 100, 100, 400, -1);
+
+    when(migrationApi.getJobStats(VM_NAME)).thenReturn(stats(1, 1000, 500, 100));
+    monitor.tick(1000);
+
+    assertEquals(200, monitor.getDowntime());
+  }
+
+  @Test
+  public void testPausesAsLastResort() throws Exception {
+    final DomainInfo info = new DomainInfo();
+    info.state = DomainState.VIR_DOMAIN_RUNNING;
+    when(domain.getInfo()).thenReturn(info);
+
+    final MigrationMonitor monitor = new MigrationMonitor(VM_NAME, domain, null, -1, -1, 0, 0, 0, 5000);
+    monitor.tick(1000);
+    assertFalse(monitor.isPaused());
+    verify(domain, never()).suspend();
+
+    monitor.tick(6000);
+    assertTrue(monitor.isPaused());
+    verify(domain).suspend();
+  }
+
+  @Test
+  public void testSwitchesToPostCopyAfterIterations() throws Exception {
+    when(migrationApi.startPostCopy(VM_NAME)).thenReturn(true);
+    final MigrationMonitor monitor = new MigrationMonitor(VM_NAME, domain, migrationApi, -1, -1, 0, 0, 0, 2000);
+    monitor.setPostCopyPolicy(new MigrationPostCopyPolicy(true, 3, 0));
+
+    for (int iteration = 1; iteration <= 2; iteration++) {
+      when(migrationApi.getJobStats(VM_NAME)).thenReturn(stats(iteration, 1000, 10, 100));
+      monitor.tick(iteration * 1000);
+    }
+    assertFalse(monitor.isPostCopyStarted());
+
+    when(migrationApi.getJobStats(VM_NAME)).thenReturn(stats(3, 1000, 10, 100));
+    monitor.tick(3000);
+    assertTrue(monitor.isPostCopyStarted());
+    verify(migrationApi).startPostCopy(VM_NAME);
+    // the guest runs on the destination now, it is never paused
+    verify(domain, never()).suspend();
+
+    monitor.finish(4500);
+    assertEquals(1500, monitor.getPostCopyWindow());
+  }
+
+  @Test
+  public void testStaysInPreCopyWhenSwitchFails() throws Exception {
+    when(migrationApi.startPostCopy(VM_NAME)).thenReturn(false);
+    final MigrationMonitor monitor = new MigrationMonitor(VM_NAME, domain, migrationApi, -1, -1, 0, 0, 0, -1);
+    monitor.setPostCopyPolicy(new MigrationPostCopyPolicy(true, 0, 1));
+
+    when(migrationApi.getJobStats(VM_NAME)).thenReturn(stats(1, 1000, 10, 100));
+    monitor.tick(1000);
+    monitor.tick(2000);
+
+    assertFalse(monitor.isPostCopyStarted());
+    assertEquals(-1, monitor.getPostCopyWindow());
+    verify(migrationApi).startPostCopy(VM_NAME);
+  }
+
+  @Test
+  public void testPostCopyPolicyFromDetails() {
+    final MigrationPostCopyPolicy defaults = new MigrationPostCopyPolicy(false, 3, 0);
+    final Map<String, String> details = new HashMap<String, String>();
+    assertFalse(MigrationPostCopyPolicy.fromDetails(details, defaults).isEnabled());
+
+    details.put(MigrationPostCopyPolicy.DETAIL_ENABLED, "true");
+    details.put(MigrationPostCopyPolicy.DETAIL_SECONDS, "30");
+    final MigrationPostCopyPolicy policy = MigrationPostCopyPolicy.fromDetails(details, defaults);
+    assertTrue(policy.isEnabled());
+    assertEquals(3, policy.getIterations());
+    assertFalse(policy.shouldSwitch(2, 29000));
+    assertTrue(policy.shouldSwitch(2, 30000));
+    assertTrue(policy.shouldSwitch(3, 0));
+  }
+}
@@ -0,0 +1,118 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.cloud.hypervisor.kvm.resource.wrapper.LibvirtUtilitiesHelper;
+
+import org.junit.Test;
+import org.libvirt.Connect;
+
+public class MigrationSchedulerTest {
+
+  @Test
+  public void testCapsMigrationsPerDestination() throws Exception {
+    final MigrationScheduler scheduler = new MigrationScheduler(0, 1, new MigrationBandwidthBudget(0), null);
+
+    final MigrationScheduler.Ticket first = scheduler.acquire("a", "10.0.0.2", 1024, 0, 0);
+    assertNotNull(first);
+    assertNull(scheduler.acquire("b", "10.0.0.2", 1024, 0, 50));
+    final MigrationScheduler.Ticket other = scheduler.acquire("c", "10.0.0.3", 1024, 0, 50);
+    assertNotNull(other);
+    assertEquals(2, scheduler.getRunning());
+
+    scheduler.release(first);
+    assertNotNull(scheduler.acquire("b", "10.0.0.2", 1024, 0, 50));
+  }
+
+  @Test
+  public void testSplitsBandwidthBudget() throws Exception {
+    final LibvirtMigrationApi migrationApi = mock(LibvirtMigrationApi.class);
+    final MigrationScheduler scheduler = new MigrationScheduler(0, 0, new MigrationBandwidthBudget(1000),
+        migrationApi);
+
+    final MigrationScheduler.Ticket first = scheduler.acquire("a", "10.0.0.2", 1024, 0, 0);
+    assertEquals(1000, first.getBandwidth());
+    final MigrationMonitor monitor = new MigrationMonitor("a", null, null, -1, -1, 0, 1000, 1000, -1);
+    scheduler.attach(first, monitor);
+
+    final MigrationScheduler.Ticket second = scheduler.acquire("b", "10.0.0.3", 1024, 0, 0);
+    assertEquals(500, first.getBandwidth());
+    assertEquals(500, second.getBandwidth());
+    assertEquals(500, monitor.getSpeed());
+    verify(migrationApi).setMaxSpeed("a", 500);
+
+    scheduler.release(second);
+    assertEquals(1000, first.getBandwidth());
+    assertEquals(1000, monitor.getSpeed());
+    verify(migrationApi).setMaxSpeed("a", 1000);
+  }
+
+  @Test
+  public void testAdmitsCheapestFirst() throws Exception {
+    final MigrationScheduler scheduler = new MigrationScheduler(1, 0, new MigrationBandwidthBudget(0), null);
+    final MigrationScheduler.Ticket running = scheduler.acquire("running", "10.0.0.2", 1024, 0, 0);
+
+    final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+    final Thread large = startMigration(scheduler, "large", 8192, admitted);
+    final Thread small = startMigration(scheduler, "small", 2048, admitted);
+    while (scheduler.getWaiting() < 2) {
+      Thread.sleep(10);
+    }
+
+    scheduler.release(running);
+    large.join(5000);
+    small.join(5000);
+    assertEquals(2, admitted.size());
+    assertEquals("small", admitted.get(0));
+    assertEquals("large", admitted.get(1));
+  }
+
+  private Thread startMigration(final MigrationScheduler scheduler, final String vmName, final long memory,
+      final List<String> admitted) {
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final MigrationScheduler.Ticket ticket = scheduler.acquire(vmName, "10.0.0.2", memory, 0, 5000);
+          admitted.add(ticket.getVmName());
+          scheduler.release(ticket);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testSharesConnectionPerDestination() throws Exception {
+    final String uri = "qemu+tcp://10.0.0.2/system";
+    final LibvirtUtilitiesHelper helper = mock(LibvirtUtilitiesHelper.class);
+    final Connect connect = mock(Connect.class);
+    when(helper.retrieveQemuConnection(uri)).thenReturn(connect);
+    final MigrationScheduler scheduler = new MigrationScheduler(0, 0, new MigrationBandwidthBudget(0), null);
+
+    final MigrationScheduler.Ticket first = scheduler.acquire("a", "10.0.0.2", 1024, 0, 0);
+    final MigrationScheduler.Ticket second = scheduler.acquire("b", "10.0.0.2", 1024, 0, 0);
+    assertSame(connect, scheduler.getConnection(first, uri, helper));
+    assertSame(connect, scheduler.getConnection(second, uri, helper));
+    verify(helper, times(1)).retrieveQemuConnection(uri);
+
+    scheduler.release(first);
+    verify(connect, times(0)).close();
+    scheduler.release(second);
+    verify(connect, times(1)).close();
+  }
+}
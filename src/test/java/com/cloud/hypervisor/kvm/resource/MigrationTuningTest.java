@@ -0,0 +1,87 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.naming.ConfigurationException;
+
+import org.junit.Test;
+
+public class MigrationTuningTest {
+
+  @Test
+  public void testDefaultsKeepLegacyMigrate() {
+    final MigrationTuning tuning = MigrationTuning.fromParams(new HashMap<String, Object>(), "",
+        MigrationTuning.DEFAULT);
+    assertEquals(MigrationTuning.COMPRESSION_XBZRLE, tuning.getCompression());
+    assertTrue(tuning.isCompressed());
+    assertFalse(tuning.isParallel());
+    assertFalse(tuning.needsExtendedParameters());
+  }
+
+  @Test
+  public void testLargeVmsInheritAndOverride() {
+    final Map<String, Object> params = new HashMap<String, Object>();
+    params.put("vm.migrate.parallel.connections", "2");
+    params.put("vm.migrate.compression", "none");
+    params.put("vm.migrate.parallel.connections.large", "8");
+    params.put("vm.migrate.compression.large", "ZSTD");
+    params.put("vm.migrate.compression.level.large", "3");
+
+    final MigrationTuning tuning = MigrationTuning.fromParams(params, "", MigrationTuning.DEFAULT);
+    final MigrationTuning large = MigrationTuning.fromParams(params, ".large", tuning);
+
+    assertEquals(2, tuning.getParallelConnections());
+    assertFalse(tuning.isCompressed());
+    assertTrue(tuning.needsExtendedParameters());
+    assertEquals(8, large.getParallelConnections());
+    assertEquals(MigrationTuning.COMPRESSION_ZSTD, large.getCompression());
+    assertTrue(large.isMultifdCompression());
+    assertEquals(3, large.getCompressionLevel());
+  }
+
+  @Test
+  public void testBandwidthBudgetShares() {
+    final MigrationBandwidthBudget unlimited = new MigrationBandwidthBudget(0);
+    assertEquals(500, unlimited.acquire(500));
+
+    final MigrationBandwidthBudget budget = new MigrationBandwidthBudget(1000);
+    assertEquals(500, budget.acquire(500));
+    assertEquals(500, budget.acquire(0));
+    assertEquals(333, budget.acquire(0));
+    budget.release();
+    budget.release();
+    assertEquals(1, budget.getActive());
+  }
+
+  @Test
+  public void testValidSettingsPass() throws ConfigurationException {
+    MigrationTuning.DEFAULT.validate("");
+    new MigrationTuning(4, MigrationTuning.COMPRESSION_ZSTD, 3).validate("");
+    new MigrationTuning(0, MigrationTuning.COMPRESSION_MT, 1).validate("");
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testMultifdCompressionNeedsParallelConnections() throws ConfigurationException {
+    new MigrationTuning(0, MigrationTuning.COMPRESSION_ZLIB, -1).validate(".large");
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testUnknownCompressionIsRejected() throws ConfigurationException {
+    new MigrationTuning(0, "lz4", -1).validate("");
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testXbzrleTakesNoLevel() throws ConfigurationException {
+    new MigrationTuning(0, MigrationTuning.COMPRESSION_XBZRLE, 1).validate("");
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testNoCompressionTakesNoLevel() throws ConfigurationException {
+    new MigrationTuning(4, MigrationTuning.COMPRESSION_NONE, 0).validate(".large");
+  }
+}
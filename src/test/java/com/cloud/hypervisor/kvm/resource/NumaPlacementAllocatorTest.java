@@ -0,0 +1,183 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NumaPlacementAllocatorTest {
+
+  /* two cells of 8 GiB, each with two cores of two threads */
+  private static final String CAPABILITIES = "<capabilities>\n"
+      + "  <host>\n"
+      + "    <cpu><arch>x86_64</arch><topology sockets='2' cores='2' threads='2'/></cpu>\n"
+      + "    <topology>\n"
+      + "      <cells num='2'>\n"
+      + "        <cell id='0'>\n"
+      + "          <memory unit='KiB'>8388608</memory>\n"
+      + "          <cpus num='4'>\n"
+      + "            <cpu id='0' socket_id='0' core_id='0' siblings='0,4'/>\n"
+      + "            <cpu id='1' socket_id='0' core_id='1' siblings='1,5'/>\n"
+      + "            <cpu id='4' socket_id='0' core_id='0' siblings='0,4'/>\n"
+      + "            <cpu id='5' socket_id='0' core_id='1' siblings='1,5'/>\n"
+      + "          </cpus>\n"
+      + "        </cell>\n"
+      + "        <cell id='1'>\n"
+      + "          <memory unit='KiB'>8388608</memory>\n"
+      + "          <cpus num='4'>\n"
+      + "            <cpu id='2' socket_id='1' core_id='0' siblings='2,6'/>\n"
+      + "            <cpu id='3' socket_id='1' core_id='1' siblings='3,7'/>\n"
+      + "            <cpu id='6' socket_id='1' core_id='0' siblings='2,6'/>\n"
+      + "            <cpu id='7' socket_id='1' core_id='1' siblings='3,7'/>\n"
+      + "          </cpus>\n"
+      + "        </cell>\n"
+      + "      </cells>\n"
+      + "    </topology>\n"
+      + "  </host>\n"
+      + "</capabilities>\n";
+
+  private static final long GIB = 1024 * 1024;
+
+  private NumaPlacementAllocator createAllocator() {
+    final LibvirtCapXmlParser parser = new LibvirtCapXmlParser();
+    parser.parseCapabilitiesXml(CAPABILITIES);
+    return new NumaPlacementAllocator(parser.getNumaTopology());
+  }
+
+  @Test
+  public void testParsesTheTopologyOfTheHost() {
+    final NumaTopology topology = createAllocator().getTopology();
+    Assert.assertEquals(2, topology.getCells().size());
+    Assert.assertEquals(8 * GIB, topology.getCell(1).getMemory());
+    Assert.assertEquals(Arrays.asList(2, 3, 6, 7), topology.getCell(1).getCpus());
+    Assert.assertEquals(Arrays.asList(3, 7), topology.getCell(1).getSiblings(7));
+    Assert.assertEquals("0-3,6,8-9", NumaTopology.formatCpuSet(NumaTopology.parseCpuSet("8-9,0-2,3,6")));
+  }
+
+  @Test
+  public void testPlacesVmsOnTheLeastLoadedCell() {
+    final NumaPlacementAllocator allocator = createAllocator();
+
+    final NumaPlacementAllocator.Placement first = allocator.allocate("i-2-1-VM", 2, 2 * GIB);
+    Assert.assertEquals(1, first.getCellCount());
+    Assert.assertEquals(0, first.getNode(0));
+    // separate cores before the hyperthread siblings
+    Assert.assertEquals(0, first.getVcpuPin(0));
+    Assert.assertEquals(1, first.getVcpuPin(1));
+
+    final NumaPlacementAllocator.Placement second = allocator.allocate("i-2-2-VM", 4, 4 * GIB);
+    Assert.assertEquals("1", second.getNodeset());
+    Assert.assertEquals(6 * GIB, allocator.getFreeMemory(allocator.getTopology().getCell(0)));
+
+    // too much memory for either cell
+    final NumaPlacementAllocator.Placement big = allocator.allocate("i-2-3-VM", 6, 8 * GIB);
+    Assert.assertEquals(2, big.getCellCount());
+    Assert.assertEquals("0-1", big.getNodeset());
+    Assert.assertEquals("0-2", big.getCellVcpus(0));
+    Assert.assertEquals("3-5", big.getCellVcpus(1));
+    Assert.assertEquals(4 * GIB, big.getMemory(1));
+
+    Assert.assertNull(allocator.allocate("i-2-4-VM", 1, 4 * GIB));
+  }
+
+  @Test
+  public void testSpreadsOverNoMoreCellsThanVcpus() {
+    final NumaPlacementAllocator allocator = createAllocator();
+    // a guest cell without a vCPU is not a valid domain, a single vCPU cannot span two cells
+    Assert.assertNull(allocator.allocate("i-2-1-VM", 1, 10 * GIB));
+    Assert.assertEquals(0, allocator.getLoad(0));
+
+    final NumaPlacementAllocator.Placement placement = allocator.allocate("i-2-2-VM", 2, 10 * GIB);
+    Assert.assertEquals(2, placement.getCellCount());
+    Assert.assertEquals("0", placement.getCellVcpus(0));
+    Assert.assertEquals("1", placement.getCellVcpus(1));
+  }
+
+  @Test
+  public void testSplitsHugePageMemoryInWholePages() {
+    final NumaPlacementAllocator allocator = createAllocator();
+    final Map<Integer, Long> freePages = new HashMap<Integer, Long>();
+    freePages.put(0, 2 * GIB);
+    freePages.put(1, 2 * GIB);
+    // 3 GiB of 1 GiB pages is one page on one cell and two on the other, not 1.5 GiB each
+    final NumaPlacementAllocator.Placement placement = allocator.allocate("i-2-1-VM", 2, 3 * GIB, freePages, GIB);
+    Assert.assertEquals(2, placement.getCellCount());
+    Assert.assertEquals(0, placement.getMemory(0) % GIB);
+    Assert.assertEquals(0, placement.getMemory(1) % GIB);
+    Assert.assertEquals(3 * GIB, placement.getMemory(0) + placement.getMemory(1));
+
+    Assert.assertArrayEquals(new long[] { 2048, 2048, 2050 }, NumaPlacementAllocator.splitMemory(6146, 3, 2048));
+    Assert.assertArrayEquals(new long[] { 4, 3, 3 }, NumaPlacementAllocator.splitMemory(10, 3, 0));
+  }
+
+  @Test
+  public void testLeavesTheMemoryTheHostUses() {
+    final LibvirtCapXmlParser parser = new LibvirtCapXmlParser();
+    parser.parseCapabilitiesXml(CAPABILITIES);
+    final NumaPlacementAllocator allocator = new NumaPlacementAllocator(parser.getNumaTopology(), GIB);
+    Assert.assertEquals(7 * GIB, allocator.getFreeMemory(allocator.getTopology().getCell(0)));
+
+    // the host has little free on cell 0, like when VMs that are not placed or hugepages use it
+    final Map<Integer, Long> hostFreeMemory = new HashMap<Integer, Long>();
+    hostFreeMemory.put(0, 3 * GIB);
+    hostFreeMemory.put(1, 8 * GIB);
+    Assert.assertEquals("1", allocator.allocate("i-2-1-VM", 2, 4 * GIB, hostFreeMemory, 0).getNodeset());
+    Assert.assertEquals("0", allocator.allocate("i-2-2-VM", 2, 2 * GIB, hostFreeMemory, 0).getNodeset());
+    Assert.assertNull(allocator.allocate("i-2-3-VM", 2, 6 * GIB, hostFreeMemory, 0));
+  }
+
+  @Test
+  public void testReleasesStoppedVms() {
+    final NumaPlacementAllocator allocator = createAllocator();
+    allocator.allocate("i-2-1-VM", 4, 2 * GIB);
+    allocator.allocate("i-2-2-VM", 4, 2 * GIB);
+    allocator.allocate("i-2-3-VM", 2, 2 * GIB);
+    Assert.assertEquals(2, allocator.getLoad(0));
+    Assert.assertEquals(1, allocator.getLoad(4));
+
+    // the loads of the CPUs left are at most one apart, nothing moves
+    Assert.assertTrue(allocator.release("i-2-1-VM").isEmpty());
+    Assert.assertEquals(1, allocator.getLoad(0));
+    Assert.assertEquals(0, allocator.getLoad(4));
+    Assert.assertEquals(6 * GIB, allocator.getFreeMemory(allocator.getTopology().getCell(0)));
+
+    // destroyed behind the back of the agent
+    Assert.assertTrue(allocator.retain(Collections.singletonList("i-2-2-VM"), System.currentTimeMillis() + 1)
+        .isEmpty());
+    Assert.assertNull(allocator.getPlacement("i-2-3-VM"));
+    Assert.assertNotNull(allocator.getPlacement("i-2-2-VM"));
+    Assert.assertEquals(0, allocator.getLoad(0));
+
+    // a VM still starting is kept
+    allocator.allocate("i-2-4-VM", 1, GIB);
+    allocator.retain(Collections.<String>emptyList(), System.currentTimeMillis() - 60000);
+    Assert.assertNotNull(allocator.getPlacement("i-2-4-VM"));
+  }
+
+  @Test
+  public void testRestoresRunningVms() {
+    final NumaPlacementAllocator allocator = createAllocator();
+    allocator.restore("i-2-1-VM", new int[] { 2, 3 }, 2 * GIB);
+    Assert.assertEquals(1, allocator.getLoad(3));
+    Assert.assertEquals(6 * GIB, allocator.getFreeMemory(allocator.getTopology().getCell(1)));
+
+    allocator.restore("i-2-2-VM", new int[] { 2, 3, 2, 3 }, 2 * GIB);
+    final List<NumaPlacementAllocator.Move> moves = allocator.release("i-2-1-VM");
+    Assert.assertEquals(2, moves.size());
+    for (final NumaPlacementAllocator.Move move : moves) {
+      Assert.assertEquals("i-2-2-VM", move.getVmName());
+      Assert.assertTrue(move.getCpu() == 6 || move.getCpu() == 7);
+    }
+    // nothing moves until the vCPUs are pinned, a move that failed is left out
+    Assert.assertEquals(0, allocator.getLoad(6));
+    Assert.assertTrue(allocator.applyMove(moves.get(0)));
+    Assert.assertFalse(allocator.applyMove(moves.get(0)));
+    Assert.assertEquals(1, allocator.getLoad(moves.get(0).getCpu()));
+    Assert.assertEquals(0, allocator.getLoad(moves.get(1).getCpu()));
+    Assert.assertEquals(2, allocator.getLoad(moves.get(1).getFrom()));
+  }
+}
@@ -0,0 +1,264 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonStreamParser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OvsdbClientTest {
+
+  /**
+   * Just enough of ovsdb-server: monitors of the Bridge and Open_vSwitch tables, and transactions that add bridges,
+   * mutate their other_config and bump next_cfg, which ovs-vswitchd applies right away.
+   */
+  private static class StubOvsdbServer implements Runnable {
+    final ServerSocket server;
+    final Map<String, JsonObject> bridges = new HashMap<String, JsonObject>();
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger transactions = new AtomicInteger();
+    final List<Socket> sockets = new ArrayList<Socket>();
+    long cfg;
+    int uuids;
+
+    StubOvsdbServer() throws IOException {
+      server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+      final Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String getTarget() {
+      return "tcp:127.0.0.1:" + server.getLocalPort();
+    }
+
+    synchronized void addBridge(String name) {
+      final JsonObject row = new JsonObject();
+      row.addProperty("name", name);
+      row.add("other_config", new JsonParser().parse("[\"map\",[]]"));
+      bridges.put("uuid-" + uuids++, row);
+    }
+
+    synchronized void disconnect() throws IOException {
+      for (final Socket socket : sockets) {
+        socket.close();
+      }
+      sockets.clear();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = server.accept();
+          synchronized (this) {
+            sockets.add(socket);
+          }
+          connections.incrementAndGet();
+          final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              serve(socket);
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (final IOException e) {
+        // closed
+      }
+    }
+
+    private void serve(Socket socket) {
+      try {
+        final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        final JsonStreamParser parser = new JsonStreamParser(new InputStreamReader(socket.getInputStream(),
+            StandardCharsets.UTF_8));
+        while (parser.hasNext()) {
+          final JsonObject request = parser.next().getAsJsonObject();
+          final String method = request.get("method").getAsString();
+          final JsonArray params = request.getAsJsonArray("params");
+          final JsonElement result;
+          synchronized (this) {
+            if ("monitor".equals(method)) {
+              result = updates(bridges.keySet());
+            } else {
+              transactions.incrementAndGet();
+              final JsonArray results = transact(params);
+              write(writer, update(updates(bridges.keySet())));
+              result = results;
+            }
+          }
+          final JsonObject reply = new JsonObject();
+          reply.add("result", result);
+          reply.add("error", JsonNull.INSTANCE);
+          reply.add("id", request.get("id"));
+          write(writer, reply);
+        }
+      } catch (final RuntimeException | IOException e) {
+        // disconnected
+      }
+    }
+
+    private JsonArray transact(JsonArray params) {
+      final JsonArray results = new JsonArray();
+      final Map<String, JsonObject> inserted = new HashMap<String, JsonObject>();
+      for (int i = 1; i < params.size(); i++) {
+        final JsonObject op = params.get(i).getAsJsonObject();
+        final String table = op.get("table").getAsString();
+        final JsonObject result = new JsonObject();
+        if ("insert".equals(op.get("op").getAsString())) {
+          if ("Bridge".equals(table)) {
+            final String uuid = "uuid-" + uuids++;
+            inserted.put(uuid, op.getAsJsonObject("row"));
+            bridges.put(uuid, op.getAsJsonObject("row"));
+          }
+          result.add("uuid", new JsonParser().parse("[\"uuid\",\"" + uuids++ + "\"]"));
+        } else if ("mutate".equals(op.get("op").getAsString())) {
+          if ("Bridge".equals(table)) {
+            final String name = op.getAsJsonArray("where").get(0).getAsJsonArray().get(2).getAsString();
+            for (final JsonObject row : bridges.values()) {
+              if (name.equals(row.get("name").getAsString())) {
+                mutateOtherConfig(row, op.getAsJsonArray("mutations"));
+              }
+            }
+          } else if (op.toString().contains("next_cfg")) {
+            cfg++;
+          }
+          result.addProperty("count", 1);
+        } else if ("select".equals(op.get("op").getAsString())) {
+          result.add("rows", new JsonParser().parse("[{\"next_cfg\":" + cfg + "}]"));
+        }
+        results.add(result);
+      }
+      return results;
+    }
+
+    private void mutateOtherConfig(JsonObject row, JsonArray mutations) {
+      final Map<String, String> config = OvsdbClient.getMap(row, "other_config");
+      for (final JsonElement mutation : mutations) {
+        final JsonArray value = mutation.getAsJsonArray().get(2).getAsJsonArray().get(1).getAsJsonArray();
+        for (final JsonElement element : value) {
+          if ("delete".equals(mutation.getAsJsonArray().get(1).getAsString())) {
+            config.remove(element.getAsString());
+          } else {
+            config.put(element.getAsJsonArray().get(0).getAsString(), element.getAsJsonArray().get(1).getAsString());
+          }
+        }
+      }
+      final JsonArray pairs = new JsonArray();
+      for (final Map.Entry<String, String> entry : config.entrySet()) {
+        final JsonArray pair = new JsonArray();
+        pair.add(new JsonPrimitive(entry.getKey()));
+        pair.add(new JsonPrimitive(entry.getValue()));
+        pairs.add(pair);
+      }
+      final JsonArray map = new JsonArray();
+      map.add(new JsonPrimitive("map"));
+      map.add(pairs);
+      row.add("other_config", map);
+    }
+
+    private JsonObject updates(Iterable<String> uuids) {
+      final JsonObject bridgeUpdates = new JsonObject();
+      for (final String uuid : uuids) {
+        final JsonObject rowUpdate = new JsonObject();
+        rowUpdate.add("new", bridges.get(uuid));
+        bridgeUpdates.add(uuid, rowUpdate);
+      }
+      final JsonObject updates = new JsonObject();
+      updates.add("Bridge", bridgeUpdates);
+      updates.add("Open_vSwitch", new JsonParser().parse("{\"root\":{\"new\":{\"cur_cfg\":" + cfg + "}}}"));
+      return updates;
+    }
+
+    private JsonObject update(JsonObject updates) {
+      final JsonArray params = new JsonArray();
+      params.add(JsonNull.INSTANCE);
+      params.add(updates);
+      final JsonObject notification = new JsonObject();
+      notification.addProperty("method", "update");
+      notification.add("params", params);
+      notification.add("id", JsonNull.INSTANCE);
+      return notification;
+    }
+
+    private void write(Writer writer, JsonObject message) throws IOException {
+      writer.write(message.toString());
+      writer.flush();
+    }
+  }
+
+  private StubOvsdbServer server;
+  private OvsdbClient client;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new StubOvsdbServer();
+    server.addBridge("cloudbr0");
+    client = new OvsdbClient(server.getTarget(), 5000);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    server.server.close();
+  }
+
+  @Test
+  public void testAnswersFromCacheAndBatchesChanges() throws Exception {
+    Assert.assertTrue(client.bridgeExists("cloudbr0"));
+    Assert.assertFalse(client.bridgeExists("OVSTunnel100"));
+
+    final Map<String, String> otherConfig = new HashMap<String, String>();
+    otherConfig.put("ovs-host-setup", "-1");
+    client.transaction().addBridge("OVSTunnel100", otherConfig).addBridge("OVSTunnel101", otherConfig)
+        .addBridge("cloudbr0", null).commit();
+
+    Assert.assertEquals(1, server.transactions.get());
+    Assert.assertEquals(1, client.getTransactionCount());
+    Assert.assertTrue(client.bridgeExists("OVSTunnel100"));
+    Assert.assertTrue(client.bridgeExists("OVSTunnel101"));
+    Assert.assertEquals("-1", client.getBridgeOtherConfig("OVSTunnel100").get("ovs-host-setup"));
+    Assert.assertNull(client.getBridgeOtherConfig("OVSTunnel102"));
+
+    client.transaction().setBridgeOtherConfig("OVSTunnel100", "ovs-host-setup", "-1,5").commit();
+    Assert.assertEquals("-1,5", client.getBridgeOtherConfig("OVSTunnel100").get("ovs-host-setup"));
+    Assert.assertEquals("-1", client.getBridgeOtherConfig("OVSTunnel101").get("ovs-host-setup"));
+    Assert.assertEquals(1, server.connections.get());
+  }
+
+  @Test
+  public void testReconnectsAfterLosingTheConnection() throws Exception {
+    Assert.assertTrue(client.bridgeExists("cloudbr0"));
+    server.disconnect();
+    for (int i = 0; i < 100 && client.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertFalse(client.isConnected());
+
+    server.addBridge("cloud0");
+    Assert.assertTrue(client.bridgeExists("cloud0"));
+    Assert.assertEquals(2, server.connections.get());
+  }
+}
@@ -0,0 +1,182 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RbdHeartbeatBackendTest {
+
+  /**
+   * Keeps objects in memory and stamps them with a settable clock, like the OSDs stamp them with theirs.
+   */
+  private static class InMemoryObjectStore implements RbdHeartbeatBackend.ObjectStore {
+    private final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+    private final Map<String, Long> mtimes = new HashMap<String, Long>();
+    private long now;
+    private boolean failing;
+    private int stats;
+
+    @Override
+    public void writeFull(String oid, byte[] data) throws IOException {
+      if (failing) {
+        throw new IOException("connection lost");
+      }
+      objects.put(oid, data);
+      mtimes.put(oid, now);
+    }
+
+    @Override
+    public long getMtime(String oid) throws IOException {
+      stats++;
+      if (failing) {
+        throw new IOException("connection lost");
+      }
+      final Long mtime = mtimes.get(oid);
+      if (mtime == null) {
+        throw new IOException("No such object " + oid);
+      }
+      return mtime;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Blocks writes until released, like a write hanging on an unresponsive cluster.
+   */
+  private static class BlockingObjectStore implements RbdHeartbeatBackend.ObjectStore {
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean closed;
+
+    @Override
+    public void writeFull(String oid, byte[] data) throws IOException {
+      writing.countDown();
+      try {
+        release.await();
+      } catch (final InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (closed) {
+        throw new IOException("write on a closed connection");
+      }
+    }
+
+    @Override
+    public long getMtime(String oid) {
+      return 0;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static class Factory implements RbdHeartbeatBackend.ObjectStoreFactory {
+    private final RbdHeartbeatBackend.ObjectStore store;
+    private int connects;
+
+    Factory(RbdHeartbeatBackend.ObjectStore store) {
+      this.store = store;
+    }
+
+    @Override
+    public RbdHeartbeatBackend.ObjectStore connect() {
+      connects++;
+      return store;
+    }
+  }
+
+  @Test
+  public void testWritesAndStatsHeartbeat() throws Exception {
+    final InMemoryObjectStore store = new InMemoryObjectStore();
+    final RbdHeartbeatBackend backend = new RbdHeartbeatBackend("uuid", new Factory(store));
+
+    store.now = 1500000000L;
+    backend.write("10.0.0.1", 1500000000L);
+
+    Assert.assertEquals("1500000000", new String(store.objects.get(RbdHeartbeatBackend.OBJECT_PREFIX + "10.0.0.1"),
+        "US-ASCII"));
+    Assert.assertEquals(1500000000L, backend.read("10.0.0.1"));
+    Assert.assertEquals(1, store.stats);
+  }
+
+  @Test
+  public void testReconnectsAfterFailure() throws Exception {
+    final InMemoryObjectStore store = new InMemoryObjectStore();
+    final Factory factory = new Factory(store);
+    final RbdHeartbeatBackend backend = new RbdHeartbeatBackend("uuid", factory);
+
+    store.failing = true;
+    try {
+      backend.write("10.0.0.1", 1L);
+      Assert.fail("the write should have failed");
+    } catch (final IOException e) {
+      Assert.assertEquals("connection lost", e.getMessage());
+    }
+    store.failing = false;
+    backend.write("10.0.0.1", 2L);
+    Assert.assertEquals(2, factory.connects);
+  }
+
+  @Test
+  public void testCheckerSeesLiveRbdHeartbeat() throws Exception {
+    final InMemoryObjectStore fresh = new InMemoryObjectStore();
+    fresh.now = System.currentTimeMillis() / 1000;
+    final InMemoryObjectStore stale = new InMemoryObjectStore();
+    stale.now = fresh.now - 3600;
+    final RbdHeartbeatBackend freshBackend = new RbdHeartbeatBackend("a", new Factory(fresh));
+    final RbdHeartbeatBackend staleBackend = new RbdHeartbeatBackend("b", new Factory(stale));
+    freshBackend.write("10.0.0.2", fresh.now);
+    staleBackend.write("10.0.0.2", stale.now);
+
+    Assert.assertTrue(new KvmHaChecker(Arrays.<HeartbeatBackend>asList(staleBackend, freshBackend), "10.0.0.2", null)
+        .call());
+    Assert.assertFalse(new KvmHaChecker(Collections.<HeartbeatBackend>singletonList(staleBackend), "10.0.0.2", null)
+        .call());
+  }
+
+  @Test
+  public void testCloseWaitsForPendingWrite() throws Exception {
+    final BlockingObjectStore store = new BlockingObjectStore();
+    final Factory factory = new Factory(store);
+    final RbdHeartbeatBackend backend = new RbdHeartbeatBackend("uuid", factory);
+    final IOException[] failure = new IOException[1];
+    final Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          backend.write("10.0.0.1", 1L);
+        } catch (final IOException e) {
+          failure[0] = e;
+        }
+      }
+    });
+    writer.start();
+    Assert.assertTrue(store.writing.await(10, TimeUnit.SECONDS));
+
+    // the pool is removed while the write hangs, the connection stays open until it returns
+    backend.close();
+    Assert.assertFalse(store.closed);
+
+    store.release.countDown();
+    writer.join(10000);
+    Assert.assertNull(failure[0]);
+    Assert.assertTrue(store.closed);
+
+    // a new connection for the next heartbeat
+    store.closed = false;
+    backend.write("10.0.0.1", 2L);
+    Assert.assertEquals(2, factory.connects);
+  }
+}
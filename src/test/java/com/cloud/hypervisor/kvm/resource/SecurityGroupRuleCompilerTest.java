@@ -0,0 +1,141 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SecurityGroupRuleCompilerTest {
+
+  private final SecurityGroupRuleCompiler compiler = new SecurityGroupRuleCompiler();
+
+  private IpPortAndProto rule(String proto, int start, int end, String... cidrs) {
+    final IpPortAndProto rule = mock(IpPortAndProto.class);
+    when(rule.getProto()).thenReturn(proto);
+    when(rule.getStartPort()).thenReturn(start);
+    when(rule.getEndPort()).thenReturn(end);
+    when(rule.getAllowedCidrs()).thenReturn(cidrs);
+    return rule;
+  }
+
+  @Test
+  public void testCompilesRulesIntoIpsets() {
+    final SecurityGroupRuleset ruleset = compiler.compile("i-2-3-VM",
+        new IpPortAndProto[] { rule("tcp", 22, 22, "10.0.0.0/24", "10.0.1.0/24"), rule("tcp", 22, 22, "10.0.2.0/24"),
+          rule("tcp", 80, 443, "0.0.0.0/0"), rule("icmp", -1, -1, "192.168.0.0/16") },
+        new IpPortAndProto[0]);
+
+    final List<String> ingress = ruleset.getChains().get("i-2-3-VM");
+    Assert.assertEquals(4, ingress.size());
+    Assert.assertTrue(ingress.get(0).startsWith("-A i-2-3-VM -p tcp -m tcp --dport 22 -m state --state NEW -m set "
+        + "--match-set i-2-3-i"));
+    Assert.assertEquals("-A i-2-3-VM -p tcp -m tcp --dport 80:443 -m state --state NEW -j ACCEPT", ingress.get(1));
+    Assert.assertTrue(ingress.get(2).startsWith("-A i-2-3-VM -p icmp -m icmp --icmp-type any -m set"));
+    Assert.assertEquals("-A i-2-3-VM -j DROP", ingress.get(3));
+    Assert.assertEquals(Arrays.asList("-A i-2-3-VM-eg -j RETURN"), ruleset.getChains().get("i-2-3-VM-eg"));
+
+    Assert.assertEquals(2, ruleset.getSets().size());
+    for (final Map.Entry<String, ?> set : ruleset.getSets().entrySet()) {
+      Assert.assertTrue(set.getKey().length() <= 31);
+    }
+    Assert.assertTrue(ruleset.getSets().values().iterator().next()
+        .containsAll(Arrays.asList("10.0.0.0/24", "10.0.1.0/24", "10.0.2.0/24")));
+  }
+
+  @Test
+  public void testMemberChangeOnlyUpdatesIpset() {
+    final IpPortAndProto[] egress = new IpPortAndProto[] { rule("udp", 53, 53, "10.0.0.1/32") };
+    final SecurityGroupRuleset before = compiler.compile("i-2-3-VM", new IpPortAndProto[] {
+      rule("tcp", 22, 22, "10.0.0.0/24", "10.0.1.0/24") }, egress);
+    final SecurityGroupRuleset after = compiler.compile("i-2-3-VM", new IpPortAndProto[] {
+      rule("tcp", 22, 22, "10.0.0.0/24", "10.0.3.0/24") }, egress);
+
+    Assert.assertTrue(before.diff(before).isEmpty());
+    final SecurityGroupRuleset.Transaction transaction = after.diff(before);
+    Assert.assertEquals("", transaction.getIptables());
+    Assert.assertEquals("", transaction.getDestroyIpsets());
+    final String set = after.getSets().keySet().iterator().next();
+    Assert.assertEquals("add " + set + " 10.0.3.0/24 -exist\ndel " + set + " 10.0.1.0/24 -exist\n",
+        transaction.getIpsets());
+  }
+
+  @Test
+  public void testFirstApplyLoadsEverythingInOneTransaction() {
+    final SecurityGroupRuleset ruleset = compiler.compile("i-2-3-VM", new IpPortAndProto[] {
+      rule("tcp", 22, 22, "10.0.0.0/24") }, new IpPortAndProto[] { rule("all", 0, 0, "0.0.0.0/0") });
+    final String set = ruleset.getSets().keySet().iterator().next();
+
+    final SecurityGroupRuleset.Transaction transaction = ruleset.diff(null);
+    Assert.assertEquals("create " + set + " hash:net family inet -exist\nflush " + set + "\nadd " + set
+        + " 10.0.0.0/24 -exist\n", transaction.getIpsets());
+    Assert.assertEquals("*filter\n"
+        + ":i-2-3-VM - [0:0]\n"
+        + "-A i-2-3-VM -p tcp -m tcp --dport 22 -m state --state NEW -m set --match-set " + set + " src -j ACCEPT\n"
+        + "-A i-2-3-VM -j DROP\n"
+        + ":i-2-3-VM-eg - [0:0]\n"
+        + "-A i-2-3-VM-eg -m state --state NEW -j RETURN\n"
+        + "-A i-2-3-VM-eg -j DROP\n"
+        + "COMMIT\n", transaction.getIptables());
+  }
+
+  @Test
+  public void testParsesProgrammedRules() {
+    final SecurityGroupRuleset ruleset = compiler.compile("i-2-3-VM", new IpPortAndProto[] {
+      rule("tcp", 22, 22, "10.0.0.0/24") }, new IpPortAndProto[0]);
+    final String set = ruleset.getSets().keySet().iterator().next();
+
+    final List<String> iptablesSave = new ArrayList<String>();
+    iptablesSave.add("*filter");
+    iptablesSave.add(":i-2-3-VM - [0:0]");
+    iptablesSave.add(":i-2-3-VM-eg - [0:0]");
+    iptablesSave.add(":i-2-30-VM - [0:0]");
+    iptablesSave.addAll(ruleset.getChains().get("i-2-3-VM"));
+    iptablesSave.addAll(ruleset.getChains().get("i-2-3-VM-eg"));
+    iptablesSave.add("-A i-2-30-VM -j DROP");
+    iptablesSave.add("COMMIT");
+    final List<String> ipsetSave = Arrays.asList("create " + set + " hash:net family inet hashsize 1024 maxelem 65536",
+        "add " + set + " 10.0.0.0/24", "create i-2-30-i00000000 hash:net family inet hashsize 1024 maxelem 65536",
+        "create i-2-3-i0badf00d hash:net family inet hashsize 1024 maxelem 65536",
+        // the set security_group.py keeps for the VM, iptables still uses it
+        "create i-2-3-VM hash:ip family inet hashsize 1024 maxelem 65536", "add i-2-3-VM 10.1.1.10");
+
+    final SecurityGroupRuleset programmed = SecurityGroupRuleset.parse("i-2-3-VM", iptablesSave, ipsetSave);
+    Assert.assertFalse(programmed.getSets().containsKey("i-2-3-VM"));
+    final SecurityGroupRuleset.Transaction transaction = ruleset.diff(programmed);
+    Assert.assertEquals("", transaction.getIpsets());
+    Assert.assertEquals("", transaction.getIptables());
+    Assert.assertEquals("destroy i-2-3-i0badf00d\n", transaction.getDestroyIpsets());
+  }
+
+  @Test
+  public void testCidrsCompareEqualToIpsetSave() {
+    final SecurityGroupRuleset ruleset = compiler.compile("i-2-3-VM", new IpPortAndProto[] {
+      rule("tcp", 22, 22, "10.0.0.1/32", "10.0.1.7/24", "192.168.1.1", "2001:db8::/64") }, new IpPortAndProto[0]);
+    final String set = ruleset.getSets().keySet().iterator().next();
+    Assert.assertEquals(Arrays.asList("10.0.0.1", "10.0.1.0/24", "192.168.1.1"),
+        new ArrayList<String>(ruleset.getSets().get(set)));
+
+    // ipset save prints single addresses without a prefix and networks by their network address
+    final List<String> iptablesSave = new ArrayList<String>(ruleset.getChains().get("i-2-3-VM"));
+    iptablesSave.addAll(ruleset.getChains().get("i-2-3-VM-eg"));
+    final List<String> ipsetSave = Arrays.asList("create " + set + " hash:net family inet hashsize 1024 maxelem 65536",
+        "add " + set + " 10.0.0.1", "add " + set + " 10.0.1.0/24", "add " + set + " 192.168.1.1/32");
+    Assert.assertTrue(ruleset.diff(SecurityGroupRuleset.parse("i-2-3-VM", iptablesSave, ipsetSave)).isEmpty());
+
+    Assert.assertEquals("0.0.0.0/0", SecurityGroupRuleCompiler.canonicalCidr("10.0.0.0/0"));
+    Assert.assertNull(SecurityGroupRuleCompiler.canonicalCidr("10.0.0.256/24"));
+    Assert.assertNull(SecurityGroupRuleCompiler.canonicalCidr("10.0.0.0/33"));
+    Assert.assertTrue(SecurityGroupRuleCompiler.hasIpv6Cidrs(null, new IpPortAndProto[] {
+      rule("udp", 53, 53, "2001:db8::/64") }));
+    Assert.assertFalse(SecurityGroupRuleCompiler.hasIpv6Cidrs(new IpPortAndProto[] {
+      rule("udp", 53, 53, "10.0.0.0/8") }));
+  }
+}
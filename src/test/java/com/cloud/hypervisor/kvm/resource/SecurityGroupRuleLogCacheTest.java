@@ -0,0 +1,61 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import com.cloud.utils.Pair;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SecurityGroupRuleLogCacheTest {
+
+  private static class Loader implements Callable<String> {
+    private String ruleLogs;
+    private int calls;
+
+    @Override
+    public String call() {
+      calls++;
+      return ruleLogs;
+    }
+  }
+
+  @Test
+  public void testServesRuleLogsFromMemory() {
+    final Loader loader = new Loader();
+    loader.ruleLogs = "i-2-3-VM,3,10.0.0.3,7,sig,12;i-2-4-VM,4,10.0.0.4,8,_,-1;garbage";
+    final SecurityGroupRuleLogCache cache = new SecurityGroupRuleLogCache(loader, 0);
+
+    Map<String, Pair<Long, Long>> ruleLogs = cache.getRuleLogs();
+    Assert.assertEquals(2, ruleLogs.size());
+    Assert.assertEquals(Long.valueOf(12), ruleLogs.get("i-2-3-VM").second());
+
+    cache.update("i-2-3-VM", 3, 13);
+    cache.remove("i-2-4-VM");
+    ruleLogs = cache.getRuleLogs();
+    Assert.assertEquals(1, ruleLogs.size());
+    Assert.assertEquals(Long.valueOf(13), ruleLogs.get("i-2-3-VM").second());
+    Assert.assertEquals(1, loader.calls);
+  }
+
+  @Test
+  public void testResyncKeepsUpdatesMadeWhileItRuns() {
+    final SecurityGroupRuleLogCache[] cache = new SecurityGroupRuleLogCache[1];
+    cache[0] = new SecurityGroupRuleLogCache(new Callable<String>() {
+      @Override
+      public String call() {
+        // rules are programmed while get_rule_logs_for_vms runs
+        cache[0].update("i-2-3-VM", 3, 14);
+        cache[0].update("i-2-6-VM", 6, 1);
+        return "i-2-3-VM,3,10.0.0.3,7,sig,12;i-2-5-VM,5,10.0.0.5,9,sig,2";
+      }
+    }, 0);
+
+    final Map<String, Pair<Long, Long>> ruleLogs = cache[0].getRuleLogs();
+    Assert.assertEquals(3, ruleLogs.size());
+    Assert.assertEquals(Long.valueOf(14), ruleLogs.get("i-2-3-VM").second());
+    Assert.assertEquals(Long.valueOf(2), ruleLogs.get("i-2-5-VM").second());
+    Assert.assertEquals(Long.valueOf(1), ruleLogs.get("i-2-6-VM").second());
+  }
+}
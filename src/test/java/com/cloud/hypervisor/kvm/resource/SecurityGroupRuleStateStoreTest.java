@@ -0,0 +1,42 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SecurityGroupRuleStateStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSkipsIdenticalAndStaleRules() throws Exception {
+    final SecurityGroupRuleStateStore store = new SecurityGroupRuleStateStore(folder.getRoot());
+    final String rules = SecurityGroupRuleStateStore.hashRules("10.0.0.2", "02:00:00:00:00:01", "I:tcp:22:22:", "");
+
+    Assert.assertTrue(store.needsApply("i-2-3-VM", "sig", 5, rules));
+    store.programmed("i-2-3-VM", "sig", 5, rules);
+
+    Assert.assertFalse(store.needsApply("i-2-3-VM", "sig", 5, rules));
+    Assert.assertFalse(store.needsApply("i-2-3-VM", "old", 4, rules));
+    Assert.assertTrue(store.needsApply("i-2-3-VM", "sig", 6, rules));
+    Assert.assertTrue(store.needsApply("i-2-3-VM", "sig", 5,
+        SecurityGroupRuleStateStore.hashRules("10.0.0.3", "02:00:00:00:00:01", "I:tcp:22:22:", "")));
+    Assert.assertEquals(1, store.getAppliedCount());
+    Assert.assertEquals(1, store.getIdenticalSkipCount());
+    Assert.assertEquals(1, store.getStaleSkipCount());
+  }
+
+  @Test
+  public void testStateSurvivesRestart() throws Exception {
+    final String rules = SecurityGroupRuleStateStore.hashRules("10.0.0.2", "02:00:00:00:00:01", "", "");
+    new SecurityGroupRuleStateStore(folder.getRoot()).programmed("i-2-3-VM", "sig", 5, rules);
+
+    final SecurityGroupRuleStateStore restarted = new SecurityGroupRuleStateStore(folder.getRoot());
+    Assert.assertFalse(restarted.needsApply("i-2-3-VM", "sig", 5, rules));
+
+    restarted.invalidate("i-2-3-VM");
+    Assert.assertTrue(new SecurityGroupRuleStateStore(folder.getRoot()).needsApply("i-2-3-VM", "sig", 5, rules));
+  }
+}
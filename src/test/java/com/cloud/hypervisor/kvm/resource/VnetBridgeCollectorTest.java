@@ -0,0 +1,87 @@
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VnetBridgeCollectorTest {
+
+  private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+  private final List<String> removed = new ArrayList<String>();
+  private long now = 1000000L;
+
+  private final VnetBridgeCollector collector = new VnetBridgeCollector(new VnetBridgeCollector.Topology() {
+    @Override
+    public Map<String, Integer> getBridgesInUse() {
+      return inUse;
+    }
+  }, new VnetBridgeCollector.BridgeRemover() {
+    @Override
+    public boolean remove(String bridge) {
+      if (!collector.isIdle(bridge)) {
+        return false;
+      }
+      removed.add(bridge);
+      return true;
+    }
+  }, 300000L) {
+    @Override
+    long now() {
+      return now;
+    }
+  };
+
+  @Test
+  public void testRemovesBridgeOnceIdleForTheDelay() {
+    collector.acquire("breth0-100");
+    collector.acquire("breth0-100");
+    inUse.put("breth0-100", 2);
+    collector.release("breth0-100");
+    Assert.assertEquals(1, collector.getReferences("breth0-100"));
+
+    collector.release("breth0-100");
+    inUse.clear();
+    now += 299000L;
+    collector.collect();
+    Assert.assertTrue(removed.isEmpty());
+
+    // a quick stop and start keeps the bridge
+    collector.acquire("breth0-100");
+    inUse.put("breth0-100", 1);
+    now += 600000L;
+    collector.collect();
+    Assert.assertTrue(removed.isEmpty());
+
+    collector.release("breth0-100");
+    inUse.clear();
+    now += 300000L;
+    collector.collect();
+    Assert.assertEquals(1, removed.size());
+    Assert.assertEquals(0, collector.getReferences("breth0-100"));
+  }
+
+  @Test
+  public void testReconcilesWithRunningDomains() {
+    // plugged for an incoming migration that failed, never unplugged
+    collector.acquire("breth0-200");
+    now += 300000L;
+    collector.collect();
+    Assert.assertEquals(0, collector.getReferences("breth0-200"));
+    Assert.assertTrue(removed.isEmpty());
+    now += 300000L;
+    collector.collect();
+    Assert.assertEquals(1, removed.size());
+
+    // unplugged after an agent restart while another domain still uses the bridge
+    collector.release("breth0-300");
+    inUse.put("breth0-300", 1);
+    now += 300000L;
+    collector.collect();
+    Assert.assertEquals(1, collector.getReferences("breth0-300"));
+    Assert.assertEquals(1, removed.size());
+  }
+}
@@ -0,0 +1,70 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.cloudstack.utils.qemu.QemuImg.PhysicalDiskFormat;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileVolumeIndexTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private void writeQcow2Header(File file, long virtualSize) throws Exception {
+    final ByteBuffer header = ByteBuffer.allocate(64);
+    header.putInt(0, 0x514649fb);
+    header.putInt(4, 3);
+    header.putLong(24, virtualSize);
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(header.array());
+    }
+  }
+
+  @Test
+  public void testReconcileDetectsFormats() throws Exception {
+    writeQcow2Header(folder.newFile("template.qcow2"), 10737418240L);
+    try (FileOutputStream out = new FileOutputStream(folder.newFile("volume.raw"))) {
+      out.write(new byte[4096]);
+    }
+    folder.newFolder("lxc");
+
+    final FileVolumeIndex index = new FileVolumeIndex("pool", folder.getRoot().toPath());
+    index.reconcile();
+
+    Assert.assertEquals(3, index.size());
+    Assert.assertEquals(PhysicalDiskFormat.QCOW2, index.get("template.qcow2").getFormat());
+    Assert.assertEquals(10737418240L, index.get("template.qcow2").getVirtualSize());
+    Assert.assertEquals(PhysicalDiskFormat.RAW, index.get("volume.raw").getFormat());
+    Assert.assertEquals(4096, index.get("volume.raw").getVirtualSize());
+    Assert.assertEquals(PhysicalDiskFormat.DIR, index.get("lxc").getFormat());
+  }
+
+  @Test
+  public void testUpdateAndRemove() throws Exception {
+    final FileVolumeIndex index = new FileVolumeIndex("pool", folder.getRoot().toPath());
+    index.reconcile();
+    Assert.assertEquals(0, index.size());
+
+    final File volume = folder.newFile("volume");
+    writeQcow2Header(volume, 1024);
+    index.update("volume");
+    Assert.assertEquals(PhysicalDiskFormat.QCOW2, index.get("volume").getFormat());
+    Assert.assertEquals(volume.getPath(), index.get("volume").getPath());
+
+    Assert.assertTrue(volume.delete());
+    index.update("volume");
+    Assert.assertNull(index.get("volume"));
+
+    writeQcow2Header(volume, 1024);
+    index.reconcile();
+    Assert.assertNotNull(index.get("volume"));
+    Assert.assertTrue(volume.delete());
+    index.reconcile();
+    Assert.assertNull(index.get("volume"));
+  }
+}
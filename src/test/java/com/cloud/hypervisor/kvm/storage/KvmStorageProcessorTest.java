@@ -1,14 +1,39 @@
-
 package com.cloud.hypervisor.kvm.storage;
 
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
 import javax.naming.ConfigurationException;
 
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 public class KvmStorageProcessorTest {
+
+  private static final String TEMPLATE_URL = "nfs://10.0.0.1/export/secondary/template/tmpl/2/201/";
+
+  private KvmStoragePoolManager storagePoolMgr;
+  private KvmStoragePool secondaryPool;
+  private KvmStoragePool primaryPool;
+  private KvmStorageProcessor processor;
+
   @Before
   public void setUp() throws ConfigurationException {
+    storagePoolMgr = mock(KvmStoragePoolManager.class);
+    secondaryPool = mock(KvmStoragePool.class);
+    primaryPool = mock(KvmStoragePool.class);
+    when(storagePoolMgr.getStoragePoolByUri("nfs://10.0.0.1/export/secondary/template/tmpl/2/201"))
+        .thenReturn(secondaryPool);
+    processor = new KvmStorageProcessor(storagePoolMgr, mock(LibvirtComputingResource.class));
   }
 
   @Test
@@ -20,4 +45,31 @@ public class KvmStorageProcessorTest {
   public void testCopyVolumeFromImageCacheToPrimary() throws Exception {
 
   }
+
+  @Test
+  public void testTemplateDownloadRefreshesUnindexedPoolFirst() {
+    when(storagePoolMgr.isVolumeIndexed(secondaryPool)).thenReturn(false);
+    when(secondaryPool.listPhysicalDisks()).thenReturn(Collections.<KvmPhysicalDisk>emptyList());
+
+    Assert.assertNull(processor.templateToPrimaryDownload(TEMPLATE_URL, primaryPool, "uuid", 0L, 0));
+
+    // the listing of an unindexed pool is only current after a refresh
+    final InOrder order = inOrder(secondaryPool);
+    order.verify(secondaryPool).refresh();
+    order.verify(secondaryPool).listPhysicalDisks();
+    verify(secondaryPool).delete();
+  }
+
+  @Test
+  public void testTemplateDownloadSkipsRefreshOfIndexedPool() {
+    final KvmPhysicalDisk template = mock(KvmPhysicalDisk.class);
+    when(template.getName()).thenReturn("3f2a.qcow2");
+    when(storagePoolMgr.isVolumeIndexed(secondaryPool)).thenReturn(true);
+    when(secondaryPool.listPhysicalDisks()).thenReturn(Collections.singletonList(template));
+
+    processor.templateToPrimaryDownload(TEMPLATE_URL, primaryPool, "uuid", 0L, 0);
+
+    verify(secondaryPool, never()).refresh();
+    verify(storagePoolMgr).copyPhysicalDisk(template, "uuid", primaryPool, 0);
+  }
 }
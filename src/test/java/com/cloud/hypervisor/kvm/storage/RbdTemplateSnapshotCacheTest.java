@@ -0,0 +1,111 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.ceph.rbd.Rbd;
+import com.ceph.rbd.RbdImage;
+import com.ceph.rbd.jna.RbdImageInfo;
+import com.ceph.rbd.jna.RbdSnapInfo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RbdTemplateSnapshotCacheTest {
+
+  private static final String SNAP = "cloudstack-base-snap";
+
+  @Test
+  public void testMarkAndInvalidate() {
+    final RbdTemplateSnapshotCache cache = new RbdTemplateSnapshotCache(SNAP);
+
+    Assert.assertFalse(cache.isProtected("pool1", "template1"));
+
+    cache.markProtected("pool1", "template1");
+    Assert.assertTrue(cache.isProtected("pool1", "template1"));
+    Assert.assertFalse(cache.isProtected("pool2", "template1"));
+
+    cache.invalidate("pool1", "template1");
+    Assert.assertFalse(cache.isProtected("pool1", "template1"));
+
+    cache.markProtected("pool1", "template1");
+    cache.markProtected("pool1", "template2");
+    Assert.assertEquals(2, cache.size("pool1"));
+    cache.invalidatePool("pool1");
+    Assert.assertEquals(0, cache.size("pool1"));
+  }
+
+  @Test
+  public void testPrewarm() throws Exception {
+    final RbdTemplateSnapshotCache cache = new RbdTemplateSnapshotCache(SNAP);
+    final Rbd rbd = mock(Rbd.class);
+
+    final RbdSnapInfo baseSnap = new RbdSnapInfo();
+    baseSnap.name = SNAP;
+
+    final RbdImage template = mock(RbdImage.class);
+    when(template.isOldFormat()).thenReturn(false);
+    when(template.snapList()).thenReturn(Arrays.asList(baseSnap));
+    when(template.snapIsProtected(SNAP)).thenReturn(true);
+
+    final RbdImage volume = mock(RbdImage.class);
+    when(volume.isOldFormat()).thenReturn(false);
+    when(volume.snapList()).thenReturn(Collections.<RbdSnapInfo>emptyList());
+
+    when(rbd.list()).thenReturn(Arrays.asList("template", "volume", "skipped"));
+    when(rbd.open("template")).thenReturn(template);
+    when(rbd.open("volume")).thenReturn(volume);
+
+    Assert.assertEquals(1, cache.prewarm("pool", rbd, 2));
+    Assert.assertTrue(cache.isProtected("pool", "template"));
+    Assert.assertFalse(cache.isProtected("pool", "volume"));
+    verify(rbd, never()).open("skipped");
+    verify(rbd).close(template);
+    verify(rbd).close(volume);
+  }
+
+  private RbdImage template() throws Exception {
+    final RbdSnapInfo baseSnap = new RbdSnapInfo();
+    baseSnap.name = SNAP;
+    final RbdImage template = mock(RbdImage.class);
+    when(template.isOldFormat()).thenReturn(false);
+    when(template.snapList()).thenReturn(Arrays.asList(baseSnap));
+    when(template.snapIsProtected(SNAP)).thenReturn(true);
+    return template;
+  }
+
+  private RbdImage clone(String parent) throws Exception {
+    final RbdImageInfo info = new RbdImageInfo();
+    info.parent_name = Arrays.copyOf(parent.getBytes(StandardCharsets.UTF_8), 96);
+    final RbdImage volume = mock(RbdImage.class);
+    when(volume.stat()).thenReturn(info);
+    return volume;
+  }
+
+  @Test
+  public void testPrewarmRanksTemplatesOfVolumesInUse() throws Exception {
+    final RbdTemplateSnapshotCache cache = new RbdTemplateSnapshotCache(SNAP);
+    final Rbd rbd = mock(Rbd.class);
+
+    when(rbd.list()).thenReturn(Arrays.asList("unused", "rare", "popular"));
+    final RbdImage rare = template();
+    final RbdImage popular = template();
+    when(rbd.open("rare")).thenReturn(rare);
+    when(rbd.open("popular")).thenReturn(popular);
+    when(rbd.openReadOnly("volume1")).thenReturn(clone("popular"));
+    when(rbd.openReadOnly("volume2")).thenReturn(clone("rare"));
+    when(rbd.openReadOnly("volume3")).thenReturn(clone("popular"));
+
+    Assert.assertEquals(1, cache.prewarm("pool", rbd, 1, Arrays.asList("volume1", "volume2", "volume3")));
+    Assert.assertTrue(cache.isProtected("pool", "popular"));
+    Assert.assertFalse(cache.isProtected("pool", "rare"));
+    verify(rbd, never()).open("unused");
+    verify(rbd).close(popular);
+  }
+}
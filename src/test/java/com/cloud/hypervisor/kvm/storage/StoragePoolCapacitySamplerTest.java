@@ -0,0 +1,108 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+
+import com.cloud.storage.Storage.StoragePoolType;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StoragePoolCapacitySamplerTest {
+
+  private static final long INTERVAL = 60 * 1000L;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private long now = 1000000L;
+
+  private final StoragePoolCapacitySampler sampler = new StoragePoolCapacitySampler(60) {
+    @Override
+    protected long currentTimeMillis() {
+      return now;
+    }
+  };
+
+  private KvmStoragePool pool(String uuid, String localPath) {
+    return pool(uuid, StoragePoolType.Filesystem, localPath);
+  }
+
+  private KvmStoragePool pool(String uuid, StoragePoolType type, String localPath) {
+    final KvmStoragePool pool = mock(KvmStoragePool.class);
+    when(pool.getUuid()).thenReturn(uuid);
+    when(pool.getType()).thenReturn(type);
+    when(pool.getLocalPath()).thenReturn(localPath);
+    return pool;
+  }
+
+  @Test
+  public void testFailingPoolsBackOff() {
+    sampler.register(pool("gone", new File(folder.getRoot(), "gone").getPath()), null);
+    sampler.register(pool("local", folder.getRoot().getPath()), null);
+
+    sampler.sampleDuePools();
+    Assert.assertEquals(2, sampler.getBackoff("gone"));
+    Assert.assertEquals(1, sampler.getBackoff("local"));
+
+    // not due again before the backed off interval is over
+    now += INTERVAL + INTERVAL / 4 + 1;
+    sampler.sampleDuePools();
+    Assert.assertEquals(2, sampler.getBackoff("gone"));
+
+    for (int i = 0; i < 5; i++) {
+      now += 10 * INTERVAL;
+      sampler.sampleDuePools();
+    }
+    Assert.assertEquals(8, sampler.getBackoff("gone"));
+    Assert.assertNull(sampler.getSample("gone"));
+    Assert.assertEquals(1, sampler.getBackoff("local"));
+  }
+
+  @Test
+  public void testStaleSamplesAreNotServed() {
+    sampler.register(pool("local", folder.getRoot().getPath()), null);
+    final StoragePoolCapacitySampler.Sample sample = sampler.sampleNow("local");
+    Assert.assertNotNull(sample);
+    Assert.assertTrue(sample.getCapacity() > 0);
+    Assert.assertSame(sample, sampler.getSample("local"));
+
+    now += 3 * INTERVAL;
+    Assert.assertSame(sample, sampler.getSample("local"));
+    now += 1;
+    Assert.assertNull(sampler.getSample("local"));
+
+    sampler.unregister("local");
+    Assert.assertNull(sampler.sampleNow("local"));
+  }
+
+  @Test
+  public void testSamplesOfBackedOffPoolsStayGoodUntilTheNextSample() {
+    final KvmStoragePool rbd = pool("rbd", StoragePoolType.RBD, null);
+    final StorageAdaptor adaptor = mock(StorageAdaptor.class);
+    when(adaptor.getStoragePool("rbd", true)).thenReturn(rbd).thenThrow(new IllegalStateException("rados timeout"));
+    sampler.register(rbd, adaptor);
+
+    final long sampledAt = now;
+    sampler.sampleDuePools();
+    final StoragePoolCapacitySampler.Sample sample = sampler.getSample("rbd");
+    Assert.assertNotNull(sample);
+
+    // any runtime exception backs the pool off instead of escaping the scheduled task
+    now += 2 * INTERVAL;
+    sampler.sampleDuePools();
+    Assert.assertEquals(2, sampler.getBackoff("rbd"));
+    now += 3 * INTERVAL;
+    sampler.sampleDuePools();
+    Assert.assertEquals(4, sampler.getBackoff("rbd"));
+
+    Assert.assertEquals(sampledAt + 5 * INTERVAL, now);
+    Assert.assertSame(sample, sampler.getSample("rbd"));
+    now += 1;
+    Assert.assertNull(sampler.getSample("rbd"));
+  }
+}
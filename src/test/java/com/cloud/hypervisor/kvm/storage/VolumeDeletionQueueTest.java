@@ -0,0 +1,82 @@
+package com.cloud.hypervisor.kvm.storage;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.List;
+
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VolumeDeletionQueueTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testJournalReplay() throws Exception {
+    final File journal = new File(folder.getRoot(), "volume-deletion.journal");
+    final KvmStoragePoolManager storagePoolMgr = mock(KvmStoragePoolManager.class);
+    final KvmStoragePool pool = mock(KvmStoragePool.class);
+    when(storagePoolMgr.getStoragePool(StoragePoolType.RBD, "pool")).thenReturn(pool);
+
+    final VolumeDeletionQueue queue = new VolumeDeletionQueue(storagePoolMgr, journal, 10, 1, 3600);
+    queue.start();
+    queue.enqueue(StoragePoolType.RBD, "pool", "vol1", null);
+    queue.enqueue(StoragePoolType.RBD, "pool", "vol2", ImageFormat.RAW);
+    Assert.assertEquals(2, queue.getPendingCount());
+    Assert.assertTrue(queue.isPending("pool", "vol1"));
+
+    queue.purge(new VolumeDeletionQueue.PendingDeletion(StoragePoolType.RBD, "pool", "vol1", null));
+    verify(pool, times(1)).deletePhysicalDisk("vol1", null);
+    queue.stop();
+
+    final VolumeDeletionQueue restarted = new VolumeDeletionQueue(storagePoolMgr, journal, 10, 1, 3600);
+    final List<VolumeDeletionQueue.PendingDeletion> replayed = restarted.replayJournal();
+    Assert.assertEquals(1, replayed.size());
+    Assert.assertEquals("vol2", replayed.get(0).volumeUuid);
+    Assert.assertEquals(ImageFormat.RAW, replayed.get(0).format);
+    restarted.stop();
+  }
+
+  @Test
+  public void testFailedDeletionIsRetried() throws Exception {
+    final File journal = new File(folder.getRoot(), "volume-deletion.journal");
+    final KvmStoragePoolManager storagePoolMgr = mock(KvmStoragePoolManager.class);
+    final KvmStoragePool pool = mock(KvmStoragePool.class);
+    when(storagePoolMgr.getStoragePool(StoragePoolType.NetworkFilesystem, "pool")).thenReturn(pool);
+    when(pool.deletePhysicalDisk("vol", ImageFormat.QCOW2)).thenThrow(new CloudRuntimeException("busy"));
+
+    final VolumeDeletionQueue queue = new VolumeDeletionQueue(storagePoolMgr, journal, 10, 1, 3600);
+    queue.start();
+
+    final VolumeDeletionQueue.PendingDeletion deletion = new VolumeDeletionQueue.PendingDeletion(
+        StoragePoolType.NetworkFilesystem, "pool", "vol", ImageFormat.QCOW2);
+    queue.purge(deletion);
+    Assert.assertTrue(queue.isPending("pool", "vol"));
+    queue.stop();
+  }
+
+  @Test
+  public void testUnexpectedFailureIsRetried() throws Exception {
+    final File journal = new File(folder.getRoot(), "volume-deletion.journal");
+    final KvmStoragePoolManager storagePoolMgr = mock(KvmStoragePoolManager.class);
+    when(storagePoolMgr.getStoragePool(StoragePoolType.NetworkFilesystem, "pool"))
+        .thenThrow(new IllegalStateException("pool is gone"));
+
+    final VolumeDeletionQueue queue = new VolumeDeletionQueue(storagePoolMgr, journal, 10, 1, 3600);
+    queue.start();
+    queue.purge(new VolumeDeletionQueue.PendingDeletion(StoragePoolType.NetworkFilesystem, "pool", "vol", null));
+    Assert.assertTrue(queue.isPending("pool", "vol"));
+    queue.stop();
+  }
+}
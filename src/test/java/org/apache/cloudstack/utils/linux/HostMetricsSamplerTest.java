@@ -0,0 +1,95 @@
+package org.apache.cloudstack.utils.linux;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HostMetricsSamplerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File stat;
+  private File meminfo;
+  private File net;
+
+  private void write(File file, String content) throws Exception {
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private HostMetricsSampler createSampler() throws Exception {
+    stat = new File(folder.getRoot(), "stat");
+    meminfo = new File(folder.getRoot(), "meminfo");
+    net = folder.newFolder("net");
+    write(stat, "cpu  100 0 100 800 0 0 0 0 0 0\n"
+        + "cpu0 50 0 50 400 0 0 0 0 0 0\n"
+        + "cpu1 50 0 50 400 0 0 0 0 0 0\n"
+        + "intr 12345 0 0\n");
+    write(meminfo, "MemTotal:        5830236 kB\n"
+        + "MemFree:          156752 kB\n"
+        + "MemAvailable:    3000000 kB\n"
+        + "Buffers:          326836 kB\n"
+        + "Cached:          2606764 kB\n");
+    write(new File(net, "cloudbr0/statistics/rx_bytes"), "2048\n");
+    write(new File(net, "cloudbr0/statistics/tx_bytes"), "4096\n");
+    return new HostMetricsSampler(stat.getPath(), meminfo.getPath(), net.getPath(), 2, 4);
+  }
+
+  @Test
+  public void testSample() throws Exception {
+    final HostMetricsSampler sampler = createSampler();
+    sampler.sample();
+    Assert.assertFalse(sampler.hasSamples());
+    Assert.assertEquals(5830236d, sampler.getMemTotalKb(), 0d);
+    Assert.assertEquals(3000000d, sampler.getMemAvailableKb(), 0d);
+    Assert.assertEquals(2048d, sampler.getNicRxBytes("cloudbr0"), 0d);
+    Assert.assertEquals(4096d, sampler.getNicTxBytes("cloudbr0"), 0d);
+    Assert.assertEquals(0d, sampler.getNicRxBytes("eth9"), 0d);
+
+    write(stat, "cpu  200 0 150 900 50 0 0 100 0 0\n"
+        + "cpu0 100 0 75 450 25 0 0 50 0 0\n"
+        + "cpu1 100 0 75 450 25 0 0 50 0 0\n"
+        + "intr 12345 0 0\n");
+    sampler.sample();
+    Assert.assertTrue(sampler.hasSamples());
+    // 400 ticks passed: 100 user, 50 system, 100 idle, 50 iowait and 100 steal
+    Assert.assertEquals(62.5d, sampler.getCpuUsedPercent(), 0.001d);
+    Assert.assertEquals(25d, sampler.getCpuPercent(-1, HostMetricsSampler.USER), 0.001d);
+    Assert.assertEquals(12.5d, sampler.getCpuPercent(-1, HostMetricsSampler.SYSTEM), 0.001d);
+    Assert.assertEquals(12.5d, sampler.getCpuPercent(1, HostMetricsSampler.IOWAIT), 0.001d);
+    Assert.assertEquals(25d, sampler.getCpuPercent(0, HostMetricsSampler.STEAL), 0.001d);
+    sampler.stop();
+  }
+
+  @Test
+  public void testMemAvailableFallback() throws Exception {
+    final HostMetricsSampler sampler = createSampler();
+    write(meminfo, "MemTotal:        5830236 kB\n"
+        + "MemFree:          156752 kB\n"
+        + "Cached:          2606764 kB\n");
+    sampler.sample();
+    Assert.assertEquals(156752d + 2606764d, sampler.getMemAvailableKb(), 0d);
+    Assert.assertEquals(156752d + 2606764d, sampler.getMemAvailableHistory().latest(), 0d);
+    sampler.stop();
+  }
+
+  @Test
+  public void testRingBuffer() {
+    final MetricRingBuffer ring = new MetricRingBuffer(3);
+    Assert.assertEquals(0d, ring.latest(), 0d);
+    for (int i = 1; i <= 5; i++) {
+      ring.add(i, i * 10);
+    }
+    Assert.assertEquals(3, ring.size());
+    Assert.assertEquals(50d, ring.latest(), 0d);
+    Assert.assertEquals(30d, ring.get(2), 0d);
+    Assert.assertEquals(4L, ring.getTimestamp(1));
+    Assert.assertEquals(40d, ring.average(), 0d);
+  }
+}